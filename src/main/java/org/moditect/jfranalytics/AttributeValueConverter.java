@@ -17,7 +17,26 @@ package org.moditect.jfranalytics;
 
 import jdk.jfr.consumer.RecordedEvent;
 
+/**
+ * Retrieves the value of one column from an event.
+ */
 public interface AttributeValueConverter {
 
     Object getValue(RecordedEvent event);
+
+    /**
+     * A converter computing {@code long} values, such as timestamps and timespans, which can be retrieved without
+     * boxing them, e.g. when filling the primitive arrays of a {@link ColumnarTable}. The values of other attributes
+     * of primitive types are passed through as boxed by the JFR parser.
+     */
+    @FunctionalInterface
+    interface LongValueConverter extends AttributeValueConverter {
+
+        long getLong(RecordedEvent event);
+
+        @Override
+        default Object getValue(RecordedEvent event) {
+            return getLong(event);
+        }
+    }
 }
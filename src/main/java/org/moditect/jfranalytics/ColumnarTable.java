@@ -0,0 +1,655 @@
+/*
+ *  Copyright 2021 - 2023 The original authors
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package org.moditect.jfranalytics;
+
+import java.nio.DoubleBuffer;
+import java.nio.IntBuffer;
+import java.nio.LongBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.calcite.linq4j.AbstractEnumerable;
+import org.apache.calcite.linq4j.Enumerable;
+import org.apache.calcite.linq4j.Enumerator;
+import org.apache.calcite.rel.type.RelDataType;
+import org.apache.calcite.rel.type.RelDataTypeField;
+import org.checkerframework.checker.nullness.qual.Nullable;
+import org.moditect.jfranalytics.AttributeValueConverter.LongValueConverter;
+
+import jdk.jfr.consumer.RecordedEvent;
+
+/**
+ * The rows of a table, stored column-wise in primitive arrays. {@code BIGINT} and {@code TIMESTAMP} columns (e.g.
+ * timestamps, durations and weights) are stored as {@code long[]}, {@code INTEGER} columns as {@code int[]} and
+ * {@code DOUBLE} columns as {@code double[]}. All other columns (e.g. strings, thread structs and stack traces) are
+ * dictionary-encoded, i.e. each distinct value is stored once and referenced by its {@code int} index.
+ * <p>
+ * Column values are accessed through NIO buffers, so that tables can be backed by heap arrays as well as by
+ * memory-mapped {@link JfrIndex} files. For each block of {@value #BLOCK_SIZE} rows, the minimum and maximum
+ * {@code startTime} are kept, allowing to skip entire blocks when scanning with a {@code startTime} lower bound.
+ */
+public class ColumnarTable {
+
+    static final int BLOCK_SIZE = 4096;
+
+    // rough per-value size estimates for dictionary entries
+    private static final int OBJECT_SIZE = 64;
+    private static final int STRING_SIZE = 48;
+
+    private final int rowCount;
+    private final @Nullable Column[] columns;
+    private final int startTimeIndex;
+    private final long @Nullable [] blockMinStartTimes;
+    private final long @Nullable [] blockMaxStartTimes;
+
+    /**
+     * @param columns the columns of the table; {@code null} elements represent columns whose values are not available
+     * @param startTimeIndex the index of the {@code startTime} column, -1 if there is none
+     * @param blockMinStartTimes the minimum {@code startTime} per block of rows, if there is a {@code startTime} column
+     * @param blockMaxStartTimes the maximum {@code startTime} per block of rows, if there is a {@code startTime} column
+     */
+    ColumnarTable(int rowCount, @Nullable Column[] columns, int startTimeIndex, long @Nullable [] blockMinStartTimes, long @Nullable [] blockMaxStartTimes) {
+        this.rowCount = rowCount;
+        this.columns = columns;
+        this.startTimeIndex = startTimeIndex;
+        this.blockMinStartTimes = blockMinStartTimes;
+        this.blockMaxStartTimes = blockMaxStartTimes;
+    }
+
+    public int getRowCount() {
+        return rowCount;
+    }
+
+    /**
+     * Returns the estimated heap size of this table in bytes.
+     */
+    public long getEstimatedSize() {
+        long size = 0;
+        for (Column column : columns) {
+            size += column != null ? column.getEstimatedSize() : 0;
+        }
+        return size;
+    }
+
+    /**
+     * Whether the values of all the given columns are available in this table.
+     *
+     * @param projects the columns to check, or {@code null} for checking all columns
+     */
+    public boolean hasColumns(int @Nullable [] projects) {
+        if (projects == null) {
+            return Arrays.stream(columns).allMatch(c -> c != null);
+        }
+
+        for (int project : projects) {
+            if (columns[project] == null) {
+                return false;
+            }
+        }
+
+        return true;
+    }
+
+    int getStartTimeIndex() {
+        return startTimeIndex;
+    }
+
+    @Nullable
+    Column[] getColumns() {
+        return columns;
+    }
+
+    long @Nullable [] getBlockMinStartTimes() {
+        return blockMinStartTimes;
+    }
+
+    long @Nullable [] getBlockMaxStartTimes() {
+        return blockMaxStartTimes;
+    }
+
+    /**
+     * Returns the given columns of all the rows whose {@code startTime} value is within the given range.
+     *
+     * @param projects the columns to return, or {@code null} if all columns should be returned
+     */
+    public Enumerable<Object[]> scan(int @Nullable [] projects, StartTimeRange range) {
+        int[] fields = projects != null ? projects : allFields();
+        LongColumn startTime = !range.isUnbounded() && startTimeIndex >= 0 && columns[startTimeIndex] instanceof LongColumn
+                ? (LongColumn) columns[startTimeIndex]
+                : null;
+
+        return new AbstractEnumerable<>() {
+
+            @Override
+            public Enumerator<Object[]> enumerator() {
+                return new Enumerator<>() {
+
+                    private int row = -1;
+
+                    @Override
+                    public Object[] current() {
+                        Object[] values = new Object[fields.length];
+                        for (int i = 0; i < fields.length; i++) {
+                            values[i] = columns[fields[i]].get(row);
+                        }
+                        return values;
+                    }
+
+                    @Override
+                    public boolean moveNext() {
+                        while (++row < rowCount) {
+                            if (startTime == null) {
+                                return true;
+                            }
+
+                            // skip entire blocks which end before the lower bound
+                            if (row % BLOCK_SIZE == 0 && blockMaxStartTimes != null && blockMaxStartTimes[row / BLOCK_SIZE] < range.getLowerBound()) {
+                                row += BLOCK_SIZE - 1;
+                                continue;
+                            }
+
+                            if (startTime.isNull(row) || startTime.getLong(row) >= range.getLowerBound()) {
+                                return true;
+                            }
+                        }
+
+                        return false;
+                    }
+
+                    @Override
+                    public void reset() {
+                        row = -1;
+                    }
+
+                    @Override
+                    public void close() {
+                    }
+                };
+            }
+        };
+    }
+
+    private int[] allFields() {
+        int[] fields = new int[columns.length];
+        for (int i = 0; i < fields.length; i++) {
+            fields[i] = i;
+        }
+        return fields;
+    }
+
+    /**
+     * Collects the rows of a table. Rows must contain the values of all the columns of the table.
+     */
+    public static class Builder {
+
+        private final @Nullable ColumnBuilder[] columns;
+        private final long maxSize;
+        private final int startTimeIndex;
+        private long[] blockMinStartTimes = new long[16];
+        private long[] blockMaxStartTimes = new long[16];
+        private int rowCount;
+        private boolean exceeded;
+
+        /**
+         * @param maxSize the maximum estimated size in bytes; once exceeded, no further rows will be collected.
+         */
+        public Builder(RelDataType rowType, long maxSize) {
+            List<RelDataTypeField> fields = rowType.getFieldList();
+            this.columns = new ColumnBuilder[fields.size()];
+            this.maxSize = maxSize;
+            this.startTimeIndex = rowType.getFieldNames().indexOf("startTime");
+
+            for (int i = 0; i < columns.length; i++) {
+                switch (fields.get(i).getType().getSqlTypeName()) {
+                    case BIGINT:
+                    case TIMESTAMP:
+                        columns[i] = new LongColumnBuilder();
+                        break;
+                    case INTEGER:
+                        columns[i] = new IntColumnBuilder();
+                        break;
+                    case DOUBLE:
+                        columns[i] = new DoubleColumnBuilder();
+                        break;
+                    default:
+                        columns[i] = new DictionaryColumnBuilder();
+                }
+            }
+        }
+
+        /**
+         * Adds the given row; returns {@code false} if the table has exceeded the maximum size, in which case the row
+         * has not been added.
+         */
+        public boolean add(Object[] row) {
+            if (exceeded) {
+                return false;
+            }
+
+            for (int i = 0; i < columns.length; i++) {
+                if (columns[i] != null) {
+                    columns[i].add(row[i]);
+                }
+            }
+
+            if (startTimeIndex >= 0 && row[startTimeIndex] instanceof Number) {
+                addStartTime(((Number) row[startTimeIndex]).longValue());
+            }
+
+            return rowAdded();
+        }
+
+        /**
+         * Adds the row for the given event, retrieving the values of {@code long} columns without boxing them;
+         * returns {@code false} if the table has exceeded the maximum size, in which case the row has not been added.
+         *
+         * @param converters the converters of all the columns; {@code null} elements represent {@code null} values
+         */
+        public boolean add(RecordedEvent event, @Nullable AttributeValueConverter[] converters) {
+            if (exceeded) {
+                return false;
+            }
+
+            for (int i = 0; i < columns.length; i++) {
+                if (columns[i] != null) {
+                    columns[i].add(event, converters[i]);
+                }
+            }
+
+            if (startTimeIndex >= 0 && columns[startTimeIndex] instanceof LongColumnBuilder) {
+                LongColumnBuilder startTime = (LongColumnBuilder) columns[startTimeIndex];
+                if (!startTime.isNull(rowCount)) {
+                    addStartTime(startTime.getLong(rowCount));
+                }
+            }
+
+            return rowAdded();
+        }
+
+        private boolean rowAdded() {
+            rowCount++;
+
+            // checking the size for every row would be too costly
+            if ((rowCount & 1023) == 0 && getEstimatedSize() > maxSize) {
+                exceeded = true;
+            }
+
+            return !exceeded;
+        }
+
+        public boolean isExceeded() {
+            return exceeded || getEstimatedSize() > maxSize;
+        }
+
+        public ColumnarTable build() {
+            Column[] built = new Column[columns.length];
+            for (int i = 0; i < columns.length; i++) {
+                built[i] = columns[i] != null ? columns[i].build(rowCount) : null;
+            }
+
+            int blockCount = (rowCount + BLOCK_SIZE - 1) / BLOCK_SIZE;
+            boolean hasStartTimes = startTimeIndex >= 0 && built[startTimeIndex] instanceof LongColumn;
+
+            return new ColumnarTable(rowCount, built, startTimeIndex, hasStartTimes ? Arrays.copyOf(blockMinStartTimes, blockCount) : null,
+                    hasStartTimes ? Arrays.copyOf(blockMaxStartTimes, blockCount) : null);
+        }
+
+        private void addStartTime(long startTime) {
+            int block = rowCount / BLOCK_SIZE;
+
+            if (block == blockMinStartTimes.length) {
+                blockMinStartTimes = Arrays.copyOf(blockMinStartTimes, block * 2);
+                blockMaxStartTimes = Arrays.copyOf(blockMaxStartTimes, block * 2);
+            }
+
+            if (rowCount % BLOCK_SIZE == 0) {
+                blockMinStartTimes[block] = startTime;
+                blockMaxStartTimes[block] = startTime;
+            }
+            else {
+                blockMinStartTimes[block] = Math.min(blockMinStartTimes[block], startTime);
+                blockMaxStartTimes[block] = Math.max(blockMaxStartTimes[block], startTime);
+            }
+        }
+
+        private long getEstimatedSize() {
+            long size = 0;
+            for (ColumnBuilder column : columns) {
+                size += column != null ? column.getEstimatedSize() : 0;
+            }
+            return size;
+        }
+    }
+
+    interface Column {
+
+        Object get(int row);
+
+        long getEstimatedSize();
+    }
+
+    private interface ColumnBuilder {
+
+        void add(Object value);
+
+        default void add(RecordedEvent event, @Nullable AttributeValueConverter converter) {
+            add(converter != null ? converter.getValue(event) : null);
+        }
+
+        long getEstimatedSize();
+
+        Column build(int rowCount);
+    }
+
+    static class LongColumn implements Column {
+
+        final LongBuffer values;
+        final @Nullable BitSet nulls;
+
+        LongColumn(LongBuffer values, @Nullable BitSet nulls) {
+            this.values = values;
+            this.nulls = nulls;
+        }
+
+        boolean isNull(int row) {
+            return nulls != null && nulls.get(row);
+        }
+
+        long getLong(int row) {
+            return values.get(row);
+        }
+
+        @Override
+        public Object get(int row) {
+            return isNull(row) ? null : values.get(row);
+        }
+
+        @Override
+        public long getEstimatedSize() {
+            return 8L * values.capacity() + (nulls != null ? nulls.size() / 8 : 0);
+        }
+    }
+
+    private static class LongColumnBuilder implements ColumnBuilder {
+
+        private long[] values = new long[1024];
+        private BitSet nulls;
+        private int size;
+
+        @Override
+        public void add(Object value) {
+            if (size == values.length) {
+                values = Arrays.copyOf(values, size * 2);
+            }
+
+            if (value == null) {
+                if (nulls == null) {
+                    nulls = new BitSet();
+                }
+                nulls.set(size);
+            }
+            else {
+                values[size] = ((Number) value).longValue();
+            }
+
+            size++;
+        }
+
+        @Override
+        public void add(RecordedEvent event, @Nullable AttributeValueConverter converter) {
+            if (converter instanceof LongValueConverter) {
+                if (size == values.length) {
+                    values = Arrays.copyOf(values, size * 2);
+                }
+
+                values[size++] = ((LongValueConverter) converter).getLong(event);
+            }
+            else {
+                ColumnBuilder.super.add(event, converter);
+            }
+        }
+
+        boolean isNull(int row) {
+            return nulls != null && nulls.get(row);
+        }
+
+        long getLong(int row) {
+            return values[row];
+        }
+
+        @Override
+        public long getEstimatedSize() {
+            return 8L * values.length;
+        }
+
+        @Override
+        public Column build(int rowCount) {
+            return new LongColumn(LongBuffer.wrap(Arrays.copyOf(values, rowCount)), nulls);
+        }
+    }
+
+    static class IntColumn implements Column {
+
+        final IntBuffer values;
+        final @Nullable BitSet nulls;
+
+        IntColumn(IntBuffer values, @Nullable BitSet nulls) {
+            this.values = values;
+            this.nulls = nulls;
+        }
+
+        @Override
+        public Object get(int row) {
+            return nulls != null && nulls.get(row) ? null : values.get(row);
+        }
+
+        @Override
+        public long getEstimatedSize() {
+            return 4L * values.capacity() + (nulls != null ? nulls.size() / 8 : 0);
+        }
+    }
+
+    private static class IntColumnBuilder implements ColumnBuilder {
+
+        private int[] values = new int[1024];
+        private BitSet nulls;
+        private int size;
+
+        @Override
+        public void add(Object value) {
+            if (size == values.length) {
+                values = Arrays.copyOf(values, size * 2);
+            }
+
+            if (value == null) {
+                if (nulls == null) {
+                    nulls = new BitSet();
+                }
+                nulls.set(size);
+            }
+            else {
+                values[size] = ((Number) value).intValue();
+            }
+
+            size++;
+        }
+
+        @Override
+        public long getEstimatedSize() {
+            return 4L * values.length;
+        }
+
+        @Override
+        public Column build(int rowCount) {
+            return new IntColumn(IntBuffer.wrap(Arrays.copyOf(values, rowCount)), nulls);
+        }
+    }
+
+    static class DoubleColumn implements Column {
+
+        final DoubleBuffer values;
+        final @Nullable BitSet nulls;
+
+        DoubleColumn(DoubleBuffer values, @Nullable BitSet nulls) {
+            this.values = values;
+            this.nulls = nulls;
+        }
+
+        @Override
+        public Object get(int row) {
+            return nulls != null && nulls.get(row) ? null : values.get(row);
+        }
+
+        @Override
+        public long getEstimatedSize() {
+            return 8L * values.capacity() + (nulls != null ? nulls.size() / 8 : 0);
+        }
+    }
+
+    private static class DoubleColumnBuilder implements ColumnBuilder {
+
+        private double[] values = new double[1024];
+        private BitSet nulls;
+        private int size;
+
+        @Override
+        public void add(Object value) {
+            if (size == values.length) {
+                values = Arrays.copyOf(values, size * 2);
+            }
+
+            if (value == null) {
+                if (nulls == null) {
+                    nulls = new BitSet();
+                }
+                nulls.set(size);
+            }
+            else {
+                values[size] = ((Number) value).doubleValue();
+            }
+
+            size++;
+        }
+
+        @Override
+        public long getEstimatedSize() {
+            return 8L * values.length;
+        }
+
+        @Override
+        public Column build(int rowCount) {
+            return new DoubleColumn(DoubleBuffer.wrap(Arrays.copyOf(values, rowCount)), nulls);
+        }
+    }
+
+    /**
+     * A column storing the index of each value in a dictionary of distinct values; -1 represents {@code null}.
+     */
+    static class DictionaryColumn implements Column {
+
+        final IntBuffer codes;
+        final Object[] dictionary;
+        private final long dictionarySize;
+
+        DictionaryColumn(IntBuffer codes, Object[] dictionary) {
+            this.codes = codes;
+            this.dictionary = dictionary;
+
+            long size = 0;
+            for (Object value : dictionary) {
+                size += ColumnarTable.getEstimatedSize(value);
+            }
+            this.dictionarySize = size;
+        }
+
+        @Override
+        public Object get(int row) {
+            int code = codes.get(row);
+            return code == -1 ? null : dictionary[code];
+        }
+
+        @Override
+        public long getEstimatedSize() {
+            return 4L * codes.capacity() + dictionarySize;
+        }
+    }
+
+    private static class DictionaryColumnBuilder implements ColumnBuilder {
+
+        private final Map<Object, Integer> codesByValue = new HashMap<>();
+        private final List<Object> dictionary = new ArrayList<>();
+        private long dictionarySize;
+        private int[] codes = new int[1024];
+        private int size;
+
+        @Override
+        public void add(Object value) {
+            if (size == codes.length) {
+                codes = Arrays.copyOf(codes, size * 2);
+            }
+
+            if (value == null) {
+                codes[size] = -1;
+            }
+            else {
+                // struct values are represented as arrays, which don't implement equals() and hashCode()
+                Object key = value instanceof Object[] ? Arrays.asList((Object[]) value) : value;
+                Integer code = codesByValue.get(key);
+
+                if (code == null) {
+                    code = dictionary.size();
+                    codesByValue.put(key, code);
+                    dictionary.add(value);
+                    dictionarySize += ColumnarTable.getEstimatedSize(value);
+                }
+
+                codes[size] = code;
+            }
+
+            size++;
+        }
+
+        @Override
+        public long getEstimatedSize() {
+            // the lookup map roughly doubles the dictionary size while building
+            return 4L * codes.length + 2 * dictionarySize;
+        }
+
+        @Override
+        public Column build(int rowCount) {
+            return new DictionaryColumn(IntBuffer.wrap(Arrays.copyOf(codes, rowCount)), dictionary.toArray());
+        }
+    }
+
+    private static long getEstimatedSize(Object value) {
+        if (value instanceof String) {
+            return STRING_SIZE + ((String) value).length();
+        }
+        else if (value instanceof Object[]) {
+            long size = OBJECT_SIZE;
+            for (Object element : (Object[]) value) {
+                size += element != null ? getEstimatedSize(element) : 0;
+            }
+            return size;
+        }
+
+        return OBJECT_SIZE;
+    }
+}
@@ -0,0 +1,269 @@
+/*
+ *  Copyright 2021 - 2023 The original authors
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package org.moditect.jfranalytics;
+
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.calcite.linq4j.AbstractEnumerable;
+import org.apache.calcite.linq4j.Enumerable;
+import org.apache.calcite.linq4j.Enumerator;
+import org.apache.calcite.linq4j.Linq4j;
+import org.apache.calcite.rel.type.RelDataType;
+import org.checkerframework.checker.nullness.qual.Nullable;
+
+/**
+ * Keeps the rows of recently scanned tables in memory as {@link ColumnarTable}s, keyed by recording file and table
+ * name. The cache has a memory budget; when adding a table would exceed that budget, the least recently used tables are
+ * evicted. Tables larger than the budget are not cached at all.
+ * <p>
+ * Each cached table remembers the chunks of the recording its rows have been read from. When chunks get appended to a
+ * recording, only these new chunks need to be decoded; their rows are added to the cached table as a new segment.
+ */
+public class ColumnarTableCache {
+
+    private final long maxSize;
+    private final Map<TableKey, CachedTable> tables = new LinkedHashMap<>(16, 0.75f, true);
+    private long size;
+
+    /**
+     * @param maxSize the memory budget in bytes
+     */
+    public ColumnarTableCache(long maxSize) {
+        this.maxSize = maxSize;
+    }
+
+    public synchronized @Nullable CachedTable get(Path jfrFile, String tableName) {
+        return tables.get(new TableKey(jfrFile, tableName));
+    }
+
+    public synchronized void put(Path jfrFile, String tableName, CachedTable table) {
+        put(new TableKey(jfrFile, tableName), table);
+    }
+
+    private void put(TableKey key, CachedTable table) {
+        long tableSize = table.getEstimatedSize();
+        CachedTable previous = tables.remove(key);
+        if (previous != null) {
+            size -= previous.getEstimatedSize();
+        }
+
+        if (tableSize > maxSize) {
+            return;
+        }
+
+        Iterator<CachedTable> eldest = tables.values().iterator();
+        while (size + tableSize > maxSize && eldest.hasNext()) {
+            size -= eldest.next().getEstimatedSize();
+            eldest.remove();
+        }
+
+        tables.put(key, table);
+        size += tableSize;
+    }
+
+    /**
+     * Adds the given segment to the given cached table, unless that table has been replaced or evicted in the meantime.
+     */
+    private synchronized void append(TableKey key, CachedTable base, ColumnarTable segment, List<JfrChunk> chunks) {
+        if (tables.get(key) == base) {
+            put(key, base.append(segment, chunks));
+        }
+    }
+
+    /**
+     * Removes the tables of all recordings other than the given ones.
+     */
+    public synchronized void retainFiles(Collection<Path> jfrFiles) {
+        Iterator<Map.Entry<TableKey, CachedTable>> it = tables.entrySet().iterator();
+
+        while (it.hasNext()) {
+            Map.Entry<TableKey, CachedTable> table = it.next();
+            if (!jfrFiles.contains(table.getKey().jfrFile())) {
+                size -= table.getValue().getEstimatedSize();
+                it.remove();
+            }
+        }
+    }
+
+    public synchronized long getSize() {
+        return size;
+    }
+
+    public long getMaxSize() {
+        return maxSize;
+    }
+
+    /**
+     * Returns an enumerable which passes on the given rows, projected to the given columns, and adds the complete set
+     * of rows to this cache once they have been enumerated completely.
+     *
+     * @param base the cached table to which the rows should be added, or {@code null} if they are all the rows of the
+     *        table
+     * @param chunks the chunks of the recording the rows are read from
+     * @param rows the rows to cache, containing the values of all the columns of the table
+     */
+    public Enumerable<Object[]> populate(Path jfrFile, String tableName, RelDataType rowType, @Nullable CachedTable base, List<JfrChunk> chunks,
+                                         Enumerable<Object[]> rows, int @Nullable [] projects) {
+        TableKey key = new TableKey(jfrFile, tableName);
+
+        return new AbstractEnumerable<>() {
+
+            @Override
+            public Enumerator<Object[]> enumerator() {
+                return new Enumerator<>() {
+
+                    private final Enumerator<Object[]> delegate = rows.enumerator();
+                    private ColumnarTable.Builder builder = new ColumnarTable.Builder(rowType, maxSize);
+                    private Object[] current;
+
+                    @Override
+                    public Object[] current() {
+                        return current;
+                    }
+
+                    @Override
+                    public boolean moveNext() {
+                        if (!delegate.moveNext()) {
+                            if (builder != null && !builder.isExceeded()) {
+                                if (base == null) {
+                                    synchronized (ColumnarTableCache.this) {
+                                        put(key, new CachedTable(rowType, List.of(builder.build()), chunks));
+                                    }
+                                }
+                                else {
+                                    append(key, base, builder.build(), chunks);
+                                }
+                            }
+                            builder = null;
+                            current = null;
+                            return false;
+                        }
+
+                        Object[] row = delegate.current();
+                        if (builder != null && !builder.add(row)) {
+                            builder = null;
+                        }
+
+                        current = project(row);
+                        return true;
+                    }
+
+                    @Override
+                    public void reset() {
+                        delegate.reset();
+                        builder = new ColumnarTable.Builder(rowType, maxSize);
+                        current = null;
+                    }
+
+                    @Override
+                    public void close() {
+                        builder = null;
+                        delegate.close();
+                    }
+
+                    private Object[] project(Object[] row) {
+                        if (projects == null) {
+                            return row;
+                        }
+
+                        Object[] projected = new Object[projects.length];
+                        for (int i = 0; i < projects.length; i++) {
+                            projected[i] = row[projects[i]];
+                        }
+                        return projected;
+                    }
+                };
+            }
+        };
+    }
+
+    /**
+     * The cached rows of one table, made up of one segment per batch of chunks scanned.
+     */
+    public static class CachedTable {
+
+        private final RelDataType rowType;
+        private final List<ColumnarTable> segments;
+        private final List<JfrChunk> chunks;
+        private final long estimatedSize;
+
+        CachedTable(RelDataType rowType, List<ColumnarTable> segments, List<JfrChunk> chunks) {
+            this.rowType = rowType;
+            this.segments = segments;
+            this.chunks = chunks;
+            this.estimatedSize = segments.stream().mapToLong(ColumnarTable::getEstimatedSize).sum();
+        }
+
+        public RelDataType getRowType() {
+            return rowType;
+        }
+
+        /**
+         * The chunks of the recording the rows of this table have been read from.
+         */
+        public List<JfrChunk> getChunks() {
+            return chunks;
+        }
+
+        public int getRowCount() {
+            return segments.stream().mapToInt(ColumnarTable::getRowCount).sum();
+        }
+
+        public long getEstimatedSize() {
+            return estimatedSize;
+        }
+
+        /**
+         * Whether the chunks of this table are the leading chunks of the given ones, i.e. the recording has not been
+         * changed other than by appending chunks.
+         */
+        public boolean isPrefixOf(List<JfrChunk> chunks) {
+            return chunks.size() >= this.chunks.size() && chunks.subList(0, this.chunks.size()).equals(this.chunks);
+        }
+
+        public Enumerable<Object[]> scan(int @Nullable [] projects, StartTimeRange range) {
+            if (segments.size() == 1) {
+                return segments.get(0).scan(projects, range);
+            }
+
+            List<Enumerable<Object[]>> scans = new ArrayList<>(segments.size());
+            for (ColumnarTable segment : segments) {
+                scans.add(segment.scan(projects, range));
+            }
+
+            return Linq4j.concat(scans);
+        }
+
+        CachedTable append(ColumnarTable segment, List<JfrChunk> chunks) {
+            List<ColumnarTable> segments = new ArrayList<>(this.segments);
+            segments.add(segment);
+
+            List<JfrChunk> allChunks = new ArrayList<>(this.chunks);
+            allChunks.addAll(chunks);
+
+            return new CachedTable(rowType, segments, allChunks);
+        }
+    }
+
+    private record TableKey(Path jfrFile, String tableName) {
+    }
+}
@@ -0,0 +1,223 @@
+/*
+ *  Copyright 2021 - 2023 The original authors
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package org.moditect.jfranalytics;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+import org.apache.calcite.schema.AggregateFunction;
+import org.apache.calcite.schema.impl.AggregateFunctionImpl;
+
+import jdk.jfr.consumer.RecordedFrame;
+import jdk.jfr.consumer.RecordedMethod;
+import jdk.jfr.consumer.RecordedStackTrace;
+
+/**
+ * An aggregate function folding {@link RecordedStackTrace}s into the collapsed stack format understood by flame graph
+ * tools: one line per distinct stack, with its frames from the outermost to the innermost one separated by
+ * {@code ;}, followed by a space and the number of samples with that stack, or the sum of their weight. Lines are
+ * ordered by their frames.
+ * <p>
+ * Stacks are folded into a prefix tree of frames, i.e. memory usage is proportional to the number of distinct frames
+ * (rather than to the overall length of all the distinct stacks), and the collapsed output is only rendered once when
+ * the aggregation completes. The JFR parser returns the same {@code RecordedStackTrace} instance for all the events of
+ * a chunk referring to the same stack trace, so the tree node of each instance is remembered (up to
+ * {@value #MAX_REMEMBERED_STACKS} instances per aggregation), and the frames of each distinct stack trace are
+ * formatted only once.
+ */
+public class FlameGraphFunction {
+
+    public static final List<AggregateFunction> INSTANCES = List.of(
+            AggregateFunctionImpl.create(SampleCount.class),
+            AggregateFunctionImpl.create(Weight.class));
+
+    private static final int MAX_REMEMBERED_STACKS = 10_000;
+
+    private FlameGraphFunction() {
+    }
+
+    /**
+     * {@code FLAMEGRAPH(stackTrace)}, counting the samples per stack.
+     */
+    public static class SampleCount {
+
+        public Tree init() {
+            return new Tree();
+        }
+
+        public Tree add(Tree tree, Object recordedStackTrace) {
+            tree.add(recordedStackTrace, 1);
+            return tree;
+        }
+
+        public Tree merge(Tree tree1, Tree tree2) {
+            return tree1.merge(tree2);
+        }
+
+        public String result(Tree tree) {
+            return tree.toCollapsedStacks();
+        }
+    }
+
+    /**
+     * {@code FLAMEGRAPH(stackTrace, weight)}, summing up the weight of the samples per stack, e.g. the allocated bytes
+     * of {@code jdk.ObjectAllocationSample} events.
+     */
+    public static class Weight {
+
+        public Tree init() {
+            return new Tree();
+        }
+
+        public Tree add(Tree tree, Object recordedStackTrace, long weight) {
+            tree.add(recordedStackTrace, weight);
+            return tree;
+        }
+
+        public Tree merge(Tree tree1, Tree tree2) {
+            return tree1.merge(tree2);
+        }
+
+        public String result(Tree tree) {
+            return tree.toCollapsedStacks();
+        }
+    }
+
+    /**
+     * The prefix tree of the stacks aggregated so far; the root node represents the empty stack.
+     */
+    public static class Tree {
+
+        private final Node root = new Node();
+        private final Map<Object, Node> nodes = new IdentityHashMap<>();
+
+        void add(Object recordedStackTrace, long weight) {
+            if (recordedStackTrace == null) {
+                return;
+            }
+            if (!(recordedStackTrace instanceof RecordedStackTrace) && !(recordedStackTrace instanceof IndexedStackTrace)) {
+                throw new IllegalArgumentException("Unexpected value type: " + recordedStackTrace);
+            }
+
+            Node node = nodes.get(recordedStackTrace);
+
+            if (node == null) {
+                node = recordedStackTrace instanceof IndexedStackTrace
+                        ? getNode((IndexedStackTrace) recordedStackTrace)
+                        : getNode((RecordedStackTrace) recordedStackTrace);
+
+                if (nodes.size() == MAX_REMEMBERED_STACKS) {
+                    nodes.clear();
+                }
+                nodes.put(recordedStackTrace, node);
+            }
+
+            node.value += weight;
+        }
+
+        Tree merge(Tree other) {
+            root.merge(other.root);
+            return this;
+        }
+
+        private Node getNode(RecordedStackTrace stackTrace) {
+            List<RecordedFrame> frames = stackTrace.getFrames();
+            Node node = root;
+
+            // frames are ordered from the innermost to the outermost one
+            for (int i = frames.size() - 1; i >= 0; i--) {
+                String frame = asText(frames.get(i));
+                if (frame != null) {
+                    node = node.getChild(frame);
+                }
+            }
+
+            return node;
+        }
+
+        private Node getNode(IndexedStackTrace stackTrace) {
+            List<IndexedStackTrace.Frame> frames = stackTrace.getFrames();
+            Node node = root;
+
+            for (int i = frames.size() - 1; i >= 0; i--) {
+                String frame = asText(frames.get(i));
+                if (frame != null) {
+                    node = node.getChild(frame);
+                }
+            }
+
+            return node;
+        }
+
+        String toCollapsedStacks() {
+            StringBuilder builder = new StringBuilder();
+            root.appendTo(builder, new ArrayList<>());
+            return builder.toString();
+        }
+    }
+
+    private static class Node {
+
+        private final Map<String, Node> children = new HashMap<>();
+        private long value;
+
+        Node getChild(String frame) {
+            return children.computeIfAbsent(frame, f -> new Node());
+        }
+
+        void merge(Node other) {
+            value += other.value;
+            other.children.forEach((frame, child) -> getChild(frame).merge(child));
+        }
+
+        void appendTo(StringBuilder builder, List<String> stack) {
+            if (value != 0 && !stack.isEmpty()) {
+                builder.append(String.join(";", stack)).append(' ').append(value).append('\n');
+            }
+
+            for (Map.Entry<String, Node> child : new TreeMap<>(children).entrySet()) {
+                stack.add(child.getKey());
+                child.getValue().appendTo(builder, stack);
+                stack.remove(stack.size() - 1);
+            }
+        }
+    }
+
+    /**
+     * Formats Java frames like {@link FrameHelper}, and any other frames as {@code <type>.<method>}. Returns
+     * {@code null} for hidden frames and frames without a method.
+     */
+    private static String asText(RecordedFrame frame) {
+        if (frame.isJavaFrame()) {
+            return FrameHelper.asText(frame);
+        }
+
+        RecordedMethod method = frame.getMethod();
+        return method != null ? method.getType().getName() + '.' + method.getName() : null;
+    }
+
+    private static String asText(IndexedStackTrace.Frame frame) {
+        if (frame.isJavaFrame()) {
+            return FrameHelper.asText(frame);
+        }
+
+        return frame.getMethodName() != null ? frame.getTypeName() + '.' + frame.getMethodName() : null;
+    }
+}
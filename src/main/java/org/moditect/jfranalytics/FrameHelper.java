@@ -15,32 +15,117 @@
  */
 package org.moditect.jfranalytics;
 
+import java.util.AbstractList;
+import java.util.List;
+
 import jdk.jfr.consumer.RecordedFrame;
 import jdk.jfr.consumer.RecordedMethod;
+import jdk.jfr.consumer.RecordedStackTrace;
 
+/**
+ * Formats stack frames like {@code java.util.ArrayList.addAll(Collection):670}.
+ * <p>
+ * The JFR parser returns the same {@code RecordedMethod} instance for all the frames of a chunk referring to the same
+ * method from the constant pool. The formatted signatures of methods are cached, keyed by that instance, so only the
+ * line number needs to be appended per frame. The cache keeps at most {@code jfranalytics.methodCacheSize} methods
+ * (system property, defaults to {@value #DEFAULT_METHOD_CACHE_SIZE}).
+ */
 public class FrameHelper {
 
+    public static final String METHOD_CACHE_SIZE_PROPERTY = "jfranalytics.methodCacheSize";
+    private static final int DEFAULT_METHOD_CACHE_SIZE = 50_000;
+
+    // RecordedMethod doesn't override equals(), i.e. methods are compared by identity
+    private static final LruCache<RecordedMethod, String> METHOD_CACHE = new LruCache<>(
+            Integer.getInteger(METHOD_CACHE_SIZE_PROPERTY, DEFAULT_METHOD_CACHE_SIZE));
+
     public static String asText(RecordedFrame frame) {
-        if (!frame.isJavaFrame() || frame.getMethod().isHidden()) {
+        if (!frame.isJavaFrame() || frame.getMethod() == null || frame.getMethod().isHidden()) {
             return null;
         }
 
+        String method = METHOD_CACHE.computeIfAbsent(frame.getMethod(), FrameHelper::asText);
+
+        int line = frame.getLineNumber();
+        return line >= 0 ? method + ':' + line : method;
+    }
+
+    /**
+     * Formats a frame of a stack trace persisted in a {@link JfrIndex}, like a {@link RecordedFrame}.
+     */
+    public static String asText(IndexedStackTrace.Frame frame) {
+        if (!frame.isJavaFrame() || frame.isHidden() || frame.getMethodName() == null) {
+            return null;
+        }
+
+        String method = asText(frame.getTypeName(), frame.getMethodName(), frame.getDescriptor());
+
+        int line = frame.getLineNumber();
+        return line >= 0 ? method + ':' + line : method;
+    }
+
+    /**
+     * Returns the formatted frames of the given stack trace, from the innermost to the outermost one. Frames are
+     * formatted upon access, i.e. only as far as they are examined.
+     *
+     * @param stackTrace a {@link RecordedStackTrace} or an {@link IndexedStackTrace}
+     */
+    public static List<String> getFrames(Object stackTrace) {
+        if (stackTrace instanceof IndexedStackTrace) {
+            List<IndexedStackTrace.Frame> frames = ((IndexedStackTrace) stackTrace).getFrames();
+
+            return new AbstractList<>() {
+
+                @Override
+                public String get(int index) {
+                    return asText(frames.get(index));
+                }
+
+                @Override
+                public int size() {
+                    return frames.size();
+                }
+            };
+        }
+
+        List<RecordedFrame> frames = ((RecordedStackTrace) stackTrace).getFrames();
+
+        return new AbstractList<>() {
+
+            @Override
+            public String get(int index) {
+                return asText(frames.get(index));
+            }
+
+            @Override
+            public int size() {
+                return frames.size();
+            }
+        };
+    }
+
+    /**
+     * Returns the cache of formatted method signatures, e.g. for examining its hit rate.
+     */
+    public static LruCache<RecordedMethod, String> getMethodCache() {
+        return METHOD_CACHE;
+    }
+
+    private static String asText(RecordedMethod method) {
+        return asText(method.getType().getName(), method.getName(), method.getDescriptor());
+    }
+
+    private static String asText(String typeName, String methodName, String descriptor) {
         StringBuilder builder = new StringBuilder();
 
-        RecordedMethod method = frame.getMethod();
-        builder.append(method.getType().getName());
+        builder.append(typeName);
         builder.append('.');
-        builder.append(method.getName());
+        builder.append(methodName);
 
         builder.append('(');
-        appendParameters(method.getDescriptor(), builder);
+        appendParameters(descriptor, builder);
         builder.append(')');
 
-        int line = frame.getLineNumber();
-        if (line >= 0) {
-            builder.append(':').append(line);
-        }
-
         return builder.toString();
     }
 
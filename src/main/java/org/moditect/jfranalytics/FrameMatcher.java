@@ -0,0 +1,123 @@
+/*
+ *  Copyright 2021 - 2023 The original authors
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package org.moditect.jfranalytics;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.function.Predicate;
+import java.util.regex.Pattern;
+
+import org.checkerframework.checker.nullness.qual.Nullable;
+
+/**
+ * Matches formatted stack frames (see {@link FrameHelper}) against one or more regular expressions, with the semantics
+ * of {@link String#matches(String)}, i.e. a pattern must match the entire frame. Each pattern is compiled once. Patterns
+ * which are plain literals, optionally surrounded by {@code .*}, are evaluated using {@code equals()},
+ * {@code startsWith()}, {@code endsWith()} or {@code contains()} instead of the regular expression engine.
+ */
+public class FrameMatcher {
+
+    private static final String META_CHARACTERS = ".[]{}()*+?^$|\\";
+
+    private final List<String> patterns;
+    private final List<Predicate<String>> predicates;
+
+    private FrameMatcher(List<String> patterns) {
+        this.patterns = patterns;
+        this.predicates = new ArrayList<>(patterns.size());
+
+        for (String pattern : patterns) {
+            predicates.add(compile(pattern));
+        }
+    }
+
+    public static FrameMatcher of(List<String> patterns) {
+        return new FrameMatcher(List.copyOf(patterns));
+    }
+
+    public List<String> getPatterns() {
+        return patterns;
+    }
+
+    /**
+     * Whether the given frame matches any of the patterns of this matcher.
+     */
+    public boolean matches(@Nullable String frame) {
+        if (frame == null) {
+            return false;
+        }
+
+        for (Predicate<String> predicate : predicates) {
+            if (predicate.test(frame)) {
+                return true;
+            }
+        }
+
+        return false;
+    }
+
+    private static Predicate<String> compile(String pattern) {
+        boolean leadingWildcard = pattern.startsWith(".*");
+        boolean trailingWildcard = pattern.length() >= (leadingWildcard ? 4 : 2) && pattern.endsWith(".*") && !pattern.endsWith("\\.*");
+
+        String literal = unescape(pattern.substring(leadingWildcard ? 2 : 0, pattern.length() - (trailingWildcard ? 2 : 0)));
+
+        if (literal == null) {
+            Pattern compiled = Pattern.compile(pattern);
+            return frame -> compiled.matcher(frame).matches();
+        }
+        else if (leadingWildcard && trailingWildcard) {
+            return frame -> frame.contains(literal);
+        }
+        else if (leadingWildcard) {
+            return frame -> frame.endsWith(literal);
+        }
+        else if (trailingWildcard) {
+            return frame -> frame.startsWith(literal);
+        }
+        else {
+            return frame -> frame.equals(literal);
+        }
+    }
+
+    /**
+     * Returns the literal text matched by the given pattern, or {@code null} if the pattern contains any unescaped
+     * meta characters.
+     */
+    private static @Nullable String unescape(String pattern) {
+        StringBuilder literal = new StringBuilder(pattern.length());
+
+        for (int i = 0; i < pattern.length(); i++) {
+            char c = pattern.charAt(i);
+
+            if (c == '\\') {
+                // escaped non-alphanumeric characters are literals, but not constructs such as \d or \Q...\E
+                if (i + 1 == pattern.length() || Character.isLetterOrDigit(pattern.charAt(i + 1))) {
+                    return null;
+                }
+                literal.append(pattern.charAt(++i));
+            }
+            else if (META_CHARACTERS.indexOf(c) != -1) {
+                return null;
+            }
+            else {
+                literal.append(c);
+            }
+        }
+
+        return literal.toString();
+    }
+}
@@ -25,6 +25,9 @@ public class GetClassNameFunction {
     public static final ScalarFunction INSTANCE = ScalarFunctionImpl.create(GetClassNameFunction.class, "eval");
 
     public String eval(Object recordedClass) {
+        if (recordedClass instanceof IndexedClass) {
+            return ((IndexedClass) recordedClass).getName();
+        }
         if (!(recordedClass instanceof RecordedClass)) {
             throw new IllegalArgumentException("Unexpected value type: " + recordedClass);
         }
@@ -15,41 +15,88 @@
  */
 package org.moditect.jfranalytics;
 
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.List;
 
 import org.apache.calcite.schema.ScalarFunction;
 import org.apache.calcite.schema.impl.ScalarFunctionImpl;
 
-import jdk.jfr.consumer.RecordedFrame;
 import jdk.jfr.consumer.RecordedStackTrace;
 
 /**
- * Truncates a {@link RecordedStackTrace} to the given maximum depth.
+ * Whether a {@link RecordedStackTrace} contains a frame matching any of the given regular expressions. Up to
+ * {@value #MAX_PATTERNS} patterns can be passed, e.g. for finding stack traces with frames from any of several packages.
+ * <p>
+ * Patterns are compiled once per set of patterns (see {@link FrameMatcher}). Match results aren't cached, as a cache
+ * keyed by stack trace instance would retain the recording chunks those stack traces reference.
  */
 public class HasMatchingFrameFunction {
 
-    public static final ScalarFunction INSTANCE = ScalarFunctionImpl.create(HasMatchingFrameFunction.class, "eval");
+    private static final int MAX_PATTERNS = 4;
+
+    public static final List<ScalarFunction> INSTANCES = createInstances();
+    public static final ScalarFunction INSTANCE = INSTANCES.get(0);
+
+    private static final LruCache<List<String>, FrameMatcher> MATCHERS = new LruCache<>(256);
 
     public boolean eval(Object recordedStackTrace, String pattern) {
+        return hasMatchingFrame(recordedStackTrace, pattern);
+    }
+
+    public boolean eval(Object recordedStackTrace, String pattern1, String pattern2) {
+        return hasMatchingFrame(recordedStackTrace, pattern1, pattern2);
+    }
+
+    public boolean eval(Object recordedStackTrace, String pattern1, String pattern2, String pattern3) {
+        return hasMatchingFrame(recordedStackTrace, pattern1, pattern2, pattern3);
+    }
+
+    public boolean eval(Object recordedStackTrace, String pattern1, String pattern2, String pattern3, String pattern4) {
+        return hasMatchingFrame(recordedStackTrace, pattern1, pattern2, pattern3, pattern4);
+    }
+
+    private static boolean hasMatchingFrame(Object recordedStackTrace, String... patterns) {
         if (recordedStackTrace == null) {
             return true;
         }
-        if (!(recordedStackTrace instanceof RecordedStackTrace)) {
+        if (!(recordedStackTrace instanceof RecordedStackTrace) && !(recordedStackTrace instanceof IndexedStackTrace)) {
             throw new IllegalArgumentException("Unexpected value type: " + recordedStackTrace);
         }
-        if (pattern == null) {
+        if (Arrays.asList(patterns).contains(null)) {
             throw new IllegalArgumentException("A pattern must be given");
         }
 
-        List<RecordedFrame> frames = ((RecordedStackTrace) recordedStackTrace).getFrames();
+        FrameMatcher matcher = MATCHERS.computeIfAbsent(List.of(patterns), FrameMatcher::of);
 
-        for (RecordedFrame recordedFrame : frames) {
-            String frameAsText = FrameHelper.asText(recordedFrame);
-            if (frameAsText != null && frameAsText.matches(pattern)) {
+        for (String frame : FrameHelper.getFrames(recordedStackTrace)) {
+            if (matcher.matches(frame)) {
                 return true;
             }
         }
 
         return false;
     }
+
+    private static List<ScalarFunction> createInstances() {
+        List<ScalarFunction> instances = new ArrayList<>();
+
+        for (int patterns = 1; patterns <= MAX_PATTERNS; patterns++) {
+            Class<?>[] parameterTypes = new Class<?>[patterns + 1];
+            parameterTypes[0] = Object.class;
+            Arrays.fill(parameterTypes, 1, parameterTypes.length, String.class);
+
+            try {
+                Method method = HasMatchingFrameFunction.class.getMethod("eval", parameterTypes);
+                instances.add(ScalarFunctionImpl.create(method));
+            }
+            catch (NoSuchMethodException e) {
+                throw new IllegalStateException(e);
+            }
+        }
+
+        return Collections.unmodifiableList(instances);
+    }
 }
@@ -0,0 +1,56 @@
+/*
+ *  Copyright 2021 - 2023 The original authors
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package org.moditect.jfranalytics;
+
+import java.util.Objects;
+
+import jdk.jfr.consumer.RecordedClass;
+
+/**
+ * A class as persisted in a {@link JfrIndex}, standing in for {@link RecordedClass} values when scans are served from
+ * the index. Only the class name is kept, as retrieved by {@link GetClassNameFunction}.
+ */
+public final class IndexedClass {
+
+    private final String name;
+
+    IndexedClass(String name) {
+        this.name = name;
+    }
+
+    static IndexedClass of(RecordedClass recordedClass) {
+        return new IndexedClass(recordedClass.getName());
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    @Override
+    public boolean equals(Object obj) {
+        return obj instanceof IndexedClass && name.equals(((IndexedClass) obj).name);
+    }
+
+    @Override
+    public int hashCode() {
+        return Objects.hash(name);
+    }
+
+    @Override
+    public String toString() {
+        return name;
+    }
+}
@@ -0,0 +1,178 @@
+/*
+ *  Copyright 2021 - 2023 The original authors
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package org.moditect.jfranalytics;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Objects;
+
+import org.checkerframework.checker.nullness.qual.Nullable;
+
+import jdk.jfr.consumer.RecordedFrame;
+import jdk.jfr.consumer.RecordedMethod;
+import jdk.jfr.consumer.RecordedStackTrace;
+
+/**
+ * A stack trace as persisted in a {@link JfrIndex}, standing in for {@link RecordedStackTrace} values when scans are
+ * served from the index. The functions processing stack traces, such as {@link TruncateStackTraceFunction}, support
+ * both representations. Each distinct stack trace is loaded from the index once, so instances may be compared by
+ * identity, like {@code RecordedStackTrace}s of the same chunk.
+ */
+public final class IndexedStackTrace {
+
+    private final List<Frame> frames;
+    private final boolean truncated;
+    private final int hashCode;
+
+    IndexedStackTrace(List<Frame> frames, boolean truncated) {
+        this.frames = frames;
+        this.truncated = truncated;
+        // stack traces are used as dictionary keys when creating the index
+        this.hashCode = Objects.hash(frames, truncated);
+    }
+
+    static IndexedStackTrace of(RecordedStackTrace stackTrace) {
+        List<Frame> frames = new ArrayList<>(stackTrace.getFrames().size());
+        for (RecordedFrame frame : stackTrace.getFrames()) {
+            frames.add(Frame.of(frame));
+        }
+
+        return new IndexedStackTrace(List.copyOf(frames), stackTrace.isTruncated());
+    }
+
+    /**
+     * Returns the frames of this stack trace, from the innermost to the outermost one.
+     */
+    public List<Frame> getFrames() {
+        return frames;
+    }
+
+    public boolean isTruncated() {
+        return truncated;
+    }
+
+    @Override
+    public boolean equals(Object obj) {
+        if (this == obj) {
+            return true;
+        }
+        if (!(obj instanceof IndexedStackTrace)) {
+            return false;
+        }
+
+        IndexedStackTrace other = (IndexedStackTrace) obj;
+        return hashCode == other.hashCode && truncated == other.truncated && frames.equals(other.frames);
+    }
+
+    @Override
+    public int hashCode() {
+        return hashCode;
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder builder = new StringBuilder();
+        for (Frame frame : frames) {
+            builder.append(frame).append(System.lineSeparator());
+        }
+        if (truncated) {
+            builder.append("...").append(System.lineSeparator());
+        }
+        return builder.toString();
+    }
+
+    /**
+     * A frame of a persisted stack trace. The method attributes are {@code null} if the frame doesn't refer to a
+     * method.
+     */
+    public static final class Frame {
+
+        private final @Nullable String typeName;
+        private final @Nullable String methodName;
+        private final @Nullable String descriptor;
+        private final boolean hidden;
+        private final boolean javaFrame;
+        private final int lineNumber;
+
+        Frame(@Nullable String typeName, @Nullable String methodName, @Nullable String descriptor, boolean hidden, boolean javaFrame, int lineNumber) {
+            this.typeName = typeName;
+            this.methodName = methodName;
+            this.descriptor = descriptor;
+            this.hidden = hidden;
+            this.javaFrame = javaFrame;
+            this.lineNumber = lineNumber;
+        }
+
+        static Frame of(RecordedFrame frame) {
+            RecordedMethod method = frame.getMethod();
+
+            if (method == null) {
+                return new Frame(null, null, null, false, frame.isJavaFrame(), frame.getLineNumber());
+            }
+
+            return new Frame(method.getType() != null ? method.getType().getName() : null, method.getName(), method.getDescriptor(), method.isHidden(),
+                    frame.isJavaFrame(), frame.getLineNumber());
+        }
+
+        public @Nullable String getTypeName() {
+            return typeName;
+        }
+
+        public @Nullable String getMethodName() {
+            return methodName;
+        }
+
+        public @Nullable String getDescriptor() {
+            return descriptor;
+        }
+
+        public boolean isHidden() {
+            return hidden;
+        }
+
+        public boolean isJavaFrame() {
+            return javaFrame;
+        }
+
+        public int getLineNumber() {
+            return lineNumber;
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            if (this == obj) {
+                return true;
+            }
+            if (!(obj instanceof Frame)) {
+                return false;
+            }
+
+            Frame other = (Frame) obj;
+            return Objects.equals(typeName, other.typeName) && Objects.equals(methodName, other.methodName) && Objects.equals(descriptor, other.descriptor)
+                    && hidden == other.hidden && javaFrame == other.javaFrame && lineNumber == other.lineNumber;
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(typeName, methodName, descriptor, hidden, javaFrame, lineNumber);
+        }
+
+        @Override
+        public String toString() {
+            return typeName + "." + methodName + descriptor + (lineNumber >= 0 ? ":" + lineNumber : "");
+        }
+    }
+}
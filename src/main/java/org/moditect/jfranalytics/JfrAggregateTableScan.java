@@ -0,0 +1,138 @@
+/*
+ *  Copyright 2021 - 2023 The original authors
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package org.moditect.jfranalytics;
+
+import java.lang.reflect.Method;
+import java.util.Arrays;
+import java.util.List;
+
+import org.apache.calcite.DataContext;
+import org.apache.calcite.adapter.enumerable.EnumerableRel;
+import org.apache.calcite.adapter.enumerable.EnumerableRelImplementor;
+import org.apache.calcite.adapter.enumerable.JavaRowFormat;
+import org.apache.calcite.adapter.enumerable.PhysType;
+import org.apache.calcite.adapter.enumerable.PhysTypeImpl;
+import org.apache.calcite.linq4j.tree.BlockBuilder;
+import org.apache.calcite.linq4j.tree.Expression;
+import org.apache.calcite.linq4j.tree.Expressions;
+import org.apache.calcite.linq4j.tree.Types;
+import org.apache.calcite.plan.RelOptCluster;
+import org.apache.calcite.plan.RelOptCost;
+import org.apache.calcite.plan.RelOptPlanner;
+import org.apache.calcite.plan.RelOptTable;
+import org.apache.calcite.plan.RelTraitSet;
+import org.apache.calcite.rel.RelNode;
+import org.apache.calcite.rel.RelWriter;
+import org.apache.calcite.rel.core.AggregateCall;
+import org.apache.calcite.rel.core.TableScan;
+import org.apache.calcite.rel.metadata.RelMetadataQuery;
+import org.apache.calcite.rel.type.RelDataType;
+import org.checkerframework.checker.nullness.qual.Nullable;
+
+/**
+ * Scans a {@link JfrScannableTable} and aggregates its events within the scan, as expressed by
+ * {@code SELECT <group columns>, COUNT(*), SUM(<column>), ... FROM <table> GROUP BY <group columns>}. The events are
+ * aggregated by a {@link ScanAggregator}, i.e. no row is created for each event, as it is the case when aggregating the
+ * rows of a {@link JfrTableScan} with Calcite's built-in aggregation operator.
+ */
+public class JfrAggregateTableScan extends TableScan implements EnumerableRel {
+
+    private static final Method AGGREGATE_METHOD = Types.lookupMethod(JfrScannableTable.class, "aggregate", DataContext.class, int[].class, String[].class, int[].class,
+            String[].class);
+
+    private final JfrScannableTable jfrTable;
+    private final int[] groupColumns;
+    private final List<AggregateCall> aggCalls;
+    private final int[] argumentColumns;
+
+    /**
+     * @param rowType the row type of the aggregation, i.e. the group columns followed by the aggregates
+     * @param groupColumns the table columns to group by
+     * @param aggCalls the aggregates; their arguments refer to the input of the original aggregation
+     * @param argumentColumns the table column of the argument of each aggregate, -1 for {@code COUNT(*)}
+     */
+    public JfrAggregateTableScan(RelOptCluster cluster, RelTraitSet traitSet, RelOptTable table, JfrScannableTable jfrTable, RelDataType rowType,
+                                 int[] groupColumns, List<AggregateCall> aggCalls, int[] argumentColumns) {
+        super(cluster, traitSet, List.of(), table);
+        this.rowType = rowType;
+        this.jfrTable = jfrTable;
+        this.groupColumns = groupColumns;
+        this.aggCalls = aggCalls;
+        this.argumentColumns = argumentColumns;
+    }
+
+    @Override
+    public RelNode copy(RelTraitSet traitSet, List<RelNode> inputs) {
+        return new JfrAggregateTableScan(getCluster(), traitSet, table, jfrTable, rowType, groupColumns, aggCalls, argumentColumns);
+    }
+
+    @Override
+    public RelDataType deriveRowType() {
+        return rowType;
+    }
+
+    @Override
+    public RelWriter explainTerms(RelWriter pw) {
+        return super.explainTerms(pw)
+                .item("group", Arrays.toString(groupColumns))
+                .item("aggs", aggCalls)
+                .item("arguments", Arrays.toString(argumentColumns));
+    }
+
+    @Override
+    public double estimateRowCount(RelMetadataQuery mq) {
+        return groupColumns.length == 0 ? 1 : super.estimateRowCount(mq) / 10;
+    }
+
+    @Override
+    public @Nullable RelOptCost computeSelfCost(RelOptPlanner planner, RelMetadataQuery mq) {
+        // retrieving the group and argument columns of each event, but no rows to pass on
+        int columns = groupColumns.length + (int) Arrays.stream(argumentColumns).filter(c -> c != -1).distinct().count();
+        double fieldRatio = (columns + 2D) / (table.getRowType().getFieldCount() + 2D);
+
+        RelOptCost cost = super.computeSelfCost(planner, mq);
+
+        return cost == null ? null : cost.multiplyBy(fieldRatio * 0.5D);
+    }
+
+    @Override
+    public Result implement(EnumerableRelImplementor implementor, Prefer pref) {
+        BlockBuilder builder = new BlockBuilder();
+        PhysType physType = PhysTypeImpl.of(implementor.getTypeFactory(), getRowType(), JavaRowFormat.ARRAY);
+
+        String[] functions = new String[aggCalls.size()];
+        String[] types = new String[aggCalls.size()];
+
+        for (int i = 0; i < aggCalls.size(); i++) {
+            functions[i] = aggCalls.get(i).getAggregation().getKind().name();
+            types[i] = aggCalls.get(i).getType().getSqlTypeName().name();
+        }
+
+        // the table may have been stashed as JfrEventTable already, e.g. by a scan of the same table in a sub-query
+        Expression rows = Expressions.call(
+                Expressions.convert_(implementor.stash(jfrTable, JfrScannableTable.class), JfrScannableTable.class),
+                AGGREGATE_METHOD,
+                implementor.getRootExpression(),
+                Expressions.constant(groupColumns),
+                Expressions.constant(functions),
+                Expressions.constant(argumentColumns),
+                Expressions.constant(types));
+
+        builder.add(physType.getFormat() == JavaRowFormat.SCALAR ? Expressions.call(JfrTableScan.TO_SCALARS_METHOD, rows) : rows);
+
+        return implementor.result(physType, builder.toBlock());
+    }
+}
@@ -0,0 +1,102 @@
+/*
+ *  Copyright 2021 - 2023 The original authors
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package org.moditect.jfranalytics;
+
+import java.util.EnumSet;
+import java.util.Set;
+
+import org.apache.calcite.adapter.enumerable.EnumerableConvention;
+import org.apache.calcite.plan.RelOptRuleCall;
+import org.apache.calcite.plan.RelRule;
+import org.apache.calcite.rel.core.Aggregate;
+import org.apache.calcite.rel.core.AggregateCall;
+import org.apache.calcite.rel.logical.LogicalAggregate;
+import org.apache.calcite.rel.type.RelDataType;
+import org.apache.calcite.sql.SqlKind;
+import org.apache.calcite.sql.type.SqlTypeName;
+
+/**
+ * Converts aggregations directly on top of a {@link JfrTableScan} of a {@link JfrScannableTable} into a
+ * {@link JfrAggregateTableScan}. Supported are the aggregate functions {@code COUNT}, {@code SUM}, {@code MIN}, and
+ * {@code MAX} of integer values ({@code MIN} and {@code MAX} also of timestamps), without {@code DISTINCT} or
+ * {@code FILTER}, grouped by any columns other than structs and opaque values such as stack traces. Aggregations on top
+ * of scans with a condition or of expressions are executed by Calcite.
+ */
+public class JfrAggregateTableScanRule extends RelRule<JfrRuleConfig> {
+
+    public static final JfrAggregateTableScanRule INSTANCE = new JfrAggregateTableScanRule(
+            JfrRuleConfig.of("JfrAggregateTableScanRule", b -> b.operand(LogicalAggregate.class).oneInput(s -> s.operand(JfrTableScan.class).noInputs()),
+                    JfrAggregateTableScanRule::new));
+
+    private static final Set<SqlKind> SUPPORTED_FUNCTIONS = EnumSet.of(SqlKind.COUNT, SqlKind.SUM, SqlKind.SUM0, SqlKind.MIN, SqlKind.MAX);
+
+    private JfrAggregateTableScanRule(JfrRuleConfig config) {
+        super(config);
+    }
+
+    @Override
+    public void onMatch(RelOptRuleCall call) {
+        LogicalAggregate aggregate = call.rel(0);
+        JfrTableScan scan = call.rel(1);
+
+        if (!(scan.getJfrTable() instanceof JfrScannableTable) || scan.getCondition() != null || aggregate.getGroupType() != Aggregate.Group.SIMPLE) {
+            return;
+        }
+
+        int[] fields = scan.getFields();
+        int[] groupColumns = new int[aggregate.getGroupCount()];
+        int i = 0;
+
+        for (int group : aggregate.getGroupSet()) {
+            SqlTypeName type = scan.getRowType().getFieldList().get(group).getType().getSqlTypeName();
+            if (type == SqlTypeName.ROW || type == SqlTypeName.OTHER) {
+                return;
+            }
+            groupColumns[i++] = fields[group];
+        }
+
+        int[] argumentColumns = new int[aggregate.getAggCallList().size()];
+        i = 0;
+
+        for (AggregateCall aggCall : aggregate.getAggCallList()) {
+            if (!isSupported(aggCall, scan)) {
+                return;
+            }
+            argumentColumns[i++] = aggCall.getArgList().isEmpty() ? -1 : fields[aggCall.getArgList().get(0)];
+        }
+
+        call.transformTo(new JfrAggregateTableScan(aggregate.getCluster(), aggregate.getTraitSet().replace(EnumerableConvention.INSTANCE),
+                scan.getTable(), (JfrScannableTable) scan.getJfrTable(), aggregate.getRowType(), groupColumns, aggregate.getAggCallList(),
+                argumentColumns));
+    }
+
+    private static boolean isSupported(AggregateCall aggCall, JfrTableScan scan) {
+        SqlKind kind = aggCall.getAggregation().getKind();
+
+        if (aggCall.isDistinct() || aggCall.filterArg != -1 || aggCall.getArgList().size() > 1 || !SUPPORTED_FUNCTIONS.contains(kind)) {
+            return false;
+        }
+        else if (kind == SqlKind.COUNT) {
+            return true;
+        }
+
+        RelDataType argumentType = scan.getRowType().getFieldList().get(aggCall.getArgList().get(0)).getType();
+        boolean isTimestamp = argumentType.getSqlTypeName() == SqlTypeName.TIMESTAMP && aggCall.getType().getSqlTypeName() == SqlTypeName.TIMESTAMP;
+
+        return (SqlTypeName.INT_TYPES.contains(argumentType.getSqlTypeName()) && SqlTypeName.INT_TYPES.contains(aggCall.getType().getSqlTypeName()))
+                || (isTimestamp && (kind == SqlKind.MIN || kind == SqlKind.MAX));
+    }
+}
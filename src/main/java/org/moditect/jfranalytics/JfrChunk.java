@@ -0,0 +1,200 @@
+/*
+ *  Copyright 2021 - 2023 The original authors
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package org.moditect.jfranalytics;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Objects;
+
+/**
+ * Describes one chunk of a JFR recording file, as per its chunk header. Chunks are self-contained, i.e. each chunk
+ * comes with its own metadata and constant pools, so any sequence of chunks forms a valid recording file.
+ */
+public class JfrChunk {
+
+    static final int HEADER_SIZE = 68;
+
+    private static final byte[] MAGIC = { 'F', 'L', 'R', '\0' };
+    private static final int FILE_STATE_POSITION = 64;
+
+    private final Path file;
+    private final long offset;
+    private final long size;
+    private final long startNanos;
+    private final long durationNanos;
+    private final boolean finished;
+
+    JfrChunk(Path file, long offset, long size, long startNanos, long durationNanos, boolean finished) {
+        this.file = file;
+        this.offset = offset;
+        this.size = size;
+        this.startNanos = startNanos;
+        this.durationNanos = durationNanos;
+        this.finished = finished;
+    }
+
+    /**
+     * Reads the headers of all the chunks of the given recording, without looking at any of their events.
+     */
+    public static List<JfrChunk> readChunks(Path jfrFile) {
+        try (FileChannel channel = FileChannel.open(jfrFile, StandardOpenOption.READ)) {
+            List<JfrChunk> chunks = new ArrayList<>();
+            ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+            long fileSize = channel.size();
+            long offset = 0;
+
+            while (offset + HEADER_SIZE <= fileSize) {
+                header.clear();
+                while (header.hasRemaining()) {
+                    if (channel.read(header, offset + header.position()) < 0) {
+                        throw new IOException("Unexpected end of chunk header at offset " + offset + " of " + jfrFile);
+                    }
+                }
+
+                byte[] magic = new byte[MAGIC.length];
+                header.get(0, magic);
+                if (!Arrays.equals(MAGIC, magic)) {
+                    throw new IOException("Not a JFR file (invalid chunk header at offset " + offset + "): " + jfrFile);
+                }
+
+                long size = header.getLong(8);
+                boolean finished = header.get(FILE_STATE_POSITION) == 0;
+
+                // a chunk which is still being written may not have its final size yet
+                if (size < HEADER_SIZE || offset + size > fileSize) {
+                    size = fileSize - offset;
+                    finished = false;
+                }
+
+                chunks.add(new JfrChunk(jfrFile, offset, size, header.getLong(32), header.getLong(40), finished));
+                offset += size;
+            }
+
+            return chunks;
+        }
+        catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    /**
+     * Returns the given chunks up to the first chunk which is still being written.
+     */
+    public static List<JfrChunk> getFinishedChunks(List<JfrChunk> chunks) {
+        for (int i = 0; i < chunks.size(); i++) {
+            if (!chunks.get(i).isFinished()) {
+                return chunks.subList(0, i);
+            }
+        }
+
+        return chunks;
+    }
+
+    /**
+     * Copies the given chunks into a new temporary file, which will be a valid recording file itself.
+     */
+    public static Path copyToTempFile(List<JfrChunk> chunks) throws IOException {
+        Path target = Files.createTempFile("jfr-analytics-", ".jfr");
+
+        try (FileChannel out = FileChannel.open(target, StandardOpenOption.WRITE)) {
+            for (JfrChunk chunk : chunks) {
+                try (FileChannel in = FileChannel.open(chunk.file, StandardOpenOption.READ)) {
+                    long position = chunk.offset;
+                    long end = chunk.offset + chunk.size;
+
+                    while (position < end) {
+                        position += in.transferTo(position, end - position, out);
+                    }
+                }
+            }
+        }
+        catch (IOException | RuntimeException e) {
+            Files.deleteIfExists(target);
+            throw e;
+        }
+
+        return target;
+    }
+
+    public Path getFile() {
+        return file;
+    }
+
+    public long getOffset() {
+        return offset;
+    }
+
+    public long getSize() {
+        return size;
+    }
+
+    /**
+     * The start of this chunk, in nanoseconds since the epoch.
+     */
+    public long getStartNanos() {
+        return startNanos;
+    }
+
+    public long getDurationNanos() {
+        return durationNanos;
+    }
+
+    /**
+     * The end of this chunk, in nanoseconds since the epoch. No event in this chunk starts later than that.
+     */
+    public long getEndNanos() {
+        return startNanos + durationNanos;
+    }
+
+    /**
+     * Whether this chunk has been completely written or not.
+     */
+    public boolean isFinished() {
+        return finished;
+    }
+
+    @Override
+    public boolean equals(Object obj) {
+        if (this == obj) {
+            return true;
+        }
+        if (!(obj instanceof JfrChunk)) {
+            return false;
+        }
+
+        JfrChunk other = (JfrChunk) obj;
+        return file.equals(other.file) && offset == other.offset && size == other.size && startNanos == other.startNanos
+                && durationNanos == other.durationNanos && finished == other.finished;
+    }
+
+    @Override
+    public int hashCode() {
+        return Objects.hash(file, offset, size, startNanos, durationNanos, finished);
+    }
+
+    @Override
+    public String toString() {
+        return "JfrChunk [file=" + file + ", offset=" + offset + ", size=" + size + ", startNanos=" + startNanos + ", durationNanos=" + durationNanos
+                + ", finished=" + finished + "]";
+    }
+}
@@ -15,52 +15,38 @@
  */
 package org.moditect.jfranalytics;
 
-import java.io.IOException;
 import java.nio.file.Path;
-import java.util.ArrayList;
 import java.util.List;
 
 import org.apache.calcite.linq4j.AbstractEnumerable;
 import org.apache.calcite.linq4j.Enumerator;
-import org.apache.calcite.linq4j.Linq4j;
+import org.checkerframework.checker.nullness.qual.Nullable;
 
 import jdk.jfr.EventType;
-import jdk.jfr.consumer.EventStream;
 
 public class JfrEnumerable extends AbstractEnumerable<Object[]> {
 
     private final Path jfrFile;
+    private final @Nullable List<JfrChunk> chunks;
+    private final JfrRangeEnumerator.Bounds bounds;
     private final EventType eventType;
     private final AttributeValueConverter[] converters;
 
-    public JfrEnumerable(Path jfrFile, EventType eventType, AttributeValueConverter[] converters) {
+    public JfrEnumerable(Path jfrFile, @Nullable List<JfrChunk> chunks, EventType eventType, AttributeValueConverter[] converters) {
+        this(jfrFile, chunks, JfrRangeEnumerator.Bounds.UNBOUNDED, eventType, converters);
+    }
+
+    JfrEnumerable(Path jfrFile, @Nullable List<JfrChunk> chunks, JfrRangeEnumerator.Bounds bounds, EventType eventType,
+                  AttributeValueConverter[] converters) {
         this.jfrFile = jfrFile;
+        this.chunks = chunks;
+        this.bounds = bounds;
         this.eventType = eventType;
         this.converters = converters;
-        ;
     }
 
     @Override
     public Enumerator<Object[]> enumerator() {
-        try (var es = EventStream.openFile(jfrFile)) {
-            List<Object[]> results = new ArrayList<>();
-
-            es.onEvent(eventType.getName(), event -> {
-                Object[] row = new Object[converters.length];
-
-                for (int i = 0; i < converters.length; i++) {
-                    row[i] = converters[i].getValue(event);
-                }
-
-                results.add(row);
-            });
-
-            es.start();
-
-            return Linq4j.enumerator(results);
-        }
-        catch (IOException e) {
-            throw new RuntimeException(e);
-        }
+        return new JfrEnumerator(jfrFile, chunks, bounds, eventType, converters);
     }
 }
@@ -0,0 +1,152 @@
+/*
+ *  Copyright 2021 - 2023 The original authors
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package org.moditect.jfranalytics;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+
+import org.apache.calcite.linq4j.Enumerator;
+import org.checkerframework.checker.nullness.qual.Nullable;
+
+import jdk.jfr.EventType;
+import jdk.jfr.consumer.RecordedEvent;
+import jdk.jfr.consumer.RecordingFile;
+
+/**
+ * A pull-based enumerator over the events of one type in a JFR recording. Events are read one at a time from the
+ * underlying {@link RecordingFile} as rows are requested, i.e. memory usage doesn't depend on the number of events
+ * in the recording. The file is opened upon the first call to {@link #moveNext()} and closed by {@link #close()}.
+ * <p>
+ * If only a subset of the file's chunks is to be scanned, these chunks are copied into a temporary file first, which is
+ * removed when closing the enumerator; {@link RecordingFile} only can decode the chunks from the beginning of a file.
+ * This is only done for chunks which are still being written, which can't be read in place by
+ * {@link JfrRangeEnumerator}, as its stream would wait for them to be completed.
+ */
+public class JfrEnumerator implements Enumerator<Object[]> {
+
+    private final Path jfrFile;
+    private final @Nullable List<JfrChunk> chunks;
+    private final JfrRangeEnumerator.Bounds bounds;
+    private final String eventTypeName;
+    private final AttributeValueConverter[] converters;
+
+    private RecordingFile recordingFile;
+    private Path tempFile;
+    private Object[] current;
+
+    /**
+     * @param chunks the chunks to scan, or {@code null} if the entire file should be scanned
+     */
+    public JfrEnumerator(Path jfrFile, @Nullable List<JfrChunk> chunks, EventType eventType, AttributeValueConverter[] converters) {
+        this(jfrFile, chunks, JfrRangeEnumerator.Bounds.UNBOUNDED, eventType, converters);
+    }
+
+    /**
+     * @param chunks the chunks to scan, or {@code null} if the entire file should be scanned
+     * @param bounds the bounds of the end times of the events to return
+     */
+    JfrEnumerator(Path jfrFile, @Nullable List<JfrChunk> chunks, JfrRangeEnumerator.Bounds bounds, EventType eventType,
+                  AttributeValueConverter[] converters) {
+        this.jfrFile = jfrFile;
+        this.chunks = chunks;
+        this.bounds = bounds;
+        this.eventTypeName = eventType.getName();
+        this.converters = converters;
+    }
+
+    @Override
+    public Object[] current() {
+        return current;
+    }
+
+    @Override
+    public boolean moveNext() {
+        try {
+            RecordedEvent event = nextEvent();
+            current = event != null ? toRow(event) : null;
+            return event != null;
+        }
+        catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    /**
+     * Returns the next event of the scanned type, without converting it into a row, or {@code null} if there are no
+     * more events. Used by scans aggregating the events directly, see {@link ScanAggregator}.
+     */
+    public @Nullable RecordedEvent nextEvent() throws IOException {
+        if (recordingFile == null) {
+            recordingFile = open();
+        }
+
+        while (recordingFile.hasMoreEvents()) {
+            RecordedEvent event = recordingFile.readEvent();
+
+            if (event.getEventType().getName().equals(eventTypeName) && bounds.contains(event)) {
+                return event;
+            }
+        }
+
+        return null;
+    }
+
+    @Override
+    public void reset() {
+        close();
+        current = null;
+    }
+
+    @Override
+    public void close() {
+        try {
+            if (recordingFile != null) {
+                recordingFile.close();
+            }
+            if (tempFile != null) {
+                Files.deleteIfExists(tempFile);
+            }
+        }
+        catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+        finally {
+            recordingFile = null;
+            tempFile = null;
+        }
+    }
+
+    private RecordingFile open() throws IOException {
+        if (chunks == null) {
+            return new RecordingFile(jfrFile);
+        }
+
+        tempFile = JfrChunk.copyToTempFile(chunks);
+        return new RecordingFile(tempFile);
+    }
+
+    private Object[] toRow(RecordedEvent event) {
+        Object[] row = new Object[converters.length];
+
+        for (int i = 0; i < converters.length; i++) {
+            row[i] = converters[i].getValue(event);
+        }
+
+        return row;
+    }
+}
@@ -0,0 +1,274 @@
+/*
+ *  Copyright 2021 - 2023 The original authors
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package org.moditect.jfranalytics;
+
+import java.io.IOException;
+import java.lang.System.Logger.Level;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.checkerframework.checker.nullness.qual.Nullable;
+import org.moditect.jfranalytics.MappedChunk.Span;
+import org.moditect.jfranalytics.MappedChunk.Type;
+
+/**
+ * The number of events of each type in a recording, used as the row counts of the statistics of its tables, so that
+ * the planner can tell tables with a handful of rows from tables with millions of rows, e.g. when ordering joins. As
+ * planning shouldn't wait for a pass over the entire recording, the counts are estimated from a sample, unless a
+ * complete pass over the recording has recorded the exact counts already, see {@link #startPass()}.
+ * <p>
+ * Events can only be read from known event boundaries, i.e. the start of a chunk and the ends of its checkpoint events,
+ * which JFR writes periodically, and of its metadata event. For the estimate, the events of up to
+ * {@value #MAX_SAMPLED_SEGMENTS} segments between these boundaries, spread evenly over the recording, are read until
+ * {@value #SAMPLE_SIZE} bytes of events have been sampled, only decoding the size and type id of each event, see
+ * {@link MappedChunk}; the sampled counts are extrapolated to the size of all the events other than checkpoint and
+ * metadata events. Types sampled fewer than {@value #MIN_EXTRAPOLATED_COUNT} times are rare rather than evenly spread,
+ * e.g. events emitted once at the beginning of a recording, so their sampled counts are taken as is, and the counts of
+ * types not sampled at all are unknown. Smaller recordings are counted exactly this way. Estimates and counts are kept until the recording
+ * file gets modified. Chunks which cannot be mapped, e.g. as they are still being written, are not counted.
+ */
+public class JfrEventCounts {
+
+    private static final System.Logger LOGGER = System.getLogger(JfrEventCounts.class.getName());
+
+    static final int SAMPLE_SIZE = 1024 * 1024;
+    static final int MAX_SAMPLED_SEGMENTS = 64;
+    static final int MIN_EXTRAPOLATED_COUNT = 3;
+
+    private final Path jfrFile;
+    private final int sampleSize;
+    private volatile @Nullable Counts counts;
+
+    public JfrEventCounts(Path jfrFile) {
+        this(jfrFile, SAMPLE_SIZE);
+    }
+
+    /**
+     * @param sampleSize the number of bytes of events read for estimating the counts
+     */
+    JfrEventCounts(Path jfrFile, int sampleSize) {
+        this.jfrFile = jfrFile;
+        this.sampleSize = sampleSize;
+    }
+
+    /**
+     * Returns the number of events of the given type, or {@code null} if the recording couldn't be read, or if the type
+     * hasn't been sampled when estimating the counts.
+     */
+    public @Nullable Long getCount(String eventTypeName) {
+        Counts current = getCounts();
+        if (current == null || current.counts() == null) {
+            return null;
+        }
+
+        Long count = current.counts().get(eventTypeName);
+        return count != null || !current.exact() ? count : Long.valueOf(0);
+    }
+
+    /**
+     * Whether the counts of the current state of the recording are exact rather than estimated.
+     */
+    boolean isExact() {
+        Counts current = getCounts();
+        return current != null && current.exact();
+    }
+
+    /**
+     * Starts recording the counts of a pass over all the events of the recording. The counts replace the estimated ones
+     * when the pass is completed.
+     */
+    public Pass startPass() {
+        try {
+            return new Pass(Files.getLastModifiedTime(jfrFile), Files.size(jfrFile));
+        }
+        catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    private @Nullable Counts getCounts() {
+        try {
+            FileTime lastModified = Files.getLastModifiedTime(jfrFile);
+            long size = Files.size(jfrFile);
+            Counts current = counts;
+
+            if (current == null || !current.lastModified().equals(lastModified) || current.size() != size) {
+                current = estimateEvents(lastModified, size);
+                counts = current;
+            }
+
+            return current;
+        }
+        catch (IOException e) {
+            // e.g. the recording has been deleted while its tables are still cached
+            return counts;
+        }
+    }
+
+    private Counts estimateEvents(FileTime lastModified, long size) {
+        try {
+            List<Segment> segments = new ArrayList<>();
+
+            for (JfrChunk jfrChunk : JfrChunk.readChunks(jfrFile)) {
+                if (!MappedChunk.canMap(jfrChunk)) {
+                    continue;
+                }
+
+                MappedChunk chunk = MappedChunk.map(jfrChunk);
+                int start = JfrChunk.HEADER_SIZE;
+
+                for (Span span : chunk.readCheckpointsAndMetadata()) {
+                    if (span.start() > start) {
+                        segments.add(new Segment(chunk, start, span.start()));
+                    }
+                    start = span.end();
+                }
+                if (jfrChunk.getSize() > start) {
+                    segments.add(new Segment(chunk, start, (int) jfrChunk.getSize()));
+                }
+            }
+
+            long totalBytes = segments.stream().mapToLong(Segment::length).sum();
+
+            // recordings not larger than the sample are read entirely
+            boolean complete = totalBytes <= sampleSize;
+            List<Segment> sampled = complete ? segments : sample(segments, totalBytes);
+            int maxBytes = complete ? Integer.MAX_VALUE : sampleSize / sampled.size();
+            Map<MappedChunk, Map<Long, long[]>> countsByChunk = new LinkedHashMap<>();
+            long sampledBytes = 0;
+
+            for (Segment segment : sampled) {
+                sampledBytes += countEvents(segment, maxBytes, countsByChunk.computeIfAbsent(segment.chunk(), c -> new HashMap<>()));
+            }
+
+            Map<String, Long> counts = new HashMap<>();
+            double ratio = (double) totalBytes / sampledBytes;
+
+            for (Map.Entry<MappedChunk, Map<Long, long[]>> chunkCounts : countsByChunk.entrySet()) {
+                for (Type type : chunkCounts.getKey().readMetadata().values()) {
+                    long[] count = chunkCounts.getValue().get(type.id());
+                    if (count != null) {
+                        counts.merge(type.name(), count[0], Long::sum);
+                    }
+                }
+            }
+
+            if (sampledBytes != totalBytes) {
+                counts.replaceAll((name, count) -> count < MIN_EXTRAPOLATED_COUNT ? count : Math.round(count * ratio));
+            }
+
+            return new Counts(lastModified, size, Collections.unmodifiableMap(counts), sampledBytes == totalBytes);
+        }
+        catch (IOException | RuntimeException e) {
+            // the statistics are only an optimization; a damaged recording will fail the query when scanning it
+            LOGGER.log(Level.WARNING, "Couldn't count the events of recording " + jfrFile, e);
+            return new Counts(lastModified, size, null, false);
+        }
+    }
+
+    /**
+     * Selects as many segments as fit into the sample given their average size, at most
+     * {@value #MAX_SAMPLED_SEGMENTS}, at evenly spaced positions of the events of the recording.
+     */
+    private List<Segment> sample(List<Segment> segments, long totalBytes) {
+        int count = (int) Math.min(MAX_SAMPLED_SEGMENTS, Math.max(1, (long) sampleSize * segments.size() / totalBytes));
+        List<Segment> sampled = new ArrayList<>();
+        long segmentStart = 0;
+        int segment = 0;
+
+        for (int i = 0; i < count; i++) {
+            long position = (2 * i + 1) * totalBytes / (2 * count);
+
+            while (segmentStart + segments.get(segment).length() <= position) {
+                segmentStart += segments.get(segment).length();
+                segment++;
+            }
+
+            if (sampled.isEmpty() || sampled.get(sampled.size() - 1) != segments.get(segment)) {
+                sampled.add(segments.get(segment));
+            }
+        }
+
+        return sampled;
+    }
+
+    /**
+     * Counts the events within the given number of bytes from the start of the given segment by type id, returning
+     * the number of bytes read.
+     */
+    private static long countEvents(Segment segment, int maxBytes, Map<Long, long[]> countsByTypeId) throws IOException {
+        MappedChunk chunk = segment.chunk();
+        chunk.position = segment.start();
+
+        while (chunk.position < segment.end() && chunk.position - segment.start() < maxBytes) {
+            int eventEnd = chunk.readEventEnd();
+            countsByTypeId.computeIfAbsent(chunk.readLong(), k -> new long[1])[0]++;
+            chunk.position = eventEnd;
+        }
+
+        return chunk.position - segment.start();
+    }
+
+    /**
+     * Counts the events of a pass over the entire recording, see {@link #startPass()}. Not thread-safe.
+     */
+    public class Pass {
+
+        private final FileTime lastModified;
+        private final long size;
+        private final Map<String, long[]> counts = new HashMap<>();
+
+        private Pass(FileTime lastModified, long size) {
+            this.lastModified = lastModified;
+            this.size = size;
+        }
+
+        public void count(String eventTypeName) {
+            counts.computeIfAbsent(eventTypeName, k -> new long[1])[0]++;
+        }
+
+        /**
+         * Records the counts of this pass, which must have read all the events of the recording.
+         */
+        public void complete() {
+            Map<String, Long> exact = new HashMap<>();
+            counts.forEach((name, count) -> exact.put(name, count[0]));
+
+            // if the recording has been modified during the pass, the counts are replaced by a new estimate upon access
+            JfrEventCounts.this.counts = new Counts(lastModified, size, Collections.unmodifiableMap(exact), true);
+        }
+    }
+
+    /**
+     * A range of events of a chunk between its header, checkpoint events, metadata event, and end.
+     */
+    private record Segment(MappedChunk chunk, int start, int end) {
+
+        private int length() {
+            return end - start;
+        }
+    }
+
+    private record Counts(FileTime lastModified, long size, @Nullable Map<String, Long> counts, boolean exact) {
+    }
+}
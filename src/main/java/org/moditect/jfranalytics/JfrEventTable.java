@@ -0,0 +1,40 @@
+/*
+ *  Copyright 2021 - 2023 The original authors
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package org.moditect.jfranalytics;
+
+import java.util.List;
+
+import org.apache.calcite.DataContext;
+import org.apache.calcite.linq4j.Enumerable;
+import org.apache.calcite.rex.RexNode;
+import org.apache.calcite.schema.TranslatableTable;
+import org.checkerframework.checker.nullness.qual.Nullable;
+
+/**
+ * A table of JFR events, which is scanned by a {@link JfrTableScan}.
+ */
+public interface JfrEventTable extends TranslatableTable {
+
+    /**
+     * Returns the given columns of the events matching the given filters. The filters are used for skipping data
+     * which cannot contain any matching events, i.e. the returned rows may not match them.
+     *
+     * @param filters conjunctive filters, referring to the columns of this table
+     * @param projects the indexes of the columns to return, or {@code null} for all the columns
+     * @param fetch the maximum number of rows that will be requested from the scan, or -1 if not limited
+     */
+    Enumerable<@Nullable Object[]> scan(DataContext root, List<RexNode> filters, int @Nullable [] projects, int fetch);
+}
@@ -0,0 +1,80 @@
+/*
+ *  Copyright 2021 - 2023 The original authors
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package org.moditect.jfranalytics;
+
+import java.util.List;
+
+import org.apache.calcite.plan.RelOptRuleCall;
+import org.apache.calcite.plan.RelRule;
+import org.apache.calcite.rel.RelNode;
+import org.apache.calcite.rel.logical.LogicalFilter;
+import org.apache.calcite.rel.logical.LogicalProject;
+import org.apache.calcite.rex.RexNode;
+import org.apache.calcite.rex.RexPermuteInputsShuttle;
+import org.apache.calcite.rex.RexUtil;
+import org.apache.calcite.util.mapping.Mappings;
+
+/**
+ * Pushes the condition of a filter into the {@link JfrTableScan} below it, replacing the filter: the scan uses the
+ * condition for skipping chunks and recordings based on {@code startTime} predicates, and only returns the rows
+ * matching it. Conditions with sub-queries or correlation variables are left to the filter.
+ * <p>
+ * The scan replacing the filter isn't visible to the logical operators consuming the filter, as it has another
+ * convention; a projection on top of the filter is therefore matched, too, and put directly on top of the new scan,
+ * so that {@link JfrProjectTableScanRule} can narrow the scan to the columns referenced by the projection.
+ */
+public class JfrFilterTableScanRule extends RelRule<JfrRuleConfig> {
+
+    public static final JfrFilterTableScanRule INSTANCE = new JfrFilterTableScanRule(
+            JfrRuleConfig.of("JfrFilterTableScanRule", b -> b.operand(LogicalFilter.class).oneInput(s -> s.operand(JfrTableScan.class).noInputs()),
+                    JfrFilterTableScanRule::new));
+
+    public static final JfrFilterTableScanRule PROJECT_INSTANCE = new JfrFilterTableScanRule(JfrRuleConfig.of("JfrFilterTableScanRule:project",
+            b -> b.operand(LogicalProject.class).oneInput(f -> f.operand(LogicalFilter.class).oneInput(s -> s.operand(JfrTableScan.class).noInputs())),
+            JfrFilterTableScanRule::new));
+
+    private JfrFilterTableScanRule(JfrRuleConfig config) {
+        super(config);
+    }
+
+    @Override
+    public void onMatch(RelOptRuleCall call) {
+        LogicalProject project = call.rels.length == 3 ? call.rel(0) : null;
+        LogicalFilter filter = call.rel(call.rels.length - 2);
+        JfrTableScan scan = call.rel(call.rels.length - 1);
+
+        if (RexUtil.SubQueryFinder.find(filter.getCondition()) != null || RexUtil.containsCorrelation(filter.getCondition())) {
+            return;
+        }
+
+        // the scan expects the condition to refer to the columns of the table, rather than to the retrieved ones
+        int[] fields = scan.getFields();
+        RexPermuteInputsShuttle shuttle = new RexPermuteInputsShuttle(
+                Mappings.target(i -> fields[i], fields.length, scan.getTable().getRowType().getFieldCount()));
+        RexNode condition = filter.getCondition().accept(shuttle);
+
+        if (scan.getCondition() != null) {
+            condition = RexUtil.composeConjunction(filter.getCluster().getRexBuilder(), List.of(scan.getCondition(), condition));
+        }
+
+        RelNode input = scan.withCondition(condition);
+        if (project != null) {
+            input = project.copy(project.getTraitSet(), input, project.getProjects(), project.getRowType());
+        }
+
+        call.transformTo(input);
+    }
+}
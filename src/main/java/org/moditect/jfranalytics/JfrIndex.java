@@ -0,0 +1,836 @@
+/*
+ *  Copyright 2021 - 2023 The original authors
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package org.moditect.jfranalytics;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.lang.System.Logger.Level;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.apache.calcite.rel.type.RelDataType;
+import org.apache.calcite.sql.type.SqlTypeName;
+import org.checkerframework.checker.nullness.qual.Nullable;
+
+import jdk.jfr.consumer.RecordedClass;
+import jdk.jfr.consumer.RecordedEvent;
+import jdk.jfr.consumer.RecordedStackTrace;
+import jdk.jfr.consumer.RecordingFile;
+
+/**
+ * A columnar sidecar file for a JFR recording, named like the recording with an added {@code .idx} extension. It holds
+ * the tables of the recording in the format of {@link ColumnarTable}, i.e. one region of primitive values per column,
+ * dictionaries for all other column types, and the minimum and maximum {@code startTime} per block of rows. Column
+ * regions are memory-mapped when a table is first accessed, so repeated queries against the same recording don't need
+ * to decode any JFR events.
+ * <p>
+ * Stack traces and classes are persisted in their dictionaries as {@link IndexedStackTrace} and {@link IndexedClass},
+ * which stand in for the {@code RecordedStackTrace} and {@code RecordedClass} values of the recording. The built-in
+ * functions return the same results for both representations, but the values of such columns retrieved as they are,
+ * e.g. via {@link java.sql.ResultSet#getObject(int)}, are of the stand-in types when a scan is served from the index.
+ * <p>
+ * The size and last modification time of the recording are stored in the sidecar file; if the recording has been
+ * changed after creating the sidecar, it is ignored.
+ *
+ * <pre>
+ * java -cp ... org.moditect.jfranalytics.JfrIndex recording.jfr
+ * </pre>
+ */
+public class JfrIndex {
+
+    private static final System.Logger LOGGER = System.getLogger(JfrIndex.class.getName());
+
+    public static final String FILE_EXTENSION = ".idx";
+
+    // "JFRIDX" followed by two zero bytes
+    private static final long MAGIC = 0x4A46524944580000L;
+    private static final int VERSION = 2;
+    // magic, version, recording size, recording last modification time, offset of the table of contents
+    private static final int HEADER_SIZE = 8 + 4 + 8 + 8 + 8;
+    private static final ByteOrder BYTE_ORDER = ByteOrder.LITTLE_ENDIAN;
+
+    private static final byte ABSENT_COLUMN = 0;
+    private static final byte LONG_COLUMN = 1;
+    private static final byte INT_COLUMN = 2;
+    private static final byte DOUBLE_COLUMN = 3;
+    private static final byte DICTIONARY_COLUMN = 4;
+
+    private static final int STACK_TRACE_CACHE_SIZE = 10_000;
+
+    private final Path indexFile;
+    private final Map<String, TableEntry> entries;
+    private final Map<String, ColumnarTable> tables = new ConcurrentHashMap<>();
+
+    private JfrIndex(Path indexFile, Map<String, TableEntry> entries) {
+        this.indexFile = indexFile;
+        this.entries = entries;
+    }
+
+    public static Path getIndexFile(Path jfrFile) {
+        return jfrFile.resolveSibling(jfrFile.getFileName() + FILE_EXTENSION);
+    }
+
+    /**
+     * Opens the sidecar file of the given recording.
+     *
+     * @return the index, or {@code null} if there is no sidecar file or it doesn't match the current state of the
+     *         recording
+     */
+    public static @Nullable JfrIndex open(Path jfrFile) {
+        Path indexFile = getIndexFile(jfrFile);
+        if (!Files.isRegularFile(indexFile)) {
+            return null;
+        }
+
+        try (FileChannel channel = FileChannel.open(indexFile, StandardOpenOption.READ)) {
+            if (channel.size() < HEADER_SIZE) {
+                LOGGER.log(Level.WARNING, "Ignoring invalid index file {0}", indexFile);
+                return null;
+            }
+
+            ByteBuffer header = channel.map(FileChannel.MapMode.READ_ONLY, 0, HEADER_SIZE).order(BYTE_ORDER);
+            if (header.getLong() != MAGIC || header.getInt() != VERSION) {
+                LOGGER.log(Level.WARNING, "Ignoring index file {0} of unknown format", indexFile);
+                return null;
+            }
+
+            BasicFileAttributes attributes = Files.readAttributes(jfrFile, BasicFileAttributes.class);
+            if (header.getLong() != attributes.size() || header.getLong() != attributes.lastModifiedTime().toMillis()) {
+                LOGGER.log(Level.INFO, "Ignoring index file {0} as the recording has been modified", indexFile);
+                return null;
+            }
+
+            long tocOffset = header.getLong();
+            byte[] toc = new byte[(int) (channel.size() - tocOffset)];
+            channel.map(FileChannel.MapMode.READ_ONLY, tocOffset, toc.length).get(toc);
+
+            return new JfrIndex(indexFile, readTableOfContents(new DataInputStream(new ByteArrayInputStream(toc))));
+        }
+        catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    /**
+     * Creates (or replaces) the sidecar file of the given recording. All events of the recording are decoded in one
+     * pass. The rows of each table are written to a temporary file in batches of {@link ColumnarTable#BLOCK_SIZE} rows,
+     * so that only the current batch of each table and the dictionaries are kept in memory; the batches of each column
+     * are then concatenated into the sidecar file.
+     *
+     * @return the path of the created sidecar file
+     */
+    public static Path create(Path jfrFile) {
+        Path indexFile = getIndexFile(jfrFile);
+
+        try {
+            BasicFileAttributes attributes = Files.readAttributes(jfrFile, BasicFileAttributes.class);
+            Path directory = indexFile.toAbsolutePath().getParent();
+            Path tempFile = Files.createTempFile(directory, indexFile.getFileName().toString(), ".tmp");
+            Path batchFile = Files.createTempFile(directory, indexFile.getFileName().toString(), ".batches");
+
+            try {
+                try (FileChannel batches = FileChannel.open(batchFile, StandardOpenOption.READ, StandardOpenOption.WRITE);
+                        FileChannel channel = FileChannel.open(tempFile, StandardOpenOption.WRITE)) {
+                    Map<String, TableWriter> tables = writeBatches(jfrFile, batches);
+
+                    ByteArrayOutputStream tocBytes = new ByteArrayOutputStream();
+                    DataOutputStream toc = new DataOutputStream(tocBytes);
+
+                    channel.position(HEADER_SIZE);
+                    toc.writeInt(tables.size());
+
+                    for (Map.Entry<String, TableWriter> table : tables.entrySet()) {
+                        table.getValue().write(channel, batches, toc, table.getKey());
+                    }
+
+                    long tocOffset = channel.position();
+                    RegionWriter tocWriter = new RegionWriter(channel);
+                    tocWriter.put(tocBytes.toByteArray());
+                    tocWriter.finish();
+
+                    ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE).order(BYTE_ORDER)
+                            .putLong(MAGIC)
+                            .putInt(VERSION)
+                            .putLong(attributes.size())
+                            .putLong(attributes.lastModifiedTime().toMillis())
+                            .putLong(tocOffset)
+                            .flip();
+
+                    while (header.hasRemaining()) {
+                        channel.write(header, header.position());
+                    }
+                }
+
+                Files.move(tempFile, indexFile, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            }
+            finally {
+                Files.deleteIfExists(tempFile);
+                Files.deleteIfExists(batchFile);
+            }
+        }
+        catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+
+        return indexFile;
+    }
+
+    public Path getIndexFile() {
+        return indexFile;
+    }
+
+    /**
+     * Returns the given table, memory-mapping its columns upon first access.
+     *
+     * @return the table, or {@code null} if the index doesn't contain a table of that name
+     */
+    public @Nullable ColumnarTable getTable(String tableName) {
+        TableEntry entry = entries.get(tableName);
+        if (entry == null) {
+            return null;
+        }
+
+        return tables.computeIfAbsent(tableName, n -> loadTable(entry));
+    }
+
+    private ColumnarTable loadTable(TableEntry entry) {
+        try (FileChannel channel = FileChannel.open(indexFile, StandardOpenOption.READ)) {
+            ColumnarTable.Column[] columns = new ColumnarTable.Column[entry.columns().length];
+
+            for (int i = 0; i < columns.length; i++) {
+                ColumnEntry column = entry.columns()[i];
+
+                switch (column.kind()) {
+                    case LONG_COLUMN:
+                        columns[i] = new ColumnarTable.LongColumn(map(channel, column.data()).asLongBuffer(), readNulls(channel, column.nulls()));
+                        break;
+                    case INT_COLUMN:
+                        columns[i] = new ColumnarTable.IntColumn(map(channel, column.data()).asIntBuffer(), readNulls(channel, column.nulls()));
+                        break;
+                    case DOUBLE_COLUMN:
+                        columns[i] = new ColumnarTable.DoubleColumn(map(channel, column.data()).asDoubleBuffer(), readNulls(channel, column.nulls()));
+                        break;
+                    case DICTIONARY_COLUMN:
+                        columns[i] = new ColumnarTable.DictionaryColumn(map(channel, column.data()).asIntBuffer(),
+                                readDictionary(map(channel, column.dictionary())));
+                        break;
+                    default:
+                        columns[i] = null;
+                }
+            }
+
+            return new ColumnarTable(entry.rowCount(), columns, entry.startTimeIndex(), entry.blockMinStartTimes(), entry.blockMaxStartTimes());
+        }
+        catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    /**
+     * Decodes all the events of the given recording, writing the rows of each table in batches to the given file.
+     */
+    private static Map<String, TableWriter> writeBatches(Path jfrFile, FileChannel batches) throws IOException {
+        JfrSchema schema = new JfrSchema(jfrFile);
+        Map<String, TableWriter> tables = new HashMap<>();
+        LruCache<RecordedStackTrace, IndexedStackTrace> stackTraces = new LruCache<>(STACK_TRACE_CACHE_SIZE);
+
+        for (String tableName : schema.getTableNames()) {
+            // only event tables are indexed
+            if (!(schema.getTable(tableName) instanceof JfrScannableTable)) {
+                continue;
+            }
+
+            JfrScannableTable table = (JfrScannableTable) schema.getTable(tableName);
+            RelDataType rowType = table.getRowType();
+            AttributeValueConverter[] converters = table.getConverters().clone();
+
+            // opaque values are persisted as their stand-ins
+            for (int i = 0; i < converters.length; i++) {
+                if (rowType.getFieldList().get(i).getType().getSqlTypeName() == SqlTypeName.OTHER) {
+                    AttributeValueConverter converter = converters[i];
+
+                    converters[i] = event -> {
+                        Object value = converter.getValue(event);
+
+                        if (value instanceof RecordedStackTrace) {
+                            // the parser returns the same instance for all the events referring to a stack trace
+                            return stackTraces.computeIfAbsent((RecordedStackTrace) value, IndexedStackTrace::of);
+                        }
+                        else if (value instanceof RecordedClass) {
+                            return IndexedClass.of((RecordedClass) value);
+                        }
+
+                        return null;
+                    };
+                }
+            }
+
+            tables.put(tableName, new TableWriter(rowType, converters));
+        }
+
+        try (RecordingFile recordingFile = new RecordingFile(jfrFile)) {
+            while (recordingFile.hasMoreEvents()) {
+                RecordedEvent event = recordingFile.readEvent();
+                TableWriter table = tables.get(event.getEventType().getName());
+
+                if (table != null) {
+                    table.add(event, batches);
+                }
+            }
+        }
+
+        for (TableWriter table : tables.values()) {
+            table.flush(batches);
+        }
+
+        return tables;
+    }
+
+    private static void writeColumnEntry(DataOutputStream toc, byte kind, Region data, Region nulls, Region dictionary) throws IOException {
+        toc.writeByte(kind);
+        for (Region region : new Region[]{ data, nulls, dictionary }) {
+            toc.writeLong(region.offset());
+            toc.writeLong(region.length());
+        }
+    }
+
+    private static Map<String, TableEntry> readTableOfContents(DataInputStream toc) throws IOException {
+        Map<String, TableEntry> entries = new HashMap<>();
+        int tableCount = toc.readInt();
+
+        for (int i = 0; i < tableCount; i++) {
+            String tableName = toc.readUTF();
+            int rowCount = toc.readInt();
+            int startTimeIndex = toc.readInt();
+            long[] blockMinStartTimes = null;
+            long[] blockMaxStartTimes = null;
+
+            if (startTimeIndex >= 0) {
+                int blockCount = toc.readInt();
+                blockMinStartTimes = new long[blockCount];
+                blockMaxStartTimes = new long[blockCount];
+                for (int block = 0; block < blockCount; block++) {
+                    blockMinStartTimes[block] = toc.readLong();
+                    blockMaxStartTimes[block] = toc.readLong();
+                }
+            }
+
+            ColumnEntry[] columns = new ColumnEntry[toc.readInt()];
+            for (int column = 0; column < columns.length; column++) {
+                columns[column] = new ColumnEntry(toc.readByte(), readRegion(toc), readRegion(toc), readRegion(toc));
+            }
+
+            entries.put(tableName, new TableEntry(rowCount, startTimeIndex, blockMinStartTimes, blockMaxStartTimes, columns));
+        }
+
+        return entries;
+    }
+
+    private static Region readRegion(DataInputStream toc) throws IOException {
+        return new Region(toc.readLong(), toc.readLong());
+    }
+
+    private static @Nullable BitSet readNulls(FileChannel channel, Region region) throws IOException {
+        return region.length() == 0 ? null : BitSet.valueOf(map(channel, region).asLongBuffer());
+    }
+
+    private static ByteBuffer map(FileChannel channel, Region region) throws IOException {
+        return channel.map(FileChannel.MapMode.READ_ONLY, region.offset(), region.length()).order(BYTE_ORDER);
+    }
+
+    /**
+     * Serializes the given dictionary values. Returns {@code null} if any of the values is of a type which cannot be
+     * persisted. The frames of stack traces are written once into a frame table preceding the values, which
+     * reference them by position.
+     */
+    private static byte @Nullable [] serializeDictionary(Object[] dictionary) throws IOException {
+        ByteArrayOutputStream valueBytes = new ByteArrayOutputStream();
+        DataOutputStream values = new DataOutputStream(valueBytes);
+        Map<IndexedStackTrace.Frame, Integer> frameIds = new LinkedHashMap<>();
+
+        values.writeInt(dictionary.length);
+        for (Object value : dictionary) {
+            if (!writeValue(values, value, frameIds)) {
+                return null;
+            }
+        }
+
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+
+        out.writeInt(frameIds.size());
+        for (IndexedStackTrace.Frame frame : frameIds.keySet()) {
+            writeValue(out, frame.getTypeName(), frameIds);
+            writeValue(out, frame.getMethodName(), frameIds);
+            writeValue(out, frame.getDescriptor(), frameIds);
+            out.writeBoolean(frame.isHidden());
+            out.writeBoolean(frame.isJavaFrame());
+            out.writeInt(frame.getLineNumber());
+        }
+        values.flush();
+        valueBytes.writeTo(out);
+        out.flush();
+
+        return bytes.toByteArray();
+    }
+
+    private static Object[] readDictionary(ByteBuffer buffer) throws IOException {
+        byte[] bytes = new byte[buffer.remaining()];
+        buffer.get(bytes);
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(bytes));
+
+        IndexedStackTrace.Frame[] frames = new IndexedStackTrace.Frame[in.readInt()];
+        for (int i = 0; i < frames.length; i++) {
+            frames[i] = new IndexedStackTrace.Frame((String) readValue(in, frames), (String) readValue(in, frames), (String) readValue(in, frames),
+                    in.readBoolean(), in.readBoolean(), in.readInt());
+        }
+
+        Object[] dictionary = new Object[in.readInt()];
+        for (int i = 0; i < dictionary.length; i++) {
+            dictionary[i] = readValue(in, frames);
+        }
+
+        return dictionary;
+    }
+
+    private static boolean writeValue(DataOutputStream out, @Nullable Object value, Map<IndexedStackTrace.Frame, Integer> frameIds)
+            throws IOException {
+        if (value == null) {
+            out.writeByte(0);
+        }
+        else if (value instanceof String) {
+            byte[] bytes = ((String) value).getBytes(StandardCharsets.UTF_8);
+            out.writeByte(1);
+            out.writeInt(bytes.length);
+            out.write(bytes);
+        }
+        else if (value instanceof Boolean) {
+            out.writeByte(2);
+            out.writeBoolean((Boolean) value);
+        }
+        else if (value instanceof Byte) {
+            out.writeByte(3);
+            out.writeByte((Byte) value);
+        }
+        else if (value instanceof Short) {
+            out.writeByte(4);
+            out.writeShort((Short) value);
+        }
+        else if (value instanceof Character) {
+            out.writeByte(5);
+            out.writeChar((Character) value);
+        }
+        else if (value instanceof Integer) {
+            out.writeByte(6);
+            out.writeInt((Integer) value);
+        }
+        else if (value instanceof Long) {
+            out.writeByte(7);
+            out.writeLong((Long) value);
+        }
+        else if (value instanceof Float) {
+            out.writeByte(8);
+            out.writeFloat((Float) value);
+        }
+        else if (value instanceof Double) {
+            out.writeByte(9);
+            out.writeDouble((Double) value);
+        }
+        else if (value instanceof IndexedClass) {
+            out.writeByte(11);
+            writeValue(out, ((IndexedClass) value).getName(), frameIds);
+        }
+        else if (value instanceof IndexedStackTrace) {
+            IndexedStackTrace stackTrace = (IndexedStackTrace) value;
+            out.writeByte(12);
+            out.writeBoolean(stackTrace.isTruncated());
+            out.writeInt(stackTrace.getFrames().size());
+            for (IndexedStackTrace.Frame frame : stackTrace.getFrames()) {
+                out.writeInt(frameIds.computeIfAbsent(frame, f -> frameIds.size()));
+            }
+        }
+        // structs, e.g. threads
+        else if (value instanceof Object[]) {
+            Object[] elements = (Object[]) value;
+            out.writeByte(10);
+            out.writeInt(elements.length);
+            for (Object element : elements) {
+                if (!writeValue(out, element, frameIds)) {
+                    return false;
+                }
+            }
+        }
+        else {
+            return false;
+        }
+
+        return true;
+    }
+
+    private static @Nullable Object readValue(DataInputStream in, IndexedStackTrace.Frame[] frames) throws IOException {
+        byte type = in.readByte();
+
+        switch (type) {
+            case 0:
+                return null;
+            case 1:
+                byte[] bytes = new byte[in.readInt()];
+                in.readFully(bytes);
+                return new String(bytes, StandardCharsets.UTF_8);
+            case 2:
+                return in.readBoolean();
+            case 3:
+                return in.readByte();
+            case 4:
+                return in.readShort();
+            case 5:
+                return in.readChar();
+            case 6:
+                return in.readInt();
+            case 7:
+                return in.readLong();
+            case 8:
+                return in.readFloat();
+            case 9:
+                return in.readDouble();
+            case 10:
+                Object[] elements = new Object[in.readInt()];
+                for (int i = 0; i < elements.length; i++) {
+                    elements[i] = readValue(in, frames);
+                }
+                return elements;
+            case 11:
+                return new IndexedClass((String) readValue(in, frames));
+            case 12:
+                boolean truncated = in.readBoolean();
+                IndexedStackTrace.Frame[] stackFrames = new IndexedStackTrace.Frame[in.readInt()];
+                for (int i = 0; i < stackFrames.length; i++) {
+                    stackFrames[i] = frames[in.readInt()];
+                }
+                return new IndexedStackTrace(List.of(stackFrames), truncated);
+            default:
+                throw new IllegalStateException("Unexpected value type in index file: " + type);
+        }
+    }
+
+    public static void main(String[] args) {
+        if (args.length == 0) {
+            LOGGER.log(Level.ERROR, "Usage: JfrIndex <JFR file>...");
+            System.exit(1);
+        }
+
+        for (String arg : args) {
+            Path indexFile = create(Path.of(arg));
+            LOGGER.log(Level.INFO, "Created index file {0}", indexFile);
+        }
+    }
+
+    private record Region(long offset, long length) {
+
+        static final Region EMPTY = new Region(0, 0);
+    }
+
+    private record ColumnEntry(byte kind, Region data, Region nulls, Region dictionary) {
+    }
+
+    private record TableEntry(int rowCount, int startTimeIndex, long @Nullable [] blockMinStartTimes, long @Nullable [] blockMaxStartTimes,
+                              ColumnEntry[] columns) {
+    }
+
+    /**
+     * Collects the rows of one table. Rows are added to a {@link ColumnarTable.Builder}, which is written to the batch
+     * file once it holds one block of rows. Dictionary codes are translated into codes of one dictionary per column,
+     * shared by all batches. Each batch holds {@link ColumnarTable#BLOCK_SIZE} rows, a multiple of 64, so the null bits
+     * of the batches can be concatenated word by word.
+     */
+    private static class TableWriter {
+
+        private final RelDataType rowType;
+        private final AttributeValueConverter[] converters;
+        private final int startTimeIndex;
+        private final ColumnBatches[] columns;
+        private ColumnarTable.Builder batch;
+        private int batchRowCount;
+        private int rowCount;
+        private long[] blockMinStartTimes = new long[16];
+        private long[] blockMaxStartTimes = new long[16];
+        private int blockCount;
+        private boolean hasStartTimes;
+
+        TableWriter(RelDataType rowType, AttributeValueConverter[] converters) {
+            this.rowType = rowType;
+            this.converters = converters;
+            this.startTimeIndex = rowType.getFieldNames().indexOf("startTime");
+            this.columns = new ColumnBatches[converters.length];
+            for (int i = 0; i < columns.length; i++) {
+                columns[i] = new ColumnBatches();
+            }
+            this.batch = new ColumnarTable.Builder(rowType, Long.MAX_VALUE);
+        }
+
+        void add(RecordedEvent event, FileChannel batches) throws IOException {
+            batch.add(event, converters);
+
+            if (++batchRowCount == ColumnarTable.BLOCK_SIZE) {
+                flush(batches);
+            }
+        }
+
+        /**
+         * Writes the rows collected so far to the batch file. Also called for empty tables, so that the kinds of their
+         * columns get determined.
+         */
+        void flush(FileChannel batches) throws IOException {
+            if (batchRowCount == 0 && rowCount > 0) {
+                return;
+            }
+
+            ColumnarTable table = batch.build();
+            batches.position(batches.size());
+
+            for (int i = 0; i < columns.length; i++) {
+                columns[i].add(batches, table.getColumns()[i], batchRowCount);
+            }
+
+            if (batchRowCount > 0 && table.getBlockMinStartTimes() != null) {
+                if (blockCount == blockMinStartTimes.length) {
+                    blockMinStartTimes = Arrays.copyOf(blockMinStartTimes, blockCount * 2);
+                    blockMaxStartTimes = Arrays.copyOf(blockMaxStartTimes, blockCount * 2);
+                }
+
+                blockMinStartTimes[blockCount] = table.getBlockMinStartTimes()[0];
+                blockMaxStartTimes[blockCount] = table.getBlockMaxStartTimes()[0];
+                blockCount++;
+                hasStartTimes = true;
+            }
+
+            rowCount += batchRowCount;
+            batch = new ColumnarTable.Builder(rowType, Long.MAX_VALUE);
+            batchRowCount = 0;
+        }
+
+        /**
+         * Concatenates the batches of each column into the given index file, adding the table's entry to the given
+         * table of contents.
+         */
+        void write(FileChannel channel, FileChannel batches, DataOutputStream toc, String tableName) throws IOException {
+            toc.writeUTF(tableName);
+            toc.writeInt(rowCount);
+            toc.writeInt(hasStartTimes ? startTimeIndex : -1);
+
+            if (hasStartTimes) {
+                toc.writeInt(blockCount);
+                for (int i = 0; i < blockCount; i++) {
+                    toc.writeLong(blockMinStartTimes[i]);
+                    toc.writeLong(blockMaxStartTimes[i]);
+                }
+            }
+
+            toc.writeInt(columns.length);
+
+            for (ColumnBatches column : columns) {
+                column.write(channel, batches, toc);
+            }
+        }
+    }
+
+    /**
+     * The regions of the batch file holding the batches of one column.
+     */
+    private static class ColumnBatches {
+
+        private final List<Region> data = new ArrayList<>();
+        private final List<Region> nulls = new ArrayList<>();
+        private final Map<Object, Integer> codesByValue = new HashMap<>();
+        private final List<Object> dictionary = new ArrayList<>();
+        private byte kind = ABSENT_COLUMN;
+        private boolean hasNulls;
+
+        void add(FileChannel batches, ColumnarTable.@Nullable Column column, int rowCount) throws IOException {
+            RegionWriter values = new RegionWriter(batches);
+            BitSet batchNulls = null;
+
+            if (column instanceof ColumnarTable.LongColumn) {
+                ColumnarTable.LongColumn longColumn = (ColumnarTable.LongColumn) column;
+                kind = LONG_COLUMN;
+                batchNulls = longColumn.nulls;
+                for (int row = 0; row < rowCount; row++) {
+                    values.putLong(longColumn.values.get(row));
+                }
+            }
+            else if (column instanceof ColumnarTable.IntColumn) {
+                ColumnarTable.IntColumn intColumn = (ColumnarTable.IntColumn) column;
+                kind = INT_COLUMN;
+                batchNulls = intColumn.nulls;
+                for (int row = 0; row < rowCount; row++) {
+                    values.putInt(intColumn.values.get(row));
+                }
+            }
+            else if (column instanceof ColumnarTable.DoubleColumn) {
+                ColumnarTable.DoubleColumn doubleColumn = (ColumnarTable.DoubleColumn) column;
+                kind = DOUBLE_COLUMN;
+                batchNulls = doubleColumn.nulls;
+                for (int row = 0; row < rowCount; row++) {
+                    values.putDouble(doubleColumn.values.get(row));
+                }
+            }
+            else if (column instanceof ColumnarTable.DictionaryColumn) {
+                ColumnarTable.DictionaryColumn dictionaryColumn = (ColumnarTable.DictionaryColumn) column;
+                kind = DICTIONARY_COLUMN;
+
+                int[] codes = new int[dictionaryColumn.dictionary.length];
+                for (int i = 0; i < codes.length; i++) {
+                    Object value = dictionaryColumn.dictionary[i];
+                    // struct values are represented as arrays, which don't implement equals() and hashCode()
+                    Object key = value instanceof Object[] ? Arrays.asList((Object[]) value) : value;
+
+                    codes[i] = codesByValue.computeIfAbsent(key, k -> {
+                        dictionary.add(value);
+                        return dictionary.size() - 1;
+                    });
+                }
+
+                for (int row = 0; row < rowCount; row++) {
+                    int code = dictionaryColumn.codes.get(row);
+                    values.putInt(code == -1 ? -1 : codes[code]);
+                }
+            }
+
+            data.add(values.finish());
+
+            RegionWriter nullWords = new RegionWriter(batches);
+            long[] words = batchNulls != null ? batchNulls.toLongArray() : new long[0];
+            for (int i = 0; i < (rowCount + 63) / 64; i++) {
+                nullWords.putLong(i < words.length ? words[i] : 0);
+            }
+            nulls.add(nullWords.finish());
+            hasNulls |= words.length > 0;
+        }
+
+        void write(FileChannel channel, FileChannel batches, DataOutputStream toc) throws IOException {
+            if (kind == DICTIONARY_COLUMN) {
+                byte[] serialized = serializeDictionary(dictionary.toArray());
+
+                if (serialized == null) {
+                    writeColumnEntry(toc, ABSENT_COLUMN, Region.EMPTY, Region.EMPTY, Region.EMPTY);
+                    return;
+                }
+
+                Region dataRegion = concat(channel, batches, data);
+                RegionWriter dictionaryData = new RegionWriter(channel);
+                dictionaryData.put(serialized);
+                writeColumnEntry(toc, DICTIONARY_COLUMN, dataRegion, Region.EMPTY, dictionaryData.finish());
+            }
+            else if (kind != ABSENT_COLUMN) {
+                Region dataRegion = concat(channel, batches, data);
+                writeColumnEntry(toc, kind, dataRegion, hasNulls ? concat(channel, batches, nulls) : Region.EMPTY, Region.EMPTY);
+            }
+            else {
+                writeColumnEntry(toc, ABSENT_COLUMN, Region.EMPTY, Region.EMPTY, Region.EMPTY);
+            }
+        }
+
+        private static Region concat(FileChannel channel, FileChannel batches, List<Region> regions) throws IOException {
+            long offset = channel.position();
+
+            for (Region region : regions) {
+                long position = region.offset();
+                long end = region.offset() + region.length();
+
+                while (position < end) {
+                    position += batches.transferTo(position, end - position, channel);
+                }
+            }
+
+            return new Region(offset, channel.position() - offset);
+        }
+    }
+
+    /**
+     * Writes a contiguous region of the index file, buffering values in memory.
+     */
+    private static class RegionWriter {
+
+        private final FileChannel channel;
+        private final ByteBuffer buffer = ByteBuffer.allocate(64 * 1024).order(BYTE_ORDER);
+        private final long offset;
+
+        RegionWriter(FileChannel channel) throws IOException {
+            this.channel = channel;
+            this.offset = channel.position();
+        }
+
+        void putLong(long value) throws IOException {
+            ensureCapacity(8);
+            buffer.putLong(value);
+        }
+
+        void putInt(int value) throws IOException {
+            ensureCapacity(4);
+            buffer.putInt(value);
+        }
+
+        void putDouble(double value) throws IOException {
+            ensureCapacity(8);
+            buffer.putDouble(value);
+        }
+
+        void put(byte[] bytes) throws IOException {
+            flush();
+            ByteBuffer wrapped = ByteBuffer.wrap(bytes);
+            while (wrapped.hasRemaining()) {
+                channel.write(wrapped);
+            }
+        }
+
+        Region finish() throws IOException {
+            flush();
+            return new Region(offset, channel.position() - offset);
+        }
+
+        private void ensureCapacity(int bytes) throws IOException {
+            if (buffer.remaining() < bytes) {
+                flush();
+            }
+        }
+
+        private void flush() throws IOException {
+            buffer.flip();
+            while (buffer.hasRemaining()) {
+                channel.write(buffer);
+            }
+            buffer.clear();
+        }
+    }
+}
@@ -0,0 +1,69 @@
+/*
+ *  Copyright 2021 - 2023 The original authors
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package org.moditect.jfranalytics;
+
+import org.apache.calcite.plan.RelOptRuleCall;
+import org.apache.calcite.plan.RelRule;
+import org.apache.calcite.rel.RelNode;
+import org.apache.calcite.rel.logical.LogicalProject;
+import org.apache.calcite.rel.logical.LogicalSort;
+import org.apache.calcite.rex.RexLiteral;
+import org.apache.calcite.rex.RexNode;
+import org.checkerframework.checker.nullness.qual.Nullable;
+
+/**
+ * Pushes the limit of an unordered {@code LIMIT}/{@code FETCH FIRST} query into the {@link JfrTableScan} below it,
+ * possibly with a projection in between, so that the table can choose a scan strategy which ends early. The sort
+ * operator is kept on top of the scan, applying the offset and limiting the number of rows.
+ */
+public class JfrLimitTableScanRule extends RelRule<JfrRuleConfig> {
+
+    public static final JfrLimitTableScanRule INSTANCE = new JfrLimitTableScanRule(JfrRuleConfig.of("JfrLimitTableScanRule",
+            b -> b.operand(LogicalSort.class).oneInput(s -> s.operand(JfrTableScan.class).noInputs()), JfrLimitTableScanRule::new));
+
+    public static final JfrLimitTableScanRule PROJECT_INSTANCE = new JfrLimitTableScanRule(JfrRuleConfig.of("JfrLimitTableScanRule:project",
+            b -> b.operand(LogicalSort.class).oneInput(p -> p.operand(LogicalProject.class).oneInput(s -> s.operand(JfrTableScan.class).noInputs())),
+            JfrLimitTableScanRule::new));
+
+    private JfrLimitTableScanRule(JfrRuleConfig config) {
+        super(config);
+    }
+
+    @Override
+    public void onMatch(RelOptRuleCall call) {
+        LogicalSort sort = call.rel(0);
+        LogicalProject project = call.rels.length == 3 ? call.rel(1) : null;
+        JfrTableScan scan = call.rel(call.rels.length - 1);
+
+        Integer fetch = getIntValue(sort.fetch);
+        Integer offset = sort.offset != null ? getIntValue(sort.offset) : Integer.valueOf(0);
+
+        if (fetch == null || offset == null || !sort.getCollation().getFieldCollations().isEmpty() || scan.getFetch() != -1) {
+            return;
+        }
+
+        RelNode input = scan.withFetch((int) Math.min(Integer.MAX_VALUE, (long) offset + fetch));
+        if (project != null) {
+            input = project.copy(project.getTraitSet(), input, project.getProjects(), project.getRowType());
+        }
+
+        call.transformTo(sort.copy(sort.getTraitSet(), input, sort.getCollation(), sort.offset, sort.fetch));
+    }
+
+    private static @Nullable Integer getIntValue(@Nullable RexNode node) {
+        return node instanceof RexLiteral ? ((RexLiteral) node).getValueAs(Integer.class) : null;
+    }
+}
@@ -0,0 +1,259 @@
+/*
+ *  Copyright 2021 - 2023 The original authors
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package org.moditect.jfranalytics;
+
+import java.lang.System.Logger.Level;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ForkJoinPool;
+
+import org.apache.calcite.DataContext;
+import org.apache.calcite.linq4j.Enumerable;
+import org.apache.calcite.linq4j.Linq4j;
+import org.apache.calcite.plan.RelOptTable;
+import org.apache.calcite.rel.RelNode;
+import org.apache.calcite.rel.type.RelDataType;
+import org.apache.calcite.rel.type.RelDataTypeFactory;
+import org.apache.calcite.rel.type.RelDataTypeField;
+import org.apache.calcite.rex.RexNode;
+import org.apache.calcite.schema.Statistic;
+import org.apache.calcite.schema.Statistics;
+import org.apache.calcite.schema.impl.AbstractTable;
+import org.apache.calcite.sql.type.SqlTypeName;
+import org.apache.calcite.sql.type.SqlTypeUtil;
+import org.checkerframework.checker.nullness.qual.Nullable;
+
+/**
+ * A table representing all the events of one JFR event type across several recordings, e.g. all the recordings in a
+ * directory. The columns of the table are the union of the columns of that event type in the individual recordings,
+ * plus a column {@value #SOURCE_FILE_COLUMN} with the name of the recording a row stems from. Columns not present in a
+ * given recording (e.g. when recordings have been made with different JDK versions) are {@code null} for its rows.
+ * If the type of a column differs between recordings, numeric types are widened to the least restrictive one, e.g.
+ * {@code INTEGER} and {@code BIGINT} to {@code BIGINT}, with the values being converted accordingly; otherwise, the
+ * type of the first recording is used, and the column is {@code null} for the rows of the recordings with another type.
+ * <p>
+ * Each recording is scanned by its own {@link JfrScannableTable}, so chunks ending before a {@code startTime} lower
+ * bound are skipped, and recordings which have no such chunks at all are skipped entirely. If a pool is given, the
+ * recordings are scanned concurrently.
+ */
+public class JfrMultiRecordingTable extends AbstractTable implements JfrEventTable {
+
+    public static final String SOURCE_FILE_COLUMN = "sourceFile";
+
+    private static final System.Logger LOGGER = System.getLogger(JfrMultiRecordingTable.class.getName());
+
+    private final List<String> sourceFiles;
+    private final List<JfrScannableTable> tables;
+    private final @Nullable ForkJoinPool pool;
+    private final RelDataType rowType;
+    private final int startTimeIndex;
+    private final int sourceFileIndex;
+
+    // for each recording, the index of each column in that recording's table, -1 if not present or of another type
+    private final List<int[]> columnMappings;
+
+    // for each recording, the type each column's values are to be converted to, null if the types match
+    private final List<SqlTypeName[]> columnConversions;
+
+    /**
+     * @param tables the tables of the individual recordings, keyed by the name of the source file
+     */
+    public JfrMultiRecordingTable(Map<String, JfrScannableTable> tables, RelDataTypeFactory typeFactory, @Nullable ForkJoinPool pool) {
+        this.sourceFiles = new ArrayList<>(tables.keySet());
+        this.tables = new ArrayList<>(tables.values());
+        this.pool = pool;
+
+        Map<String, RelDataType> types = new LinkedHashMap<>();
+        for (JfrScannableTable table : this.tables) {
+            for (RelDataTypeField field : table.getRowType().getFieldList()) {
+                types.merge(field.getName(), field.getType(), (type, other) -> merge(type, other, typeFactory));
+            }
+        }
+
+        RelDataTypeFactory.Builder builder = new RelDataTypeFactory.Builder(typeFactory);
+        for (Map.Entry<String, RelDataType> type : types.entrySet()) {
+            builder.add(type.getKey(), type.getValue());
+        }
+        builder.add(SOURCE_FILE_COLUMN, SqlTypeName.VARCHAR);
+
+        this.rowType = builder.build();
+        this.startTimeIndex = rowType.getFieldNames().indexOf("startTime");
+        this.sourceFileIndex = rowType.getFieldCount() - 1;
+        this.columnMappings = new ArrayList<>(this.tables.size());
+        this.columnConversions = new ArrayList<>(this.tables.size());
+
+        for (int recording = 0; recording < this.tables.size(); recording++) {
+            RelDataType recordingRowType = this.tables.get(recording).getRowType();
+            int[] mapping = new int[sourceFileIndex];
+            SqlTypeName[] conversions = new SqlTypeName[sourceFileIndex];
+
+            for (int i = 0; i < mapping.length; i++) {
+                RelDataTypeField field = rowType.getFieldList().get(i);
+                RelDataTypeField recordingField = recordingRowType.getField(field.getName(), true, false);
+
+                if (recordingField == null) {
+                    mapping[i] = -1;
+                }
+                else if (recordingField.getType().equals(field.getType())) {
+                    mapping[i] = recordingField.getIndex();
+                }
+                else if (SqlTypeUtil.isNumeric(recordingField.getType()) && SqlTypeUtil.isNumeric(field.getType())) {
+                    mapping[i] = recordingField.getIndex();
+                    conversions[i] = field.getType().getSqlTypeName();
+                }
+                else {
+                    LOGGER.log(Level.WARNING, "Column {0}::{1} of recording {2} is of type {3} rather than {4}; its values are omitted",
+                            this.tables.get(recording).getEventType().getName(), field.getName(), sourceFiles.get(recording),
+                            recordingField.getType().getFullTypeString(), field.getType().getFullTypeString());
+                    mapping[i] = -1;
+                }
+            }
+
+            columnMappings.add(mapping);
+            columnConversions.add(conversions);
+        }
+    }
+
+    /**
+     * Returns the least restrictive of the given types, if both are numeric, or the first type otherwise.
+     */
+    private static RelDataType merge(RelDataType type, RelDataType other, RelDataTypeFactory typeFactory) {
+        if (type.equals(other) || !SqlTypeUtil.isNumeric(type) || !SqlTypeUtil.isNumeric(other)) {
+            return type;
+        }
+
+        RelDataType merged = typeFactory.leastRestrictive(List.of(type, other));
+        return merged != null ? merged : type;
+    }
+
+    /**
+     * Converts the given value of a numeric column to the type of the column in the merged row type.
+     */
+    private static @Nullable Object convert(@Nullable Object value, SqlTypeName type) {
+        if (!(value instanceof Number)) {
+            return value;
+        }
+
+        Number number = (Number) value;
+        switch (type) {
+            case TINYINT:
+                return number.byteValue();
+            case SMALLINT:
+                return number.shortValue();
+            case INTEGER:
+                return number.intValue();
+            case BIGINT:
+                return number.longValue();
+            case REAL:
+                return number.floatValue();
+            default:
+                return number.doubleValue();
+        }
+    }
+
+    @Override
+    public RelDataType getRowType(RelDataTypeFactory typeFactory) {
+        return rowType;
+    }
+
+    /**
+     * Returns the sum of the row counts of the tables of the individual recordings.
+     */
+    @Override
+    public Statistic getStatistic() {
+        double rowCount = 0;
+
+        for (JfrScannableTable table : tables) {
+            Double tableRowCount = table.getStatistic().getRowCount();
+            if (tableRowCount == null) {
+                return Statistics.UNKNOWN;
+            }
+            rowCount += tableRowCount;
+        }
+
+        return Statistics.of(rowCount, List.of());
+    }
+
+    @Override
+    public RelNode toRel(RelOptTable.ToRelContext context, RelOptTable relOptTable) {
+        return JfrTableScan.create(context.getCluster(), relOptTable, this);
+    }
+
+    @Override
+    public Enumerable<@Nullable Object[]> scan(DataContext root, List<RexNode> filters, int @Nullable [] projects, int fetch) {
+        StartTimeRange range = StartTimeRange.fromFilters(filters, startTimeIndex, root);
+        int[] fields = projects != null ? projects : allFields();
+        List<Enumerable<Object[]>> parts = new ArrayList<>(tables.size());
+
+        for (int i = 0; i < tables.size(); i++) {
+            parts.add(scan(i, range, fields, fetch));
+        }
+
+        // if limited, the recordings are scanned one after the other, so that scanning ends after the last requested row
+        if (pool != null && parts.size() > 1 && fetch == -1) {
+            return new ParallelEnumerable(parts, pool);
+        }
+
+        return Linq4j.concat(parts);
+    }
+
+    private Enumerable<Object[]> scan(int recording, StartTimeRange range, int[] fields, int fetch) {
+        String sourceFile = sourceFiles.get(recording);
+        int[] mapping = columnMappings.get(recording);
+        SqlTypeName[] conversions = columnConversions.get(recording);
+
+        // the columns to fetch from the recording's table, and the position of each output column within these
+        List<Integer> recordingProjects = new ArrayList<>();
+        int[] positions = new int[fields.length];
+        SqlTypeName[] types = new SqlTypeName[fields.length];
+
+        for (int i = 0; i < fields.length; i++) {
+            if (fields[i] == sourceFileIndex || mapping[fields[i]] == -1) {
+                positions[i] = -1;
+            }
+            else {
+                positions[i] = recordingProjects.size();
+                recordingProjects.add(mapping[fields[i]]);
+                types[i] = conversions[fields[i]];
+            }
+        }
+
+        int[] projects = recordingProjects.stream().mapToInt(Integer::intValue).toArray();
+
+        return tables.get(recording).scan(range, projects, fetch).select(row -> {
+            Object[] values = new Object[fields.length];
+            for (int i = 0; i < fields.length; i++) {
+                if (positions[i] != -1) {
+                    values[i] = types[i] != null ? convert(row[positions[i]], types[i]) : row[positions[i]];
+                }
+                else if (fields[i] == sourceFileIndex) {
+                    values[i] = sourceFile;
+                }
+            }
+            return values;
+        });
+    }
+
+    private int[] allFields() {
+        int[] fields = new int[rowType.getFieldCount()];
+        for (int i = 0; i < fields.length; i++) {
+            fields[i] = i;
+        }
+        return fields;
+    }
+}
@@ -0,0 +1,72 @@
+/*
+ *  Copyright 2021 - 2023 The original authors
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package org.moditect.jfranalytics;
+
+import java.util.List;
+
+import org.apache.calcite.plan.RelOptRuleCall;
+import org.apache.calcite.plan.RelOptUtil;
+import org.apache.calcite.plan.RelRule;
+import org.apache.calcite.rel.logical.LogicalProject;
+import org.apache.calcite.rex.RexNode;
+import org.apache.calcite.rex.RexUtil;
+import org.apache.calcite.util.ImmutableBitSet;
+import org.apache.calcite.util.mapping.Mapping;
+import org.apache.calcite.util.mapping.Mappings;
+
+/**
+ * Pushes the columns referenced by a projection into the {@link JfrTableScan} below it, so that only these columns are
+ * retrieved from the events. The projection is kept on top of the scan, unless it just forwards the retrieved columns.
+ */
+public class JfrProjectTableScanRule extends RelRule<JfrRuleConfig> {
+
+    public static final JfrProjectTableScanRule INSTANCE = new JfrProjectTableScanRule(
+            JfrRuleConfig.of("JfrProjectTableScanRule", b -> b.operand(LogicalProject.class).oneInput(s -> s.operand(JfrTableScan.class).noInputs()),
+                    JfrProjectTableScanRule::new));
+
+    private JfrProjectTableScanRule(JfrRuleConfig config) {
+        super(config);
+    }
+
+    @Override
+    public void onMatch(RelOptRuleCall call) {
+        LogicalProject project = call.rel(0);
+        JfrTableScan scan = call.rel(1);
+
+        ImmutableBitSet used = RelOptUtil.InputFinder.bits(project.getProjects(), null);
+        if (used.cardinality() == scan.getFields().length) {
+            return;
+        }
+
+        int[] fields = new int[used.cardinality()];
+        int i = 0;
+        for (int field : used) {
+            fields[i++] = scan.getFields()[field];
+        }
+
+        JfrTableScan newScan = scan.withFields(fields);
+
+        Mapping mapping = Mappings.target(used.toList(), scan.getRowType().getFieldCount());
+        List<RexNode> projects = RexUtil.apply(mapping, project.getProjects());
+
+        if (RexUtil.isIdentity(projects, newScan.getRowType())) {
+            call.transformTo(newScan);
+        }
+        else {
+            call.transformTo(LogicalProject.create(newScan, project.getHints(), projects, project.getRowType(), project.getVariablesSet()));
+        }
+    }
+}
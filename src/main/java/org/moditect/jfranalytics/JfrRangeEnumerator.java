@@ -0,0 +1,266 @@
+/*
+ *  Copyright 2021 - 2023 The original authors
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package org.moditect.jfranalytics;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.time.Instant;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.Consumer;
+
+import org.apache.calcite.linq4j.Enumerator;
+import org.checkerframework.checker.nullness.qual.Nullable;
+
+import jdk.jfr.EventType;
+import jdk.jfr.consumer.EventStream;
+import jdk.jfr.consumer.RecordedEvent;
+
+/**
+ * An enumerator over the events of one type in a JFR recording which end within given bounds. The recording is read in
+ * place via an {@link EventStream}, which skips the events ending outside of the bounds without decoding them, i.e. the
+ * chunks before the lower bound aren't decoded (apart from their metadata and constant pools), nor copied. Events are
+ * handed over from the stream's dispatcher thread via a bounded queue. The stream is started upon the first call to
+ * {@link #moveNext()} and closed by {@link #close()}.
+ */
+public class JfrRangeEnumerator implements Enumerator<Object[]> {
+
+    private static final Object[] END = new Object[0];
+    private static final int QUEUE_SIZE = 1024;
+    private static final long POLL_INTERVAL_MS = 100;
+
+    private final Path jfrFile;
+    private final Bounds bounds;
+    private final String eventTypeName;
+    private final AttributeValueConverter[] converters;
+
+    private EventStream stream;
+    private BlockingQueue<Object[]> queue;
+    private volatile boolean closed;
+    private volatile Throwable error;
+    private Object[] current;
+
+    /**
+     * @param startTime the instant before which events may be skipped; events ending earlier are not returned
+     */
+    public JfrRangeEnumerator(Path jfrFile, Instant startTime, EventType eventType, AttributeValueConverter[] converters) {
+        this(jfrFile, new Bounds(startTime, null), eventType, converters);
+    }
+
+    JfrRangeEnumerator(Path jfrFile, Bounds bounds, EventType eventType, AttributeValueConverter[] converters) {
+        this.jfrFile = jfrFile;
+        this.bounds = bounds;
+        this.eventTypeName = eventType.getName();
+        this.converters = converters;
+    }
+
+    /**
+     * Passes the events of the given type within the given bounds to the given action, reading the recording on the
+     * calling thread.
+     */
+    static void forEachEvent(Path jfrFile, Bounds bounds, String eventTypeName, Consumer<RecordedEvent> action) {
+        AtomicReference<Throwable> error = new AtomicReference<>();
+
+        try (EventStream stream = EventStream.openFile(jfrFile)) {
+            bounds.apply(stream, eventTypeName, action);
+            stream.onError(e -> {
+                error.compareAndSet(null, e);
+                stream.close();
+            });
+            stream.start();
+        }
+        catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+
+        if (error.get() instanceof RuntimeException) {
+            throw (RuntimeException) error.get();
+        }
+        else if (error.get() != null) {
+            throw new RuntimeException(error.get());
+        }
+    }
+
+    @Override
+    public Object[] current() {
+        return current;
+    }
+
+    @Override
+    public boolean moveNext() {
+        if (stream == null) {
+            open();
+        }
+
+        try {
+            Object[] row = queue.take();
+
+            if (row != END) {
+                current = row;
+                return true;
+            }
+            else if (error != null) {
+                throw new RuntimeException(error);
+            }
+        }
+        catch (InterruptedException e) {
+            // a truncated result mustn't look like the end of the recording
+            Thread.currentThread().interrupt();
+            close();
+            throw new RuntimeException(e);
+        }
+
+        current = null;
+        return false;
+    }
+
+    @Override
+    public void reset() {
+        close();
+        closed = false;
+        error = null;
+        current = null;
+    }
+
+    @Override
+    public void close() {
+        closed = true;
+
+        if (stream != null) {
+            stream.close();
+            stream = null;
+        }
+    }
+
+    private void open() {
+        queue = new ArrayBlockingQueue<>(QUEUE_SIZE);
+
+        try {
+            stream = EventStream.openFile(jfrFile);
+        }
+        catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+
+        stream.setReuse(false);
+        bounds.apply(stream, eventTypeName, event -> enqueue(toRow(event)));
+        stream.onError(e -> error = e);
+        stream.onClose(() -> enqueue(END));
+        stream.startAsync();
+    }
+
+    private void enqueue(Object[] row) {
+        try {
+            while (!closed) {
+                if (queue.offer(row, POLL_INTERVAL_MS, TimeUnit.MILLISECONDS)) {
+                    return;
+                }
+            }
+        }
+        catch (InterruptedException e) {
+            // the dispatcher thread got interrupted; fail the scan rather than dropping the row
+            Thread.currentThread().interrupt();
+            error = e;
+            closed = true;
+            queue.clear();
+            queue.offer(END);
+        }
+    }
+
+    private Object[] toRow(RecordedEvent event) {
+        Object[] row = new Object[converters.length];
+
+        for (int i = 0; i < converters.length; i++) {
+            row[i] = converters[i].getValue(event);
+        }
+
+        return row;
+    }
+
+    /**
+     * The bounds of the end times of the events to read; events ending before the start or at or after the end are
+     * skipped.
+     *
+     * @param start the lower bound, or {@code null} if events are to be read from the beginning of the recording
+     * @param end the exclusive upper bound, or {@code null} if events are to be read up to the end of the recording
+     */
+    record Bounds(@Nullable Instant start, @Nullable Instant end) {
+
+        static final Bounds UNBOUNDED = new Bounds(null, null);
+
+        /**
+         * Returns the bounds of the events of the given range of chunks, i.e. of the events ending between the start of
+         * the first of these chunks and the start of the chunk following them. Adjacent ranges thus don't overlap, also
+         * if an event ending before the start of a chunk has been written into that chunk.
+         *
+         * @param chunks all the chunks of the recording
+         * @param from the index of the first chunk of the range
+         * @param to the index following the last chunk of the range
+         */
+        static Bounds ofChunks(List<JfrChunk> chunks, int from, int to) {
+            return new Bounds(from > 0 ? toInstant(chunks.get(from).getStartNanos()) : null,
+                    to < chunks.size() ? toInstant(chunks.get(to).getStartNanos()) : null);
+        }
+
+        private static Instant toInstant(long epochNanos) {
+            return Instant.ofEpochSecond(0, epochNanos);
+        }
+
+        /**
+         * Returns these bounds, raising the start to the given instant, if it is later.
+         */
+        Bounds withLowerBound(@Nullable Instant lowerBound) {
+            return lowerBound != null && (start == null || lowerBound.isAfter(start)) ? new Bounds(lowerBound, end) : this;
+        }
+
+        boolean isUnbounded() {
+            return start == null && end == null;
+        }
+
+        boolean contains(RecordedEvent event) {
+            Instant endTime = event.getEndTime();
+            return (start == null || !endTime.isBefore(start)) && (end == null || endTime.isBefore(end));
+        }
+
+        /**
+         * Subscribes the given action to the events within these bounds. The stream also reads the chunk starting at the
+         * end, as it may contain events ending before its start; that chunk must not be still being written, as the
+         * stream would wait for it to be completed.
+         */
+        private void apply(EventStream stream, String eventTypeName, Consumer<RecordedEvent> action) {
+            stream.setOrdered(false);
+
+            if (start != null) {
+                stream.setStartTime(start);
+            }
+
+            if (end == null) {
+                stream.onEvent(eventTypeName, action);
+            }
+            else {
+                stream.setEndTime(end);
+                stream.onEvent(eventTypeName, event -> {
+                    if (event.getEndTime().isBefore(end)) {
+                        action.accept(event);
+                    }
+                });
+            }
+        }
+    }
+}
@@ -0,0 +1,58 @@
+/*
+ *  Copyright 2021 - 2023 The original authors
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package org.moditect.jfranalytics;
+
+import java.util.function.Function;
+
+import org.apache.calcite.plan.RelOptRule;
+import org.apache.calcite.plan.RelRule;
+import org.apache.calcite.rel.core.RelFactories;
+import org.apache.calcite.tools.RelBuilderFactory;
+import org.checkerframework.checker.nullness.qual.Nullable;
+
+/**
+ * The configuration of the planner rules of this adapter. Calcite generates the configurations of its own rules using
+ * Immutables; as this adapter doesn't use annotation processing, the rules share this hand-written configuration
+ * instead, which creates the rule by means of the given factory.
+ */
+record JfrRuleConfig(RelBuilderFactory relBuilderFactory, @Nullable String description, RelRule.OperandTransform operandSupplier,
+                     Function<JfrRuleConfig, RelOptRule> factory)
+        implements RelRule.Config {
+
+    static JfrRuleConfig of(String description, RelRule.OperandTransform operandSupplier, Function<JfrRuleConfig, RelOptRule> factory) {
+        return new JfrRuleConfig(RelFactories.LOGICAL_BUILDER, description, operandSupplier, factory);
+    }
+
+    @Override
+    public RelOptRule toRule() {
+        return factory.apply(this);
+    }
+
+    @Override
+    public JfrRuleConfig withRelBuilderFactory(RelBuilderFactory relBuilderFactory) {
+        return new JfrRuleConfig(relBuilderFactory, description, operandSupplier, factory);
+    }
+
+    @Override
+    public JfrRuleConfig withDescription(@Nullable String description) {
+        return new JfrRuleConfig(relBuilderFactory, description, operandSupplier, factory);
+    }
+
+    @Override
+    public JfrRuleConfig withOperandSupplier(RelRule.OperandTransform operandSupplier) {
+        return new JfrRuleConfig(relBuilderFactory, description, operandSupplier, factory);
+    }
+}
@@ -0,0 +1,428 @@
+/*
+ *  Copyright 2021 - 2023 The original authors
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package org.moditect.jfranalytics;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.WeakHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.BooleanSupplier;
+
+import org.apache.calcite.DataContext;
+import org.apache.calcite.linq4j.AbstractEnumerable;
+import org.apache.calcite.linq4j.Enumerable;
+import org.apache.calcite.linq4j.Enumerator;
+import org.checkerframework.checker.nullness.qual.Nullable;
+
+import jdk.jfr.EventType;
+import jdk.jfr.consumer.RecordedEvent;
+import jdk.jfr.consumer.RecordingFile;
+
+/**
+ * Coordinates the serial scans of the tables of one recording within a statement, e.g. the two sides of a join or a
+ * query and its sub-query, so that they are served by a single pass over the recording rather than by one pass per
+ * scan. The scans of a statement are registered with a shared pass while the statement is bound; when the first scan
+ * is enumerated, the pass starts decoding the recording and fans out each event to all the scans of its type. The rows
+ * of scans other than the one currently being enumerated are buffered until these scans are enumerated themselves;
+ * the events of aggregating scans are passed to their {@link ScanAggregator} right away.
+ * <p>
+ * Scans which haven't been started yet when more than {@value #MAX_BUFFERED_ROWS} of their rows have been buffered
+ * drop out of the shared pass, as do the scans not yet started when the pass is ended early, e.g. due to a
+ * {@code LIMIT}; such scans, as well as scans enumerated repeatedly or registered after the pass has started, decode
+ * the recording on their own. Scans which have been started, but aren't enumerated while the pass is driven by other
+ * scans, e.g. the two sides of a self-join, drop out once as many of their rows have been buffered, too; they return
+ * their buffered rows and then continue with a pass of their own, skipping the events returned already.
+ * <p>
+ * Shared passes which read the entire recording record the number of events of each type, replacing the estimated
+ * counts used for planning, see {@link JfrEventCounts}.
+ */
+public class JfrScanCoordinator {
+
+    static final int MAX_BUFFERED_ROWS = 100_000;
+
+    private final Path jfrFile;
+    private final JfrEventCounts eventCounts;
+    private final int maxBufferedRows;
+
+    // DataContext doesn't override equals(), i.e. each execution of a statement has its own shared pass
+    private final Map<DataContext, SharedPass> passes = Collections.synchronizedMap(new WeakHashMap<>());
+
+    private final AtomicLong passCount = new AtomicLong();
+
+    /**
+     * @param eventCounts the event counts of the recording, updated by passes reading the entire recording
+     */
+    public JfrScanCoordinator(Path jfrFile, JfrEventCounts eventCounts) {
+        this(jfrFile, eventCounts, MAX_BUFFERED_ROWS);
+    }
+
+    JfrScanCoordinator(Path jfrFile, JfrEventCounts eventCounts, int maxBufferedRows) {
+        this.jfrFile = jfrFile;
+        this.eventCounts = eventCounts;
+        this.maxBufferedRows = maxBufferedRows;
+    }
+
+    /**
+     * Returns the given columns of all the events of the given type, decoded by the shared pass of the given statement.
+     */
+    public Enumerable<Object[]> scan(DataContext root, EventType eventType, AttributeValueConverter[] converters) {
+        Scan scan = register(root, new Scan(eventType, converters, null));
+
+        return new AbstractEnumerable<>() {
+
+            @Override
+            public Enumerator<Object[]> enumerator() {
+                return scan.pass.start(scan) ? new SharedEnumerator(scan) : new JfrEnumerator(jfrFile, null, eventType, converters);
+            }
+        };
+    }
+
+    /**
+     * Registers the aggregation of all the events of the given type with the shared pass of the given statement. The
+     * returned task adds the events to the given aggregator, completing the pass if needed; it returns {@code false} if
+     * the events have to be aggregated by a pass of its own instead, in which case the given aggregator must be
+     * discarded.
+     */
+    public BooleanSupplier aggregate(DataContext root, EventType eventType, AttributeValueConverter[] converters, ScanAggregator aggregator) {
+        Scan scan = register(root, new Scan(eventType, converters, aggregator));
+
+        return () -> {
+            if (!scan.pass.start(scan)) {
+                return false;
+            }
+
+            try {
+                scan.pass.complete();
+                scan.pass.close(scan);
+                return true;
+            }
+            catch (IOException e) {
+                throw new RuntimeException(e);
+            }
+        };
+    }
+
+    private Scan register(DataContext root, Scan scan) {
+        synchronized (passes) {
+            SharedPass pass = passes.get(root);
+
+            if (pass == null || !pass.register(scan)) {
+                pass = new SharedPass();
+                pass.register(scan);
+                passes.put(root, pass);
+            }
+
+            scan.pass = pass;
+        }
+
+        return scan;
+    }
+
+    /**
+     * Returns the number of passes over the recording started by this coordinator so far, not counting the scans
+     * decoding the recording on their own.
+     */
+    long getPassCount() {
+        return passCount.get();
+    }
+
+    /**
+     * Returns the number of rows currently buffered by the shared pass of the given statement.
+     */
+    int getBufferedRowCount(DataContext root) {
+        SharedPass pass = passes.get(root);
+        return pass != null ? pass.getBufferedRowCount() : 0;
+    }
+
+    /**
+     * One scan registered with a shared pass.
+     */
+    private static class Scan {
+
+        private final EventType eventType;
+        private final AttributeValueConverter[] converters;
+        private final @Nullable ScanAggregator aggregator;
+        private final ArrayDeque<Object[]> buffered = new ArrayDeque<>();
+        private SharedPass pass;
+
+        // whether this scan is being enumerated, and whether it has left the shared pass
+        private boolean started;
+        private boolean detached;
+
+        // the number of rows passed to this scan, and the number of events to skip when continuing on its own, if any
+        private long delivered;
+        private long resumeAt = -1;
+
+        private Scan(EventType eventType, AttributeValueConverter[] converters, @Nullable ScanAggregator aggregator) {
+            this.eventType = eventType;
+            this.converters = converters;
+            this.aggregator = aggregator;
+        }
+
+        private Object[] toRow(RecordedEvent event) {
+            Object[] row = new Object[converters.length];
+
+            for (int i = 0; i < converters.length; i++) {
+                row[i] = converters[i].getValue(event);
+            }
+
+            return row;
+        }
+    }
+
+    /**
+     * A pass over the recording, shared by all the scans registered before it has started. All methods are
+     * synchronized, as the scans may be enumerated by different threads, see {@link PrefetchEnumerable}.
+     */
+    private class SharedPass {
+
+        private final Map<String, List<Scan>> scans = new HashMap<>();
+        private @Nullable RecordingFile recordingFile;
+        private JfrEventCounts.@Nullable Pass countingPass;
+        private boolean started;
+        private boolean finished;
+
+        /**
+         * Registers the given scan, unless this pass has started already.
+         */
+        private synchronized boolean register(Scan scan) {
+            if (started) {
+                return false;
+            }
+
+            scans.computeIfAbsent(scan.eventType.getName(), k -> new ArrayList<>()).add(scan);
+            return true;
+        }
+
+        /**
+         * Starts the enumeration of the given scan, returning {@code false} if it has to decode the recording on its
+         * own, i.e. if it has been started before or has dropped out of this pass.
+         */
+        private synchronized boolean start(Scan scan) {
+            if (scan.started || scan.detached) {
+                return false;
+            }
+
+            if (!started) {
+                started = true;
+                passCount.incrementAndGet();
+            }
+
+            scan.started = true;
+            return true;
+        }
+
+        /**
+         * Returns the next row of the given scan, or {@code null} if there are no more rows, or if the scan has to
+         * continue on its own.
+         */
+        private synchronized @Nullable Object[] next(Scan scan) throws IOException {
+            while (scan.buffered.isEmpty()) {
+                if (scan.detached || !advance()) {
+                    return null;
+                }
+            }
+
+            return scan.buffered.poll();
+        }
+
+        /**
+         * Reads all the remaining events of the recording.
+         */
+        private synchronized void complete() throws IOException {
+            while (advance()) {
+                // the events are passed to the scans by advance()
+            }
+        }
+
+        /**
+         * Reads the next event and passes it to the scans of its type, returning {@code false} if there are no more
+         * events.
+         */
+        private boolean advance() throws IOException {
+            if (finished) {
+                return false;
+            }
+            if (recordingFile == null) {
+                countingPass = eventCounts.startPass();
+                recordingFile = new RecordingFile(jfrFile);
+            }
+
+            if (!recordingFile.hasMoreEvents()) {
+                countingPass.complete();
+                finish();
+                return false;
+            }
+
+            RecordedEvent event = recordingFile.readEvent();
+            String eventTypeName = event.getEventType().getName();
+            List<Scan> consumers = scans.get(eventTypeName);
+            countingPass.count(eventTypeName);
+
+            if (consumers != null) {
+                for (Scan consumer : consumers) {
+                    if (consumer.detached) {
+                        continue;
+                    }
+
+                    if (consumer.aggregator != null) {
+                        consumer.aggregator.add(event, consumer.converters);
+                    }
+                    else {
+                        consumer.buffered.add(consumer.toRow(event));
+                        consumer.delivered++;
+
+                        if (consumer.buffered.size() > maxBufferedRows) {
+                            if (consumer.started) {
+                                // keeps the buffered rows, which are returned before continuing on its own
+                                consumer.detached = true;
+                                consumer.resumeAt = consumer.delivered;
+                            }
+                            else {
+                                detach(consumer);
+                            }
+                        }
+                    }
+                }
+            }
+
+            return true;
+        }
+
+        /**
+         * Removes the given scan from this pass; once there are no more scans being enumerated, the pass is ended.
+         */
+        private synchronized void close(Scan scan) throws IOException {
+            detach(scan);
+
+            for (List<Scan> consumers : scans.values()) {
+                for (Scan consumer : consumers) {
+                    if (consumer.started && !consumer.detached) {
+                        return;
+                    }
+                }
+            }
+
+            if (!finished) {
+                // the scans not started yet would miss the remaining events
+                for (List<Scan> consumers : scans.values()) {
+                    consumers.forEach(this::detach);
+                }
+
+                finish();
+            }
+        }
+
+        private synchronized int getBufferedRowCount() {
+            return scans.values().stream()
+                    .flatMap(List::stream)
+                    .mapToInt(scan -> scan.buffered.size())
+                    .sum();
+        }
+
+        private void detach(Scan scan) {
+            scan.detached = true;
+            scan.buffered.clear();
+        }
+
+        private void finish() throws IOException {
+            finished = true;
+
+            if (recordingFile != null) {
+                recordingFile.close();
+                recordingFile = null;
+            }
+        }
+    }
+
+    /**
+     * Enumerates the rows of one scan from the shared pass; once reset, or once the scan has dropped out of the pass
+     * after being started, the recording is decoded by a {@link JfrEnumerator} of its own.
+     */
+    private class SharedEnumerator implements Enumerator<Object[]> {
+
+        private final Scan scan;
+        private @Nullable JfrEnumerator own;
+        private boolean closed;
+        private Object[] current;
+
+        private SharedEnumerator(Scan scan) {
+            this.scan = scan;
+        }
+
+        @Override
+        public Object[] current() {
+            return current;
+        }
+
+        @Override
+        public boolean moveNext() {
+            if (own != null) {
+                boolean hasNext = own.moveNext();
+                current = own.current();
+                return hasNext;
+            }
+
+            try {
+                current = closed ? null : scan.pass.next(scan);
+                if (current != null || closed || scan.resumeAt == -1) {
+                    return current != null;
+                }
+
+                own = new JfrEnumerator(jfrFile, null, scan.eventType, scan.converters);
+                for (long i = 0; i < scan.resumeAt; i++) {
+                    own.nextEvent();
+                }
+            }
+            catch (IOException e) {
+                throw new RuntimeException(e);
+            }
+
+            return moveNext();
+        }
+
+        @Override
+        public void reset() {
+            close();
+            own = new JfrEnumerator(jfrFile, null, scan.eventType, scan.converters);
+            current = null;
+        }
+
+        @Override
+        public void close() {
+            if (own != null) {
+                own.close();
+            }
+
+            if (!closed) {
+                closed = true;
+
+                try {
+                    scan.pass.close(scan);
+                }
+                catch (IOException e) {
+                    throw new RuntimeException(e);
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,120 @@
+/*
+ *  Copyright 2021 - 2023 The original authors
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package org.moditect.jfranalytics;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ForkJoinPool;
+
+import org.checkerframework.checker.nullness.qual.Nullable;
+
+/**
+ * Controls how the tables of a {@link JfrSchema} are scanned. Shared by all the tables of a schema.
+ */
+public class JfrScanOptions {
+
+    public static final JfrScanOptions DEFAULT = new JfrScanOptions(null, null, null);
+
+    private static final Map<Integer, ForkJoinPool> POOLS = new ConcurrentHashMap<>();
+
+    /**
+     * The backend for decoding the events of a recording.
+     */
+    public enum Parser {
+
+        /**
+         * Decodes events using {@link jdk.jfr.consumer.RecordingFile}.
+         */
+        JDK,
+
+        /**
+         * Decodes the events of scans retrieving only primitive-typed columns directly from the memory-mapped chunks of
+         * the recording, see {@link MappedJfrEnumerator}; other scans are decoded using
+         * {@link jdk.jfr.consumer.RecordingFile}.
+         */
+        MAPPED;
+    }
+
+    private final @Nullable ForkJoinPool pool;
+    private final @Nullable ColumnarTableCache cache;
+    private final @Nullable JfrIndex index;
+    private final Parser parser;
+    private final int prefetch;
+
+    /**
+     * @param pool the pool for decoding chunks in parallel, or {@code null} if recordings should be scanned serially
+     * @param cache the cache for keeping scanned tables in memory, or {@code null} if tables should not be cached
+     * @param index the columnar sidecar file of the recording, or {@code null} if there is none
+     */
+    public JfrScanOptions(@Nullable ForkJoinPool pool, @Nullable ColumnarTableCache cache, @Nullable JfrIndex index) {
+        this(pool, cache, index, Parser.JDK, 0);
+    }
+
+    /**
+     * @param pool the pool for decoding chunks in parallel, or {@code null} if recordings should be scanned serially
+     * @param cache the cache for keeping scanned tables in memory, or {@code null} if tables should not be cached
+     * @param index the columnar sidecar file of the recording, or {@code null} if there is none
+     * @param parser the backend for decoding events
+     * @param prefetch the number of row batches to decode ahead of the query on a separate thread, see
+     *        {@link PrefetchEnumerable}; 0 if rows should be decoded by the querying thread
+     */
+    public JfrScanOptions(@Nullable ForkJoinPool pool, @Nullable ColumnarTableCache cache, @Nullable JfrIndex index, Parser parser, int prefetch) {
+        this.pool = pool;
+        this.cache = cache;
+        this.index = index;
+        this.parser = parser;
+        this.prefetch = prefetch;
+    }
+
+    /**
+     * @param parallelism the number of chunks to decode concurrently when scanning multi-chunk recordings
+     * @param cacheSize the memory budget in bytes for keeping scanned tables in memory; 0 disables caching
+     * @param index the columnar sidecar file of the recording, or {@code null} if there is none
+     */
+    public static JfrScanOptions of(int parallelism, long cacheSize, @Nullable JfrIndex index) {
+        return new JfrScanOptions(getSharedPool(parallelism), cacheSize > 0 ? new ColumnarTableCache(cacheSize) : null, index);
+    }
+
+    /**
+     * Returns the pool for decoding with the given parallelism, or {@code null} if the parallelism is 1 or less. There
+     * is one pool per parallelism level, shared by all schemas, so that schemas don't need to shut down their pool when
+     * they are evicted from the schema cache or otherwise discarded. The pool's worker threads are daemon threads,
+     * which are terminated when they have been idle for a while.
+     */
+    public static @Nullable ForkJoinPool getSharedPool(int parallelism) {
+        return parallelism > 1 ? POOLS.computeIfAbsent(parallelism, ForkJoinPool::new) : null;
+    }
+
+    public @Nullable ForkJoinPool getPool() {
+        return pool;
+    }
+
+    public @Nullable ColumnarTableCache getCache() {
+        return cache;
+    }
+
+    public @Nullable JfrIndex getIndex() {
+        return index;
+    }
+
+    public Parser getParser() {
+        return parser;
+    }
+
+    public int getPrefetch() {
+        return prefetch;
+    }
+}
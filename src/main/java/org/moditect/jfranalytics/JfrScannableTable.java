@@ -15,30 +15,89 @@
  */
 package org.moditect.jfranalytics;
 
+import java.io.IOException;
+import java.nio.file.Files;
 import java.nio.file.Path;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.function.BooleanSupplier;
+import java.util.stream.Collectors;
 
 import org.apache.calcite.DataContext;
+import org.apache.calcite.linq4j.AbstractEnumerable;
 import org.apache.calcite.linq4j.Enumerable;
+import org.apache.calcite.linq4j.Enumerator;
+import org.apache.calcite.linq4j.Linq4j;
+import org.apache.calcite.plan.RelOptTable;
+import org.apache.calcite.rel.RelNode;
 import org.apache.calcite.rel.type.RelDataType;
 import org.apache.calcite.rel.type.RelDataTypeFactory;
-import org.apache.calcite.schema.ScannableTable;
+import org.apache.calcite.rex.RexNode;
+import org.apache.calcite.schema.Statistic;
+import org.apache.calcite.schema.Statistics;
 import org.apache.calcite.schema.impl.AbstractTable;
 import org.checkerframework.checker.nullness.qual.Nullable;
 
 import jdk.jfr.EventType;
+import jdk.jfr.ValueDescriptor;
+import jdk.jfr.consumer.RecordedEvent;
 
-public class JfrScannableTable extends AbstractTable implements ScannableTable {
+/**
+ * A table representing all the events of one JFR event type. Projections are pushed down into the scan, i.e. only
+ * the converters of those columns actually referenced by a query are evaluated for each event. Filters on the
+ * {@code startTime} column are used to skip those chunks of the recording which cannot contain any matching events,
+ * without copying or decoding them; the filters are still applied to the rows of the remaining chunks by Calcite. Depending on the given
+ * {@link JfrScanOptions}, the chunks of multi-chunk recordings are decoded in parallel, and the rows of a table are
+ * kept in memory after a first complete scan, so that subsequent scans are served from the {@link ColumnarTableCache};
+ * if chunks have been appended to the recording in the meantime, only those are decoded.
+ * If the recording has a {@link JfrIndex} sidecar file, scans are served from it rather than decoding the recording,
+ * unless they project columns which are not contained in the index. If the {@link JfrScanOptions.Parser#MAPPED} parser
+ * is selected, scans retrieving only primitive-typed columns are decoded by {@link MappedJfrEnumerator}. Serial scans
+ * can be decoded on a separate thread, ahead of the consuming query, see {@link PrefetchEnumerable}. Serial scans of the
+ * entire recording share a single pass over the recording with the other scans of the same statement, see
+ * {@link JfrScanCoordinator}.
+ */
+public class JfrScannableTable extends AbstractTable implements JfrEventTable {
 
     private final Path jfrFile;
     private final EventType eventType;
     private final RelDataType rowType;
     private final AttributeValueConverter[] converters;
+    private final JfrScanOptions options;
+    private final JfrEventCounts eventCounts;
+    private final JfrScanCoordinator scanCoordinator;
+    private final int startTimeIndex;
 
     public JfrScannableTable(Path jfrFile, EventType eventType, RelDataType rowType, AttributeValueConverter[] converters) {
+        this(jfrFile, eventType, rowType, converters, JfrScanOptions.DEFAULT);
+    }
+
+    public JfrScannableTable(Path jfrFile, EventType eventType, RelDataType rowType, AttributeValueConverter[] converters, JfrScanOptions options) {
+        this(jfrFile, eventType, rowType, converters, options, new JfrEventCounts(jfrFile));
+    }
+
+    private JfrScannableTable(Path jfrFile, EventType eventType, RelDataType rowType, AttributeValueConverter[] converters, JfrScanOptions options,
+                              JfrEventCounts eventCounts) {
+        this(jfrFile, eventType, rowType, converters, options, eventCounts, new JfrScanCoordinator(jfrFile, eventCounts));
+    }
+
+    /**
+     * @param eventCounts the event counts of the recording, shared by all its tables
+     * @param scanCoordinator the coordinator of the scans of the recording, shared by all its tables
+     */
+    public JfrScannableTable(Path jfrFile, EventType eventType, RelDataType rowType, AttributeValueConverter[] converters, JfrScanOptions options,
+                             JfrEventCounts eventCounts, JfrScanCoordinator scanCoordinator) {
         this.jfrFile = jfrFile;
         this.eventType = eventType;
         this.rowType = rowType;
         this.converters = converters;
+        this.options = options;
+        this.eventCounts = eventCounts;
+        this.scanCoordinator = scanCoordinator;
+        this.startTimeIndex = rowType.getFieldNames().indexOf("startTime");
     }
 
     @Override
@@ -46,8 +105,448 @@ public class JfrScannableTable extends AbstractTable implements ScannableTable {
         return rowType;
     }
 
+    RelDataType getRowType() {
+        return rowType;
+    }
+
+    EventType getEventType() {
+        return eventType;
+    }
+
+    AttributeValueConverter[] getConverters() {
+        return converters;
+    }
+
+    /**
+     * Returns the number of events of this table's type as its row count; reported as at least 1, so that the costs of
+     * alternative plans for scanning an empty table still differ. The count is taken from the index or the cache if
+     * they contain this table, and from the {@link JfrEventCounts} of the recording otherwise, which are estimated
+     * until a scan has read the entire recording.
+     */
     @Override
-    public Enumerable<@Nullable Object[]> scan(DataContext root) {
-        return new JfrEnumerable(jfrFile, eventType, converters);
+    public Statistic getStatistic() {
+        Long count = getRowCount();
+        return count != null ? Statistics.of(Math.max(count, 1), List.of()) : Statistics.UNKNOWN;
+    }
+
+    private @Nullable Long getRowCount() {
+        JfrIndex index = options.getIndex();
+        ColumnarTable indexed = index != null ? index.getTable(eventType.getName()) : null;
+        if (indexed != null) {
+            return (long) indexed.getRowCount();
+        }
+
+        ColumnarTableCache cache = options.getCache();
+        ColumnarTableCache.CachedTable cached = cache != null ? cache.get(jfrFile, eventType.getName()) : null;
+        if (cached != null) {
+            return (long) cached.getRowCount();
+        }
+
+        return eventCounts.getCount(eventType.getName());
+    }
+
+    @Override
+    public RelNode toRel(RelOptTable.ToRelContext context, RelOptTable relOptTable) {
+        return JfrTableScan.create(context.getCluster(), relOptTable, this);
+    }
+
+    @Override
+    public Enumerable<@Nullable Object[]> scan(DataContext root, List<RexNode> filters, int @Nullable [] projects, int fetch) {
+        return scan(StartTimeRange.fromFilters(filters, startTimeIndex, root), projects, fetch, root);
+    }
+
+    Enumerable<Object[]> scan(StartTimeRange range, int @Nullable [] projects) {
+        return scan(range, projects, -1);
+    }
+
+    /**
+     * Returns the given columns of all the events within the given {@code startTime} range. The range only is used
+     * for skipping chunks, i.e. the returned rows may contain events outside of that range. If the number of rows to
+     * be requested is limited, the recording is decoded serially, so that decoding ends once the last requested row
+     * has been returned, and the scan doesn't populate the cache.
+     */
+    Enumerable<Object[]> scan(StartTimeRange range, int @Nullable [] projects, int fetch) {
+        return scan(range, projects, fetch, null);
+    }
+
+    /**
+     * @param root the context of the statement executing the scan, or {@code null} if the scan isn't to share a pass
+     *        over the recording with other scans of the statement, see {@link JfrScanCoordinator}
+     */
+    private Enumerable<Object[]> scan(StartTimeRange range, int @Nullable [] projects, int fetch, @Nullable DataContext root) {
+        ColumnarTableCache cache = options.getCache();
+
+        if (cache != null) {
+            Enumerable<Object[]> cached = scanCached(cache, range, projects);
+            if (cached != null) {
+                return cached;
+            }
+        }
+
+        JfrIndex index = options.getIndex();
+        ColumnarTable indexed = index != null ? index.getTable(eventType.getName()) : null;
+
+        if (indexed != null && indexed.hasColumns(projects)) {
+            return indexed.scan(projects, range);
+        }
+
+        // only complete scans can populate the cache; a chunk still being written is decoded by each scan
+        if (cache != null && range.isUnbounded() && fetch == -1) {
+            List<JfrChunk> allChunks = JfrChunk.readChunks(jfrFile);
+            List<JfrChunk> chunks = JfrChunk.getFinishedChunks(allChunks);
+            Enumerable<Object[]> rows = scanChunks(allChunks, 0, chunks.size(), null, converters, options.getPool());
+
+            return withUnfinishedChunks(cache.populate(jfrFile, eventType.getName(), rowType, null, chunks, rows, projects), allChunks, chunks.size(),
+                    projects);
+        }
+
+        ForkJoinPool pool = fetch == -1 ? options.getPool() : null;
+        Enumerable<Object[]> mapped = scanMapped(range, projects, pool);
+        Enumerable<Object[]> rows = mapped != null ? mapped : scanRecording(range, getConverters(projects), pool, root);
+
+        // parallel scans decode on the pool already; limited scans shouldn't decode ahead
+        if (options.getPrefetch() > 0 && fetch == -1 && !(rows instanceof ParallelEnumerable)) {
+            return new PrefetchEnumerable(rows, options.getPrefetch());
+        }
+
+        return rows;
+    }
+
+    /**
+     * Serves the given scan from the cache, if it contains this table. If chunks have been appended to the recording
+     * since the table was cached, only these chunks are decoded, and their rows are added to the cached table. A chunk
+     * still being written is decoded by each scan, without caching its rows. Returns {@code null} if the table isn't
+     * cached or the recording has been changed otherwise.
+     */
+    private @Nullable Enumerable<Object[]> scanCached(ColumnarTableCache cache, StartTimeRange range, int @Nullable [] projects) {
+        ColumnarTableCache.CachedTable cached = cache.get(jfrFile, eventType.getName());
+
+        if (cached == null) {
+            return null;
+        }
+        else if (!Files.exists(jfrFile)) {
+            return cached.scan(projects, range);
+        }
+
+        List<JfrChunk> allChunks = JfrChunk.readChunks(jfrFile);
+        List<JfrChunk> chunks = JfrChunk.getFinishedChunks(allChunks);
+        if (!cached.getRowType().equals(rowType) || !cached.isPrefixOf(chunks)) {
+            return null;
+        }
+
+        List<JfrChunk> added = chunks.subList(cached.getChunks().size(), chunks.size());
+        if (added.isEmpty()) {
+            return withUnfinishedChunks(cached.scan(projects, range), allChunks, chunks.size(), projects);
+        }
+
+        added = List.copyOf(added);
+        Enumerable<Object[]> addedRows = cache.populate(jfrFile, eventType.getName(), rowType, cached, added,
+                scanChunks(allChunks, cached.getChunks().size(), chunks.size(), null, converters, options.getPool()), projects);
+
+        return withUnfinishedChunks(Linq4j.concat(List.of(cached.scan(projects, range), addedRows)), allChunks, chunks.size(), projects);
+    }
+
+    /**
+     * Appends the rows of the chunks following the given number of finished chunks, i.e. of the chunk still being
+     * written, if any. As that chunk may still grow, its rows aren't cached.
+     */
+    private Enumerable<Object[]> withUnfinishedChunks(Enumerable<Object[]> rows, List<JfrChunk> allChunks, int finished, int @Nullable [] projects) {
+        if (finished == allChunks.size()) {
+            return rows;
+        }
+
+        return Linq4j.concat(List.of(rows, scanChunks(allChunks, finished, allChunks.size(), null, getConverters(projects), null)));
+    }
+
+    /**
+     * @param pool the pool for decoding chunks in parallel, or {@code null} if the recording is to be decoded serially
+     * @param root the context of the statement executing the scan, if the scan may share a pass over the recording
+     */
+    private Enumerable<Object[]> scanRecording(StartTimeRange range, AttributeValueConverter[] projectedConverters, @Nullable ForkJoinPool pool,
+                                               @Nullable DataContext root) {
+        if (range.isUnbounded() && pool == null) {
+            return root != null
+                    ? scanCoordinator.scan(root, eventType, projectedConverters)
+                    : new JfrEnumerable(jfrFile, null, eventType, projectedConverters);
+        }
+
+        // only the chunks following the lower bound can match, as it is a lower bound of the chunks' end times, too
+        List<JfrChunk> allChunks = JfrChunk.readChunks(jfrFile);
+        int from = 0;
+        while (from < allChunks.size() && !range.mayMatch(allChunks.get(from))) {
+            from++;
+        }
+
+        Instant startTime = !range.isUnbounded() ? Instant.ofEpochMilli(range.getLowerBound() - JfrSchema.LOCAL_OFFSET) : null;
+        return scanChunks(allChunks, from, allChunks.size(), startTime, projectedConverters, pool);
+    }
+
+    /**
+     * Scans the given columns using {@link MappedJfrEnumerator}, if the mapped parser is selected and supports the
+     * columns and the chunks of the recording. Returns {@code null} otherwise.
+     *
+     * @param pool the pool for decoding chunks in parallel, or {@code null} if the recording is to be decoded serially
+     */
+    private @Nullable Enumerable<Object[]> scanMapped(StartTimeRange range, int @Nullable [] projects, @Nullable ForkJoinPool pool) {
+        if (options.getParser() != JfrScanOptions.Parser.MAPPED) {
+            return null;
+        }
+
+        List<String> names = rowType.getFieldNames();
+        ValueDescriptor[] columns = new ValueDescriptor[projects != null ? projects.length : names.size()];
+
+        for (int i = 0; i < columns.length; i++) {
+            columns[i] = eventType.getField(names.get(projects != null ? projects[i] : i));
+            if (columns[i] == null || !MappedJfrEnumerator.isSupported(columns[i])) {
+                return null;
+            }
+        }
+
+        List<JfrChunk> allChunks = JfrChunk.readChunks(jfrFile);
+        if (!MappedChunk.canMap(allChunks)) {
+            return null;
+        }
+
+        List<JfrChunk> chunks = allChunks.stream()
+                .filter(range::mayMatch)
+                .collect(Collectors.toList());
+
+        if (chunks.isEmpty()) {
+            return Linq4j.emptyEnumerable();
+        }
+        else if (pool != null && chunks.size() > 1) {
+            List<Enumerable<Object[]>> parts = chunks.stream()
+                    .map(chunk -> (Enumerable<Object[]>) new MappedJfrEnumerable(List.of(chunk), eventType.getName(), columns))
+                    .collect(Collectors.toList());
+
+            return new ParallelEnumerable(parts, pool);
+        }
+        else {
+            return new MappedJfrEnumerable(chunks, eventType.getName(), columns);
+        }
+    }
+
+    /**
+     * Scans the events of the given range of chunks, i.e. those ending between the start of the first of these chunks
+     * and the start of the chunk following them, see {@link JfrRangeEnumerator.Bounds#ofChunks(List, int, int)}.
+     *
+     * @param allChunks all the chunks of the recording
+     * @param from the index of the first chunk to scan
+     * @param to the index following the last chunk to scan
+     * @param startTime the instant before which events may be skipped, if any
+     * @param pool the pool for decoding chunks in parallel, or {@code null} if the chunks are to be decoded serially
+     */
+    private Enumerable<Object[]> scanChunks(List<JfrChunk> allChunks, int from, int to, @Nullable Instant startTime, AttributeValueConverter[] projectedConverters,
+                                            @Nullable ForkJoinPool pool) {
+        List<Enumerable<Object[]>> parts = new ArrayList<>();
+
+        for (ChunkRange chunkRange : getChunkRanges(allChunks, from, to, startTime, pool != null ? pool.getParallelism() : 1)) {
+            if (chunkRange.copied() != null || chunkRange.bounds().isUnbounded()) {
+                parts.add(new JfrEnumerable(jfrFile, chunkRange.copied(), chunkRange.bounds(), eventType, projectedConverters));
+            }
+            else {
+                parts.add(new AbstractEnumerable<>() {
+
+                    @Override
+                    public Enumerator<Object[]> enumerator() {
+                        return new JfrRangeEnumerator(jfrFile, chunkRange.bounds(), eventType, projectedConverters);
+                    }
+                });
+            }
+        }
+
+        if (parts.isEmpty()) {
+            return Linq4j.emptyEnumerable();
+        }
+        else if (parts.size() == 1) {
+            return parts.get(0);
+        }
+
+        return pool != null ? new ParallelEnumerable(parts, pool) : Linq4j.concat(parts);
+    }
+
+    /**
+     * Splits the given range of chunks into up to the given number of parts of adjacent chunks, which are read in place.
+     * Chunks which are still being written can't be read in place, as the stream would wait for them to be completed;
+     * these, and the preceding chunk, whose stream would read them, are read from a copy instead. An entire recording
+     * scanned as one part is read by a {@link jdk.jfr.consumer.RecordingFile}, which can read chunks being written in place.
+     */
+    private static List<ChunkRange> getChunkRanges(List<JfrChunk> allChunks, int from, int to, @Nullable Instant startTime, int parts) {
+        if (from == 0 && to == allChunks.size() && startTime == null && parts == 1) {
+            return List.of(new ChunkRange(JfrRangeEnumerator.Bounds.UNBOUNDED, null));
+        }
+
+        // an in-place range also reads the chunk following it
+        int finished = JfrChunk.getFinishedChunks(allChunks).size();
+        int inPlaceTo = finished > to || finished == allChunks.size() ? to : Math.max(from, finished - 1);
+
+        List<ChunkRange> ranges = new ArrayList<>();
+        int count = Math.min(parts, inPlaceTo - from);
+
+        for (int i = 0; i < count; i++) {
+            int start = from + (inPlaceTo - from) * i / count;
+            int end = from + (inPlaceTo - from) * (i + 1) / count;
+            ranges.add(new ChunkRange(JfrRangeEnumerator.Bounds.ofChunks(allChunks, start, end).withLowerBound(startTime), null));
+        }
+
+        if (inPlaceTo < to) {
+            List<JfrChunk> copied = List.copyOf(allChunks.subList(inPlaceTo, Math.min(to + 1, allChunks.size())));
+            ranges.add(new ChunkRange(JfrRangeEnumerator.Bounds.ofChunks(allChunks, inPlaceTo, to).withLowerBound(startTime), copied));
+        }
+
+        return ranges;
+    }
+
+    /**
+     * Aggregates all the events of this table, without creating a row for each event, unless the table is served from
+     * the cache or the index. The returned rows are made up of the group values, followed by the aggregates. The
+     * aggregation is evaluated once per statement, upon the first enumeration; serial aggregations decoding the
+     * recording share a pass with the other scans of the statement, see {@link JfrScanCoordinator}.
+     *
+     * @param groupColumns the columns to group by
+     * @param functions the names of the aggregate functions, see {@link ScanAggregator}
+     * @param argumentColumns the argument column of each aggregate function, -1 for {@code COUNT(*)}
+     * @param types the SQL type names of the results of the aggregate functions
+     */
+    public Enumerable<Object[]> aggregate(DataContext root, int[] groupColumns, String[] functions, int[] argumentColumns, String[] types) {
+        // the columns to retrieve: the group columns, followed by the distinct argument columns
+        List<Integer> columns = new ArrayList<>();
+        for (int column : groupColumns) {
+            columns.add(column);
+        }
+
+        int[] arguments = new int[argumentColumns.length];
+        for (int i = 0; i < argumentColumns.length; i++) {
+            if (argumentColumns[i] == -1) {
+                arguments[i] = -1;
+            }
+            else {
+                int position = columns.subList(groupColumns.length, columns.size()).indexOf(argumentColumns[i]);
+                if (position == -1) {
+                    columns.add(argumentColumns[i]);
+                    arguments[i] = columns.size() - 1;
+                }
+                else {
+                    arguments[i] = groupColumns.length + position;
+                }
+            }
+        }
+
+        int[] projects = columns.stream().mapToInt(Integer::intValue).toArray();
+
+        JfrIndex index = options.getIndex();
+        ColumnarTable indexed = index != null ? index.getTable(eventType.getName()) : null;
+
+        // serial aggregations decoding the recording share a pass with the other scans of the statement
+        ScanAggregator sharedAggregator = new ScanAggregator(groupColumns.length, functions, arguments);
+        BooleanSupplier shared = options.getCache() == null && options.getPool() == null && options.getParser() == JfrScanOptions.Parser.JDK
+                && !(indexed != null && indexed.hasColumns(projects))
+                        ? scanCoordinator.aggregate(root, eventType, getConverters(projects), sharedAggregator)
+                        : null;
+
+        return new AbstractEnumerable<>() {
+
+            private @Nullable List<Object[]> rows;
+
+            @Override
+            public synchronized Enumerator<Object[]> enumerator() {
+                // evaluated once per statement, e.g. when joining a scalar sub-query with each row of the outer query
+                if (rows == null) {
+                    ScanAggregator aggregator = shared != null && shared.getAsBoolean()
+                            ? sharedAggregator
+                            : aggregateInto(projects, new ScanAggregator(groupColumns.length, functions, arguments));
+
+                    rows = aggregator.getRows(types);
+                }
+
+                return Linq4j.enumerator(rows);
+            }
+        };
+    }
+
+    private ScanAggregator aggregateInto(int[] projects, ScanAggregator aggregator) {
+        JfrIndex index = options.getIndex();
+        ColumnarTable indexed = index != null ? index.getTable(eventType.getName()) : null;
+
+        // the columnar representations are cheap to scan; this also populates the cache upon the first scan
+        Enumerable<Object[]> scanned = options.getCache() != null || (indexed != null && indexed.hasColumns(projects))
+                ? scan(StartTimeRange.UNBOUNDED, projects)
+                : scanMapped(StartTimeRange.UNBOUNDED, projects, options.getPool());
+
+        if (scanned != null) {
+            try (Enumerator<Object[]> rows = scanned.enumerator()) {
+                while (rows.moveNext()) {
+                    aggregator.add(rows.current());
+                }
+            }
+
+            return aggregator;
+        }
+
+        AttributeValueConverter[] projectedConverters = getConverters(projects);
+        ForkJoinPool pool = options.getPool();
+        List<JfrChunk> chunks = JfrChunk.readChunks(jfrFile);
+        List<ChunkRange> chunkRanges = getChunkRanges(chunks, 0, chunks.size(), null, pool != null ? pool.getParallelism() : 1);
+
+        if (chunkRanges.size() > 1 && pool != null) {
+            List<ForkJoinTask<ScanAggregator>> parts = chunkRanges.stream()
+                    .map(chunkRange -> pool.submit(() -> aggregateEvents(chunkRange, projectedConverters, aggregator.copy())))
+                    .collect(Collectors.toList());
+
+            for (ForkJoinTask<ScanAggregator> part : parts) {
+                aggregator.merge(part.join());
+            }
+
+            return aggregator;
+        }
+
+        for (ChunkRange chunkRange : chunkRanges) {
+            aggregateEvents(chunkRange, projectedConverters, aggregator);
+        }
+
+        return aggregator;
+    }
+
+    private ScanAggregator aggregateEvents(ChunkRange chunkRange, AttributeValueConverter[] projectedConverters, ScanAggregator aggregator) {
+        if (chunkRange.copied() == null && !chunkRange.bounds().isUnbounded()) {
+            JfrRangeEnumerator.forEachEvent(jfrFile, chunkRange.bounds(), eventType.getName(), event -> aggregator.add(event, projectedConverters));
+            return aggregator;
+        }
+
+        JfrEnumerator enumerator = new JfrEnumerator(jfrFile, chunkRange.copied(), chunkRange.bounds(), eventType, projectedConverters);
+
+        try {
+            RecordedEvent event;
+            while ((event = enumerator.nextEvent()) != null) {
+                aggregator.add(event, projectedConverters);
+            }
+        }
+        catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+        finally {
+            enumerator.close();
+        }
+
+        return aggregator;
+    }
+
+    private AttributeValueConverter[] getConverters(int @Nullable [] projects) {
+        if (projects == null) {
+            return converters;
+        }
+
+        AttributeValueConverter[] projected = new AttributeValueConverter[projects.length];
+        for (int i = 0; i < projects.length; i++) {
+            projected[i] = converters[projects[i]];
+        }
+
+        return projected;
+    }
+
+    /**
+     * A range of adjacent chunks, read in place or, if they are still being written, from a copy of the given chunks.
+     */
+    private record ChunkRange(JfrRangeEnumerator.Bounds bounds, @Nullable List<JfrChunk> copied) {
     }
 }
@@ -25,10 +25,13 @@ import java.util.Arrays;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
 import java.util.TimeZone;
+import java.util.TreeMap;
+import java.util.concurrent.ForkJoinPool;
 
 import org.apache.calcite.jdbc.JavaTypeFactoryImpl;
 import org.apache.calcite.linq4j.tree.Expression;
@@ -42,60 +45,108 @@ import org.apache.calcite.schema.SchemaVersion;
 import org.apache.calcite.schema.Schemas;
 import org.apache.calcite.schema.Table;
 import org.checkerframework.checker.nullness.qual.Nullable;
+import org.moditect.jfranalytics.AttributeValueConverter.LongValueConverter;
 
 import jdk.jfr.EventType;
 import jdk.jfr.Timespan;
 import jdk.jfr.ValueDescriptor;
-import jdk.jfr.consumer.*;
-import jdk.jfr.consumer.EventStream;
+import jdk.jfr.consumer.RecordedClass;
 import jdk.jfr.consumer.RecordedClassLoader;
 import jdk.jfr.consumer.RecordedStackTrace;
+import jdk.jfr.consumer.RecordingFile;
 
 public class JfrSchema implements Schema {
 
     private static final System.Logger LOGGER = System.getLogger(JfrSchema.class.getName());
-    private static final int LOCAL_OFFSET = TimeZone.getDefault().getOffset(System.currentTimeMillis());
+    static final int LOCAL_OFFSET = TimeZone.getDefault().getOffset(System.currentTimeMillis());
 
-    private final Map<String, JfrScannableTable> tableTypes;
+    private final Map<String, Table> tableTypes;
 
     public JfrSchema(Path jfrFile) {
-        this.tableTypes = Collections.unmodifiableMap(getTableTypes(jfrFile));
+        this(jfrFile, JfrScanOptions.DEFAULT);
     }
 
-    private static Map<String, JfrScannableTable> getTableTypes(Path jfrFile) {
-        try (var es = EventStream.openFile(jfrFile)) {
+    public JfrSchema(Path jfrFile, JfrScanOptions options) {
+        Map<String, Table> tableTypes = new HashMap<>(getTableTypes(jfrFile, options));
+        tableTypes.put(JfrThreadsTable.TABLE_NAME, new JfrThreadsTable(jfrFile));
+
+        this.tableTypes = Collections.unmodifiableMap(tableTypes);
+    }
+
+    /**
+     * Creates a schema over several recordings, exposing each event type as one {@link JfrMultiRecordingTable}.
+     *
+     * @param jfrFiles the recordings, keyed by the name to expose in the
+     *        {@value JfrMultiRecordingTable#SOURCE_FILE_COLUMN} column
+     * @param options the options for scanning the individual recordings
+     * @param pool the pool for scanning recordings in parallel, or {@code null} if they should be scanned serially
+     */
+    public JfrSchema(Map<String, Path> jfrFiles, Map<String, JfrScanOptions> options, @Nullable ForkJoinPool pool) {
+        Map<String, Map<String, JfrScannableTable>> tablesByEventType = new TreeMap<>();
+
+        for (Map.Entry<String, Path> jfrFile : jfrFiles.entrySet()) {
+            for (Map.Entry<String, JfrScannableTable> table : getTableTypes(jfrFile.getValue(), options.get(jfrFile.getKey())).entrySet()) {
+                tablesByEventType.computeIfAbsent(table.getKey(), k -> new LinkedHashMap<>()).put(jfrFile.getKey(), table.getValue());
+            }
+        }
+
+        RelDataTypeFactory typeFactory = new JavaTypeFactoryImpl();
+        Map<String, Table> tableTypes = new HashMap<>();
+        tablesByEventType.forEach((name, tables) -> tableTypes.put(name, new JfrMultiRecordingTable(tables, typeFactory, pool)));
+
+        this.tableTypes = Collections.unmodifiableMap(tableTypes);
+    }
+
+    /**
+     * Creates a schema over a live event stream, exposing each event type as one {@link JfrStreamableTable}.
+     *
+     * @param source the source of the events
+     * @param queueSize the maximum number of events buffered per query
+     * @param allowedLateness how long events are held back for ordering them by their start time
+     */
+    public JfrSchema(JfrStreamSource source, int queueSize, Duration allowedLateness) {
+        RelDataTypeFactory typeFactory = new JavaTypeFactoryImpl();
+        Map<String, Table> tableTypes = new HashMap<>();
+
+        for (EventType eventType : source.getEventTypes()) {
+            if (!tableTypes.containsKey(eventType.getName())) {
+                List<AttributeValueConverter> converters = new ArrayList<>();
+                RelDataType rowType = getRowType(eventType, typeFactory, converters);
+
+                tableTypes.put(eventType.getName(),
+                        new JfrStreamableTable(source, eventType, rowType, converters.toArray(new AttributeValueConverter[0]), queueSize,
+                                allowedLateness));
+            }
+        }
+
+        this.tableTypes = Collections.unmodifiableMap(tableTypes);
+    }
+
+    /**
+     * Determines the tables of the schema from the event types of the given recording. Only the chunk headers and
+     * metadata events of the recording are read for that, i.e. the cost of this doesn't depend on the number of events.
+     * The events are counted lazily, by estimating their numbers when planning the first query, see
+     * {@link JfrEventCounts}. The tables of the
+     * recording share one {@link JfrScanCoordinator}, so that the scans of several tables by one statement can be
+     * served by a single pass over the recording.
+     */
+    private static Map<String, JfrScannableTable> getTableTypes(Path jfrFile, JfrScanOptions options) {
+        try (var recordingFile = new RecordingFile(jfrFile)) {
             RelDataTypeFactory typeFactory = new JavaTypeFactoryImpl();
+            JfrEventCounts eventCounts = new JfrEventCounts(jfrFile);
+            JfrScanCoordinator scanCoordinator = new JfrScanCoordinator(jfrFile, eventCounts);
             Map<String, JfrScannableTable> tableTypes = new HashMap<>();
 
-            es.onMetadata(event -> {
-                for (EventType eventType : event.getEventTypes()) {
-                    if (!tableTypes.containsKey(eventType.getName())) {
-                        RelDataTypeFactory.Builder builder = new RelDataTypeFactory.Builder(typeFactory);
-                        List<AttributeValueConverter> converters = new ArrayList<>();
-
-                        for (ValueDescriptor field : eventType.getFields()) {
-                            RelDataType type = getRelDataType(eventType, field, typeFactory);
-                            if (type == null) {
-                                continue;
-                            }
-
-                            if (type.getSqlTypeName().toString().equals("ROW")) {
-                                builder.add(field.getName(), type).nullable(true);
-                            }
-                            else {
-                                builder.add(field.getName(), type.getSqlTypeName()).nullable(true);
-                            }
-
-                            converters.add(getConverter(field, type));
-                        }
-
-                        tableTypes.put(eventType.getName(),
-                                new JfrScannableTable(jfrFile, eventType, builder.build(), converters.toArray(new AttributeValueConverter[0])));
-                    }
-                }
-            });
+            for (EventType eventType : recordingFile.readEventTypes()) {
+                if (!tableTypes.containsKey(eventType.getName())) {
+                    List<AttributeValueConverter> converters = new ArrayList<>();
+                    RelDataType rowType = getRowType(eventType, typeFactory, converters);
 
-            es.start();
+                    tableTypes.put(eventType.getName(),
+                            new JfrScannableTable(jfrFile, eventType, rowType, converters.toArray(new AttributeValueConverter[0]), options, eventCounts,
+                                    scanCoordinator));
+                }
+            }
 
             return tableTypes;
         }
@@ -104,6 +155,32 @@ public class JfrSchema implements Schema {
         }
     }
 
+    /**
+     * Returns the row type for the given event type, adding the converters for the individual columns to the given
+     * list.
+     */
+    private static RelDataType getRowType(EventType eventType, RelDataTypeFactory typeFactory, List<AttributeValueConverter> converters) {
+        RelDataTypeFactory.Builder builder = new RelDataTypeFactory.Builder(typeFactory);
+
+        for (ValueDescriptor field : eventType.getFields()) {
+            RelDataType type = getRelDataType(eventType, field, typeFactory);
+            if (type == null) {
+                continue;
+            }
+
+            if (type.getSqlTypeName().toString().equals("ROW")) {
+                builder.add(field.getName(), type).nullable(true);
+            }
+            else {
+                builder.add(field.getName(), type.getSqlTypeName()).nullable(true);
+            }
+
+            converters.add(getConverter(field, type));
+        }
+
+        return builder.build();
+    }
+
     private static RelDataType getRelDataType(EventType eventType, ValueDescriptor field, RelDataTypeFactory typeFactory) {
         RelDataType type;
         switch (field.getTypeName()) {
@@ -166,10 +243,10 @@ public class JfrSchema implements Schema {
 
         // timestamps are adjusted by Calcite using local TZ offset; account for that
         if (field.getName().equals("startTime")) {
-            return event -> event.getStartTime().toEpochMilli() + LOCAL_OFFSET;
+            return (LongValueConverter) event -> event.getStartTime().toEpochMilli() + LOCAL_OFFSET;
         }
         else if (field.getName().equals("duration")) {
-            return event -> event.getDuration().toNanos();
+            return (LongValueConverter) event -> toNanos(event.getDuration());
         }
         else if (field.getName().equals("stackTrace")) {
             return event -> event.getStackTrace();
@@ -196,32 +273,77 @@ public class JfrSchema implements Schema {
             };
         }
         else if (field.getTypeName().equals("java.lang.Thread")) {
-            return event -> {
-                RecordedThread recordedThread = (RecordedThread) event.getValue(field.getName());
-                return new Object[]{
-                        recordedThread.getOSName(),
-                        recordedThread.getOSThreadId(),
-                        recordedThread.getJavaName(),
-                        recordedThread.getJavaThreadId(),
-                        recordedThread.getThreadGroup() != null ? recordedThread.getThreadGroup().getName() : null,
-                };
-            };
+            return new ThreadStructConverter(field.getName());
         }
         // 3. further special cases
         else if (field.getAnnotation(Timespan.class) != null) {
-            return event -> {
-                Duration duration = event.getDuration(field.getName());
-                // Long.MIN_VALUE is used as a sentinel value for absent values e.g. for jdk.GCConfiguration.pauseTarget
-                // TODO: handle nanos value overflow
-                return duration.getSeconds() == Long.MIN_VALUE ? Long.MIN_VALUE : duration.toNanos();
-            };
+            return getTimespanConverter(field);
         }
-        // 4. default pass-through
+        // 4. default pass-through; the parser keeps the values of primitive attributes boxed already
         else {
             return event -> event.getValue(field.getName());
         }
     }
 
+    /**
+     * Returns a converter for a timespan attribute, returning its value in nanoseconds. Unless the value is given in
+     * ticks, whose frequency is only known to the JFR parser, the raw value is converted directly, without going
+     * through {@link Duration}.
+     */
+    private static LongValueConverter getTimespanConverter(ValueDescriptor field) {
+        long nanosPerUnit = getNanosPerUnit(field);
+
+        if (nanosPerUnit == -1) {
+            return event -> toNanos(event.getDuration(field.getName()));
+        }
+
+        return event -> toNanos(event.getLong(field.getName()), nanosPerUnit);
+    }
+
+    /**
+     * Returns the number of nanoseconds per unit of the given timespan attribute, or -1 if it is given in ticks.
+     */
+    static long getNanosPerUnit(ValueDescriptor field) {
+        switch (field.getAnnotation(Timespan.class).value()) {
+            case Timespan.NANOSECONDS:
+                return 1;
+            case Timespan.MICROSECONDS:
+                return 1_000;
+            case Timespan.MILLISECONDS:
+                return 1_000_000;
+            case Timespan.SECONDS:
+                return 1_000_000_000;
+            default:
+                return -1;
+        }
+    }
+
+    /**
+     * Converts the given raw timespan value into nanoseconds. Long.MIN_VALUE and Long.MAX_VALUE, used as sentinel
+     * values for absent and infinite timespans (e.g. for jdk.GCConfiguration.pauseTarget), are passed on as-is.
+     */
+    static long toNanos(long value, long nanosPerUnit) {
+        if (value == Long.MIN_VALUE || value == Long.MAX_VALUE) {
+            return value;
+        }
+
+        long nanos = value * nanosPerUnit;
+        return nanos / nanosPerUnit == value ? nanos : (value < 0 ? Long.MIN_VALUE : Long.MAX_VALUE);
+    }
+
+    private static long toNanos(Duration duration) {
+        if (duration.getSeconds() == Long.MIN_VALUE) {
+            return Long.MIN_VALUE;
+        }
+
+        try {
+            return duration.toNanos();
+        }
+        catch (ArithmeticException e) {
+            return duration.isNegative() ? Long.MIN_VALUE : Long.MAX_VALUE;
+        }
+    }
+
     @Override
     public @Nullable Table getTable(String name) {
         return tableTypes.get(name);
@@ -251,7 +373,10 @@ public class JfrSchema implements Schema {
             return Collections.singleton(TruncateStackTraceFunction.INSTANCE);
         }
         else if (name.equals("HAS_MATCHING_FRAME")) {
-            return Collections.singleton(HasMatchingFrameFunction.INSTANCE);
+            return Collections.unmodifiableList(HasMatchingFrameFunction.INSTANCES);
+        }
+        else if (name.equals("FLAMEGRAPH")) {
+            return Collections.unmodifiableList(FlameGraphFunction.INSTANCES);
         }
 
         return Collections.emptySet();
@@ -259,7 +384,7 @@ public class JfrSchema implements Schema {
 
     @Override
     public Set<String> getFunctionNames() {
-        return Set.of("CLASS_NAME", "TRUNCATE_STACKTRACE", "HAS_MATCHING_FRAME");
+        return Set.of("CLASS_NAME", "TRUNCATE_STACKTRACE", "HAS_MATCHING_FRAME", "FLAMEGRAPH");
     }
 
     @Override
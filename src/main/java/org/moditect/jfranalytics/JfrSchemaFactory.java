@@ -16,16 +16,59 @@
 package org.moditect.jfranalytics;
 
 import java.io.File;
+import java.io.IOException;
 import java.nio.file.Files;
 import java.nio.file.Path;
+import java.nio.file.PathMatcher;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.time.Duration;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
 import java.util.Map;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
 
 import org.apache.calcite.schema.Schema;
 import org.apache.calcite.schema.SchemaFactory;
 import org.apache.calcite.schema.SchemaPlus;
+import org.checkerframework.checker.nullness.qual.Nullable;
 
+/**
+ * Creates {@link JfrSchema}s for the JFR file given via the {@code file} operand, or for all the JFR files within the
+ * directory given via the {@code directory} operand. In the latter case, the files to include can be selected using a
+ * glob pattern, relative to the directory, via the {@code glob} operand (defaults to {@value #DEFAULT_GLOB}).
+ * <p>
+ * Schemas are cached across connections, keyed by the absolute path of the file or directory and the given operands,
+ * so repeated connections to the same recordings don't need to read their metadata again. A cached schema gets
+ * replaced when the set of files or the size or last modification time of any file have changed. The cache keeps at most
+ * {@code jfranalytics.schemaCacheSize} schemas (system property, defaults to {@value #DEFAULT_SCHEMA_CACHE_SIZE}),
+ * evicting the least recently used ones; a size of 0 disables caching.
+ * <p>
+ * If there is a valid {@link JfrIndex} sidecar file next to the recording, it is used for serving scans.
+ * <p>
+ * Via the {@code parser} operand, the backend for decoding events can be chosen: "jdk" (the default) for decoding all
+ * events using {@link jdk.jfr.consumer.RecordingFile}, or "mapped" for decoding scans of primitive-typed columns
+ * directly from the memory-mapped recording, see {@link MappedJfrEnumerator}. Via the {@code prefetch} operand, the
+ * events of serial scans can be decoded on a separate thread, ahead of the query, see {@link PrefetchEnumerable}.
+ * <p>
+ * Alternatively, a schema over a live event stream can be created via the {@code stream} operand, which is either
+ * "local" for the events of the current JVM, or the path of the JFR repository of a running JVM; see
+ * {@link JfrStreamSource}.
+ */
 public class JfrSchemaFactory implements SchemaFactory {
 
+    public static final String SCHEMA_CACHE_SIZE_PROPERTY = "jfranalytics.schemaCacheSize";
+    private static final int DEFAULT_SCHEMA_CACHE_SIZE = 16;
+    private static final String DEFAULT_GLOB = "**.jfr";
+    private static final String LOCAL_STREAM = "local";
+    private static final int DEFAULT_QUEUE_SIZE = 10_000;
+    private static final int DEFAULT_ALLOWED_LATENESS_MS = 1_000;
+
+    private static final LruCache<SchemaKey, CachedSchema> SCHEMA_CACHE = new LruCache<>(
+            Integer.getInteger(SCHEMA_CACHE_SIZE_PROPERTY, DEFAULT_SCHEMA_CACHE_SIZE));
+
     public static final String INLINE_MODEL = """
             inline: {
               version: '1.0',
@@ -53,16 +96,200 @@ public class JfrSchemaFactory implements SchemaFactory {
     @Override
     public Schema create(SchemaPlus parentSchema, String name, Map<String, Object> operand) {
         String file = (String) operand.get("file");
-        if (file == null) {
-            throw new IllegalArgumentException("Please specify a JFR file name via the 'file' operand");
+        String directory = (String) operand.get("directory");
+        String stream = (String) operand.get("stream");
+
+        if (file == null && directory == null && stream == null) {
+            throw new IllegalArgumentException(
+                    "Please specify a JFR file name via the 'file' operand, a directory via the 'directory' operand, or an event stream via the 'stream' operand");
+        }
+        if ((file != null ? 1 : 0) + (directory != null ? 1 : 0) + (stream != null ? 1 : 0) > 1) {
+            throw new IllegalArgumentException("Only one of the 'file', 'directory', and 'stream' operands may be specified");
+        }
+        if (stream != null) {
+            return createStreamingSchema(stream, operand);
+        }
+
+        Path path = new File(file != null ? file : directory).toPath().toAbsolutePath();
+        List<Path> jfrFiles;
+
+        if (file != null) {
+            if (!Files.exists(path)) {
+                throw new IllegalArgumentException("Given JFR file doesn't exist: " + path);
+            }
+            jfrFiles = List.of(path);
+        }
+        else {
+            if (!Files.isDirectory(path)) {
+                throw new IllegalArgumentException("Given directory doesn't exist: " + path);
+            }
+
+            String glob = (String) operand.getOrDefault("glob", DEFAULT_GLOB);
+            jfrFiles = findRecordings(path, glob);
+            if (jfrFiles.isEmpty()) {
+                throw new IllegalArgumentException("Given directory doesn't contain any JFR files matching '" + glob + "': " + path);
+            }
+        }
+
+        List<FileState> fileStates = jfrFiles.stream()
+                .map(FileState::of)
+                .collect(Collectors.toList());
+        SchemaKey key = new SchemaKey(path, new HashMap<>(operand));
+        CachedSchema cached = SCHEMA_CACHE.get(key);
+
+        if (cached != null && cached.files().equals(fileStates)) {
+            return cached.schema();
         }
 
-        Path jfrFile = new File(file).toPath().toAbsolutePath();
-        if (!Files.exists(jfrFile)) {
-            throw new IllegalArgumentException("Given JFR file doesn't exist: " + jfrFile);
+        int parallelism = getIntOperand(operand, "parallelism", 1);
+        JfrScanOptions.Parser parser = getParserOperand(operand);
+        int prefetch = getIntOperand(operand, "prefetch", 0);
+        ColumnarTableCache tableCache = getTableCache(cached, getIntOperand(operand, "cacheSize", 0) * 1024L * 1024L, jfrFiles);
+        JfrSchema schema;
+
+        if (file != null) {
+            schema = new JfrSchema(path, new JfrScanOptions(JfrScanOptions.getSharedPool(parallelism), tableCache, JfrIndex.open(path), parser, prefetch));
+        }
+        else {
+            Map<String, Path> recordings = new LinkedHashMap<>();
+            Map<String, JfrScanOptions> options = new HashMap<>();
+
+            for (Path jfrFile : jfrFiles) {
+                String sourceFile = path.relativize(jfrFile).toString();
+                recordings.put(sourceFile, jfrFile);
+                options.put(sourceFile, new JfrScanOptions(null, tableCache, JfrIndex.open(jfrFile), parser, prefetch));
+            }
+
+            schema = new JfrSchema(recordings, options, JfrScanOptions.getSharedPool(parallelism));
         }
 
-        return new JfrSchema(jfrFile);
+        SCHEMA_CACHE.put(key, new CachedSchema(schema, fileStates, tableCache));
+
+        return schema;
     }
 
+    /**
+     * Returns the table cache of the given outdated schema, so that the rows of recordings which only have been
+     * appended to don't need to be decoded again, or a new cache if there is no such schema.
+     */
+    private static @Nullable ColumnarTableCache getTableCache(@Nullable CachedSchema outdated, long cacheSize, List<Path> jfrFiles) {
+        if (cacheSize <= 0) {
+            return null;
+        }
+        else if (outdated == null || outdated.tableCache() == null) {
+            return new ColumnarTableCache(cacheSize);
+        }
+
+        outdated.tableCache().retainFiles(jfrFiles);
+        return outdated.tableCache();
+    }
+
+    /**
+     * Creates a schema over the event stream of the current JVM (if the {@code stream} operand is "local") or over the
+     * JFR repository with the given path. Such schemas are not cached, as their event types may change over time.
+     */
+    private static Schema createStreamingSchema(String stream, Map<String, Object> operand) {
+        JfrStreamSource source;
+
+        if (stream.equals(LOCAL_STREAM)) {
+            source = JfrStreamSource.local((String) operand.get("settings"));
+        }
+        else {
+            Path repository = new File(stream).toPath().toAbsolutePath();
+            if (!Files.isDirectory(repository)) {
+                throw new IllegalArgumentException("Given JFR repository doesn't exist: " + repository);
+            }
+            source = JfrStreamSource.repository(repository);
+        }
+
+        return new JfrSchema(source, getIntOperand(operand, "queueSize", DEFAULT_QUEUE_SIZE),
+                Duration.ofMillis(getIntOperand(operand, "allowedLateness", DEFAULT_ALLOWED_LATENESS_MS)));
+    }
+
+    /**
+     * Removes all schemas from the cache.
+     */
+    public static void clearSchemaCache() {
+        SCHEMA_CACHE.clear();
+    }
+
+    /**
+     * Returns the files within the given directory and its sub-directories whose relative path matches the given glob
+     * pattern, ordered by path.
+     */
+    private static List<Path> findRecordings(Path directory, String glob) {
+        PathMatcher matcher = directory.getFileSystem().getPathMatcher("glob:" + glob);
+
+        try (Stream<Path> files = Files.walk(directory)) {
+            return files.filter(Files::isRegularFile)
+                    .filter(f -> matcher.matches(directory.relativize(f)))
+                    .sorted()
+                    .collect(Collectors.toList());
+        }
+        catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    /**
+     * Returns the last modification time of the given file, or -1 if it doesn't exist.
+     */
+    private static long getLastModified(Path file) {
+        try {
+            return Files.exists(file) ? Files.getLastModifiedTime(file).toMillis() : -1;
+        }
+        catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    private static int getIntOperand(Map<String, Object> operand, String name, int defaultValue) {
+        Object value = operand.get(name);
+        if (value == null) {
+            return defaultValue;
+        }
+
+        try {
+            return value instanceof Number ? ((Number) value).intValue() : Integer.parseInt(value.toString().trim());
+        }
+        catch (NumberFormatException e) {
+            throw new IllegalArgumentException("Operand '" + name + "' must be an integer value: " + value);
+        }
+    }
+
+    private static JfrScanOptions.Parser getParserOperand(Map<String, Object> operand) {
+        Object value = operand.get("parser");
+        if (value == null) {
+            return JfrScanOptions.Parser.JDK;
+        }
+
+        try {
+            return JfrScanOptions.Parser.valueOf(value.toString().trim().toUpperCase(Locale.ROOT));
+        }
+        catch (IllegalArgumentException e) {
+            throw new IllegalArgumentException("Operand 'parser' must be one of 'jdk' and 'mapped': " + value);
+        }
+    }
+
+    private record SchemaKey(Path path, Map<String, Object> operand) {
+    }
+
+    private record CachedSchema(JfrSchema schema, List<FileState> files, @Nullable ColumnarTableCache tableCache) {
+    }
+
+    /**
+     * The state of a recording and its index file; a cached schema is valid as long as the states of its files match.
+     */
+    private record FileState(Path jfrFile, long size, long lastModified, long indexLastModified) {
+
+        static FileState of(Path jfrFile) {
+            try {
+                BasicFileAttributes attributes = Files.readAttributes(jfrFile, BasicFileAttributes.class);
+                return new FileState(jfrFile, attributes.size(), attributes.lastModifiedTime().toMillis(), getLastModified(JfrIndex.getIndexFile(jfrFile)));
+            }
+            catch (IOException e) {
+                throw new RuntimeException(e);
+            }
+        }
+    }
 }
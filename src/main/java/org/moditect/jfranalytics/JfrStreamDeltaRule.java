@@ -0,0 +1,57 @@
+/*
+ *  Copyright 2021 - 2023 The original authors
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package org.moditect.jfranalytics;
+
+import java.util.Set;
+
+import org.apache.calcite.plan.RelOptRuleCall;
+import org.apache.calcite.plan.RelRule;
+import org.apache.calcite.rel.stream.LogicalDelta;
+import org.apache.calcite.rex.RexTableInputRef.RelTableRef;
+
+/**
+ * Removes the {@link LogicalDelta} of a {@code SELECT STREAM} query if its input only scans
+ * {@link JfrStreamableTable}s. The stream of such a table is the table itself, so the delta of the input is the input.
+ * Other than Calcite's own stream rules, which push the delta down to the table scans, this keeps the input intact,
+ * allowing {@link JfrWindowAggregateRule} to match the aggregations of the query.
+ */
+public class JfrStreamDeltaRule extends RelRule<JfrRuleConfig> {
+
+    public static final JfrStreamDeltaRule INSTANCE = new JfrStreamDeltaRule(
+            JfrRuleConfig.of("JfrStreamDeltaRule", b -> b.operand(LogicalDelta.class).anyInputs(), JfrStreamDeltaRule::new));
+
+    private JfrStreamDeltaRule(JfrRuleConfig config) {
+        super(config);
+    }
+
+    @Override
+    public void onMatch(RelOptRuleCall call) {
+        LogicalDelta delta = call.rel(0);
+        Set<RelTableRef> tables = call.getMetadataQuery().getTableReferences(delta.getInput());
+
+        if (tables == null || tables.isEmpty()) {
+            return;
+        }
+
+        for (RelTableRef table : tables) {
+            if (table.getTable().unwrap(JfrStreamableTable.class) == null) {
+                return;
+            }
+        }
+
+        call.transformTo(delta.getInput());
+    }
+}
@@ -0,0 +1,219 @@
+/*
+ *  Copyright 2021 - 2023 The original authors
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package org.moditect.jfranalytics;
+
+import java.lang.System.Logger.Level;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.PriorityQueue;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.apache.calcite.linq4j.Enumerator;
+import org.checkerframework.checker.nullness.qual.Nullable;
+
+import jdk.jfr.consumer.EventStream;
+import jdk.jfr.consumer.RecordedEvent;
+
+/**
+ * An enumerator over the events of one type in a live {@link EventStream}. The stream is started upon the first call
+ * to {@link #moveNext()}, which blocks until the next event arrives, and it is closed by {@link #close()}. Events are
+ * handed over from the stream's dispatcher thread via a bounded queue, i.e. a consumer not keeping up with the stream
+ * causes back-pressure rather than unbounded memory growth.
+ * <p>
+ * Rows are emitted in the order of their {@code startTime}, as required for windowed aggregations. JFR orders the
+ * stream by the end time of the events, so an event of long duration arrives after shorter events which started later.
+ * Therefore events are held back in a buffer until the watermark, i.e. the latest end time seen minus the allowed
+ * lateness, has passed their start time; the buffer holds the events of that period at most. Only events lasting longer
+ * than the allowed lateness may arrive after the watermark has passed them. These cannot be emitted in order any more
+ * and are dropped, which is logged as a warning.
+ */
+public class JfrStreamEnumerator implements Enumerator<Object[]> {
+
+    private static final System.Logger LOGGER = System.getLogger(JfrStreamEnumerator.class.getName());
+    private static final Object[] END = new Object[0];
+    private static final long POLL_INTERVAL_MS = 100;
+
+    private final JfrStreamSource source;
+    private final String eventTypeName;
+    private final AttributeValueConverter[] converters;
+    private final int queueSize;
+    private final Duration allowedLateness;
+    private final @Nullable AtomicBoolean cancelFlag;
+
+    private EventStream stream;
+    private BlockingQueue<Object[]> queue;
+    private volatile boolean closed;
+    private volatile Throwable error;
+    private Object[] current;
+
+    // only accessed by the stream's dispatcher thread
+    private final PriorityQueue<PendingRow> pending = new PriorityQueue<>();
+    private Instant watermark = Instant.MIN;
+    private long sequence;
+    private long droppedEvents;
+
+    /**
+     * @param allowedLateness how long events are held back for reordering them by their start time
+     * @param cancelFlag a flag which is set when the current statement gets cancelled, if any
+     */
+    public JfrStreamEnumerator(JfrStreamSource source, String eventTypeName, AttributeValueConverter[] converters, int queueSize,
+                               Duration allowedLateness, @Nullable AtomicBoolean cancelFlag) {
+        this.source = source;
+        this.eventTypeName = eventTypeName;
+        this.converters = converters;
+        this.queueSize = queueSize;
+        this.allowedLateness = allowedLateness;
+        this.cancelFlag = cancelFlag;
+    }
+
+    @Override
+    public Object[] current() {
+        return current;
+    }
+
+    @Override
+    public boolean moveNext() {
+        if (stream == null) {
+            open();
+        }
+
+        try {
+            while (cancelFlag == null || !cancelFlag.get()) {
+                Object[] row = queue.poll(POLL_INTERVAL_MS, TimeUnit.MILLISECONDS);
+
+                if (row == END) {
+                    if (error != null) {
+                        throw new RuntimeException(error);
+                    }
+                    break;
+                }
+                else if (row != null) {
+                    current = row;
+                    return true;
+                }
+            }
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+
+        current = null;
+        return false;
+    }
+
+    @Override
+    public void reset() {
+        close();
+        closed = false;
+        error = null;
+        current = null;
+        pending.clear();
+        watermark = Instant.MIN;
+        sequence = 0;
+        droppedEvents = 0;
+    }
+
+    @Override
+    public void close() {
+        closed = true;
+
+        if (stream != null) {
+            stream.close();
+            stream = null;
+
+            if (droppedEvents > 0) {
+                LOGGER.log(Level.WARNING, "Dropped {0} events of type {1} arriving more than {2} ms late", droppedEvents, eventTypeName,
+                        allowedLateness.toMillis());
+            }
+        }
+    }
+
+    private void open() {
+        queue = new ArrayBlockingQueue<>(queueSize);
+        stream = source.open(eventTypeName);
+        stream.setReuse(false);
+        stream.setOrdered(true);
+        stream.onEvent(eventTypeName, this::onEvent);
+        stream.onError(e -> error = e);
+        stream.onClose(() -> {
+            advanceWatermark(Instant.MAX);
+            enqueue(END);
+        });
+        stream.startAsync();
+    }
+
+    private void onEvent(RecordedEvent event) {
+        Instant startTime = event.getStartTime();
+
+        if (startTime.isBefore(watermark)) {
+            if (droppedEvents++ == 0) {
+                LOGGER.log(Level.WARNING, "Dropping event of type {0} which started at {1}, more than {2} ms before the latest event ended",
+                        eventTypeName, startTime, allowedLateness.toMillis());
+            }
+            return;
+        }
+
+        pending.add(new PendingRow(startTime, sequence++, toRow(event)));
+        advanceWatermark(event.getEndTime().minus(allowedLateness));
+    }
+
+    /**
+     * Emits all the pending rows which started at or before the given time, in the order of their start time.
+     */
+    private void advanceWatermark(Instant time) {
+        if (time.isAfter(watermark)) {
+            watermark = time;
+        }
+
+        while (!pending.isEmpty() && !pending.peek().startTime().isAfter(watermark)) {
+            enqueue(pending.poll().row());
+        }
+    }
+
+    private void enqueue(Object[] row) {
+        try {
+            while (!closed) {
+                if (queue.offer(row, POLL_INTERVAL_MS, TimeUnit.MILLISECONDS)) {
+                    return;
+                }
+            }
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private Object[] toRow(RecordedEvent event) {
+        Object[] row = new Object[converters.length];
+
+        for (int i = 0; i < converters.length; i++) {
+            row[i] = converters[i].getValue(event);
+        }
+
+        return row;
+    }
+
+    private record PendingRow(Instant startTime, long sequence, Object[] row) implements Comparable<PendingRow> {
+
+    @Override
+    public int compareTo(PendingRow other) {
+        int result = startTime.compareTo(other.startTime);
+        return result != 0 ? result : Long.compare(sequence, other.sequence);
+    }
+}}
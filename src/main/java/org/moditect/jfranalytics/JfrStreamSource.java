@@ -0,0 +1,138 @@
+/*
+ *  Copyright 2021 - 2023 The original authors
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package org.moditect.jfranalytics;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.text.ParseException;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import org.checkerframework.checker.nullness.qual.Nullable;
+
+import jdk.jfr.Configuration;
+import jdk.jfr.EventType;
+import jdk.jfr.FlightRecorder;
+import jdk.jfr.consumer.EventStream;
+import jdk.jfr.consumer.RecordingFile;
+import jdk.jfr.consumer.RecordingStream;
+
+/**
+ * The source of the events of a streaming {@link JfrSchema}: either the current JVM, in which case a new
+ * {@link RecordingStream} is started for each query, or the JFR repository of a (possibly different) running JVM,
+ * which is read using {@link EventStream#openRepository(Path)}.
+ */
+public class JfrStreamSource {
+
+    private final @Nullable Path repository;
+    private final @Nullable String settings;
+
+    private JfrStreamSource(@Nullable Path repository, @Nullable String settings) {
+        this.repository = repository;
+        this.settings = settings;
+    }
+
+    /**
+     * Streams the events of the current JVM.
+     *
+     * @param settings the name of a JFR configuration such as "default" or "profile" to apply to the recording, or
+     *        {@code null} if only the queried event type should be enabled, using its default settings
+     */
+    public static JfrStreamSource local(@Nullable String settings) {
+        return new JfrStreamSource(null, settings);
+    }
+
+    /**
+     * Streams the events written to the given JFR repository directory.
+     */
+    public static JfrStreamSource repository(Path repository) {
+        return new JfrStreamSource(repository, null);
+    }
+
+    /**
+     * Returns the event types which can be streamed from this source. For the current JVM, these are all the
+     * registered event types; for a repository, these are the event types contained in its finished chunk files.
+     */
+    public List<EventType> getEventTypes() {
+        if (repository == null) {
+            return FlightRecorder.getFlightRecorder().getEventTypes();
+        }
+
+        Map<String, EventType> eventTypes = new LinkedHashMap<>();
+
+        for (Path chunkFile : getFinishedChunkFiles(repository)) {
+            try (var recordingFile = new RecordingFile(chunkFile)) {
+                for (EventType eventType : recordingFile.readEventTypes()) {
+                    eventTypes.putIfAbsent(eventType.getName(), eventType);
+                }
+            }
+            catch (IOException e) {
+                throw new RuntimeException(e);
+            }
+        }
+
+        if (eventTypes.isEmpty()) {
+            throw new IllegalArgumentException("Given JFR repository doesn't contain any finished chunk files: " + repository);
+        }
+
+        return new ArrayList<>(eventTypes.values());
+    }
+
+    /**
+     * Opens a new stream of the events of the given type. The stream still needs to be started by the caller.
+     */
+    public EventStream open(String eventTypeName) {
+        try {
+            if (repository != null) {
+                return EventStream.openRepository(repository);
+            }
+
+            RecordingStream stream = settings != null ? new RecordingStream(Configuration.getConfiguration(settings)) : new RecordingStream();
+            stream.enable(eventTypeName);
+            return stream;
+        }
+        catch (IOException | ParseException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    private static List<Path> getFinishedChunkFiles(Path repository) {
+        try (Stream<Path> files = Files.list(repository)) {
+            return files.filter(f -> f.getFileName().toString().endsWith(".jfr"))
+                    .filter(JfrStreamSource::isFinished)
+                    .sorted()
+                    .collect(Collectors.toList());
+        }
+        catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    private static boolean isFinished(Path chunkFile) {
+        List<JfrChunk> chunks = JfrChunk.readChunks(chunkFile);
+        return !chunks.isEmpty() && chunks.stream().allMatch(JfrChunk::isFinished);
+    }
+
+    @Override
+    public String toString() {
+        return repository != null ? "JfrStreamSource [repository=" + repository + "]" : "JfrStreamSource [local, settings=" + settings + "]";
+    }
+}
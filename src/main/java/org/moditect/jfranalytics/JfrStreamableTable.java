@@ -0,0 +1,104 @@
+/*
+ *  Copyright 2021 - 2023 The original authors
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package org.moditect.jfranalytics;
+
+import java.time.Duration;
+import java.util.List;
+
+import org.apache.calcite.DataContext;
+import org.apache.calcite.linq4j.AbstractEnumerable;
+import org.apache.calcite.linq4j.Enumerable;
+import org.apache.calcite.linq4j.Enumerator;
+import org.apache.calcite.plan.RelOptTable;
+import org.apache.calcite.rel.RelCollations;
+import org.apache.calcite.rel.RelNode;
+import org.apache.calcite.rel.logical.LogicalTableScan;
+import org.apache.calcite.rel.type.RelDataType;
+import org.apache.calcite.rel.type.RelDataTypeFactory;
+import org.apache.calcite.schema.ScannableTable;
+import org.apache.calcite.schema.Statistic;
+import org.apache.calcite.schema.Statistics;
+import org.apache.calcite.schema.StreamableTable;
+import org.apache.calcite.schema.Table;
+import org.apache.calcite.schema.TranslatableTable;
+import org.apache.calcite.schema.impl.AbstractTable;
+
+import jdk.jfr.EventType;
+
+/**
+ * A table representing the events of one JFR event type in a live event stream, to be queried using
+ * {@code SELECT STREAM}. Scans never end by themselves, but only when the statement gets closed or cancelled.
+ * <p>
+ * As the rows of a stream are ordered by {@code startTime}, that column is declared as monotonic, which allows for
+ * windowed aggregations using {@code TUMBLE()} and {@code HOP()} in the {@code GROUP BY} clause. These are executed by
+ * {@link JfrWindowAggregate}, which emits the results of each window as soon as it is complete.
+ */
+public class JfrStreamableTable extends AbstractTable implements ScannableTable, StreamableTable, TranslatableTable {
+
+    private final JfrStreamSource source;
+    private final EventType eventType;
+    private final RelDataType rowType;
+    private final AttributeValueConverter[] converters;
+    private final int queueSize;
+    private final Duration allowedLateness;
+    private final Statistic statistic;
+
+    public JfrStreamableTable(JfrStreamSource source, EventType eventType, RelDataType rowType, AttributeValueConverter[] converters, int queueSize,
+                              Duration allowedLateness) {
+        this.source = source;
+        this.eventType = eventType;
+        this.rowType = rowType;
+        this.converters = converters;
+        this.queueSize = queueSize;
+        this.allowedLateness = allowedLateness;
+
+        int startTimeIndex = rowType.getFieldNames().indexOf("startTime");
+        this.statistic = startTimeIndex != -1 ? Statistics.of(null, List.of(), List.of(), List.of(RelCollations.of(startTimeIndex))) : Statistics.UNKNOWN;
+    }
+
+    @Override
+    public RelDataType getRowType(RelDataTypeFactory typeFactory) {
+        return rowType;
+    }
+
+    @Override
+    public Statistic getStatistic() {
+        return statistic;
+    }
+
+    @Override
+    public Table stream() {
+        return this;
+    }
+
+    @Override
+    public RelNode toRel(RelOptTable.ToRelContext context, RelOptTable relOptTable) {
+        JfrWindowAggregateRule.register(context.getCluster().getPlanner());
+        return LogicalTableScan.create(context.getCluster(), relOptTable, context.getTableHints());
+    }
+
+    @Override
+    public Enumerable<Object[]> scan(DataContext root) {
+        return new AbstractEnumerable<>() {
+
+            @Override
+            public Enumerator<Object[]> enumerator() {
+                return new JfrStreamEnumerator(source, eventType.getName(), converters, queueSize, allowedLateness,
+                        DataContext.Variable.CANCEL_FLAG.get(root));
+            }
+        };
+    }
+}
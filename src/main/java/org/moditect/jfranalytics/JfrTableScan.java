@@ -0,0 +1,343 @@
+/*
+ *  Copyright 2021 - 2023 The original authors
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package org.moditect.jfranalytics;
+
+import java.lang.reflect.Method;
+import java.util.Arrays;
+import java.util.List;
+import java.util.NoSuchElementException;
+
+import org.apache.calcite.DataContext;
+import org.apache.calcite.adapter.enumerable.EnumerableConvention;
+import org.apache.calcite.adapter.enumerable.EnumerableRel;
+import org.apache.calcite.adapter.enumerable.EnumerableRelImplementor;
+import org.apache.calcite.adapter.enumerable.JavaRowFormat;
+import org.apache.calcite.adapter.enumerable.PhysType;
+import org.apache.calcite.adapter.enumerable.PhysTypeImpl;
+import org.apache.calcite.adapter.enumerable.RexToLixTranslator;
+import org.apache.calcite.linq4j.AbstractEnumerable;
+import org.apache.calcite.linq4j.Enumerable;
+import org.apache.calcite.linq4j.Enumerator;
+import org.apache.calcite.linq4j.function.Predicate1;
+import org.apache.calcite.linq4j.tree.BlockBuilder;
+import org.apache.calcite.linq4j.tree.Expression;
+import org.apache.calcite.linq4j.tree.Expressions;
+import org.apache.calcite.linq4j.tree.ParameterExpression;
+import org.apache.calcite.linq4j.tree.Types;
+import org.apache.calcite.plan.RelOptCluster;
+import org.apache.calcite.plan.RelOptCost;
+import org.apache.calcite.plan.RelOptPlanner;
+import org.apache.calcite.plan.RelOptTable;
+import org.apache.calcite.plan.RelOptUtil;
+import org.apache.calcite.plan.RelTraitSet;
+import org.apache.calcite.rel.RelNode;
+import org.apache.calcite.rel.RelWriter;
+import org.apache.calcite.rel.core.TableScan;
+import org.apache.calcite.rel.metadata.RelMdUtil;
+import org.apache.calcite.rel.metadata.RelMetadataQuery;
+import org.apache.calcite.rel.type.RelDataType;
+import org.apache.calcite.rel.type.RelDataTypeFactory;
+import org.apache.calcite.rel.type.RelDataTypeField;
+import org.apache.calcite.rex.RexNode;
+import org.apache.calcite.rex.RexPermuteInputsShuttle;
+import org.apache.calcite.rex.RexProgramBuilder;
+import org.apache.calcite.util.ImmutableBitSet;
+import org.apache.calcite.util.mapping.Mapping;
+import org.apache.calcite.util.mapping.MappingType;
+import org.apache.calcite.util.mapping.Mappings;
+import org.checkerframework.checker.nullness.qual.Nullable;
+
+/**
+ * Scans a {@link JfrScannableTable} or {@link JfrMultiRecordingTable}, retrieving only the given fields of each event.
+ * The scan is an {@link EnumerableRel}, i.e. the filters, projections, and aggregations of a query on top of it are
+ * executed by code generated and compiled by Calcite, rather than by its interpreter (as is the case for scans of
+ * {@code ProjectableFilterableTable}s).
+ * <p>
+ * A filter condition pushed into the scan by {@link JfrFilterTableScanRule} replaces the filter: it is used for skipping
+ * chunks or recordings, and it is compiled into a predicate, which the scan evaluates for each row before projecting
+ * it to the retrieved fields, so that only matching rows are returned. A limit pushed into the scan by
+ * {@link JfrLimitTableScanRule} lets the table choose a strategy which ends early, e.g. decoding chunks one after the
+ * other rather than in parallel; the number of rows is still limited by the operator on top of the scan.
+ * <p>
+ * The rules of this adapter are registered with the planner once the first scan gets registered with it.
+ */
+public class JfrTableScan extends TableScan implements EnumerableRel {
+
+    private static final Method SCAN_METHOD = Types.lookupMethod(JfrEventTable.class, "scan", DataContext.class, List.class, int[].class, int.class);
+    static final Method TO_SCALARS_METHOD = Types.lookupMethod(JfrTableScan.class, "toScalars", Enumerable.class);
+    private static final Method FILTER_METHOD = Types.lookupMethod(JfrTableScan.class, "filter", Enumerable.class, Predicate1.class, int.class);
+
+    private final JfrEventTable jfrTable;
+    private final int[] fields;
+    private final @Nullable RexNode condition;
+    private final int fetch;
+
+    /**
+     * @param fields the indexes of the table columns to retrieve
+     * @param condition the condition the returned rows must match, referring to the table columns, or {@code null}
+     * @param fetch the maximum number of rows the consumer of the scan will request, or -1 if not limited
+     */
+    public JfrTableScan(RelOptCluster cluster, RelTraitSet traitSet, RelOptTable table, JfrEventTable jfrTable, int[] fields,
+                        @Nullable RexNode condition, int fetch) {
+        super(cluster, traitSet, List.of(), table);
+        this.jfrTable = jfrTable;
+        this.fields = fields;
+        this.condition = condition;
+        this.fetch = fetch;
+    }
+
+    /**
+     * Creates a scan of all the columns of the given table, without filters.
+     */
+    public static JfrTableScan create(RelOptCluster cluster, RelOptTable table, JfrEventTable jfrTable) {
+        int[] fields = new int[table.getRowType().getFieldCount()];
+        Arrays.setAll(fields, i -> i);
+
+        return new JfrTableScan(cluster, cluster.traitSetOf(EnumerableConvention.INSTANCE), table, jfrTable, fields, null, -1);
+    }
+
+    JfrEventTable getJfrTable() {
+        return jfrTable;
+    }
+
+    int[] getFields() {
+        return fields;
+    }
+
+    @Nullable
+    RexNode getCondition() {
+        return condition;
+    }
+
+    int getFetch() {
+        return fetch;
+    }
+
+    JfrTableScan withFields(int[] fields) {
+        return new JfrTableScan(getCluster(), traitSet, table, jfrTable, fields, condition, fetch);
+    }
+
+    JfrTableScan withCondition(RexNode condition) {
+        return new JfrTableScan(getCluster(), traitSet, table, jfrTable, fields, condition, fetch);
+    }
+
+    JfrTableScan withFetch(int fetch) {
+        return new JfrTableScan(getCluster(), traitSet, table, jfrTable, fields, condition, fetch);
+    }
+
+    @Override
+    public RelNode copy(RelTraitSet traitSet, List<RelNode> inputs) {
+        return new JfrTableScan(getCluster(), traitSet, table, jfrTable, fields, condition, fetch);
+    }
+
+    @Override
+    public void register(RelOptPlanner planner) {
+        planner.addRule(JfrProjectTableScanRule.INSTANCE);
+        planner.addRule(JfrFilterTableScanRule.INSTANCE);
+        planner.addRule(JfrFilterTableScanRule.PROJECT_INSTANCE);
+        planner.addRule(JfrLimitTableScanRule.INSTANCE);
+        planner.addRule(JfrLimitTableScanRule.PROJECT_INSTANCE);
+        planner.addRule(JfrAggregateTableScanRule.INSTANCE);
+        planner.addRule(JfrTopStackTracesRule.INSTANCE);
+    }
+
+    @Override
+    public RelDataType deriveRowType() {
+        List<RelDataTypeField> tableFields = table.getRowType().getFieldList();
+        RelDataTypeFactory.Builder builder = getCluster().getTypeFactory().builder();
+
+        for (int field : fields) {
+            builder.add(tableFields.get(field));
+        }
+
+        return builder.build();
+    }
+
+    @Override
+    public RelWriter explainTerms(RelWriter pw) {
+        return super.explainTerms(pw)
+                .itemIf("fields", Arrays.toString(fields), !isAllFields(fields))
+                .itemIf("condition", condition, condition != null)
+                .itemIf("fetch", fetch, fetch != -1);
+    }
+
+    @Override
+    public double estimateRowCount(RelMetadataQuery mq) {
+        double rowCount = super.estimateRowCount(mq) * (condition != null ? RelMdUtil.guessSelectivity(condition) : 1D);
+        return fetch != -1 ? Math.min(fetch, rowCount) : rowCount;
+    }
+
+    @Override
+    public @Nullable RelOptCost computeSelfCost(RelOptPlanner planner, RelMetadataQuery mq) {
+        // only the retrieved columns are converted, a condition may allow to skip chunks, and a limited scan ends early
+        double fieldRatio = (getScannedFields().length + 2D) / (table.getRowType().getFieldCount() + 2D);
+        double rowRatio = fetch != -1 ? Math.min(fetch, table.getRowCount()) / Math.max(1D, table.getRowCount()) : 1D;
+        RelOptCost cost = super.computeSelfCost(planner, mq);
+
+        return cost == null ? null : cost.multiplyBy(fieldRatio * rowRatio * (condition == null ? 1D : 0.5D));
+    }
+
+    @Override
+    public Result implement(EnumerableRelImplementor implementor, Prefer pref) {
+        BlockBuilder builder = new BlockBuilder();
+        PhysType physType = PhysTypeImpl.of(implementor.getTypeFactory(), getRowType(), JavaRowFormat.ARRAY);
+        int[] scannedFields = getScannedFields();
+
+        Expression rows = Expressions.call(
+                implementor.stash(jfrTable, JfrEventTable.class),
+                SCAN_METHOD,
+                implementor.getRootExpression(),
+                implementor.stash(condition != null ? List.of(condition) : List.of(), List.class),
+                isAllFields(scannedFields) ? Expressions.constant(null, int[].class) : Expressions.constant(scannedFields),
+                Expressions.constant(fetch));
+
+        if (condition != null) {
+            rows = Expressions.call(FILTER_METHOD, rows, implementPredicate(implementor, scannedFields),
+                    Expressions.constant(scannedFields.length == fields.length ? -1 : fields.length));
+        }
+
+        builder.add(physType.getFormat() == JavaRowFormat.SCALAR ? Expressions.call(TO_SCALARS_METHOD, rows) : rows);
+
+        return implementor.result(physType, builder.toBlock());
+    }
+
+    /**
+     * Returns the values of single-column rows, which are represented as plain values by Calcite.
+     */
+    public static Enumerable<@Nullable Object> toScalars(Enumerable<Object[]> rows) {
+        return rows.select(row -> row[0]);
+    }
+
+    /**
+     * Returns the given rows matching the given condition, retaining only the given number of leading values, i.e.
+     * dropping the columns only retrieved for evaluating the condition.
+     *
+     * @param fieldCount the number of values to retain, or -1 for all the values
+     */
+    public static Enumerable<Object[]> filter(Enumerable<Object[]> rows, Predicate1<Object[]> condition, int fieldCount) {
+        return new AbstractEnumerable<>() {
+
+            @Override
+            public Enumerator<Object[]> enumerator() {
+                Enumerator<Object[]> input = rows.enumerator();
+
+                return new Enumerator<>() {
+
+                    private Object @Nullable [] current;
+
+                    @Override
+                    public Object[] current() {
+                        if (current == null) {
+                            throw new NoSuchElementException();
+                        }
+
+                        return current;
+                    }
+
+                    @Override
+                    public boolean moveNext() {
+                        while (input.moveNext()) {
+                            Object[] row = input.current();
+
+                            if (condition.apply(row)) {
+                                current = fieldCount == -1 ? row : Arrays.copyOf(row, fieldCount);
+                                return true;
+                            }
+                        }
+
+                        current = null;
+                        return false;
+                    }
+
+                    @Override
+                    public void reset() {
+                        input.reset();
+                        current = null;
+                    }
+
+                    @Override
+                    public void close() {
+                        input.close();
+                    }
+                };
+            }
+        };
+    }
+
+    /**
+     * Generates the predicate evaluating the condition of this scan for the rows with the given fields.
+     */
+    private Expression implementPredicate(EnumerableRelImplementor implementor, int[] scannedFields) {
+        List<RelDataTypeField> tableFields = table.getRowType().getFieldList();
+        RelDataTypeFactory.Builder rowType = getCluster().getTypeFactory().builder();
+        Mapping mapping = Mappings.create(MappingType.PARTIAL_FUNCTION, tableFields.size(), scannedFields.length);
+
+        for (int i = 0; i < scannedFields.length; i++) {
+            rowType.add(tableFields.get(scannedFields[i]));
+            mapping.set(scannedFields[i], i);
+        }
+
+        RexProgramBuilder program = new RexProgramBuilder(rowType.build(), getCluster().getRexBuilder());
+        program.addCondition(condition.accept(new RexPermuteInputsShuttle(mapping)));
+
+        ParameterExpression row = Expressions.parameter(Object[].class, "row");
+        BlockBuilder body = new BlockBuilder();
+        PhysType physType = PhysTypeImpl.of(implementor.getTypeFactory(), rowType.build(), JavaRowFormat.ARRAY, false);
+
+        Expression matches = RexToLixTranslator.translateCondition(program.getProgram(), implementor.getTypeFactory(), body,
+                new RexToLixTranslator.InputGetterImpl(row, physType), null, implementor.getConformance());
+        body.add(Expressions.return_(null, matches));
+
+        return Expressions.lambda(Predicate1.class, body.toBlock(), row);
+    }
+
+    /**
+     * Returns the table columns to retrieve, i.e. the fields of this scan, followed by the other columns referenced by
+     * its condition.
+     */
+    private int[] getScannedFields() {
+        if (condition == null) {
+            return fields;
+        }
+
+        ImmutableBitSet referenced = RelOptUtil.InputFinder.bits(condition);
+        if (ImmutableBitSet.of(fields).contains(referenced)) {
+            return fields;
+        }
+
+        int[] scannedFields = Arrays.copyOf(fields, fields.length + referenced.cardinality());
+        int i = fields.length;
+        for (int field : referenced.except(ImmutableBitSet.of(fields))) {
+            scannedFields[i++] = field;
+        }
+
+        return Arrays.copyOf(scannedFields, i);
+    }
+
+    private boolean isAllFields(int[] fields) {
+        if (fields.length != table.getRowType().getFieldCount()) {
+            return false;
+        }
+
+        for (int i = 0; i < fields.length; i++) {
+            if (fields[i] != i) {
+                return false;
+            }
+        }
+
+        return true;
+    }
+}
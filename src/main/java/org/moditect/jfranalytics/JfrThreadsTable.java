@@ -0,0 +1,160 @@
+/*
+ *  Copyright 2021 - 2023 The original authors
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package org.moditect.jfranalytics;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.apache.calcite.DataContext;
+import org.apache.calcite.linq4j.Enumerable;
+import org.apache.calcite.linq4j.Linq4j;
+import org.apache.calcite.rel.type.RelDataType;
+import org.apache.calcite.rel.type.RelDataTypeFactory;
+import org.apache.calcite.schema.ScannableTable;
+import org.apache.calcite.schema.impl.AbstractTable;
+import org.apache.calcite.sql.type.SqlTypeName;
+import org.checkerframework.checker.nullness.qual.Nullable;
+
+import jdk.jfr.EventType;
+import jdk.jfr.ValueDescriptor;
+import jdk.jfr.consumer.RecordedEvent;
+import jdk.jfr.consumer.RecordedThread;
+import jdk.jfr.consumer.RecordingFile;
+
+/**
+ * A dimension table with one row for each thread referenced by the events of a recording, with the columns
+ * {@code osName}, {@code osThreadId}, {@code javaName}, {@code javaThreadId}, and {@code group}, i.e. the fields of
+ * thread-typed event attributes. This allows to look up the details of threads by their id, e.g.
+ * {@code JOIN jfr."threads" t ON e."eventThread"."javaThreadId" = t."javaThreadId"}. Threads are identified by their
+ * Java thread id, or by their OS thread id if they aren't Java threads; if the details of a thread differ between the
+ * events referring to it, the latest ones are returned.
+ * <p>
+ * The threads are collected by a pass over all the events of the recording upon the first scan, which is kept for
+ * subsequent scans until the recording file gets modified.
+ */
+public class JfrThreadsTable extends AbstractTable implements ScannableTable {
+
+    public static final String TABLE_NAME = "threads";
+
+    private static final int MAX_SEEN_THREADS = 10_000;
+
+    private final Path jfrFile;
+    private volatile @Nullable Threads threads;
+
+    public JfrThreadsTable(Path jfrFile) {
+        this.jfrFile = jfrFile;
+    }
+
+    @Override
+    public RelDataType getRowType(RelDataTypeFactory typeFactory) {
+        return new RelDataTypeFactory.Builder(typeFactory)
+                .add("osName", SqlTypeName.VARCHAR).nullable(true)
+                .add("osThreadId", SqlTypeName.BIGINT).nullable(true)
+                .add("javaName", SqlTypeName.VARCHAR).nullable(true)
+                .add("javaThreadId", SqlTypeName.BIGINT).nullable(true)
+                .add("group", SqlTypeName.VARCHAR).nullable(true)
+                .build();
+    }
+
+    @Override
+    public Enumerable<@Nullable Object[]> scan(DataContext root) {
+        return Linq4j.asEnumerable(getThreads());
+    }
+
+    private List<Object[]> getThreads() {
+        try {
+            FileTime lastModified = Files.getLastModifiedTime(jfrFile);
+            long size = Files.size(jfrFile);
+            Threads current = threads;
+
+            if (current == null || !current.lastModified().equals(lastModified) || current.size() != size) {
+                current = new Threads(lastModified, size, readThreads());
+                threads = current;
+            }
+
+            return current.rows();
+        }
+        catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    private List<Object[]> readThreads() throws IOException {
+        Map<EventType, List<String>> threadFields = new IdentityHashMap<>();
+        Set<RecordedThread> seen = Collections.newSetFromMap(new IdentityHashMap<>());
+        Map<ThreadKey, Object[]> distinct = new LinkedHashMap<>();
+
+        try (var recordingFile = new RecordingFile(jfrFile)) {
+            while (recordingFile.hasMoreEvents()) {
+                RecordedEvent event = recordingFile.readEvent();
+
+                for (String field : threadFields.computeIfAbsent(event.getEventType(), JfrThreadsTable::getThreadFields)) {
+                    RecordedThread thread = (RecordedThread) event.getValue(field);
+
+                    // the parser returns the same instance for all the events of a chunk referring to a thread
+                    if (thread == null || seen.contains(thread)) {
+                        continue;
+                    }
+                    if (seen.size() == MAX_SEEN_THREADS) {
+                        seen.clear();
+                    }
+                    seen.add(thread);
+
+                    // the latest details of a thread are kept, e.g. after it has been renamed
+                    Object[] struct = ThreadStructConverter.toStruct(thread);
+                    distinct.put(ThreadKey.of(thread), struct);
+                }
+            }
+        }
+
+        return Collections.unmodifiableList(new ArrayList<>(distinct.values()));
+    }
+
+    private static List<String> getThreadFields(EventType eventType) {
+        List<String> fields = new ArrayList<>();
+
+        for (ValueDescriptor field : eventType.getFields()) {
+            if (field.getTypeName().equals("java.lang.Thread")) {
+                fields.add(field.getName());
+            }
+        }
+
+        return fields;
+    }
+
+    private record Threads(FileTime lastModified, long size, List<Object[]> rows) {
+    }
+
+    /**
+     * Identifies a thread by its Java thread id, or by its OS thread id for threads which aren't Java threads; the JDK
+     * reports -1 as the Java thread id of such threads, async-profiler 0.
+     */
+    private record ThreadKey(boolean javaThread, long id) {
+
+        static ThreadKey of(RecordedThread thread) {
+            return thread.getJavaThreadId() > 0 ? new ThreadKey(true, thread.getJavaThreadId()) : new ThreadKey(false, thread.getOSThreadId());
+        }
+    }
+}
@@ -0,0 +1,153 @@
+/*
+ *  Copyright 2021 - 2023 The original authors
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package org.moditect.jfranalytics;
+
+import java.util.List;
+
+import org.apache.calcite.adapter.enumerable.EnumerableRel;
+import org.apache.calcite.adapter.enumerable.EnumerableRelImplementor;
+import org.apache.calcite.adapter.enumerable.JavaRowFormat;
+import org.apache.calcite.adapter.enumerable.PhysType;
+import org.apache.calcite.adapter.enumerable.PhysTypeImpl;
+import org.apache.calcite.linq4j.tree.BlockBuilder;
+import org.apache.calcite.linq4j.tree.Expression;
+import org.apache.calcite.linq4j.tree.Expressions;
+import org.apache.calcite.plan.RelOptCluster;
+import org.apache.calcite.plan.RelOptCost;
+import org.apache.calcite.plan.RelOptPlanner;
+import org.apache.calcite.plan.RelTraitSet;
+import org.apache.calcite.rel.RelFieldCollation;
+import org.apache.calcite.rel.RelNode;
+import org.apache.calcite.rel.RelWriter;
+import org.apache.calcite.rel.SingleRel;
+import org.apache.calcite.rel.core.AggregateCall;
+import org.apache.calcite.rel.metadata.RelMetadataQuery;
+import org.apache.calcite.rel.type.RelDataType;
+import org.checkerframework.checker.nullness.qual.Nullable;
+
+/**
+ * Returns the top K stack traces as per an aggregate, as expressed by
+ * {@code GROUP BY TRUNCATE_STACKTRACE(...) ORDER BY <aggregate> LIMIT <K>}. Rows are aggregated per distinct stack
+ * trace instance by {@link TopStackTracesAggregator}, and only the K first groups are kept when ordering them, rather
+ * than sorting all the groups as with Calcite's built-in aggregation and sort operators.
+ */
+public class JfrTopStackTraces extends SingleRel implements EnumerableRel {
+
+    private final int stackTraceField;
+    private final int depth;
+    private final List<AggregateCall> aggCalls;
+    private final RelFieldCollation collation;
+    private final int offset;
+    private final int fetch;
+
+    /**
+     * @param rowType the row type of the aggregation, i.e. the truncated stack trace followed by the aggregates
+     * @param stackTraceField the index of the input field holding the stack traces to group by
+     * @param depth the number of frames to truncate the stack traces to
+     * @param collation the ordering of the result rows; must refer to one of the aggregates
+     * @param offset the number of result rows to skip
+     * @param fetch the maximum number of result rows
+     */
+    public JfrTopStackTraces(RelOptCluster cluster, RelTraitSet traitSet, RelNode input, RelDataType rowType, int stackTraceField, int depth,
+                             List<AggregateCall> aggCalls, RelFieldCollation collation, int offset, int fetch) {
+        super(cluster, traitSet, input);
+        this.rowType = rowType;
+        this.stackTraceField = stackTraceField;
+        this.depth = depth;
+        this.aggCalls = aggCalls;
+        this.collation = collation;
+        this.offset = offset;
+        this.fetch = fetch;
+    }
+
+    @Override
+    public RelNode copy(RelTraitSet traitSet, List<RelNode> inputs) {
+        return new JfrTopStackTraces(getCluster(), traitSet, sole(inputs), rowType, stackTraceField, depth, aggCalls, collation, offset, fetch);
+    }
+
+    @Override
+    protected RelDataType deriveRowType() {
+        return rowType;
+    }
+
+    @Override
+    public RelWriter explainTerms(RelWriter pw) {
+        return super.explainTerms(pw)
+                .item("stackTrace", stackTraceField)
+                .item("depth", depth)
+                .item("aggs", aggCalls)
+                .item("sort", collation)
+                .itemIf("offset", offset, offset != 0)
+                .item("fetch", fetch);
+    }
+
+    @Override
+    public double estimateRowCount(RelMetadataQuery mq) {
+        return Math.min(fetch, mq.getRowCount(getInput()));
+    }
+
+    @Override
+    public @Nullable RelOptCost computeSelfCost(RelOptPlanner planner, RelMetadataQuery mq) {
+        // aggregating the input and keeping the top rows, but no sorting of all the groups; the row count metadata of
+        // single-input nodes is the one of their input, so the returned rows are estimated here
+        return planner.getCostFactory().makeCost(estimateRowCount(mq), mq.getRowCount(getInput()) * 0.1, 0);
+    }
+
+    @Override
+    public Result implement(EnumerableRelImplementor implementor, Prefer pref) {
+        BlockBuilder builder = new BlockBuilder();
+        Result input = implementor.visitChild(this, 0, (EnumerableRel) getInput(), Prefer.ARRAY);
+
+        Expression rows = builder.append("rows", input.block);
+        if (input.format != JavaRowFormat.ARRAY) {
+            rows = builder.append("arrays", input.physType.convertTo(rows, JavaRowFormat.ARRAY));
+        }
+
+        PhysType physType = PhysTypeImpl.of(implementor.getTypeFactory(), getRowType(), JavaRowFormat.ARRAY);
+
+        int[] arguments = new int[aggCalls.size()];
+        String[] functions = new String[aggCalls.size()];
+        String[] types = new String[aggCalls.size()];
+
+        for (int i = 0; i < aggCalls.size(); i++) {
+            AggregateCall aggCall = aggCalls.get(i);
+            functions[i] = aggCall.getAggregation().getKind().name();
+            arguments[i] = aggCall.getArgList().isEmpty() ? -1 : aggCall.getArgList().get(0);
+            types[i] = aggCall.getType().getSqlTypeName().name();
+        }
+
+        builder.add(Expressions.call(
+                TopStackTracesAggregator.AGGREGATE_METHOD,
+                rows,
+                Expressions.constant(stackTraceField),
+                Expressions.constant(depth),
+                Expressions.constant(functions),
+                Expressions.constant(arguments),
+                Expressions.constant(types),
+                Expressions.constant(collation.getFieldIndex() - 1),
+                Expressions.constant(collation.getDirection().isDescending()),
+                Expressions.constant(getNullDirection() == RelFieldCollation.NullDirection.FIRST),
+                Expressions.constant(offset),
+                Expressions.constant(fetch)));
+
+        return implementor.result(physType, builder.toBlock());
+    }
+
+    private RelFieldCollation.NullDirection getNullDirection() {
+        return collation.nullDirection != RelFieldCollation.NullDirection.UNSPECIFIED ? collation.nullDirection
+                : collation.getDirection().defaultNullDirection();
+    }
+}
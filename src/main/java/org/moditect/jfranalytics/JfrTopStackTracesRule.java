@@ -0,0 +1,125 @@
+/*
+ *  Copyright 2021 - 2023 The original authors
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package org.moditect.jfranalytics;
+
+import java.util.ArrayList;
+import java.util.EnumSet;
+import java.util.List;
+import java.util.Set;
+
+import org.apache.calcite.adapter.enumerable.EnumerableConvention;
+import org.apache.calcite.plan.RelOptRuleCall;
+import org.apache.calcite.plan.RelRule;
+import org.apache.calcite.rel.RelFieldCollation;
+import org.apache.calcite.rel.RelNode;
+import org.apache.calcite.rel.core.Aggregate;
+import org.apache.calcite.rel.core.AggregateCall;
+import org.apache.calcite.rel.logical.LogicalAggregate;
+import org.apache.calcite.rel.logical.LogicalProject;
+import org.apache.calcite.rel.logical.LogicalSort;
+import org.apache.calcite.rex.RexCall;
+import org.apache.calcite.rex.RexLiteral;
+import org.apache.calcite.rex.RexNode;
+import org.apache.calcite.sql.SqlKind;
+import org.apache.calcite.sql.type.SqlTypeName;
+import org.apache.calcite.sql.validate.SqlUserDefinedFunction;
+import org.checkerframework.checker.nullness.qual.Nullable;
+
+/**
+ * Converts "top K stack traces" queries, i.e. aggregations grouping by {@code TRUNCATE_STACKTRACE(<stack trace>, <depth>)},
+ * ordered by one of the aggregates and limited to a number of rows, into a {@link JfrTopStackTraces}. Supported are the
+ * aggregate functions {@code COUNT} and {@code SUM} of integer values, without {@code DISTINCT} or {@code FILTER}.
+ * <p>
+ * The rule is registered with the planner of each query scanning a {@link JfrScannableTable} or
+ * {@link JfrMultiRecordingTable}, see {@link JfrTableScan#register}.
+ */
+public class JfrTopStackTracesRule extends RelRule<JfrRuleConfig> {
+
+    public static final JfrTopStackTracesRule INSTANCE = new JfrTopStackTracesRule(JfrRuleConfig.of("JfrTopStackTracesRule",
+            b -> b.operand(LogicalSort.class).oneInput(a -> a.operand(LogicalAggregate.class).oneInput(p -> p.operand(LogicalProject.class).anyInputs())),
+            JfrTopStackTracesRule::new));
+
+    private static final Set<SqlKind> SUPPORTED_FUNCTIONS = EnumSet.of(SqlKind.COUNT, SqlKind.SUM, SqlKind.SUM0);
+
+    private JfrTopStackTracesRule(JfrRuleConfig config) {
+        super(config);
+    }
+
+    @Override
+    public void onMatch(RelOptRuleCall call) {
+        LogicalSort sort = call.rel(0);
+        LogicalAggregate aggregate = call.rel(1);
+        LogicalProject project = call.rel(2);
+
+        Integer fetch = getIntValue(sort.fetch);
+        Integer offset = sort.offset != null ? getIntValue(sort.offset) : Integer.valueOf(0);
+
+        if (fetch == null || offset == null || sort.getCollation().getFieldCollations().size() != 1) {
+            return;
+        }
+
+        // must be ordered by one of the aggregates
+        RelFieldCollation collation = sort.getCollation().getFieldCollations().get(0);
+        if (collation.getFieldIndex() == 0) {
+            return;
+        }
+
+        if (aggregate.getGroupType() != Aggregate.Group.SIMPLE || aggregate.getGroupCount() != 1) {
+            return;
+        }
+
+        for (AggregateCall aggCall : aggregate.getAggCallList()) {
+            if (aggCall.isDistinct() || aggCall.filterArg != -1 || aggCall.getArgList().size() > 1
+                    || !SUPPORTED_FUNCTIONS.contains(aggCall.getAggregation().getKind())
+                    || !SqlTypeName.INT_TYPES.contains(aggCall.getType().getSqlTypeName())) {
+                return;
+            }
+        }
+
+        int stackTraceField = aggregate.getGroupSet().nth(0);
+        RexNode groupKey = project.getProjects().get(stackTraceField);
+
+        if (!isTruncateStackTrace(groupKey)) {
+            return;
+        }
+
+        Integer depth = getIntValue(((RexCall) groupKey).getOperands().get(1));
+        if (depth == null || depth < 1) {
+            return;
+        }
+
+        // replace the function call with the stack trace, which is truncated by the aggregation
+        List<RexNode> projects = new ArrayList<>(project.getProjects());
+        projects.set(stackTraceField, ((RexCall) groupKey).getOperands().get(0));
+        RelNode newProject = LogicalProject.create(project.getInput(), project.getHints(), projects, project.getRowType().getFieldNames(),
+                project.getVariablesSet());
+
+        RelNode input = convert(newProject, newProject.getCluster().traitSetOf(EnumerableConvention.INSTANCE));
+
+        call.transformTo(new JfrTopStackTraces(sort.getCluster(), sort.getTraitSet().replace(EnumerableConvention.INSTANCE), input, aggregate.getRowType(),
+                stackTraceField, depth, aggregate.getAggCallList(), collation, offset, fetch));
+    }
+
+    private static boolean isTruncateStackTrace(RexNode node) {
+        return node instanceof RexCall
+                && ((RexCall) node).getOperator() instanceof SqlUserDefinedFunction
+                && ((SqlUserDefinedFunction) ((RexCall) node).getOperator()).getFunction() == TruncateStackTraceFunction.INSTANCE;
+    }
+
+    private static @Nullable Integer getIntValue(@Nullable RexNode node) {
+        return node instanceof RexLiteral ? ((RexLiteral) node).getValueAs(Integer.class) : null;
+    }
+}
@@ -0,0 +1,129 @@
+/*
+ *  Copyright 2021 - 2023 The original authors
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package org.moditect.jfranalytics;
+
+import java.util.List;
+
+import org.apache.calcite.adapter.enumerable.EnumerableRel;
+import org.apache.calcite.adapter.enumerable.EnumerableRelImplementor;
+import org.apache.calcite.adapter.enumerable.JavaRowFormat;
+import org.apache.calcite.adapter.enumerable.PhysType;
+import org.apache.calcite.adapter.enumerable.PhysTypeImpl;
+import org.apache.calcite.linq4j.tree.BlockBuilder;
+import org.apache.calcite.linq4j.tree.Expression;
+import org.apache.calcite.linq4j.tree.Expressions;
+import org.apache.calcite.plan.RelOptCluster;
+import org.apache.calcite.plan.RelOptCost;
+import org.apache.calcite.plan.RelOptPlanner;
+import org.apache.calcite.plan.RelTraitSet;
+import org.apache.calcite.rel.RelNode;
+import org.apache.calcite.rel.RelWriter;
+import org.apache.calcite.rel.core.Aggregate;
+import org.apache.calcite.rel.core.AggregateCall;
+import org.apache.calcite.rel.metadata.RelMetadataQuery;
+import org.apache.calcite.util.ImmutableBitSet;
+import org.checkerframework.checker.nullness.qual.Nullable;
+
+/**
+ * An aggregation grouping by a tumbling or hopping window over a time field of its input (plus optionally further
+ * fields), as expressed using {@code TUMBLE()} and {@code HOP()} in the {@code GROUP BY} clause of a streaming query.
+ * The input is expected to be ordered by the time field; the time field's group key is the start of the window. Rows
+ * are emitted continuously by {@link WindowAggregator}, rather than only after consuming the entire input as with
+ * Calcite's built-in aggregations, which cannot process infinite streams.
+ */
+public class JfrWindowAggregate extends Aggregate implements EnumerableRel {
+
+    private final int timeField;
+    private final long size;
+    private final long slide;
+    private final long offset;
+
+    /**
+     * @param timeField the index of the input field holding the time of the rows; must be part of the group set
+     * @param size the size of the windows in milli-seconds
+     * @param slide the distance between the starts of subsequent windows in milli-seconds
+     * @param offset the alignment of the windows relative to the epoch in milli-seconds
+     */
+    public JfrWindowAggregate(RelOptCluster cluster, RelTraitSet traitSet, RelNode input, ImmutableBitSet groupSet, List<AggregateCall> aggCalls,
+                              int timeField, long size, long slide, long offset) {
+        super(cluster, traitSet, List.of(), input, groupSet, null, aggCalls);
+        this.timeField = timeField;
+        this.size = size;
+        this.slide = slide;
+        this.offset = offset;
+    }
+
+    @Override
+    public Aggregate copy(RelTraitSet traitSet, RelNode input, ImmutableBitSet groupSet, @Nullable List<ImmutableBitSet> groupSets,
+                          List<AggregateCall> aggCalls) {
+        return new JfrWindowAggregate(getCluster(), traitSet, input, groupSet, aggCalls, timeField, size, slide, offset);
+    }
+
+    @Override
+    public RelWriter explainTerms(RelWriter pw) {
+        return super.explainTerms(pw)
+                .item("window", timeField)
+                .item("size", size)
+                .itemIf("slide", slide, slide != size)
+                .itemIf("offset", offset, offset != 0);
+    }
+
+    @Override
+    public @Nullable RelOptCost computeSelfCost(RelOptPlanner planner, RelMetadataQuery mq) {
+        // the alternative plans for a windowed aggregation, using Calcite's built-in aggregations, can't be executed
+        RelOptCost cost = super.computeSelfCost(planner, mq);
+        return cost != null ? cost.multiplyBy(0.1) : null;
+    }
+
+    @Override
+    public Result implement(EnumerableRelImplementor implementor, Prefer pref) {
+        BlockBuilder builder = new BlockBuilder();
+        Result input = implementor.visitChild(this, 0, (EnumerableRel) getInput(), Prefer.ARRAY);
+
+        Expression rows = builder.append("rows", input.block);
+        if (input.format != JavaRowFormat.ARRAY) {
+            rows = builder.append("arrays", input.physType.convertTo(rows, JavaRowFormat.ARRAY));
+        }
+
+        PhysType physType = PhysTypeImpl.of(implementor.getTypeFactory(), getRowType(), pref.prefer(JavaRowFormat.ARRAY));
+
+        int[] arguments = new int[aggCalls.size()];
+        String[] functions = new String[aggCalls.size()];
+        String[] types = new String[aggCalls.size()];
+
+        for (int i = 0; i < aggCalls.size(); i++) {
+            AggregateCall aggCall = aggCalls.get(i);
+            functions[i] = aggCall.getAggregation().getKind().name();
+            arguments[i] = aggCall.getArgList().isEmpty() ? -1 : aggCall.getArgList().get(0);
+            types[i] = aggCall.getType().getSqlTypeName().name();
+        }
+
+        builder.add(Expressions.call(
+                WindowAggregator.AGGREGATE_METHOD,
+                rows,
+                Expressions.constant(timeField),
+                Expressions.constant(size),
+                Expressions.constant(slide),
+                Expressions.constant(offset),
+                Expressions.constant(groupSet.toArray()),
+                Expressions.constant(functions),
+                Expressions.constant(arguments),
+                Expressions.constant(types),
+                Expressions.constant(physType.getFormat() == JavaRowFormat.SCALAR)));
+
+        return implementor.result(physType, builder.toBlock());
+    }
+}
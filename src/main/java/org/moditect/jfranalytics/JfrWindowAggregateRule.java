@@ -0,0 +1,149 @@
+/*
+ *  Copyright 2021 - 2023 The original authors
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package org.moditect.jfranalytics;
+
+import java.util.ArrayList;
+import java.util.EnumSet;
+import java.util.List;
+import java.util.Set;
+
+import org.apache.calcite.adapter.enumerable.EnumerableConvention;
+import org.apache.calcite.plan.RelOptPlanner;
+import org.apache.calcite.plan.RelOptRuleCall;
+import org.apache.calcite.plan.RelRule;
+import org.apache.calcite.rel.RelNode;
+import org.apache.calcite.rel.core.Aggregate;
+import org.apache.calcite.rel.core.AggregateCall;
+import org.apache.calcite.rel.logical.LogicalAggregate;
+import org.apache.calcite.rel.logical.LogicalProject;
+import org.apache.calcite.rel.rules.CoreRules;
+import org.apache.calcite.rex.RexCall;
+import org.apache.calcite.rex.RexInputRef;
+import org.apache.calcite.rex.RexLiteral;
+import org.apache.calcite.rex.RexNode;
+import org.apache.calcite.sql.SqlKind;
+import org.apache.calcite.sql.type.SqlTypeFamily;
+import org.apache.calcite.sql.type.SqlTypeName;
+import org.checkerframework.checker.nullness.qual.Nullable;
+
+/**
+ * Converts aggregations grouping by {@code TUMBLE(<time>, <size> [, <alignment>])} or
+ * {@code HOP(<time>, <slide>, <size> [, <alignment>])} into a {@link JfrWindowAggregate}. Supported are the aggregate
+ * functions {@code COUNT}, {@code SUM}, {@code MIN} and {@code MAX} (plus {@code AVG}, which is reduced to
+ * {@code SUM} and {@code COUNT}), without {@code DISTINCT} or {@code FILTER}.
+ * <p>
+ * The rule is registered with the planner of each query referencing a {@link JfrStreamableTable}, together with
+ * {@link JfrStreamDeltaRule}, which makes the aggregation available as the implementation of a streaming query.
+ */
+public class JfrWindowAggregateRule extends RelRule<JfrRuleConfig> {
+
+    public static final JfrWindowAggregateRule INSTANCE = new JfrWindowAggregateRule(JfrRuleConfig.of("JfrWindowAggregateRule",
+            b -> b.operand(LogicalAggregate.class).oneInput(p -> p.operand(LogicalProject.class).anyInputs()), JfrWindowAggregateRule::new));
+
+    private static final Set<SqlKind> SUPPORTED_FUNCTIONS = EnumSet.of(SqlKind.COUNT, SqlKind.SUM, SqlKind.SUM0, SqlKind.MIN, SqlKind.MAX);
+
+    private JfrWindowAggregateRule(JfrRuleConfig config) {
+        super(config);
+    }
+
+    public static void register(RelOptPlanner planner) {
+        planner.addRule(INSTANCE);
+        planner.addRule(JfrStreamDeltaRule.INSTANCE);
+        planner.addRule(CoreRules.AGGREGATE_REDUCE_FUNCTIONS);
+    }
+
+    @Override
+    public void onMatch(RelOptRuleCall call) {
+        LogicalAggregate aggregate = call.rel(0);
+        LogicalProject project = call.rel(1);
+
+        if (aggregate.getGroupType() != Aggregate.Group.SIMPLE) {
+            return;
+        }
+
+        for (AggregateCall aggCall : aggregate.getAggCallList()) {
+            if (aggCall.isDistinct() || aggCall.filterArg != -1 || aggCall.getArgList().size() > 1
+                    || !SUPPORTED_FUNCTIONS.contains(aggCall.getAggregation().getKind())) {
+                return;
+            }
+        }
+
+        int timeField = -1;
+        RexCall window = null;
+
+        for (int field : aggregate.getGroupSet()) {
+            RexNode expression = project.getProjects().get(field);
+
+            if (expression.getKind() == SqlKind.TUMBLE || expression.getKind() == SqlKind.HOP) {
+                // only one window per query
+                if (window != null) {
+                    return;
+                }
+
+                timeField = field;
+                window = (RexCall) expression;
+            }
+        }
+
+        if (window == null || !(window.getOperands().get(0) instanceof RexInputRef)) {
+            return;
+        }
+
+        boolean hop = window.getKind() == SqlKind.HOP;
+        List<RexNode> operands = window.getOperands();
+
+        Long slide = getMillis(operands.get(1));
+        Long size = hop ? getMillis(operands.get(2)) : slide;
+        int offsetOperand = hop ? 3 : 2;
+        Long offset = operands.size() > offsetOperand ? getMillis(operands.get(offsetOperand)) : Long.valueOf(0);
+
+        if (size == null || slide == null || offset == null || size <= 0 || slide <= 0) {
+            return;
+        }
+
+        // replace the window call with its time operand, the window itself is applied by the aggregation
+        List<RexNode> projects = new ArrayList<>(project.getProjects());
+        projects.set(timeField, operands.get(0));
+        RelNode newProject = project.copy(project.getTraitSet(), project.getInput(), projects, project.getRowType());
+
+        RelNode input = convert(newProject, newProject.getCluster().traitSetOf(EnumerableConvention.INSTANCE));
+
+        call.transformTo(new JfrWindowAggregate(aggregate.getCluster(), aggregate.getTraitSet().replace(EnumerableConvention.INSTANCE), input,
+                aggregate.getGroupSet(), aggregate.getAggCallList(), timeField, size, slide, offset));
+    }
+
+    /**
+     * Returns the value of the given interval or time literal in milli-seconds, or {@code null} if it isn't such a
+     * literal.
+     */
+    private static @Nullable Long getMillis(RexNode node) {
+        if (!(node instanceof RexLiteral)) {
+            return null;
+        }
+
+        RexLiteral literal = (RexLiteral) node;
+
+        if (literal.getType().getSqlTypeName() == SqlTypeName.TIME) {
+            Integer millisOfDay = literal.getValueAs(Integer.class);
+            return millisOfDay != null ? Long.valueOf(millisOfDay) : null;
+        }
+        else if (literal.getType().getSqlTypeName().getFamily() == SqlTypeFamily.INTERVAL_DAY_TIME) {
+            return literal.getValueAs(Long.class);
+        }
+
+        return null;
+    }
+}
@@ -0,0 +1,103 @@
+/*
+ *  Copyright 2021 - 2023 The original authors
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package org.moditect.jfranalytics;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Function;
+
+import org.checkerframework.checker.nullness.qual.Nullable;
+
+/**
+ * A thread-safe map with a maximum size. When exceeding that size, the least recently used entry gets evicted. A
+ * maximum size of 0 disables the cache, i.e. nothing gets added to it. The number of cache hits and misses of
+ * {@link #get(Object)} and {@link #computeIfAbsent(Object, Function)} is tracked, e.g. for judging whether a cache size
+ * is appropriate.
+ */
+public class LruCache<K, V> {
+
+    private final int maxSize;
+    private final Map<K, V> entries;
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+
+    public LruCache(int maxSize) {
+        this.maxSize = maxSize;
+        this.entries = new LinkedHashMap<>(16, 0.75f, true) {
+
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<K, V> eldest) {
+                return size() > LruCache.this.maxSize;
+            }
+        };
+    }
+
+    public @Nullable V get(K key) {
+        V value;
+        synchronized (this) {
+            value = entries.get(key);
+        }
+
+        (value != null ? hits : misses).increment();
+        return value;
+    }
+
+    /**
+     * Returns the value for the given key, computing and adding it if not present yet. The value is computed without
+     * holding the lock of this cache, i.e. it may be computed more than once when requested concurrently.
+     */
+    public V computeIfAbsent(K key, Function<K, V> mappingFunction) {
+        V value = get(key);
+
+        if (value == null) {
+            value = mappingFunction.apply(key);
+            put(key, value);
+        }
+
+        return value;
+    }
+
+    public synchronized void put(K key, V value) {
+        if (maxSize > 0) {
+            entries.put(key, value);
+        }
+    }
+
+    public synchronized @Nullable V remove(K key) {
+        return entries.remove(key);
+    }
+
+    public synchronized void clear() {
+        entries.clear();
+    }
+
+    public synchronized int size() {
+        return entries.size();
+    }
+
+    public int getMaxSize() {
+        return maxSize;
+    }
+
+    public long getHitCount() {
+        return hits.sum();
+    }
+
+    public long getMissCount() {
+        return misses.sum();
+    }
+}
@@ -0,0 +1,406 @@
+/*
+ *  Copyright 2021 - 2023 The original authors
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package org.moditect.jfranalytics;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.checkerframework.checker.nullness.qual.Nullable;
+
+/**
+ * One chunk of a JFR recording, mapped into memory, with the primitives for decoding its metadata and events. The
+ * chunk is read sequentially, starting at {@link #position}. Each event starts with its size and type id, so events
+ * can be skipped without decoding them. Not thread-safe.
+ */
+class MappedChunk {
+
+    // the kinds of values
+    static final int BOOLEAN = 0;
+    static final int BYTE = 1;
+    static final int SHORT = 2;
+    static final int CHAR = 3;
+    static final int INT = 4;
+    static final int LONG = 5;
+    static final int FLOAT = 6;
+    static final int DOUBLE = 7;
+    static final int STRING = 8;
+    static final int STRUCT = 9;
+
+    private static final int CONSTANT_POOL_OFFSET_POSITION = 16;
+    private static final int METADATA_OFFSET_POSITION = 24;
+    private static final int START_NANOS_POSITION = 32;
+    private static final int START_TICKS_POSITION = 48;
+    private static final int TICKS_PER_SECOND_POSITION = 56;
+
+    final ByteBuffer buffer;
+    int position;
+
+    private final JfrChunk chunk;
+    private final long startNanos;
+    private final long startTicks;
+    private final double ticksPerNanosecond;
+
+    private MappedChunk(JfrChunk chunk, ByteBuffer buffer) {
+        this.chunk = chunk;
+        this.buffer = buffer;
+        this.position = JfrChunk.HEADER_SIZE;
+        this.startNanos = buffer.getLong(START_NANOS_POSITION);
+        this.startTicks = buffer.getLong(START_TICKS_POSITION);
+        this.ticksPerNanosecond = (double) buffer.getLong(TICKS_PER_SECOND_POSITION) / 1_000_000_000;
+    }
+
+    /**
+     * Whether the given chunks can be mapped, i.e. they are complete and not larger than 2 GB.
+     */
+    static boolean canMap(List<JfrChunk> chunks) {
+        for (JfrChunk chunk : chunks) {
+            if (!canMap(chunk)) {
+                return false;
+            }
+        }
+
+        return true;
+    }
+
+    static boolean canMap(JfrChunk chunk) {
+        return chunk.isFinished() && chunk.getSize() <= Integer.MAX_VALUE;
+    }
+
+    static MappedChunk map(JfrChunk chunk) throws IOException {
+        // the mapping stays valid after closing the channel; it is released by the garbage collector
+        try (FileChannel channel = FileChannel.open(chunk.getFile(), StandardOpenOption.READ)) {
+            return new MappedChunk(chunk, channel.map(FileChannel.MapMode.READ_ONLY, chunk.getOffset(), chunk.getSize()));
+        }
+    }
+
+    boolean hasMoreEvents() {
+        return position < buffer.limit();
+    }
+
+    /**
+     * Reads the size of the event at the current position and returns the position of the next event.
+     */
+    int readEventEnd() throws IOException {
+        int eventStart = position;
+        long size = readLong();
+
+        if (size <= 0 || eventStart + size > buffer.limit()) {
+            throw new IOException("Invalid event size " + size + " at offset " + (chunk.getOffset() + eventStart) + " of " + chunk.getFile());
+        }
+
+        return (int) (eventStart + size);
+    }
+
+    /**
+     * Converts the given ticks into nanoseconds since the epoch, in the same way as the JFR parser.
+     */
+    long toNanos(long ticks) {
+        return startNanos + (long) ((ticks - startTicks) / ticksPerNanosecond);
+    }
+
+    /**
+     * Reads a variable-length integer as written by JFR: seven bits per byte, with the most significant bit marking
+     * that another byte follows, except for the ninth byte, all of whose bits are used.
+     */
+    long readLong() {
+        long value = 0;
+
+        for (int shift = 0; shift < 56; shift += 7) {
+            byte b = buffer.get(position++);
+            value |= (b & 0x7FL) << shift;
+
+            if (b >= 0) {
+                return value;
+            }
+        }
+
+        return value | (buffer.get(position++) & 0xFFL) << 56;
+    }
+
+    void skip(Field field) {
+        if (field.array()) {
+            for (long i = readLong(); i > 0; i--) {
+                skipValue(field);
+            }
+        }
+        else {
+            skipValue(field);
+        }
+    }
+
+    private void skipValue(Field field) {
+        if (field.constantPool()) {
+            readLong();
+            return;
+        }
+
+        switch (field.kind()) {
+            case BOOLEAN:
+            case BYTE:
+                position++;
+                break;
+            case SHORT:
+            case CHAR:
+            case INT:
+            case LONG:
+                readLong();
+                break;
+            case FLOAT:
+                position += 4;
+                break;
+            case DOUBLE:
+                position += 8;
+                break;
+            case STRING:
+                skipString();
+                break;
+            default:
+                for (Field nested : field.type().fields()) {
+                    skip(nested);
+                }
+        }
+    }
+
+    private void skipString() {
+        byte encoding = buffer.get(position++);
+
+        switch (encoding) {
+            case StringEncoding.NULL:
+            case StringEncoding.EMPTY:
+                break;
+            case StringEncoding.CONSTANT_POOL:
+                readLong();
+                break;
+            case StringEncoding.CHAR_ARRAY:
+                for (long i = readLong(); i > 0; i--) {
+                    readLong();
+                }
+                break;
+            default:
+                int length = (int) readLong();
+                position += length;
+        }
+    }
+
+    private @Nullable String readString() throws IOException {
+        byte encoding = buffer.get(position++);
+
+        switch (encoding) {
+            case StringEncoding.NULL:
+                return null;
+            case StringEncoding.EMPTY:
+                return "";
+            case StringEncoding.UTF8:
+            case StringEncoding.LATIN1:
+                byte[] bytes = new byte[(int) readLong()];
+                buffer.get(position, bytes);
+                position += bytes.length;
+                return new String(bytes, encoding == StringEncoding.UTF8 ? StandardCharsets.UTF_8 : StandardCharsets.ISO_8859_1);
+            case StringEncoding.CHAR_ARRAY:
+                char[] chars = new char[(int) readLong()];
+                for (int i = 0; i < chars.length; i++) {
+                    chars[i] = (char) readLong();
+                }
+                return new String(chars);
+            default:
+                throw new IOException("Unsupported string encoding in metadata: " + encoding);
+        }
+    }
+
+    /**
+     * Returns the checkpoint events and the metadata event of this chunk in ascending order. The checkpoint events are
+     * found by following their chain from the last one to the first one. The current position is not changed.
+     */
+    List<Span> readCheckpointsAndMetadata() throws IOException {
+        int eventsPosition = position;
+        List<Span> spans = new ArrayList<>();
+        long checkpoint = buffer.getLong(CONSTANT_POOL_OFFSET_POSITION);
+
+        while (checkpoint != 0) {
+            if (checkpoint < JfrChunk.HEADER_SIZE || checkpoint >= buffer.limit()) {
+                throw new IOException("Invalid checkpoint offset " + checkpoint + " in chunk at offset " + chunk.getOffset() + " of " + chunk.getFile());
+            }
+
+            position = (int) checkpoint;
+            int end = readEventEnd();
+            if (readLong() != 1) {
+                throw new IOException("Expected checkpoint event at offset " + (chunk.getOffset() + checkpoint) + " of " + chunk.getFile());
+            }
+            readLong(); // start time
+            readLong(); // duration
+            long delta = readLong();
+
+            // the chain leads backwards, ending with a delta of 0
+            if (delta > 0) {
+                throw new IOException("Invalid checkpoint delta " + delta + " at offset " + (chunk.getOffset() + checkpoint) + " of " + chunk.getFile());
+            }
+
+            spans.add(new Span((int) checkpoint, end));
+            checkpoint = delta != 0 ? checkpoint + delta : 0;
+        }
+
+        position = (int) buffer.getLong(METADATA_OFFSET_POSITION);
+        spans.add(new Span(position, readEventEnd()));
+
+        position = eventsPosition;
+        spans.sort(Comparator.comparingInt(Span::start));
+        return spans;
+    }
+
+    /**
+     * Reads the metadata event of this chunk, returning the types defined by it, keyed by name. The current position
+     * is not changed.
+     */
+    Map<String, Type> readMetadata() throws IOException {
+        int eventsPosition = position;
+        position = (int) buffer.getLong(METADATA_OFFSET_POSITION);
+
+        readLong(); // size
+        if (readLong() != 0) {
+            throw new IOException("Expected metadata event at offset " + (chunk.getOffset() + buffer.getLong(METADATA_OFFSET_POSITION)) + " of " + chunk.getFile());
+        }
+        readLong(); // start time
+        readLong(); // duration
+        readLong(); // metadata id
+
+        String[] strings = new String[(int) readLong()];
+        for (int i = 0; i < strings.length; i++) {
+            strings[i] = readString();
+        }
+
+        Element root = readElement(strings);
+        position = eventsPosition;
+
+        List<Element> classes = new ArrayList<>();
+        for (Element child : root.children()) {
+            if (child.name().equals("metadata")) {
+                for (Element element : child.children()) {
+                    if (element.name().equals("class")) {
+                        classes.add(element);
+                    }
+                }
+            }
+        }
+
+        // types are declared first, so that they can be referenced by the fields of other types
+        Map<String, Type> typesById = new HashMap<>();
+        for (Element element : classes) {
+            String id = element.attributes().get("id");
+            typesById.put(id, new Type(Long.parseLong(id), element.attributes().get("name"), new ArrayList<>()));
+        }
+
+        Map<String, Type> types = new HashMap<>();
+
+        for (Element element : classes) {
+            Type type = typesById.get(element.attributes().get("id"));
+
+            for (Element child : element.children()) {
+                if (child.name().equals("field")) {
+                    Type fieldType = typesById.get(child.attributes().get("class"));
+                    if (fieldType == null) {
+                        throw new IOException("Unknown type of field " + type.name() + "::" + child.attributes().get("name"));
+                    }
+
+                    type.fields().add(new Field(
+                            child.attributes().get("name"),
+                            getKind(fieldType.name()),
+                            "true".equals(child.attributes().get("constantPool")),
+                            "1".equals(child.attributes().get("dimension")),
+                            fieldType));
+                }
+            }
+
+            types.put(type.name(), type);
+        }
+
+        return types;
+    }
+
+    private Element readElement(String[] strings) {
+        String name = strings[(int) readLong()];
+
+        int attributeCount = (int) readLong();
+        Map<String, String> attributes = new HashMap<>(attributeCount * 2);
+        for (int i = 0; i < attributeCount; i++) {
+            attributes.put(strings[(int) readLong()], strings[(int) readLong()]);
+        }
+
+        int childCount = (int) readLong();
+        List<Element> children = new ArrayList<>(childCount);
+        for (int i = 0; i < childCount; i++) {
+            children.add(readElement(strings));
+        }
+
+        return new Element(name, attributes, children);
+    }
+
+    static int getKind(String typeName) {
+        switch (typeName) {
+            case "boolean":
+                return BOOLEAN;
+            case "byte":
+                return BYTE;
+            case "short":
+                return SHORT;
+            case "char":
+                return CHAR;
+            case "int":
+                return INT;
+            case "long":
+                return LONG;
+            case "float":
+                return FLOAT;
+            case "double":
+                return DOUBLE;
+            case "java.lang.String":
+                return STRING;
+            default:
+                return STRUCT;
+        }
+    }
+
+    private static class StringEncoding {
+        static final byte NULL = 0;
+        static final byte EMPTY = 1;
+        static final byte CONSTANT_POOL = 2;
+        static final byte UTF8 = 3;
+        static final byte CHAR_ARRAY = 4;
+        static final byte LATIN1 = 5;
+    }
+
+    private record Element(String name, Map<String, String> attributes, List<Element> children) {
+    }
+
+    record Type(long id, String name, List<Field> fields) {
+    }
+
+    /**
+     * The positions of the first byte and the byte following an event within its chunk.
+     */
+    record Span(int start, int end) {
+    }
+
+    record Field(String name, int kind, boolean constantPool, boolean array, Type type) {
+    }
+}
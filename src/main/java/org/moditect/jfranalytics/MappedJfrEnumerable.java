@@ -0,0 +1,41 @@
+/*
+ *  Copyright 2021 - 2023 The original authors
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package org.moditect.jfranalytics;
+
+import java.util.List;
+
+import org.apache.calcite.linq4j.AbstractEnumerable;
+import org.apache.calcite.linq4j.Enumerator;
+
+import jdk.jfr.ValueDescriptor;
+
+public class MappedJfrEnumerable extends AbstractEnumerable<Object[]> {
+
+    private final List<JfrChunk> chunks;
+    private final String eventTypeName;
+    private final ValueDescriptor[] columns;
+
+    public MappedJfrEnumerable(List<JfrChunk> chunks, String eventTypeName, ValueDescriptor[] columns) {
+        this.chunks = chunks;
+        this.eventTypeName = eventTypeName;
+        this.columns = columns;
+    }
+
+    @Override
+    public Enumerator<Object[]> enumerator() {
+        return new MappedJfrEnumerator(chunks, eventTypeName, columns);
+    }
+}
@@ -0,0 +1,283 @@
+/*
+ *  Copyright 2021 - 2023 The original authors
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package org.moditect.jfranalytics;
+
+import java.io.IOException;
+import java.util.List;
+
+import org.apache.calcite.linq4j.Enumerator;
+import org.checkerframework.checker.nullness.qual.Nullable;
+import org.moditect.jfranalytics.MappedChunk.Field;
+import org.moditect.jfranalytics.MappedChunk.Type;
+
+import jdk.jfr.Timespan;
+import jdk.jfr.Unsigned;
+import jdk.jfr.ValueDescriptor;
+import jdk.jfr.consumer.RecordingFile;
+
+/**
+ * A pull-based enumerator over the events of one type in a JFR recording, which decodes the events directly from the
+ * memory-mapped chunks of the recording rather than using {@link RecordingFile}. For each chunk, the metadata event is
+ * read for obtaining the layout of the scanned event type; events of other types as well as the constant pools are
+ * skipped based on their size, without decoding them. Of the events of the scanned type, only the fields up to the last
+ * retrieved column are decoded, and only the values of the retrieved columns are boxed.
+ * <p>
+ * Only primitive-typed columns are supported, see {@link #isSupported(ValueDescriptor)}; the values of other types,
+ * e.g. strings, threads, or stack traces, are mostly references into the constant pools of the chunk, so scans
+ * retrieving such columns are decoded by {@link JfrEnumerator}. The values are converted in the same way as by the
+ * converters created by {@link JfrSchema}. Only complete chunks of up to 2 GB can be mapped, see
+ * {@link MappedChunk#canMap(List)}.
+ */
+public class MappedJfrEnumerator implements Enumerator<Object[]> {
+
+    // the conversions of column values
+    private static final int RAW = 0;
+    private static final int START_TIME = 1;
+    private static final int DURATION = 2;
+    private static final int TIMESPAN = 3;
+
+    private final List<JfrChunk> chunks;
+    private final String eventTypeName;
+    private final ValueDescriptor[] columns;
+    private final int[] conversions;
+    private final long[] nanosPerUnit;
+
+    private int chunkIndex;
+    private @Nullable MappedChunk chunk;
+    private @Nullable EventLayout layout;
+    private Object[] current;
+
+    /**
+     * @param chunks the chunks to scan, all of which must be mappable, see {@link MappedChunk#canMap(List)}
+     * @param columns the fields of the event type to retrieve, all of which must be supported, see
+     *        {@link #isSupported(ValueDescriptor)}
+     */
+    public MappedJfrEnumerator(List<JfrChunk> chunks, String eventTypeName, ValueDescriptor[] columns) {
+        this.chunks = chunks;
+        this.eventTypeName = eventTypeName;
+        this.columns = columns;
+        this.conversions = new int[columns.length];
+        this.nanosPerUnit = new long[columns.length];
+
+        for (int i = 0; i < columns.length; i++) {
+            if (columns[i].getName().equals("startTime")) {
+                conversions[i] = START_TIME;
+            }
+            else if (columns[i].getName().equals("duration")) {
+                conversions[i] = DURATION;
+            }
+            else if (columns[i].getAnnotation(Timespan.class) != null) {
+                conversions[i] = TIMESPAN;
+                nanosPerUnit[i] = JfrSchema.getNanosPerUnit(columns[i]);
+            }
+        }
+    }
+
+    /**
+     * Whether values of the given field can be retrieved by this enumerator.
+     */
+    public static boolean isSupported(ValueDescriptor field) {
+        if (field.isArray() || MappedChunk.getKind(field.getTypeName()) > MappedChunk.DOUBLE) {
+            return false;
+        }
+        else if (field.getName().equals("startTime") || field.getName().equals("duration")) {
+            return field.getTypeName().equals("long");
+        }
+        else if (field.getAnnotation(Timespan.class) != null) {
+            // ticks can only be converted for the start time and the duration; unsigned values are widened by the JDK
+            return JfrSchema.getNanosPerUnit(field) != -1 && (field.getAnnotation(Unsigned.class) == null || field.getTypeName().equals("long"));
+        }
+
+        return true;
+    }
+
+    @Override
+    public Object[] current() {
+        return current;
+    }
+
+    @Override
+    public boolean moveNext() {
+        try {
+            while (true) {
+                if (chunk == null) {
+                    if (chunkIndex == chunks.size()) {
+                        current = null;
+                        return false;
+                    }
+
+                    openChunk(chunks.get(chunkIndex++));
+                    continue;
+                }
+
+                while (chunk.hasMoreEvents()) {
+                    int eventEnd = chunk.readEventEnd();
+
+                    if (chunk.readLong() == layout.typeId()) {
+                        current = readEvent(chunk, layout);
+                        chunk.position = eventEnd;
+                        return true;
+                    }
+
+                    chunk.position = eventEnd;
+                }
+
+                chunk = null;
+                layout = null;
+            }
+        }
+        catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    @Override
+    public void reset() {
+        chunkIndex = 0;
+        chunk = null;
+        layout = null;
+        current = null;
+    }
+
+    @Override
+    public void close() {
+        chunk = null;
+        layout = null;
+    }
+
+    /**
+     * Maps the given chunk and reads its metadata; the chunk is skipped if it doesn't contain the scanned event type.
+     */
+    private void openChunk(JfrChunk jfrChunk) throws IOException {
+        chunk = MappedChunk.map(jfrChunk);
+        Type eventType = chunk.readMetadata().get(eventTypeName);
+
+        if (eventType == null) {
+            chunk = null;
+        }
+        else {
+            layout = getLayout(eventType);
+        }
+    }
+
+    private Object[] readEvent(MappedChunk chunk, EventLayout layout) {
+        Object[] row = new Object[columns.length];
+        long startTicks = 0;
+
+        for (int i = 0; i <= layout.lastField(); i++) {
+            Field field = layout.fields().get(i);
+            int column = layout.columns()[i];
+
+            if (i == layout.startTimeField()) {
+                startTicks = chunk.readLong();
+                if (column != -1) {
+                    row[column] = convert(chunk, column, startTicks, startTicks);
+                }
+            }
+            else if (column == -1) {
+                chunk.skip(field);
+            }
+            else {
+                switch (field.kind()) {
+                    case MappedChunk.BOOLEAN:
+                        row[column] = chunk.buffer.get(chunk.position++) != 0;
+                        break;
+                    case MappedChunk.BYTE:
+                        row[column] = chunk.buffer.get(chunk.position++);
+                        break;
+                    case MappedChunk.SHORT:
+                        row[column] = (short) chunk.readLong();
+                        break;
+                    case MappedChunk.CHAR:
+                        row[column] = (char) chunk.readLong();
+                        break;
+                    case MappedChunk.INT:
+                        int intValue = (int) chunk.readLong();
+                        row[column] = conversions[column] == RAW ? (Object) intValue : convert(chunk, column, intValue, startTicks);
+                        break;
+                    case MappedChunk.LONG:
+                        row[column] = convert(chunk, column, chunk.readLong(), startTicks);
+                        break;
+                    case MappedChunk.FLOAT:
+                        row[column] = chunk.buffer.getFloat(chunk.position);
+                        chunk.position += 4;
+                        break;
+                    default:
+                        row[column] = chunk.buffer.getDouble(chunk.position);
+                        chunk.position += 8;
+                }
+            }
+        }
+
+        return row;
+    }
+
+    private Object convert(MappedChunk chunk, int column, long value, long startTicks) {
+        switch (conversions[column]) {
+            case START_TIME:
+                // as per RecordedEvent::getStartTime and the converter created by JfrSchema
+                return Math.floorDiv(chunk.toNanos(value), 1_000_000L) + JfrSchema.LOCAL_OFFSET;
+            case DURATION:
+                return chunk.toNanos(startTicks + value) - chunk.toNanos(startTicks);
+            case TIMESPAN:
+                return JfrSchema.toNanos(value, nanosPerUnit[column]);
+            default:
+                return value;
+        }
+    }
+
+    private EventLayout getLayout(Type eventType) {
+        List<Field> fields = eventType.fields();
+        int[] fieldColumns = new int[fields.size()];
+        int startTimeField = -1;
+        int lastField = -1;
+
+        for (int i = 0; i < fields.size(); i++) {
+            Field field = fields.get(i);
+            fieldColumns[i] = -1;
+
+            if (field.name().equals("startTime") && field.kind() == MappedChunk.LONG && !field.array() && !field.constantPool()) {
+                startTimeField = i;
+            }
+
+            for (int column = 0; column < columns.length; column++) {
+                // if a field has a different type in this chunk, null is returned as its value
+                if (columns[column].getName().equals(field.name()) && columns[column].getTypeName().equals(field.type().name()) && !field.array()
+                        && !field.constantPool()) {
+                    fieldColumns[i] = column;
+                    lastField = i;
+                }
+            }
+        }
+
+        // the start time is needed for determining the duration
+        if (startTimeField > lastField) {
+            lastField = startTimeField;
+        }
+
+        return new EventLayout(eventType.id(), fields, fieldColumns, startTimeField, lastField);
+    }
+
+    /**
+     * The fields of the scanned event type in one chunk.
+     *
+     * @param columns the column of each field, or -1 if the field isn't retrieved
+     * @param startTimeField the index of the {@code startTime} field, or -1 if there is none
+     * @param lastField the index of the last field to decode
+     */
+    private record EventLayout(long typeId, List<Field> fields, int[] columns, int startTimeField, int lastField) {
+    }
+}
@@ -0,0 +1,256 @@
+/*
+ *  Copyright 2021 - 2023 The original authors
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package org.moditect.jfranalytics;
+
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.calcite.linq4j.AbstractEnumerable;
+import org.apache.calcite.linq4j.Enumerable;
+import org.apache.calcite.linq4j.Enumerator;
+import org.checkerframework.checker.nullness.qual.Nullable;
+
+import org.moditect.jfranalytics.PrefetchEnumerable.Batch;
+
+/**
+ * Enumerates several parts concurrently on a fork/join pool, e.g. ranges of the chunks of a recording or the
+ * recordings of a directory. Each part is enumerated by a separate task, with at most {@code parallelism} parts being
+ * in flight at any time. Rows are returned in the order of the parts, i.e. in the same order as with a serial scan.
+ * <p>
+ * Each task passes the rows of its part in batches of {@value PrefetchEnumerable#BATCH_SIZE} via a queue holding up to
+ * {@value #QUEUE_SIZE} batches; once the queue is full, the task waits until the consumer has caught up with the part.
+ * The memory used thus is bounded by the size of these queues, independently of the number of rows of the parts.
+ * Waiting tasks and consumers are managed by the pool, so that parallel enumerables can be nested, e.g. when the
+ * recordings of a directory and their chunks are scanned in parallel on the same pool. Closing the enumerator stops the
+ * tasks, and exceptions raised by a task are rethrown by the consumer.
+ */
+public class ParallelEnumerable extends AbstractEnumerable<Object[]> {
+
+    static final int QUEUE_SIZE = 4;
+
+    private static final long POLL_INTERVAL_MS = 100;
+
+    private final List<Enumerable<Object[]>> parts;
+    private final ForkJoinPool pool;
+
+    public ParallelEnumerable(List<Enumerable<Object[]>> parts, ForkJoinPool pool) {
+        this.parts = parts;
+        this.pool = pool;
+    }
+
+    @Override
+    public Enumerator<Object[]> enumerator() {
+        return new ParallelEnumerator();
+    }
+
+    private class ParallelEnumerator implements Enumerator<Object[]> {
+
+        private final Deque<Part> inFlight = new ArrayDeque<>();
+        private int nextPart;
+        private @Nullable Part currentPart;
+        private Batch batch = PrefetchEnumerable.EMPTY;
+        private int index;
+        private Object[] current;
+
+        @Override
+        public Object[] current() {
+            return current;
+        }
+
+        @Override
+        public boolean moveNext() {
+            while (index == batch.size()) {
+                if (batch.last() || currentPart == null) {
+                    submitParts();
+                    currentPart = inFlight.poll();
+
+                    if (currentPart == null) {
+                        batch = PrefetchEnumerable.EMPTY;
+                        current = null;
+                        return false;
+                    }
+                }
+
+                batch = currentPart.take();
+                index = 0;
+
+                if (batch.error() instanceof RuntimeException) {
+                    throw (RuntimeException) batch.error();
+                }
+                else if (batch.error() instanceof Error) {
+                    throw (Error) batch.error();
+                }
+            }
+
+            current = batch.rows()[index++];
+            return true;
+        }
+
+        @Override
+        public void reset() {
+            close();
+            nextPart = 0;
+            batch = PrefetchEnumerable.EMPTY;
+            index = 0;
+            current = null;
+        }
+
+        @Override
+        public void close() {
+            if (currentPart != null) {
+                currentPart.close();
+                currentPart = null;
+            }
+
+            for (Part part : inFlight) {
+                part.close();
+            }
+
+            inFlight.clear();
+        }
+
+        private void submitParts() {
+            while (inFlight.size() < pool.getParallelism() && nextPart < parts.size()) {
+                Part part = new Part(parts.get(nextPart++));
+                part.task = pool.submit(part::produce);
+                inFlight.add(part);
+            }
+        }
+    }
+
+    /**
+     * Enumerates one part into its own queue, so that a task which is still running after the consumer has been closed
+     * cannot interfere with the next one.
+     */
+    private static class Part {
+
+        private final Enumerable<Object[]> rows;
+        private final BlockingQueue<Batch> queue = new ArrayBlockingQueue<>(QUEUE_SIZE);
+        private volatile boolean closed;
+        private ForkJoinTask<?> task;
+
+        private Part(Enumerable<Object[]> rows) {
+            this.rows = rows;
+        }
+
+        private void produce() {
+            if (closed) {
+                return;
+            }
+
+            Enumerator<Object[]> enumerator = rows.enumerator();
+
+            try {
+                Object[][] batch = new Object[PrefetchEnumerable.BATCH_SIZE][];
+                int size = 0;
+
+                while (!closed && enumerator.moveNext()) {
+                    batch[size++] = enumerator.current();
+
+                    if (size == PrefetchEnumerable.BATCH_SIZE) {
+                        put(new Batch(batch, size, false, null));
+                        batch = new Object[PrefetchEnumerable.BATCH_SIZE][];
+                        size = 0;
+                    }
+                }
+
+                put(new Batch(batch, size, true, null));
+            }
+            catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                fail(new RuntimeException(e));
+            }
+            catch (RuntimeException | Error e) {
+                fail(e);
+            }
+            finally {
+                enumerator.close();
+            }
+        }
+
+        private void fail(Throwable e) {
+            if (!closed) {
+                queue.clear();
+                queue.offer(new Batch(PrefetchEnumerable.EMPTY.rows(), 0, true, e));
+            }
+        }
+
+        private void put(Batch batch) throws InterruptedException {
+            ForkJoinPool.managedBlock(new ForkJoinPool.ManagedBlocker() {
+
+                private boolean done;
+
+                @Override
+                public boolean block() throws InterruptedException {
+                    done = closed || queue.offer(batch, POLL_INTERVAL_MS, TimeUnit.MILLISECONDS);
+                    return done;
+                }
+
+                @Override
+                public boolean isReleasable() {
+                    if (!done) {
+                        done = closed || queue.offer(batch);
+                    }
+
+                    return done;
+                }
+            });
+        }
+
+        private Batch take() {
+            Batch[] taken = new Batch[1];
+
+            try {
+                ForkJoinPool.managedBlock(new ForkJoinPool.ManagedBlocker() {
+
+                    @Override
+                    public boolean block() throws InterruptedException {
+                        taken[0] = queue.take();
+                        return true;
+                    }
+
+                    @Override
+                    public boolean isReleasable() {
+                        if (taken[0] == null) {
+                            taken[0] = queue.poll();
+                        }
+
+                        return taken[0] != null;
+                    }
+                });
+            }
+            catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                close();
+                throw new RuntimeException(e);
+            }
+
+            return taken[0];
+        }
+
+        private void close() {
+            closed = true;
+            task.cancel(false);
+            queue.clear();
+        }
+    }
+}
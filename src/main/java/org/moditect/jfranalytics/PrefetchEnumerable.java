@@ -0,0 +1,176 @@
+/*
+ *  Copyright 2021 - 2023 The original authors
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package org.moditect.jfranalytics;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+import org.apache.calcite.linq4j.AbstractEnumerable;
+import org.apache.calcite.linq4j.Enumerable;
+import org.apache.calcite.linq4j.Enumerator;
+import org.checkerframework.checker.nullness.qual.Nullable;
+
+/**
+ * Enumerates the rows of another enumerable on a separate producer thread, so that decoding the events of a recording
+ * overlaps with the evaluation of the query on the consuming thread. The producer passes the rows in batches of
+ * {@value #BATCH_SIZE} via a queue holding up to {@code queueSize} batches; once the queue is full, the producer waits
+ * until the consumer has caught up. Closing the enumerator stops the producer, and exceptions raised by the producer
+ * are rethrown by the consumer.
+ */
+public class PrefetchEnumerable extends AbstractEnumerable<Object[]> {
+
+    static final int BATCH_SIZE = 1024;
+
+    static final Batch EMPTY = new Batch(new Object[0][], 0, false, null);
+
+    private final Enumerable<Object[]> rows;
+    private final int queueSize;
+
+    /**
+     * @param queueSize the maximum number of batches decoded ahead of the consumer
+     */
+    public PrefetchEnumerable(Enumerable<Object[]> rows, int queueSize) {
+        this.rows = rows;
+        this.queueSize = queueSize;
+    }
+
+    @Override
+    public Enumerator<Object[]> enumerator() {
+        return new PrefetchEnumerator();
+    }
+
+    private class PrefetchEnumerator implements Enumerator<Object[]> {
+
+        private @Nullable Producer producer;
+        private Batch batch = EMPTY;
+        private int index;
+        private Object[] current;
+
+        @Override
+        public Object[] current() {
+            return current;
+        }
+
+        @Override
+        public boolean moveNext() {
+            if (producer == null) {
+                producer = new Producer(new ArrayBlockingQueue<>(queueSize));
+                producer.start();
+            }
+
+            while (index == batch.size()) {
+                if (batch.last()) {
+                    current = null;
+                    return false;
+                }
+
+                try {
+                    batch = producer.queue.take();
+                    index = 0;
+                }
+                catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new RuntimeException(e);
+                }
+
+                if (batch.error() instanceof RuntimeException) {
+                    throw (RuntimeException) batch.error();
+                }
+                else if (batch.error() instanceof Error) {
+                    throw (Error) batch.error();
+                }
+            }
+
+            current = batch.rows()[index++];
+            return true;
+        }
+
+        @Override
+        public void reset() {
+            close();
+            batch = EMPTY;
+            index = 0;
+            current = null;
+        }
+
+        @Override
+        public void close() {
+            if (producer != null) {
+                producer.closed = true;
+                producer.interrupt();
+                producer.queue.clear();
+                producer = null;
+            }
+        }
+    }
+
+    /**
+     * Decodes the rows into its own queue, so that a producer which is still running after the consumer has been
+     * reset cannot interfere with the next one.
+     */
+    private class Producer extends Thread {
+
+        private final BlockingQueue<Batch> queue;
+        private volatile boolean closed;
+
+        private Producer(BlockingQueue<Batch> queue) {
+            super("jfr-analytics-prefetch");
+            this.queue = queue;
+            setDaemon(true);
+        }
+
+        @Override
+        public void run() {
+            Enumerator<Object[]> enumerator = rows.enumerator();
+
+            try {
+                Object[][] batch = new Object[BATCH_SIZE][];
+                int size = 0;
+
+                while (!closed && enumerator.moveNext()) {
+                    batch[size++] = enumerator.current();
+
+                    if (size == BATCH_SIZE) {
+                        queue.put(new Batch(batch, size, false, null));
+                        batch = new Object[BATCH_SIZE][];
+                        size = 0;
+                    }
+                }
+
+                queue.put(new Batch(batch, size, true, null));
+            }
+            catch (InterruptedException e) {
+                // closed by the consumer
+            }
+            catch (RuntimeException | Error e) {
+                if (!closed) {
+                    queue.clear();
+                    queue.offer(new Batch(EMPTY.rows(), 0, true, e));
+                }
+            }
+            finally {
+                enumerator.close();
+            }
+        }
+    }
+
+    /**
+     * @param last whether this is the last batch
+     * @param error the exception raised by the producer, if any
+     */
+    record Batch(Object[][] rows, int size, boolean last, @Nullable Throwable error) {
+    }
+}
@@ -0,0 +1,254 @@
+/*
+ *  Copyright 2021 - 2023 The original authors
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package org.moditect.jfranalytics;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.moditect.jfranalytics.AttributeValueConverter.LongValueConverter;
+
+import jdk.jfr.consumer.RecordedEvent;
+
+/**
+ * Computes the aggregates {@code COUNT}, {@code SUM}, {@code SUM0}, {@code MIN}, and {@code MAX} of integer or
+ * timestamp values, optionally grouped by some columns, while scanning a table. Events are added directly, retrieving
+ * only the values of the group and argument columns, i.e. without creating a row for each event; the arguments of
+ * {@link LongValueConverter}s are retrieved without boxing. Rows, e.g. when served from the
+ * {@link ColumnarTableCache}, can be added too.
+ * <p>
+ * The values of a group are kept in a {@code long[]} with two slots per aggregate: its value and the number of
+ * non-null arguments. The aggregators of several parts of a scan, e.g. the chunks of a recording decoded in parallel,
+ * can be merged.
+ */
+public class ScanAggregator {
+
+    private static final Object NO_GROUP = new Object();
+
+    private final int groupCount;
+    private final String[] functions;
+    private final int[] arguments;
+    private final boolean[] counts;
+    private final Map<Object, long[]> groups = new HashMap<>();
+
+    /**
+     * @param groupCount the number of group columns; the values to aggregate are made up of the group values,
+     *        followed by the argument values
+     * @param functions the names of the aggregate functions
+     * @param arguments the position of each aggregate's argument within the values, -1 for {@code COUNT(*)}
+     */
+    public ScanAggregator(int groupCount, String[] functions, int[] arguments) {
+        this.groupCount = groupCount;
+        this.functions = functions;
+        this.arguments = arguments;
+        this.counts = new boolean[functions.length];
+
+        for (int i = 0; i < functions.length; i++) {
+            counts[i] = functions[i].equals("COUNT");
+        }
+    }
+
+    /**
+     * Adds the given event, using the given converters for retrieving the values.
+     */
+    public void add(RecordedEvent event, AttributeValueConverter[] converters) {
+        long[] accumulators = getAccumulators(getGroupKey(event, converters));
+
+        for (int i = 0; i < arguments.length; i++) {
+            int argument = arguments[i];
+
+            if (argument == -1) {
+                accumulate(accumulators, i, 0);
+            }
+            else if (converters[argument] instanceof LongValueConverter) {
+                accumulate(accumulators, i, ((LongValueConverter) converters[argument]).getLong(event));
+            }
+            else {
+                Object value = converters[argument].getValue(event);
+                if (value != null) {
+                    accumulate(accumulators, i, getLong(value, i));
+                }
+            }
+        }
+    }
+
+    /**
+     * Adds the given row, made up of the group values followed by the argument values.
+     */
+    public void add(Object[] row) {
+        long[] accumulators = getAccumulators(getGroupKey(row));
+
+        for (int i = 0; i < arguments.length; i++) {
+            if (arguments[i] == -1) {
+                accumulate(accumulators, i, 0);
+            }
+            else {
+                Object value = row[arguments[i]];
+                if (value != null) {
+                    accumulate(accumulators, i, getLong(value, i));
+                }
+            }
+        }
+    }
+
+    /**
+     * Returns a new, empty aggregator for the same aggregates, e.g. for aggregating one part of a scan.
+     */
+    public ScanAggregator copy() {
+        return new ScanAggregator(groupCount, functions, arguments);
+    }
+
+    public ScanAggregator merge(ScanAggregator other) {
+        for (Map.Entry<Object, long[]> group : other.groups.entrySet()) {
+            long[] accumulators = groups.get(group.getKey());
+
+            if (accumulators == null) {
+                groups.put(group.getKey(), group.getValue());
+            }
+            else {
+                for (int i = 0; i < functions.length; i++) {
+                    merge(accumulators, i, group.getValue());
+                }
+            }
+        }
+
+        return this;
+    }
+
+    /**
+     * Returns the result rows, made up of the group values followed by the aggregates.
+     *
+     * @param types the SQL type names of the results of the aggregate functions
+     */
+    public List<Object[]> getRows(String[] types) {
+        // without grouping, there's exactly one result row, also if there were no events
+        if (groupCount == 0 && groups.isEmpty()) {
+            groups.put(NO_GROUP, new long[functions.length * 2]);
+        }
+
+        List<Object[]> rows = new ArrayList<>(groups.size());
+
+        for (Map.Entry<Object, long[]> group : groups.entrySet()) {
+            Object[] row = new Object[groupCount + functions.length];
+
+            if (groupCount == 1) {
+                row[0] = group.getKey();
+            }
+            else if (groupCount > 1) {
+                ((List<?>) group.getKey()).toArray(row);
+            }
+
+            long[] accumulators = group.getValue();
+            for (int i = 0; i < functions.length; i++) {
+                boolean isNull = accumulators[i * 2 + 1] == 0 && !functions[i].equals("COUNT") && !functions[i].equals("SUM0");
+                row[groupCount + i] = isNull ? null : TopStackTracesAggregator.toValue(accumulators[i * 2], types[i]);
+            }
+
+            rows.add(row);
+        }
+
+        return rows;
+    }
+
+    private Object getGroupKey(RecordedEvent event, AttributeValueConverter[] converters) {
+        if (groupCount == 0) {
+            return NO_GROUP;
+        }
+        else if (groupCount == 1) {
+            return converters[0].getValue(event);
+        }
+
+        Object[] key = new Object[groupCount];
+        for (int i = 0; i < groupCount; i++) {
+            key[i] = converters[i].getValue(event);
+        }
+
+        return Arrays.asList(key);
+    }
+
+    private Object getGroupKey(Object[] row) {
+        if (groupCount == 0) {
+            return NO_GROUP;
+        }
+        else if (groupCount == 1) {
+            return row[0];
+        }
+
+        return Arrays.asList(Arrays.copyOf(row, groupCount));
+    }
+
+    private long[] getAccumulators(Object key) {
+        long[] accumulators = groups.get(key);
+
+        if (accumulators == null) {
+            accumulators = new long[functions.length * 2];
+            groups.put(key, accumulators);
+        }
+
+        return accumulators;
+    }
+
+    /**
+     * Returns the given non-null argument value as {@code long}; the arguments of {@code COUNT} may be of any type, as
+     * only their presence is counted.
+     */
+    private long getLong(Object value, int aggregate) {
+        return counts[aggregate] ? 0 : ((Number) value).longValue();
+    }
+
+    private void accumulate(long[] accumulators, int aggregate, long value) {
+        int slot = aggregate * 2;
+
+        switch (functions[aggregate]) {
+            case "COUNT":
+                accumulators[slot]++;
+                break;
+            case "MIN":
+                accumulators[slot] = accumulators[slot + 1] == 0 ? value : Math.min(accumulators[slot], value);
+                break;
+            case "MAX":
+                accumulators[slot] = accumulators[slot + 1] == 0 ? value : Math.max(accumulators[slot], value);
+                break;
+            default:
+                accumulators[slot] += value;
+        }
+
+        accumulators[slot + 1]++;
+    }
+
+    private void merge(long[] target, int aggregate, long[] source) {
+        int slot = aggregate * 2;
+
+        if (source[slot + 1] == 0) {
+            return;
+        }
+
+        switch (functions[aggregate]) {
+            case "MIN":
+                target[slot] = target[slot + 1] == 0 ? source[slot] : Math.min(target[slot], source[slot]);
+                break;
+            case "MAX":
+                target[slot] = target[slot + 1] == 0 ? source[slot] : Math.max(target[slot], source[slot]);
+                break;
+            default:
+                target[slot] += source[slot];
+        }
+
+        target[slot + 1] += source[slot + 1];
+    }
+}
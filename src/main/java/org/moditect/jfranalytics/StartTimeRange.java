@@ -0,0 +1,170 @@
+/*
+ *  Copyright 2021 - 2023 The original authors
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package org.moditect.jfranalytics;
+
+import java.sql.Timestamp;
+import java.util.List;
+
+import org.apache.calcite.DataContext;
+import org.apache.calcite.plan.RelOptUtil;
+import org.apache.calcite.rex.RexCall;
+import org.apache.calcite.rex.RexDynamicParam;
+import org.apache.calcite.rex.RexInputRef;
+import org.apache.calcite.rex.RexLiteral;
+import org.apache.calcite.rex.RexNode;
+import org.apache.calcite.runtime.SqlFunctions;
+import org.apache.calcite.sql.SqlKind;
+import org.apache.calcite.sql.type.SqlTypeFamily;
+import org.apache.calcite.util.Sarg;
+import org.apache.calcite.util.TimestampString;
+import org.checkerframework.checker.nullness.qual.Nullable;
+
+import com.google.common.collect.Range;
+
+/**
+ * The range of {@code startTime} values a scan is restricted to, as derived from the filters of a query. Used for
+ * skipping chunks which cannot contain any matching events. Only the lower bound is taken into account: an event
+ * cannot start after the end of the chunk containing it, but it may have started before the beginning of that chunk,
+ * so an upper bound doesn't allow to rule out any chunks.
+ * <p>
+ * Bounds are given in the representation used for {@code startTime} column values, i.e. milliseconds since the epoch,
+ * adjusted by the local time zone offset.
+ */
+public class StartTimeRange {
+
+    public static final StartTimeRange UNBOUNDED = new StartTimeRange(Long.MIN_VALUE);
+
+    private final long lowerBound;
+
+    private StartTimeRange(long lowerBound) {
+        this.lowerBound = lowerBound;
+    }
+
+    /**
+     * Derives the range from the given filters, which are expected to be conjunctions. Comparisons of the
+     * {@code startTime} column with literals or dynamic parameters are taken into account, any other predicates are
+     * ignored.
+     */
+    public static StartTimeRange fromFilters(List<RexNode> filters, int startTimeIndex, @Nullable DataContext root) {
+        if (startTimeIndex < 0) {
+            return UNBOUNDED;
+        }
+
+        long lowerBound = Long.MIN_VALUE;
+
+        for (RexNode filter : filters) {
+            for (RexNode conjunction : RelOptUtil.conjunctions(filter)) {
+                Long bound = getLowerBound(conjunction, startTimeIndex, root);
+                if (bound != null && bound > lowerBound) {
+                    lowerBound = bound;
+                }
+            }
+        }
+
+        return lowerBound == Long.MIN_VALUE ? UNBOUNDED : new StartTimeRange(lowerBound);
+    }
+
+    public boolean isUnbounded() {
+        return lowerBound == Long.MIN_VALUE;
+    }
+
+    public long getLowerBound() {
+        return lowerBound;
+    }
+
+    /**
+     * Whether the given chunk may contain events within this range. Unfinished chunks don't have their final duration
+     * yet, so they always are considered a potential match.
+     */
+    public boolean mayMatch(JfrChunk chunk) {
+        if (isUnbounded() || !chunk.isFinished()) {
+            return true;
+        }
+
+        long chunkEnd = Math.floorDiv(chunk.getEndNanos(), 1_000_000L) + JfrSchema.LOCAL_OFFSET;
+        return chunkEnd >= lowerBound;
+    }
+
+    private static @Nullable Long getLowerBound(RexNode filter, int startTimeIndex, @Nullable DataContext root) {
+        if (!(filter instanceof RexCall)) {
+            return null;
+        }
+
+        RexCall call = (RexCall) filter;
+        List<RexNode> operands = call.getOperands();
+
+        switch (call.getKind()) {
+            case GREATER_THAN:
+            case GREATER_THAN_OR_EQUAL:
+                return isStartTime(operands.get(0), startTimeIndex) ? getValue(operands.get(1), root) : null;
+            case LESS_THAN:
+            case LESS_THAN_OR_EQUAL:
+                return isStartTime(operands.get(1), startTimeIndex) ? getValue(operands.get(0), root) : null;
+            case EQUALS:
+                if (isStartTime(operands.get(0), startTimeIndex)) {
+                    return getValue(operands.get(1), root);
+                }
+                return isStartTime(operands.get(1), startTimeIndex) ? getValue(operands.get(0), root) : null;
+            case SEARCH:
+                if (!isStartTime(operands.get(0), startTimeIndex) || !(operands.get(1) instanceof RexLiteral)) {
+                    return null;
+                }
+
+                Sarg<?> sarg = ((RexLiteral) operands.get(1)).getValueAs(Sarg.class);
+                if (sarg == null || sarg.rangeSet.isEmpty()) {
+                    return null;
+                }
+
+                Range<?> span = sarg.rangeSet.span();
+                return span.hasLowerBound() ? toMillis(span.lowerEndpoint()) : null;
+            default:
+                return null;
+        }
+    }
+
+    private static boolean isStartTime(RexNode node, int startTimeIndex) {
+        if (node.isA(SqlKind.CAST) && node.getType().getSqlTypeName().getFamily() == SqlTypeFamily.TIMESTAMP) {
+            node = ((RexCall) node).getOperands().get(0);
+        }
+
+        return node instanceof RexInputRef && ((RexInputRef) node).getIndex() == startTimeIndex;
+    }
+
+    private static @Nullable Long getValue(RexNode node, @Nullable DataContext root) {
+        if (node instanceof RexLiteral) {
+            return toMillis(((RexLiteral) node).getValue4());
+        }
+        else if (node instanceof RexDynamicParam && root != null) {
+            return toMillis(root.get("?" + ((RexDynamicParam) node).getIndex()));
+        }
+
+        return null;
+    }
+
+    private static @Nullable Long toMillis(@Nullable Object value) {
+        if (value instanceof Long) {
+            return (Long) value;
+        }
+        else if (value instanceof TimestampString) {
+            return ((TimestampString) value).getMillisSinceEpoch();
+        }
+        else if (value instanceof Timestamp) {
+            return SqlFunctions.toLong((Timestamp) value);
+        }
+
+        return null;
+    }
+}
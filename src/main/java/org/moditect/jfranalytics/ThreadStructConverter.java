@@ -0,0 +1,74 @@
+/*
+ *  Copyright 2021 - 2023 The original authors
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package org.moditect.jfranalytics;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import jdk.jfr.consumer.RecordedEvent;
+import jdk.jfr.consumer.RecordedThread;
+
+/**
+ * Converts attributes of type {@code java.lang.Thread} into structs with the fields {@code osName},
+ * {@code osThreadId}, {@code javaName}, {@code javaThreadId}, and {@code group}. The JFR parser returns the same
+ * {@link RecordedThread} instance for all the events of a chunk referring to the same thread, so the struct of each
+ * instance is built once and then shared by all the rows referring to it. Up to {@value #MAX_THREADS} structs are
+ * kept; the converter may be used by several scans concurrently.
+ */
+public class ThreadStructConverter implements AttributeValueConverter {
+
+    private static final int MAX_THREADS = 10_000;
+
+    private final String fieldName;
+
+    // RecordedThread doesn't override equals() and hashCode(), i.e. instances are compared by identity
+    private final Map<RecordedThread, Object[]> structs = new ConcurrentHashMap<>();
+
+    public ThreadStructConverter(String fieldName) {
+        this.fieldName = fieldName;
+    }
+
+    @Override
+    public Object getValue(RecordedEvent event) {
+        RecordedThread recordedThread = (RecordedThread) event.getValue(fieldName);
+        if (recordedThread == null) {
+            return null;
+        }
+
+        Object[] struct = structs.get(recordedThread);
+
+        if (struct == null) {
+            if (structs.size() >= MAX_THREADS) {
+                structs.clear();
+            }
+
+            struct = toStruct(recordedThread);
+            structs.put(recordedThread, struct);
+        }
+
+        return struct;
+    }
+
+    static Object[] toStruct(RecordedThread recordedThread) {
+        return new Object[]{
+                recordedThread.getOSName(),
+                recordedThread.getOSThreadId(),
+                recordedThread.getJavaName(),
+                recordedThread.getJavaThreadId(),
+                recordedThread.getThreadGroup() != null ? recordedThread.getThreadGroup().getName() : null,
+        };
+    }
+}
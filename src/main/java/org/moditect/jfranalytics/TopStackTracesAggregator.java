@@ -0,0 +1,237 @@
+/*
+ *  Copyright 2021 - 2023 The original authors
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package org.moditect.jfranalytics;
+
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+
+import org.apache.calcite.linq4j.AbstractEnumerable;
+import org.apache.calcite.linq4j.Enumerable;
+import org.apache.calcite.linq4j.Enumerator;
+import org.apache.calcite.linq4j.Linq4j;
+import org.apache.calcite.linq4j.tree.Types;
+import org.checkerframework.checker.nullness.qual.Nullable;
+
+import jdk.jfr.consumer.RecordedStackTrace;
+
+/**
+ * Executes "top K stack traces" aggregations. Rows are first aggregated per {@link RecordedStackTrace} instance, of
+ * which the JFR parser returns the same one for all the events of a chunk with the same stack trace, using primitive
+ * {@code long} accumulators. Whenever {@value #MAX_INSTANCES} distinct instances have been aggregated (and at the end of
+ * the input), these are truncated and merged into the groups per truncated stack trace; so each distinct instance
+ * is truncated only once. Finally, the groups are passed through a bounded heap of the top {@code offset + fetch}
+ * groups, i.e. only those are sorted.
+ */
+public class TopStackTracesAggregator {
+
+    static final Method AGGREGATE_METHOD = Types.lookupMethod(TopStackTracesAggregator.class, "aggregate", Enumerable.class, int.class, int.class,
+            String[].class, int[].class, String[].class, int.class, boolean.class, boolean.class, int.class, int.class);
+
+    private static final int MAX_INSTANCES = 10_000;
+
+    private TopStackTracesAggregator() {
+    }
+
+    /**
+     * Aggregates the given rows.
+     *
+     * @param input the rows to aggregate
+     * @param stackTraceField the index of the field holding the stack traces
+     * @param depth the number of frames to truncate the stack traces to
+     * @param functions the names of the aggregate functions ({@code COUNT}, {@code SUM}, {@code SUM0})
+     * @param arguments the index of the argument field of each aggregate function, -1 for {@code COUNT(*)}
+     * @param types the SQL type names of the results of the aggregate functions
+     * @param sortAggregate the index of the aggregate to order the groups by
+     * @param descending whether to order the groups in descending order
+     * @param nullsFirst whether to put groups with a {@code null} aggregate value first
+     * @param offset the number of groups to skip
+     * @param fetch the maximum number of groups to return
+     */
+    public static Enumerable<Object[]> aggregate(Enumerable<Object[]> input, int stackTraceField, int depth, String[] functions, int[] arguments,
+                                                 String[] types, int sortAggregate, boolean descending, boolean nullsFirst, int offset, int fetch) {
+        return new AbstractEnumerable<>() {
+
+            @Override
+            public Enumerator<Object[]> enumerator() {
+                boolean[] counts = new boolean[functions.length];
+                for (int i = 0; i < functions.length; i++) {
+                    counts[i] = functions[i].equals("COUNT");
+                }
+
+                Map<String, long[]> groups = new HashMap<>();
+                Map<Object, long[]> instances = new IdentityHashMap<>();
+                long[] noStackTrace = null;
+
+                try (Enumerator<Object[]> rows = input.enumerator()) {
+                    while (rows.moveNext()) {
+                        Object[] row = rows.current();
+                        Object stackTrace = row[stackTraceField];
+                        long[] accumulators;
+
+                        if (stackTrace == null) {
+                            if (noStackTrace == null) {
+                                noStackTrace = new long[functions.length * 2];
+                            }
+                            accumulators = noStackTrace;
+                        }
+                        else {
+                            accumulators = instances.get(stackTrace);
+
+                            if (accumulators == null) {
+                                if (instances.size() == MAX_INSTANCES) {
+                                    mergeInto(groups, instances, depth);
+                                }
+
+                                accumulators = new long[functions.length * 2];
+                                instances.put(stackTrace, accumulators);
+                            }
+                        }
+
+                        add(accumulators, row, arguments, counts);
+                    }
+                }
+
+                mergeInto(groups, instances, depth);
+                if (noStackTrace != null) {
+                    merge(groups.computeIfAbsent(null, k -> new long[functions.length * 2]), noStackTrace);
+                }
+
+                return Linq4j.enumerator(getTop(groups, functions, types, sortAggregate, descending, nullsFirst, offset, fetch));
+            }
+        };
+    }
+
+    /**
+     * Adds the given row to the given accumulators, which hold the value and the number of non-null arguments of each
+     * aggregate. {@code COUNT} aggregates count the non-null values of their argument, which may be of any type.
+     */
+    private static void add(long[] accumulators, Object[] row, int[] arguments, boolean[] counts) {
+        for (int i = 0; i < arguments.length; i++) {
+            if (arguments[i] == -1) {
+                accumulators[i * 2]++;
+                accumulators[i * 2 + 1]++;
+            }
+            else {
+                Object value = row[arguments[i]];
+                if (value != null) {
+                    accumulators[i * 2] += counts[i] ? 1 : ((Number) value).longValue();
+                    accumulators[i * 2 + 1]++;
+                }
+            }
+        }
+    }
+
+    private static void merge(long[] target, long[] source) {
+        for (int i = 0; i < target.length; i++) {
+            target[i] += source[i];
+        }
+    }
+
+    private static void mergeInto(Map<String, long[]> groups, Map<Object, long[]> instances, int depth) {
+        for (Map.Entry<Object, long[]> instance : instances.entrySet()) {
+            String truncated = TruncateStackTraceFunction.getTruncated(instance.getKey(), depth);
+            long[] accumulators = groups.get(truncated);
+
+            if (accumulators == null) {
+                groups.put(truncated, instance.getValue());
+            }
+            else {
+                merge(accumulators, instance.getValue());
+            }
+        }
+
+        instances.clear();
+    }
+
+    private static List<Object[]> getTop(Map<String, long[]> groups, String[] functions, String[] types, int sortAggregate, boolean descending,
+                                         boolean nullsFirst, int offset, int fetch) {
+        Comparator<long[]> order = getOrder(functions[sortAggregate], sortAggregate, descending, nullsFirst);
+        int size = offset + fetch;
+
+        // the head of the heap is the last of the top groups seen so far
+        PriorityQueue<Map.Entry<String, long[]>> top = new PriorityQueue<>(size + 1, Map.Entry.<String, long[]> comparingByValue(order).reversed());
+
+        for (Map.Entry<String, long[]> group : groups.entrySet()) {
+            if (top.size() < size) {
+                top.add(group);
+            }
+            else if (size > 0 && order.compare(group.getValue(), top.peek().getValue()) < 0) {
+                top.poll();
+                top.add(group);
+            }
+        }
+
+        List<Map.Entry<String, long[]>> sorted = new ArrayList<>(top);
+        sorted.sort(Map.Entry.comparingByValue(order));
+
+        List<Object[]> rows = new ArrayList<>(fetch);
+        for (int i = offset; i < sorted.size(); i++) {
+            rows.add(toRow(sorted.get(i), functions, types));
+        }
+
+        return rows;
+    }
+
+    private static Comparator<long[]> getOrder(String function, int aggregate, boolean descending, boolean nullsFirst) {
+        Comparator<long[]> values = Comparator.comparingLong(accumulators -> accumulators[aggregate * 2]);
+        Comparator<long[]> order = descending ? values.reversed() : values;
+
+        return (a1, a2) -> {
+            boolean null1 = isNull(function, a1, aggregate);
+            boolean null2 = isNull(function, a2, aggregate);
+
+            if (null1 || null2) {
+                return null1 == null2 ? 0 : (null1 == nullsFirst ? -1 : 1);
+            }
+
+            return order.compare(a1, a2);
+        };
+    }
+
+    private static boolean isNull(String function, long[] accumulators, int aggregate) {
+        return function.equals("SUM") && accumulators[aggregate * 2 + 1] == 0;
+    }
+
+    private static Object[] toRow(Map.Entry<String, long[]> group, String[] functions, String[] types) {
+        Object[] row = new Object[functions.length + 1];
+        row[0] = group.getKey();
+
+        for (int i = 0; i < functions.length; i++) {
+            row[i + 1] = isNull(functions[i], group.getValue(), i) ? null : toValue(group.getValue()[i * 2], types[i]);
+        }
+
+        return row;
+    }
+
+    static @Nullable Object toValue(long value, String type) {
+        switch (type) {
+            case "TINYINT":
+                return (byte) value;
+            case "SMALLINT":
+                return (short) value;
+            case "INTEGER":
+                return (int) value;
+            default:
+                return value;
+        }
+    }
+}
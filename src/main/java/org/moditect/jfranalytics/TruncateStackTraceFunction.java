@@ -15,42 +15,112 @@
  */
 package org.moditect.jfranalytics;
 
+import java.lang.ref.WeakReference;
 import java.util.List;
 
 import org.apache.calcite.schema.ScalarFunction;
 import org.apache.calcite.schema.impl.ScalarFunctionImpl;
 
-import jdk.jfr.consumer.RecordedFrame;
 import jdk.jfr.consumer.RecordedStackTrace;
 
 /**
  * Truncates a {@link RecordedStackTrace} to the given maximum depth.
+ * <p>
+ * The JFR parser returns the same {@code RecordedStackTrace} instance for all the events of a chunk referring to the
+ * same stack trace from the constant pool. Results are cached, keyed by that instance and the depth, so each distinct
+ * stack trace is formatted only once, also when being referenced by millions of events. As a stack trace references
+ * the object graph of its chunk, the cache refers to it weakly, i.e. it doesn't retain the chunks of recordings
+ * which are not queried any longer. The cache keeps at most {@code jfranalytics.stackTraceCacheSize} results (system
+ * property, defaults to {@value #DEFAULT_CACHE_SIZE}).
  */
 public class TruncateStackTraceFunction {
 
     public static final ScalarFunction INSTANCE = ScalarFunctionImpl.create(TruncateStackTraceFunction.class, "eval");
 
+    public static final String CACHE_SIZE_PROPERTY = "jfranalytics.stackTraceCacheSize";
+    private static final int DEFAULT_CACHE_SIZE = 10_000;
+
+    private static final LruCache<CacheKey, String> CACHE = new LruCache<>(Integer.getInteger(CACHE_SIZE_PROPERTY, DEFAULT_CACHE_SIZE));
+
     public String eval(Object recordedStackTrace, int depth) {
         if (recordedStackTrace == null) {
             return null;
         }
-        if (!(recordedStackTrace instanceof RecordedStackTrace)) {
+        if (!(recordedStackTrace instanceof RecordedStackTrace) && !(recordedStackTrace instanceof IndexedStackTrace)) {
             throw new IllegalArgumentException("Unexpected value type: " + recordedStackTrace);
         }
         if (depth < 1) {
             throw new IllegalArgumentException("At least one frame must be retained");
         }
 
-        List<RecordedFrame> frames = ((RecordedStackTrace) recordedStackTrace).getFrames();
+        return getTruncated(recordedStackTrace, depth);
+    }
+
+    /**
+     * @param stackTrace a {@link RecordedStackTrace} or an {@link IndexedStackTrace}
+     */
+    static String getTruncated(Object stackTrace, int depth) {
+        return CACHE.computeIfAbsent(new CacheKey(stackTrace, depth), key -> truncate(stackTrace, depth));
+    }
+
+    /**
+     * Returns the cache of truncated stack traces, e.g. for examining its hit rate.
+     */
+    public static LruCache<?, String> getCache() {
+        return CACHE;
+    }
+
+    private static String truncate(Object stackTrace, int depth) {
+        List<String> frames = FrameHelper.getFrames(stackTrace);
         StringBuilder builder = new StringBuilder();
 
-        int i = 0;
-        while (i < depth && i < frames.size()) {
-            builder.append(FrameHelper.asText(frames.get(i)));
+        for (int i = 0; i < depth && i < frames.size(); i++) {
+            builder.append(frames.get(i));
             builder.append(System.lineSeparator());
-            i++;
         }
 
         return builder.toString();
     }
+
+    /**
+     * Refers to {@code RecordedStackTrace}s weakly; once one got collected, its entry doesn't match any key any more
+     * and only holds on to the truncated string until it gets evicted. {@code RecordedStackTrace} doesn't override
+     * {@code equals()}, i.e. these are compared by identity, whereas {@link IndexedStackTrace}s, which don't reference
+     * any chunk, are compared by value.
+     */
+    private static final class CacheKey {
+
+        private final Object stackTrace;
+        private final int depth;
+        private final int hashCode;
+
+        CacheKey(Object stackTrace, int depth) {
+            this.stackTrace = stackTrace instanceof RecordedStackTrace ? new WeakReference<>(stackTrace) : stackTrace;
+            this.depth = depth;
+            this.hashCode = 31 * stackTrace.hashCode() + depth;
+        }
+
+        private Object getStackTrace() {
+            return stackTrace instanceof WeakReference ? ((WeakReference<?>) stackTrace).get() : stackTrace;
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            if (this == obj) {
+                return true;
+            }
+            if (!(obj instanceof CacheKey)) {
+                return false;
+            }
+
+            CacheKey other = (CacheKey) obj;
+            Object stackTrace = getStackTrace();
+            return hashCode == other.hashCode && depth == other.depth && stackTrace != null && stackTrace.equals(other.getStackTrace());
+        }
+
+        @Override
+        public int hashCode() {
+            return hashCode;
+        }
+    }
 }
@@ -0,0 +1,393 @@
+/*
+ *  Copyright 2021 - 2023 The original authors
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package org.moditect.jfranalytics;
+
+import java.lang.reflect.Method;
+import java.math.BigDecimal;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.TreeMap;
+
+import org.apache.calcite.linq4j.AbstractEnumerable;
+import org.apache.calcite.linq4j.Enumerable;
+import org.apache.calcite.linq4j.Enumerator;
+import org.apache.calcite.linq4j.tree.Types;
+import org.checkerframework.checker.nullness.qual.Nullable;
+
+/**
+ * Executes windowed aggregations over a stream of rows ordered by a timestamp column. Each row is assigned to one
+ * (tumbling windows) or more (hopping windows) windows, and within each window to a group as per the remaining group
+ * keys. The results of a window are emitted as soon as a row with a timestamp at or after the window's end is
+ * encountered, and the window's state is discarded then, i.e. memory usage is bounded by the number of open windows
+ * and groups rather than by the length of the stream. When the input ends, all open windows are emitted.
+ * <p>
+ * Rows arriving after the window(s) they belong to have been emitted are ignored.
+ */
+public class WindowAggregator {
+
+    static final Method AGGREGATE_METHOD = Types.lookupMethod(WindowAggregator.class, "aggregate", Enumerable.class, int.class, long.class,
+            long.class, long.class, int[].class, String[].class, int[].class, String[].class, boolean.class);
+
+    private WindowAggregator() {
+    }
+
+    /**
+     * Aggregates the given rows.
+     *
+     * @param input the rows to aggregate, ordered by the time field
+     * @param timeField the index of the time field within the input rows; its values are epoch milli-seconds
+     * @param size the size of the windows, in milli-seconds
+     * @param slide the distance between the starts of two subsequent windows, in milli-seconds; equal to {@code size} for
+     *        tumbling windows
+     * @param offset the alignment of the windows relative to the epoch, in milli-seconds
+     * @param groupFields the indexes of the fields to group by, including the time field, whose value in the result
+     *        rows is the start of the window
+     * @param functions the names of the aggregate functions ({@code COUNT}, {@code SUM}, {@code SUM0}, {@code MIN},
+     *        {@code MAX})
+     * @param arguments the index of the argument field of each aggregate function, -1 for {@code COUNT(*)}
+     * @param types the SQL type names of the results of the aggregate functions
+     * @param scalar whether to emit the value of the single result column instead of rows
+     */
+    public static Enumerable<Object> aggregate(Enumerable<Object[]> input, int timeField, long size, long slide, long offset, int[] groupFields,
+                                               String[] functions, int[] arguments, String[] types, boolean scalar) {
+        return new AbstractEnumerable<>() {
+
+            @Override
+            public Enumerator<Object> enumerator() {
+                return new WindowEnumerator(input.enumerator(), timeField, size, slide, offset, groupFields, functions, arguments, types, scalar);
+            }
+        };
+    }
+
+    private static class WindowEnumerator implements Enumerator<Object> {
+
+        private final Enumerator<Object[]> input;
+        private final int timeField;
+        private final long size;
+        private final long slide;
+        private final long offset;
+        private final int[] groupFields;
+        private final String[] functions;
+        private final int[] arguments;
+        private final String[] types;
+        private final boolean scalar;
+
+        // the open windows, keyed by their start
+        private final NavigableMap<Long, Map<GroupKey, Accumulator[]>> windows = new TreeMap<>();
+        private final Deque<Object> pending = new ArrayDeque<>();
+        private long watermark = Long.MIN_VALUE;
+        private boolean inputDone;
+        private Object current;
+
+        WindowEnumerator(Enumerator<Object[]> input, int timeField, long size, long slide, long offset, int[] groupFields, String[] functions,
+                         int[] arguments, String[] types, boolean scalar) {
+            this.input = input;
+            this.timeField = timeField;
+            this.size = size;
+            this.slide = slide;
+            this.offset = offset;
+            this.groupFields = groupFields;
+            this.functions = functions;
+            this.arguments = arguments;
+            this.types = types;
+            this.scalar = scalar;
+        }
+
+        @Override
+        public Object current() {
+            return current;
+        }
+
+        @Override
+        public boolean moveNext() {
+            while (pending.isEmpty() && !inputDone) {
+                if (input.moveNext()) {
+                    add(input.current());
+                }
+                else {
+                    inputDone = true;
+                    emit(Long.MAX_VALUE);
+                }
+            }
+
+            current = pending.poll();
+            return current != null;
+        }
+
+        @Override
+        public void reset() {
+            input.reset();
+            windows.clear();
+            pending.clear();
+            watermark = Long.MIN_VALUE;
+            inputDone = false;
+            current = null;
+        }
+
+        @Override
+        public void close() {
+            input.close();
+        }
+
+        private void add(Object[] row) {
+            Object time = row[timeField];
+            if (time == null) {
+                return;
+            }
+
+            long timestamp = ((Number) time).longValue();
+            if (timestamp > watermark) {
+                watermark = timestamp;
+                emit(watermark);
+            }
+
+            GroupKey key = null;
+            long lastStart = timestamp - Math.floorMod(timestamp - offset, slide);
+
+            for (long start = lastStart; start > timestamp - size; start -= slide) {
+                // the window has been emitted already
+                if (start + size <= watermark) {
+                    break;
+                }
+
+                if (key == null) {
+                    key = getGroupKey(row);
+                }
+
+                Accumulator[] accumulators = windows.computeIfAbsent(start, s -> new LinkedHashMap<>()).computeIfAbsent(key, k -> createAccumulators());
+                for (Accumulator accumulator : accumulators) {
+                    accumulator.add(row);
+                }
+            }
+        }
+
+        /**
+         * Emits all the windows ending at or before the given time.
+         */
+        private void emit(long time) {
+            Iterator<Map.Entry<Long, Map<GroupKey, Accumulator[]>>> it = windows.entrySet().iterator();
+
+            while (it.hasNext()) {
+                Map.Entry<Long, Map<GroupKey, Accumulator[]>> window = it.next();
+                if (time != Long.MAX_VALUE && window.getKey() + size > time) {
+                    break;
+                }
+
+                for (Map.Entry<GroupKey, Accumulator[]> group : window.getValue().entrySet()) {
+                    pending.add(toRow(window.getKey(), group.getKey(), group.getValue()));
+                }
+
+                it.remove();
+            }
+        }
+
+        private GroupKey getGroupKey(Object[] row) {
+            Object[] values = new Object[groupFields.length];
+
+            for (int i = 0; i < groupFields.length; i++) {
+                values[i] = groupFields[i] == timeField ? null : row[groupFields[i]];
+            }
+
+            return new GroupKey(values);
+        }
+
+        private Object toRow(long windowStart, GroupKey key, Accumulator[] accumulators) {
+            Object[] row = new Object[groupFields.length + accumulators.length];
+
+            for (int i = 0; i < groupFields.length; i++) {
+                row[i] = groupFields[i] == timeField ? (Object) windowStart : key.values[i];
+            }
+            for (int i = 0; i < accumulators.length; i++) {
+                row[groupFields.length + i] = accumulators[i].getResult();
+            }
+
+            return scalar ? row[0] : row;
+        }
+
+        private Accumulator[] createAccumulators() {
+            Accumulator[] accumulators = new Accumulator[functions.length];
+
+            for (int i = 0; i < functions.length; i++) {
+                accumulators[i] = createAccumulator(functions[i], arguments[i], types[i]);
+            }
+
+            return accumulators;
+        }
+    }
+
+    private static Accumulator createAccumulator(String function, int argument, String type) {
+        switch (function) {
+            case "COUNT":
+                return new CountAccumulator(argument);
+            case "SUM":
+                return new SumAccumulator(argument, type, false);
+            case "SUM0":
+                return new SumAccumulator(argument, type, true);
+            case "MIN":
+                return new MinMaxAccumulator(argument, -1);
+            case "MAX":
+                return new MinMaxAccumulator(argument, 1);
+            default:
+                throw new IllegalArgumentException("Unsupported aggregate function: " + function);
+        }
+    }
+
+    private interface Accumulator {
+
+        void add(Object[] row);
+
+        @Nullable
+        Object getResult();
+    }
+
+    private static class CountAccumulator implements Accumulator {
+
+        private final int argument;
+        private long count;
+
+        CountAccumulator(int argument) {
+            this.argument = argument;
+        }
+
+        @Override
+        public void add(Object[] row) {
+            if (argument == -1 || row[argument] != null) {
+                count++;
+            }
+        }
+
+        @Override
+        public Object getResult() {
+            return count;
+        }
+    }
+
+    private static class SumAccumulator implements Accumulator {
+
+        private final int argument;
+        private final String type;
+        private final boolean zeroIfEmpty;
+        private boolean empty = true;
+        private long longSum;
+        private double doubleSum;
+        private BigDecimal decimalSum = BigDecimal.ZERO;
+
+        SumAccumulator(int argument, String type, boolean zeroIfEmpty) {
+            this.argument = argument;
+            this.type = type;
+            this.zeroIfEmpty = zeroIfEmpty;
+        }
+
+        @Override
+        public void add(Object[] row) {
+            Object value = row[argument];
+            if (value == null) {
+                return;
+            }
+
+            empty = false;
+
+            if (value instanceof Double || value instanceof Float) {
+                doubleSum += ((Number) value).doubleValue();
+            }
+            else if (value instanceof BigDecimal) {
+                decimalSum = decimalSum.add((BigDecimal) value);
+            }
+            else {
+                longSum += ((Number) value).longValue();
+            }
+        }
+
+        @Override
+        public @Nullable Object getResult() {
+            if (empty && !zeroIfEmpty) {
+                return null;
+            }
+
+            switch (type) {
+                case "TINYINT":
+                    return (byte) longSum;
+                case "SMALLINT":
+                    return (short) longSum;
+                case "INTEGER":
+                    return (int) longSum;
+                case "BIGINT":
+                    return longSum;
+                case "REAL":
+                    return (float) (doubleSum + longSum);
+                case "FLOAT":
+                case "DOUBLE":
+                    return doubleSum + longSum;
+                default:
+                    return decimalSum.add(BigDecimal.valueOf(longSum)).add(BigDecimal.valueOf(doubleSum));
+            }
+        }
+    }
+
+    private static class MinMaxAccumulator implements Accumulator {
+
+        private final int argument;
+        private final int direction;
+        private @Nullable Comparable<Object> result;
+
+        MinMaxAccumulator(int argument, int direction) {
+            this.argument = argument;
+            this.direction = direction;
+        }
+
+        @Override
+        @SuppressWarnings("unchecked")
+        public void add(Object[] row) {
+            Comparable<Object> value = (Comparable<Object>) row[argument];
+
+            if (value != null && (result == null || value.compareTo(result) * direction > 0)) {
+                result = value;
+            }
+        }
+
+        @Override
+        public @Nullable Object getResult() {
+            return result;
+        }
+    }
+
+    /**
+     * The values of the non-time group keys of a row; compared deeply, as the values of struct columns are arrays.
+     */
+    private static class GroupKey {
+
+        private final Object[] values;
+
+        GroupKey(Object[] values) {
+            this.values = values;
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            return obj instanceof GroupKey && Arrays.deepEquals(values, ((GroupKey) obj).values);
+        }
+
+        @Override
+        public int hashCode() {
+            return Arrays.deepHashCode(values);
+        }
+    }
+}
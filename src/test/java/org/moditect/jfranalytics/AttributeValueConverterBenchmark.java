@@ -0,0 +1,103 @@
+/*
+ *  Copyright 2021 - 2023 The original authors
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package org.moditect.jfranalytics;
+
+import java.io.IOException;
+import java.net.URISyntaxException;
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+
+import org.moditect.jfranalytics.AttributeValueConverter.LongValueConverter;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import jdk.jfr.consumer.RecordedEvent;
+import jdk.jfr.consumer.RecordingFile;
+
+/**
+ * Measures the cost of converting the attributes of one event into the values of a row, either retrieving all values
+ * as objects ("boxed") or retrieving the values of {@code long} columns as primitives ("primitive"), as done when
+ * filling a {@link ColumnarTable}. The events are read into memory upfront, so only the conversion is measured. Run via
+ * {@link #main(String[])}; the GC profiler reports the allocation per row in {@code gc.alloc.rate.norm}.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class AttributeValueConverterBenchmark {
+
+    @Param({ "object-allocations.jfr:jdk.ObjectAllocationSample", "class-loading.jfr:jdk.ClassLoad", "gc-configuration.jfr:jdk.GCConfiguration" })
+    public String table;
+
+    @Param({ "boxed", "primitive" })
+    public String access;
+
+    private RecordedEvent[] events;
+    private AttributeValueConverter[] converters;
+    private boolean primitive;
+    private int next;
+
+    @Setup
+    public void setUp() throws URISyntaxException, IOException {
+        String[] fileAndTable = table.split(":");
+        Path jfrFile = Path.of(AttributeValueConverterBenchmark.class.getResource("/" + fileAndTable[0]).toURI());
+
+        converters = ((JfrScannableTable) new JfrSchema(jfrFile).getTable(fileAndTable[1])).getConverters();
+        events = RecordingFile.readAllEvents(jfrFile).stream()
+                .filter(e -> e.getEventType().getName().equals(fileAndTable[1]))
+                .toArray(RecordedEvent[]::new);
+        primitive = access.equals("primitive");
+    }
+
+    @Benchmark
+    public void convertRow(Blackhole blackhole) {
+        RecordedEvent event = events[next];
+        next = next + 1 == events.length ? 0 : next + 1;
+
+        for (AttributeValueConverter converter : converters) {
+            if (primitive && converter instanceof LongValueConverter) {
+                blackhole.consume(((LongValueConverter) converter).getLong(event));
+            }
+            else {
+                blackhole.consume(converter.getValue(event));
+            }
+        }
+    }
+
+    public static void main(String[] args) throws RunnerException {
+        new Runner(new OptionsBuilder()
+                .include(AttributeValueConverterBenchmark.class.getSimpleName())
+                .addProfiler(GCProfiler.class)
+                .build())
+                        .run();
+    }
+}
@@ -0,0 +1,98 @@
+/*
+ *  Copyright 2021 - 2023 The original authors
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package org.moditect.jfranalytics;
+
+import java.net.URISyntaxException;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.calcite.jdbc.JavaTypeFactoryImpl;
+import org.apache.calcite.linq4j.Enumerator;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * Measures the cost of scanning a table, either retrieving all its columns ("wide") or just the last one ("narrow").
+ * Run via {@link #main(String[])}; the GC profiler reports the allocation per scan in {@code gc.alloc.rate.norm}.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class JfrScanBenchmark {
+
+    @Param({ "object-allocations.jfr:jdk.ObjectAllocationSample", "class-loading.jfr:jdk.ClassLoad", "gc-configuration.jfr:jdk.GCConfiguration",
+            "data-types.jfr:test.DataTypes" })
+    public String table;
+
+    @Param({ "narrow", "wide" })
+    public String projection;
+
+    private JfrScannableTable jfrTable;
+    private int[] projects;
+
+    @Setup
+    public void setUp() throws URISyntaxException {
+        String[] fileAndTable = table.split(":");
+        Path jfrFile = Path.of(JfrScanBenchmark.class.getResource("/" + fileAndTable[0]).toURI());
+
+        jfrTable = (JfrScannableTable) new JfrSchema(jfrFile).getTable(fileAndTable[1]);
+
+        if (projection.equals("narrow")) {
+            int columnCount = jfrTable.getRowType(new JavaTypeFactoryImpl()).getFieldCount();
+            projects = new int[]{ columnCount - 1 };
+        }
+    }
+
+    @Benchmark
+    public void scan(Blackhole blackhole) {
+        Enumerator<Object[]> enumerator = jfrTable.scan(null, new ArrayList<>(), projects, -1).enumerator();
+
+        try {
+            while (enumerator.moveNext()) {
+                blackhole.consume(enumerator.current());
+            }
+        }
+        finally {
+            enumerator.close();
+        }
+    }
+
+    public static void main(String[] args) throws RunnerException {
+        new Runner(new OptionsBuilder()
+                .include(JfrScanBenchmark.class.getSimpleName())
+                .addProfiler(GCProfiler.class)
+                .build())
+                        .run();
+    }
+}
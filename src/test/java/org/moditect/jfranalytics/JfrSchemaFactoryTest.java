@@ -15,9 +15,14 @@
  */
 package org.moditect.jfranalytics;
 
+import java.io.IOException;
+import java.lang.ref.WeakReference;
 import java.net.URISyntaxException;
 import java.nio.file.Files;
 import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.FileTime;
 import java.sql.Connection;
 import java.sql.DatabaseMetaData;
 import java.sql.DriverManager;
@@ -25,14 +30,49 @@ import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.SQLException;
 import java.sql.Timestamp;
+import java.sql.Types;
 import java.time.ZonedDateTime;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
 import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
 import java.util.Properties;
 import java.util.Set;
-
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+import java.util.stream.Stream;
+
+import org.apache.calcite.DataContext;
+import org.apache.calcite.DataContexts;
+import org.apache.calcite.jdbc.CalciteConnection;
+import org.apache.calcite.linq4j.Enumerable;
+import org.apache.calcite.linq4j.Enumerator;
+import org.apache.calcite.linq4j.Linq4j;
+import org.apache.calcite.schema.Schema;
+import org.apache.calcite.schema.SchemaPlus;
+import org.apache.calcite.schema.Statistics;
+import org.apache.calcite.schema.impl.AbstractSchema;
 import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import jdk.jfr.Event;
+import jdk.jfr.FlightRecorder;
+import jdk.jfr.Name;
+import jdk.jfr.Recording;
+import jdk.jfr.Timespan;
+import jdk.jfr.consumer.RecordedClass;
+import jdk.jfr.consumer.RecordedEvent;
+import jdk.jfr.consumer.RecordedStackTrace;
+import jdk.jfr.consumer.RecordingFile;
 
 import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+import static org.assertj.core.api.Assertions.withinPercentage;
 
 public class JfrSchemaFactoryTest {
 
@@ -171,6 +211,24 @@ public class JfrSchemaFactoryTest {
         }
     }
 
+    @Test
+    public void canSelectSubsetOfColumns() throws Exception {
+        try (Connection connection = getConnection("data-types.jfr")) {
+            PreparedStatement statement = connection.prepareStatement("""
+                    SELECT "someString", "someInt" FROM jfr."test.DataTypes"
+                    """);
+
+            try (ResultSet rs = statement.executeQuery()) {
+                assertThat(rs.next()).isTrue();
+
+                assertThat(rs.getString(1)).isEqualTo("SQL rockz");
+                assertThat(rs.getInt(2)).isEqualTo(Integer.MAX_VALUE);
+
+                assertThat(rs.next()).isFalse();
+            }
+        }
+    }
+
     @Test
     public void canRunSimpleSelectFromThreadSleep() throws Exception {
         try (Connection connection = getConnection("basic.jfr")) {
@@ -290,6 +348,42 @@ public class JfrSchemaFactoryTest {
         }
     }
 
+    @Test
+    public void canConvertTimespansToNanos(@TempDir Path tempDir) throws Exception {
+        Path jfrFile = tempDir.resolve("timespans.jfr");
+
+        try (Recording recording = new Recording()) {
+            recording.enable(TimespansEvent.class);
+            recording.start();
+
+            TimespansEvent event = new TimespansEvent();
+            event.micros = 1_500;
+            event.seconds = 3;
+            event.overflowing = Long.MAX_VALUE / 10;
+            event.absent = Long.MIN_VALUE;
+            event.commit();
+
+            recording.stop();
+            recording.dump(jfrFile);
+        }
+
+        try (Connection connection = getConnection(jfrFile)) {
+            try (ResultSet rs = connection.prepareStatement("""
+                    SELECT "micros", "seconds", "overflowing", "absent"
+                    FROM jfr."test.Timespans"
+                    """).executeQuery()) {
+                assertThat(rs.next()).isTrue();
+
+                assertThat(rs.getLong(1)).isEqualTo(1_500_000L);
+                assertThat(rs.getLong(2)).isEqualTo(3_000_000_000L);
+                assertThat(rs.getLong(3)).isEqualTo(Long.MAX_VALUE);
+                assertThat(rs.getLong(4)).isEqualTo(Long.MIN_VALUE);
+
+                assertThat(rs.next()).isFalse();
+            }
+        }
+    }
+
     @Test
     public void canUseGetClassNameFunction() throws Exception {
         try (Connection connection = getConnection("class-loading.jfr")) {
@@ -378,8 +472,171 @@ public class JfrSchemaFactoryTest {
         }
     }
 
+    @Test
+    public void canRunTopStackTracesQueries() throws Exception {
+        try (Connection connection = getConnection("object-allocations.jfr")) {
+            String query = """
+                      SELECT TRUNCATE_STACKTRACE("stackTrace", 5), SUM("weight"), COUNT(*), COUNT("objectClass"), COUNT("weight")
+                      FROM jfr."jdk.ObjectAllocationSample"
+                      GROUP BY TRUNCATE_STACKTRACE("stackTrace", 5)
+                      ORDER BY SUM("weight") DESC
+                    """;
+
+            try (ResultSet rs = connection.prepareStatement("EXPLAIN PLAN FOR " + query + " LIMIT 10").executeQuery()) {
+                assertThat(rs.next()).isTrue();
+                assertThat(rs.getString(1)).startsWith("JfrTopStackTraces");
+            }
+
+            // all groups, as aggregated and sorted by Calcite
+            List<String> all = new ArrayList<>();
+            try (ResultSet rs = connection.prepareStatement(query).executeQuery()) {
+                while (rs.next()) {
+                    all.add(rs.getString(1) + " " + rs.getLong(2) + " " + rs.getLong(3) + " " + rs.getLong(4) + " " + rs.getLong(5));
+                    assertThat(rs.getLong(4)).isEqualTo(rs.getLong(3));
+                }
+            }
+
+            List<String> top = new ArrayList<>();
+            try (ResultSet rs = connection.prepareStatement(query + " LIMIT 10 OFFSET 2").executeQuery()) {
+                while (rs.next()) {
+                    top.add(rs.getString(1) + " " + rs.getLong(2) + " " + rs.getLong(3) + " " + rs.getLong(4) + " " + rs.getLong(5));
+                }
+            }
+
+            assertThat(all.size()).isGreaterThan(12);
+            assertThat(top).isEqualTo(all.subList(2, 12));
+        }
+
+        try (Connection connection = getConnection("async-profiler-wall.jfr")) {
+            PreparedStatement statement = connection.prepareStatement("""
+                      SELECT TRUNCATE_STACKTRACE("stackTrace", 1), COUNT(*)
+                      FROM jfr."jdk.ExecutionSample"
+                      GROUP BY TRUNCATE_STACKTRACE("stackTrace", 1)
+                      ORDER BY COUNT(*) DESC
+                      LIMIT 3
+                    """);
+
+            try (ResultSet rs = statement.executeQuery()) {
+                assertThat(rs.next()).isTrue();
+                assertThat(rs.getString(1)).isEqualTo("./usr/lib/aarch64-linux-gnu/libc.so.6():0" + System.lineSeparator());
+                assertThat(rs.getLong(2)).isEqualTo(408);
+                assertThat(rs.next()).isTrue();
+                assertThat(rs.getString(1)).isEqualTo("libc.so.6.accept():0" + System.lineSeparator());
+                assertThat(rs.getLong(2)).isEqualTo(20);
+                assertThat(rs.next()).isFalse();
+            }
+        }
+    }
+
+    @Test
+    public void canAggregateStackTracesIntoFlameGraph() throws Exception {
+        try (Connection connection = getConnection("object-allocations.jfr")) {
+            PreparedStatement statement = connection.prepareStatement("""
+                      SELECT FLAMEGRAPH("stackTrace", "weight"), SUM("weight")
+                      FROM jfr."jdk.ObjectAllocationSample"
+                      WHERE "startTime" > (SELECT "startTime" FROM jfr."jfrunit.Reset")
+                        AND "stackTrace" IS NOT NULL
+                    """);
+
+            try (ResultSet rs = statement.executeQuery()) {
+                assertThat(rs.next()).isTrue();
+
+                String[] lines = rs.getString(1).split("\n");
+                long total = 0;
+                Set<String> stacks = new HashSet<>();
+
+                for (String line : lines) {
+                    String stack = line.substring(0, line.lastIndexOf(' '));
+                    assertThat(stacks.add(stack)).isTrue();
+                    total += Long.parseLong(line.substring(line.lastIndexOf(' ') + 1));
+                }
+
+                assertThat(total).isEqualTo(rs.getLong(2));
+                assertThat(lines).anyMatch(line -> line.contains(";java.io.BufferedReader.<init>(Reader, int):106 "));
+            }
+        }
+
+        try (Connection connection = getConnection("async-profiler-wall.jfr")) {
+            PreparedStatement statement = connection.prepareStatement("""
+                      SELECT "state", FLAMEGRAPH("stackTrace")
+                      FROM jfr."jdk.ExecutionSample"
+                      GROUP BY "state"
+                    """);
+
+            long total = 0;
+
+            try (ResultSet rs = statement.executeQuery()) {
+                while (rs.next()) {
+                    for (String line : rs.getString(2).split("\n")) {
+                        total += Long.parseLong(line.substring(line.lastIndexOf(' ') + 1));
+                    }
+                }
+            }
+
+            assertThat(total).isEqualTo(428);
+
+            try (ResultSet rs = connection.prepareStatement("""
+                    SELECT FLAMEGRAPH("stackTrace")
+                    FROM jfr."jdk.ExecutionSample"
+                    """).executeQuery()) {
+                assertThat(rs.next()).isTrue();
+                // native frames recorded by async-profiler are retained
+                assertThat(rs.getString(1)).contains(";libjli.so.JLI_Launch():0;");
+            }
+        }
+    }
+
+    @Test
+    public void canCacheTruncatedStackTraces() throws Exception {
+        LruCache<?, String> cache = TruncateStackTraceFunction.getCache();
+        long hits = cache.getHitCount();
+        long misses = cache.getMissCount();
+
+        try (Connection connection = getConnection("object-allocations.jfr")) {
+            PreparedStatement statement = connection.prepareStatement("""
+                      SELECT count(DISTINCT TRUNCATE_STACKTRACE("stackTrace", 3)), count(*)
+                      FROM jfr."jdk.ObjectAllocationSample"
+                    """);
+
+            try (ResultSet rs = statement.executeQuery()) {
+                assertThat(rs.next()).isTrue();
+                long distinct = rs.getLong(1);
+                long total = rs.getLong(2);
+
+                // each distinct stack trace is formatted once, all other rows are served from the cache
+                assertThat(cache.getMissCount() - misses).isBetween(distinct, total - 1);
+                assertThat(cache.getHitCount() - hits).isGreaterThan(0);
+            }
+        }
+    }
+
+    @Test
+    public void doesNotRetainCachedStackTraces() throws Exception {
+        WeakReference<RecordedStackTrace> stackTrace = null;
+
+        for (RecordedEvent event : RecordingFile.readAllEvents(getTestResource("object-allocations.jfr"))) {
+            if (event.getStackTrace() != null) {
+                String truncated = TruncateStackTraceFunction.getTruncated(event.getStackTrace(), 2);
+                assertThat(TruncateStackTraceFunction.getTruncated(event.getStackTrace(), 2)).isSameAs(truncated);
+                stackTrace = new WeakReference<>(event.getStackTrace());
+                break;
+            }
+        }
+
+        assertThat(stackTrace).isNotNull();
+        for (int i = 0; i < 10 && stackTrace.get() != null; i++) {
+            System.gc();
+            Thread.sleep(10);
+        }
+
+        // the cache refers to stack traces weakly, i.e. it doesn't pin the chunk they have been read from
+        assertThat(stackTrace.get()).isNull();
+    }
+
     @Test
     public void canUseHasMatchingFrameFunction() throws Exception {
+        long methodCacheHits = FrameHelper.getMethodCache().getHitCount();
+
         try (Connection connection = getConnection("object-allocations.jfr")) {
             PreparedStatement statement = connection.prepareStatement("""
                       SELECT TRUNCATE_STACKTRACE("stackTrace", 10)
@@ -397,6 +654,42 @@ public class JfrSchemaFactoryTest {
                 assertThat(size).isEqualTo(73);
             }
         }
+
+        // methods are formatted once and then served from the cache
+        assertThat(FrameHelper.getMethodCache().getHitCount()).isGreaterThan(methodCacheHits);
+    }
+
+    @Test
+    public void canUseHasMatchingFrameFunctionWithMultiplePatterns() throws Exception {
+        try (Connection connection = getConnection("object-allocations.jfr")) {
+            // literal and regular expression patterns match the same frames
+            for (String patterns : List.of("'.*java\\.util\\.ArrayList\\.addAll.*'", "'.*java.util.ArrayList.add[A]ll\\(.*'",
+                    "'.*java\\.util\\.ArrayList\\.addAll.*', 'does.not.Exist.method()'")) {
+                PreparedStatement statement = connection.prepareStatement("""
+                          SELECT count(*)
+                          FROM jfr."jdk.ObjectAllocationSample"
+                          WHERE "startTime" > (SELECT "startTime" FROM jfr."jfrunit.Reset")
+                            AND HAS_MATCHING_FRAME("stackTrace", %s)
+                        """.formatted(patterns));
+
+                try (ResultSet rs = statement.executeQuery()) {
+                    assertThat(rs.next()).isTrue();
+                    assertThat(rs.getLong(1)).isEqualTo(73);
+                }
+            }
+
+            PreparedStatement statement = connection.prepareStatement("""
+                      SELECT count(*)
+                      FROM jfr."jdk.ObjectAllocationSample"
+                      WHERE "startTime" > (SELECT "startTime" FROM jfr."jfrunit.Reset")
+                        AND HAS_MATCHING_FRAME("stackTrace", 'java\\.util\\.ArrayList\\.addAll.*', '.*\\.BufferedReader\\.<init>.*', '.*HashMap.*', '.*xyz')
+                    """);
+
+            try (ResultSet rs = statement.executeQuery()) {
+                assertThat(rs.next()).isTrue();
+                assertThat(rs.getLong(1)).isGreaterThan(73);
+            }
+        }
     }
 
     @Test
@@ -443,6 +736,177 @@ public class JfrSchemaFactoryTest {
         }
     }
 
+    @Test
+    public void canPushProjectionsAndFiltersIntoScan() throws Exception {
+        try (Connection connection = getConnection("object-allocations.jfr")) {
+            String query = """
+                      SELECT e."eventThread"."javaName", SUM(e."weight")
+                      FROM jfr."jdk.ObjectAllocationSample" e
+                      WHERE e."startTime" > ?
+                      GROUP BY e."eventThread"."javaName"
+                    """;
+
+            PreparedStatement statement = connection.prepareStatement("EXPLAIN PLAN FOR " + query);
+            statement.setTimestamp(1, Timestamp.valueOf("2020-01-01 00:00:00"));
+
+            try (ResultSet rs = statement.executeQuery()) {
+                assertThat(rs.next()).isTrue();
+                // the scan evaluates the condition, replacing the filter
+                assertThat(rs.getString(1))
+                        .containsPattern("JfrTableScan\\(table=\\[\\[JFR, jdk.ObjectAllocationSample]], fields=\\[\\[(0, )?1, 4]], condition=\\[>\\(\\$0, \\?0\\)]\\)")
+                        .doesNotContain("EnumerableInterpreter")
+                        .doesNotContain("EnumerableFilter")
+                        .doesNotContain(">($t");
+            }
+
+            statement = connection.prepareStatement("SELECT COUNT(*) FROM (" + query + ")");
+            statement.setTimestamp(1, Timestamp.valueOf("2020-01-01 00:00:00"));
+
+            try (ResultSet rs = statement.executeQuery()) {
+                assertThat(rs.next()).isTrue();
+                assertThat(rs.getLong(1)).isGreaterThan(0);
+            }
+
+            statement.setTimestamp(1, Timestamp.valueOf("2100-01-01 00:00:00"));
+
+            try (ResultSet rs = statement.executeQuery()) {
+                assertThat(rs.next()).isTrue();
+                assertThat(rs.getLong(1)).isEqualTo(0);
+            }
+
+            // only matching rows are returned, also when the condition refers to columns which aren't projected
+            long matching = RecordingFile.readAllEvents(getTestResource("object-allocations.jfr")).stream()
+                    .filter(e -> e.getEventType().getName().equals("jdk.ObjectAllocationSample") && e.getLong("weight") > 1_000_000)
+                    .count();
+            assertThat(matching).isGreaterThan(0);
+
+            query = """
+                      SELECT "objectClass"
+                      FROM jfr."jdk.ObjectAllocationSample"
+                      WHERE "weight" > 1000000
+                    """;
+
+            try (ResultSet rs = connection.prepareStatement("EXPLAIN PLAN FOR " + query).executeQuery()) {
+                assertThat(rs.next()).isTrue();
+                assertThat(rs.getString(1)).startsWith("JfrTableScan(table=[[JFR, jdk.ObjectAllocationSample]], fields=[[3]], condition=[>($4, 1000000)])");
+            }
+
+            assertThat(getRows(connection, query)).hasSize((int) matching);
+            assertThat(getRows(connection, query + " LIMIT 3")).hasSize((int) Math.min(3, matching));
+        }
+    }
+
+    @Test
+    public void canScanSingleColumn() throws Exception {
+        try (Connection connection = getConnection("object-allocations.jfr")) {
+            // single-column rows are represented as plain values by Calcite
+            PreparedStatement statement = connection.prepareStatement("""
+                    SELECT "weight"
+                    FROM jfr."jdk.ObjectAllocationSample"
+                    LIMIT 2
+                    """);
+
+            try (ResultSet rs = statement.executeQuery()) {
+                assertThat(rs.next()).isTrue();
+                assertThat(rs.getLong(1)).isGreaterThan(0);
+                assertThat(rs.next()).isTrue();
+                assertThat(rs.next()).isFalse();
+            }
+
+            statement = connection.prepareStatement("""
+                    SELECT DISTINCT CLASS_NAME("objectClass")
+                    FROM jfr."jdk.ObjectAllocationSample"
+                    WHERE CLASS_NAME("objectClass") = 'java.lang.String'
+                    """);
+
+            try (ResultSet rs = statement.executeQuery()) {
+                assertThat(rs.next()).isTrue();
+                assertThat(rs.getString(1)).isEqualTo("java.lang.String");
+                assertThat(rs.next()).isFalse();
+            }
+        }
+    }
+
+    @Test
+    public void canJoinThreadsTable() throws Exception {
+        try (Connection connection = getConnection("thread-start-stop.jfr")) {
+            PreparedStatement statement = connection.prepareStatement("""
+                      SELECT ts."thread"."javaThreadId", t."javaName", t."group"
+                      FROM jfr."jdk.ThreadStart" ts
+                      JOIN jfr."threads" t ON ts."thread"."javaThreadId" = t."javaThreadId"
+                      ORDER BY ts."thread"."javaThreadId"
+                    """);
+
+            try (ResultSet rs = statement.executeQuery()) {
+                assertThat(rs.next()).isTrue();
+                assertThat(rs.getLong(1)).isEqualTo(21L);
+                assertThat(rs.getString(2)).isEqualTo("pool-1-thread-1");
+                assertThat(rs.getString(3)).isEqualTo("main");
+
+                assertThat(rs.next()).isTrue();
+                assertThat(rs.getLong(1)).isEqualTo(22L);
+                assertThat(rs.getString(2)).isEqualTo("pool-1-thread-2");
+
+                assertThat(rs.next()).isTrue();
+                assertThat(rs.getLong(1)).isEqualTo(23L);
+                assertThat(rs.getString(2)).isEqualTo("Attach Listener");
+                assertThat(rs.getString(3)).isEqualTo("system");
+
+                assertThat(rs.next()).isTrue();
+                assertThat(rs.getLong(1)).isEqualTo(24L);
+                assertThat(rs.getString(2)).isEqualTo("RMI TCP Accept-0");
+
+                assertThat(rs.next()).isFalse();
+            }
+
+            statement = connection.prepareStatement("""
+                      SELECT COUNT(*), COUNT(DISTINCT "javaThreadId")
+                      FROM jfr."threads"
+                    """);
+
+            try (ResultSet rs = statement.executeQuery()) {
+                assertThat(rs.next()).isTrue();
+                assertThat(rs.getLong(1)).isEqualTo(6L);
+                assertThat(rs.getLong(2)).isEqualTo(6L);
+            }
+        }
+
+        // native threads don't have a Java thread id, but are told apart by their OS thread id
+        try (Connection connection = getConnection("async-profiler-wall.jfr")) {
+            try (ResultSet rs = connection.prepareStatement("""
+                      SELECT COUNT(*), COUNT(DISTINCT "osThreadId"), COUNT(*) FILTER (WHERE "javaThreadId" = 0)
+                      FROM jfr."threads"
+                    """).executeQuery()) {
+                assertThat(rs.next()).isTrue();
+                assertThat(rs.getLong(1)).isEqualTo(21L);
+                assertThat(rs.getLong(2)).isEqualTo(21L);
+                assertThat(rs.getLong(3)).isEqualTo(13L);
+            }
+        }
+    }
+
+    @Test
+    public void canShareThreadStructsAcrossRows() throws Exception {
+        Path jfrFile = getTestResource("thread-start-stop.jfr");
+        JfrScannableTable table = (JfrScannableTable) new JfrSchema(jfrFile).getTable("jdk.ThreadStart");
+        int parentThread = table.getRowType().getFieldNames().indexOf("parentThread");
+        AttributeValueConverter converter = table.getConverters()[parentThread];
+
+        List<Object> mainThreads = new ArrayList<>();
+        for (RecordedEvent event : RecordingFile.readAllEvents(jfrFile)) {
+            if (event.getEventType().getName().equals("jdk.ThreadStart")) {
+                Object[] struct = (Object[]) converter.getValue(event);
+                if ("main".equals(struct[2])) {
+                    mainThreads.add(struct);
+                }
+            }
+        }
+
+        // pool-1-thread-1 and pool-1-thread-2 have both been started by the main thread
+        assertThat(mainThreads).hasSize(2);
+        assertThat(mainThreads.get(0)).isSameAs(mainThreads.get(1));
+    }
+
     @Test
     public void canReadAsyncProfilerWallProfile() throws Exception {
         try (Connection connection = getConnection("async-profiler-wall.jfr")) {
@@ -458,11 +922,1276 @@ public class JfrSchemaFactoryTest {
         }
     }
 
-    private Connection getConnection(String jfrFileName) throws SQLException {
-        Path jfrFile = getTestResource(jfrFileName);
+    @Test
+    public void canFetchFirstRowsOnly() throws Exception {
+        try (Connection connection = getConnection("async-profiler-wall.jfr")) {
+            PreparedStatement statement = connection.prepareStatement("""
+                      SELECT "startTime", "state"
+                      FROM jfr."jdk.ExecutionSample"
+                      LIMIT 5
+                    """);
 
-        Properties properties = new Properties();
-        properties.put("model", JfrSchemaFactory.getInlineModel(jfrFile));
+            try (ResultSet rs = statement.executeQuery()) {
+                int size = 0;
+                while (rs.next()) {
+                    assertThat(rs.getString(2)).startsWith("STATE_");
+                    size++;
+                }
+
+                assertThat(size).isEqualTo(5);
+            }
+        }
+
+        // the events are decoded as the rows are requested, i.e. only the requested rows are converted
+        Path jfrFile = getTestResource("async-profiler-wall.jfr");
+        JfrScannableTable table = (JfrScannableTable) new JfrSchema(jfrFile).getTable("jdk.ExecutionSample");
+        AtomicInteger converted = new AtomicInteger();
+
+        AttributeValueConverter[] converters = table.getConverters().clone();
+        AttributeValueConverter startTime = converters[0];
+        converters[0] = event -> {
+            converted.incrementAndGet();
+            return startTime.getValue(event);
+        };
+
+        try (Connection connection = DriverManager.getConnection("jdbc:calcite:")) {
+            SchemaPlus schema = connection.unwrap(CalciteConnection.class).getRootSchema().add("JFR", new AbstractSchema());
+            schema.add("jdk.ExecutionSample", new JfrScannableTable(jfrFile, table.getEventType(), table.getRowType(), converters));
+
+            assertThat(getRows(connection, "SELECT \"startTime\", \"state\" FROM jfr.\"jdk.ExecutionSample\" LIMIT 5")).hasSize(5);
+        }
+
+        // the scan may be asked for one row beyond the limit
+        assertThat(converted.get()).isBetween(5, 6);
+        assertThat(table.scan(StartTimeRange.UNBOUNDED, null).count()).isGreaterThan(5);
+    }
+
+    @Test
+    public void canSkipChunksBeforeStartTimeLowerBound() throws Exception {
+        Path jfrFile = getTestResource("multi-chunk.jfr");
+
+        List<JfrChunk> chunks = JfrChunk.readChunks(jfrFile);
+        assertThat(chunks).hasSize(11);
+        assertThat(chunks.stream().mapToLong(JfrChunk::getSize).sum()).isEqualTo(Files.size(jfrFile));
+
+        Timestamp lowerBound;
+
+        try (Connection connection = getConnection(jfrFile)) {
+            try (ResultSet rs = connection.prepareStatement("""
+                    SELECT "startTime"
+                    FROM jfr."test.Tick"
+                    WHERE "sequence" = 60
+                    """).executeQuery()) {
+                assertThat(rs.next()).isTrue();
+                lowerBound = rs.getTimestamp(1);
+            }
+
+            PreparedStatement statement = connection.prepareStatement("""
+                    SELECT count(*), min("sequence"), max("sequence")
+                    FROM jfr."test.Tick"
+                    WHERE "startTime" >= ?
+                    """);
+            statement.setTimestamp(1, lowerBound);
+
+            try (ResultSet rs = statement.executeQuery()) {
+                assertThat(rs.next()).isTrue();
+                assertThat(rs.getLong(1)).isEqualTo(40);
+                assertThat(rs.getLong(2)).isEqualTo(60);
+                assertThat(rs.getLong(3)).isEqualTo(99);
+            }
+
+            statement = connection.prepareStatement("""
+                    SELECT count(*)
+                    FROM jfr."test.Tick"
+                    WHERE "startTime" BETWEEN ? AND TIMESTAMP '2100-01-01 00:00:00'
+                      AND "chunk" = 3
+                    """);
+            statement.setTimestamp(1, lowerBound);
+
+            try (ResultSet rs = statement.executeQuery()) {
+                assertThat(rs.next()).isTrue();
+                assertThat(rs.getLong(1)).isEqualTo(20);
+            }
+        }
+
+        // the events before the lower bound are skipped in place, i.e. they are neither converted nor copied
+        JfrScannableTable table = (JfrScannableTable) new JfrSchema(jfrFile).getTable("test.Tick");
+        AtomicInteger converted = new AtomicInteger();
+
+        AttributeValueConverter[] converters = table.getConverters().clone();
+        AttributeValueConverter startTime = converters[0];
+        converters[0] = event -> {
+            converted.incrementAndGet();
+            return startTime.getValue(event);
+        };
+
+        Path tempDir = Path.of(System.getProperty("java.io.tmpdir"));
+        Set<Path> tempFiles = listTempFiles(tempDir);
+
+        try (Connection connection = DriverManager.getConnection("jdbc:calcite:")) {
+            SchemaPlus schema = connection.unwrap(CalciteConnection.class).getRootSchema().add("JFR", new AbstractSchema());
+            schema.add("test.Tick", new JfrScannableTable(jfrFile, table.getEventType(), table.getRowType(), converters));
+
+            PreparedStatement statement = connection.prepareStatement("""
+                    SELECT "sequence"
+                    FROM jfr."test.Tick"
+                    WHERE "startTime" >= ?
+                    """);
+            statement.setTimestamp(1, lowerBound);
+
+            try (ResultSet rs = statement.executeQuery()) {
+                assertThat(rs.next()).isTrue();
+                assertThat(listTempFiles(tempDir)).isEqualTo(tempFiles);
+
+                int size = 1;
+                while (rs.next()) {
+                    size++;
+                }
+
+                assertThat(size).isEqualTo(40);
+            }
+        }
+
+        assertThat(converted.get()).isEqualTo(40);
+
+        // an interrupted scan fails rather than ending early
+        JfrRangeEnumerator enumerator = new JfrRangeEnumerator(jfrFile, lowerBound.toInstant(), table.getEventType(), table.getConverters());
+        assertThat(enumerator.moveNext()).isTrue();
+
+        Thread.currentThread().interrupt();
+        try {
+            assertThatThrownBy(enumerator::moveNext).hasCauseInstanceOf(InterruptedException.class);
+        }
+        finally {
+            assertThat(Thread.interrupted()).isTrue();
+            enumerator.close();
+        }
+    }
+
+    private static Set<Path> listTempFiles(Path tempDir) throws IOException {
+        try (Stream<Path> files = Files.list(tempDir)) {
+            return files.filter(file -> file.getFileName().toString().startsWith("jfr-analytics-"))
+                    .collect(Collectors.toSet());
+        }
+    }
+
+    @Test
+    public void canScanChunksInParallel() throws Exception {
+        Path jfrFile = getTestResource("multi-chunk.jfr");
+
+        String query = """
+                SELECT "sequence"
+                FROM jfr."test.Tick"
+                """;
+
+        List<Long> serial = new ArrayList<>();
+        try (Connection connection = getConnection(jfrFile)) {
+            try (ResultSet rs = connection.prepareStatement(query).executeQuery()) {
+                while (rs.next()) {
+                    serial.add(rs.getLong(1));
+                }
+            }
+        }
+
+        Path tempDir = Path.of(System.getProperty("java.io.tmpdir"));
+        Set<Path> tempFiles = listTempFiles(tempDir);
+
+        // the chunks are read in place, rather than being copied
+        List<Long> parallel = new ArrayList<>();
+        try (Connection connection = getConnection(jfrFile, Map.of("parallelism", "3"))) {
+            try (ResultSet rs = connection.prepareStatement(query).executeQuery()) {
+                while (rs.next()) {
+                    parallel.add(rs.getLong(1));
+                    assertThat(listTempFiles(tempDir)).isEqualTo(tempFiles);
+                }
+            }
+        }
+
+        assertThat(serial).hasSize(100);
+        assertThat(parallel).isEqualTo(serial);
+
+        // the parts in flight are decoded up to the capacity of their queues only, plus the batches being taken and put
+        int rowsPerPart = 100_000;
+        AtomicInteger produced = new AtomicInteger();
+        List<Enumerable<Object[]>> parts = new ArrayList<>();
+        for (int i = 0; i < 3; i++) {
+            int part = i;
+            parts.add(Linq4j.asEnumerable(IntStream.range(0, rowsPerPart).boxed().toList())
+                    .select(row -> {
+                        produced.incrementAndGet();
+                        return new Object[]{ part * rowsPerPart + row };
+                    }));
+        }
+
+        ForkJoinPool pool = new ForkJoinPool(3);
+        try (Enumerator<Object[]> rows = new ParallelEnumerable(parts, pool).enumerator()) {
+            assertThat(rows.moveNext()).isTrue();
+            Thread.sleep(200);
+            assertThat(produced.get()).isLessThanOrEqualTo(3 * (ParallelEnumerable.QUEUE_SIZE + 2) * PrefetchEnumerable.BATCH_SIZE);
+
+            int expected = 1;
+            while (rows.moveNext()) {
+                assertThat(rows.current()[0]).isEqualTo(expected++);
+            }
+            assertThat(expected).isEqualTo(3 * rowsPerPart);
+        }
+        finally {
+            pool.shutdown();
+        }
+
+        // schemas with the same parallelism share one pool
+        assertThat(JfrScanOptions.of(3, 0, null).getPool()).isSameAs(JfrScanOptions.getSharedPool(3));
+        assertThat(JfrScanOptions.of(3, 0, null).getPool().getParallelism()).isEqualTo(3);
+        assertThat(JfrScanOptions.getSharedPool(1)).isNull();
+    }
+
+    @Test
+    public void canAggregateWithinScan() throws Exception {
+        Path jfrFile = getTestResource("multi-chunk.jfr");
+
+        String query = """
+                SELECT COUNT(*), COUNT("sequence"), SUM("sequence"), MIN("sequence"), MAX("startTime")
+                FROM jfr."test.Tick"
+                """;
+
+        // the filter prevents the aggregation from being pushed into the scan
+        String filtered = query + " WHERE \"startTime\" > TIMESTAMP '1970-01-01 00:00:00'";
+
+        for (Map<String, String> operands : List.of(Map.<String, String> of(), Map.of("parallelism", "3"), Map.of("cacheSize", "16"))) {
+            try (Connection connection = getConnection(jfrFile, operands)) {
+                try (ResultSet rs = connection.prepareStatement("EXPLAIN PLAN FOR " + query).executeQuery()) {
+                    assertThat(rs.next()).isTrue();
+                    assertThat(rs.getString(1)).startsWith("JfrAggregateTableScan");
+                }
+
+                List<String> pushedDown = getRows(connection, query);
+                assertThat(pushedDown).hasSize(1);
+                assertThat(pushedDown.get(0)).startsWith("100 100 ");
+                assertThat(pushedDown).isEqualTo(getRows(connection, filtered));
+            }
+        }
+
+        try (Connection connection = getConnection("class-loading.jfr")) {
+            query = """
+                    SELECT "definingClassLoader", COUNT(*), MIN("startTime"), MAX("duration")
+                    FROM jfr."jdk.ClassLoad"
+                    GROUP BY "definingClassLoader"
+                    """;
+
+            filtered = query.replace("GROUP BY", "WHERE \"startTime\" > TIMESTAMP '1970-01-01 00:00:00' GROUP BY");
+
+            List<String> pushedDown = getRows(connection, query);
+            assertThat(pushedDown).hasSize(5);
+            assertThat(pushedDown).containsExactlyInAnyOrderElementsOf(getRows(connection, filtered));
+        }
+
+        // the aggregation of the sub-query is joined with each row of the outer query, but evaluated only once
+        try (Connection connection = getConnection("object-allocations.jfr")) {
+            query = """
+                    SELECT COUNT(*)
+                    FROM jfr."jdk.ObjectAllocationSample"
+                    WHERE "startTime" > (SELECT MIN("startTime") FROM jfr."jdk.ObjectAllocationSample")
+                    """;
+
+            try (ResultSet rs = connection.prepareStatement("EXPLAIN PLAN FOR " + query).executeQuery()) {
+                assertThat(rs.next()).isTrue();
+                assertThat(rs.getString(1)).contains("JfrAggregateTableScan");
+            }
+
+            assertThat(Long.parseLong(getRows(connection, query).get(0))).isBetween(1L, 20958L);
+        }
+
+        // COUNT() of non-numeric columns only counts their non-null values
+        query = """
+                SELECT COUNT(*), COUNT("stackTrace"), COUNT("objectClass"), COUNT("eventThread")
+                FROM jfr."jdk.ObjectAllocationSample"
+                """;
+        filtered = query + " WHERE \"startTime\" > TIMESTAMP '1970-01-01 00:00:00'";
+
+        for (Map<String, String> operands : List.of(Map.<String, String> of(), Map.of("parallelism", "3"), Map.of("cacheSize", "16"))) {
+            try (Connection connection = getConnection(getTestResource("object-allocations.jfr"), operands)) {
+                try (ResultSet rs = connection.prepareStatement("EXPLAIN PLAN FOR " + query).executeQuery()) {
+                    assertThat(rs.next()).isTrue();
+                    assertThat(rs.getString(1)).startsWith("JfrAggregateTableScan");
+                }
+
+                List<String> pushedDown = getRows(connection, query);
+                assertThat(pushedDown).containsExactly("20959 20928 20959 20959");
+                assertThat(pushedDown).isEqualTo(getRows(connection, filtered));
+            }
+        }
+    }
+
+    @Test
+    public void canPushLimitIntoScan() throws Exception {
+        Path jfrFile = getTestResource("multi-chunk.jfr");
+
+        String query = """
+                SELECT "sequence" + 1
+                FROM jfr."test.Tick"
+                LIMIT 3 OFFSET 2
+                """;
+
+        for (Map<String, String> operands : List.of(Map.<String, String> of(), Map.of("parallelism", "3"), Map.of("cacheSize", "16"))) {
+            try (Connection connection = getConnection(jfrFile, operands)) {
+                try (ResultSet rs = connection.prepareStatement("EXPLAIN PLAN FOR " + query).executeQuery()) {
+                    assertThat(rs.next()).isTrue();
+                    assertThat(rs.getString(1)).contains("JfrTableScan(table=[[JFR, test.Tick]], fields=[[5]], fetch=[5])");
+                }
+
+                assertThat(getRows(connection, query)).containsExactly("3", "4", "5");
+            }
+        }
+
+        // a limited scan doesn't populate the cache
+        ColumnarTableCache cache = new ColumnarTableCache(16 * 1024 * 1024);
+        JfrScannableTable table = (JfrScannableTable) new JfrSchema(jfrFile, new JfrScanOptions(null, cache, null)).getTable("test.Tick");
+
+        assertThat(table.scan(StartTimeRange.UNBOUNDED, null, 5).take(5).count()).isEqualTo(5);
+        assertThat(cache.get(jfrFile, "test.Tick")).isNull();
+
+        assertThat(table.scan(StartTimeRange.UNBOUNDED, null).count()).isEqualTo(100);
+        assertThat(cache.get(jfrFile, "test.Tick")).isNotNull();
+    }
+
+    @Test
+    public void canScanWithMappedParser() throws Exception {
+        Map<String, List<String>> queries = Map.of(
+                "multi-chunk.jfr", List.of(
+                        "SELECT \"startTime\", \"sequence\" FROM jfr.\"test.Tick\"",
+                        "SELECT \"sequence\" FROM jfr.\"test.Tick\" WHERE MOD(\"sequence\", 7) = 0",
+                        "SELECT COUNT(*), SUM(\"sequence\"), MAX(\"startTime\") FROM jfr.\"test.Tick\""),
+                "object-allocations.jfr", List.of(
+                        "SELECT \"startTime\", \"weight\" FROM jfr.\"jdk.ObjectAllocationSample\"",
+                        // string-typed and struct-typed columns are decoded using the JDK parser
+                        "SELECT CLASS_NAME(o.\"objectClass\"), o.\"eventThread\".\"javaName\", o.\"weight\" FROM jfr.\"jdk.ObjectAllocationSample\" o"),
+                "class-loading.jfr", List.of(
+                        "SELECT \"startTime\", \"duration\" FROM jfr.\"jdk.ClassLoad\""),
+                "gc-configuration.jfr", List.of(
+                        "SELECT \"parallelGCThreads\", \"pauseTarget\", \"usesDynamicGCThreads\" FROM jfr.\"jdk.GCConfiguration\""),
+                "async-profiler-wall.jfr", List.of(
+                        "SELECT \"startTime\", \"sockets\", \"cores\", \"hwThreads\" FROM jfr.\"jdk.CPUInformation\""));
+
+        for (Map.Entry<String, List<String>> recording : queries.entrySet()) {
+            Path jfrFile = getTestResource(recording.getKey());
+
+            for (String query : recording.getValue()) {
+                List<String> expected;
+                try (Connection connection = getConnection(jfrFile, Map.of())) {
+                    expected = getRows(connection, query);
+                }
+
+                assertThat(expected).isNotEmpty();
+
+                for (String parallelism : List.of("1", "3")) {
+                    try (Connection connection = getConnection(jfrFile, Map.of("parser", "mapped", "parallelism", parallelism))) {
+                        assertThat(getRows(connection, query)).describedAs(query).containsExactlyInAnyOrderElementsOf(expected);
+                    }
+                }
+            }
+        }
+
+        // only scans of primitive-typed columns are decoded from the mapped recording
+        JfrScanOptions options = new JfrScanOptions(null, null, null, JfrScanOptions.Parser.MAPPED, 0);
+        JfrScannableTable table = (JfrScannableTable) new JfrSchema(getTestResource("object-allocations.jfr"), options).getTable("jdk.ObjectAllocationSample");
+        List<String> columns = table.getRowType().getFieldNames();
+
+        assertThat(table.scan(StartTimeRange.UNBOUNDED, new int[]{ columns.indexOf("startTime"), columns.indexOf("weight") })).isInstanceOf(MappedJfrEnumerable.class);
+        assertThat(table.scan(StartTimeRange.UNBOUNDED, new int[]{ columns.indexOf("objectClass") })).isInstanceOf(JfrEnumerable.class);
+    }
+
+    @Test
+    public void canProvideRowCountStatistics(@TempDir Path tempDir) throws Exception {
+        Map<String, String> tables = Map.of("object-allocations.jfr", "jdk.ObjectAllocationSample", "class-loading.jfr", "jdk.ClassLoad");
+
+        for (Map.Entry<String, String> table : tables.entrySet()) {
+            Path jfrFile = getTestResource(table.getKey());
+            double count;
+
+            try (Connection connection = getConnection(jfrFile)) {
+                count = Double.parseDouble(getRows(connection, "SELECT COUNT(*) FROM jfr.\"" + table.getValue() + "\"").get(0));
+            }
+
+            // estimated when planning, exact once a scan has read the entire recording
+            JfrScannableTable scannable = (JfrScannableTable) new JfrSchema(jfrFile).getTable(table.getValue());
+            assertThat(scannable.getStatistic().getRowCount()).isCloseTo(count, withinPercentage(50));
+            assertThat(scannable.scan(DataContexts.of(Map.of()), List.of(), null, -1).count()).isEqualTo((int) count);
+            assertThat(scannable.getStatistic().getRowCount()).isEqualTo(count);
+        }
+
+        // only a sample of larger recordings is read for the estimate
+        Path objectAllocations = getTestResource("object-allocations.jfr");
+        JfrEventCounts eventCounts = new JfrEventCounts(objectAllocations, 64 * 1024);
+        assertThat(eventCounts.getCount("jdk.ObjectAllocationSample")).isBetween(20959L / 3, 20959L * 3);
+        assertThat(eventCounts.isExact()).isFalse();
+        assertThat(new JfrEventCounts(objectAllocations, Integer.MAX_VALUE).isExact()).isTrue();
+
+        // frequent types are extrapolated, rare types aren't; the counts of types not sampled at all are unknown
+        Map<String, Long> exact = new HashMap<>();
+        Path multiChunkFile = getTestResource("multi-chunk.jfr");
+        try (RecordingFile recordingFile = new RecordingFile(multiChunkFile)) {
+            while (recordingFile.hasMoreEvents()) {
+                exact.merge(recordingFile.readEvent().getEventType().getName(), 1L, Long::sum);
+            }
+        }
+
+        JfrEventCounts sampled = new JfrEventCounts(multiChunkFile, 500);
+        assertThat(sampled.isExact()).isFalse();
+        assertThat(exact.get("test.Tick")).isEqualTo(100);
+        assertThat(sampled.getCount("test.Tick")).isCloseTo(exact.get("test.Tick"), withinPercentage(50));
+        assertThat(exact.get("jdk.ThreadSleep")).isEqualTo(10);
+        assertThat(sampled.getCount("jdk.ThreadSleep")).isBetween(1L, exact.get("jdk.ThreadSleep"));
+
+        JfrScannableTable reset = (JfrScannableTable) new JfrSchema(objectAllocations).getTable("jfrunit.Reset");
+        assertThat(eventCounts.getCount("jfrunit.Reset")).isNull();
+        assertThat(new JfrScannableTable(objectAllocations, reset.getEventType(), reset.getRowType(), reset.getConverters(), JfrScanOptions.DEFAULT,
+                eventCounts, new JfrScanCoordinator(objectAllocations, eventCounts)).getStatistic()).isSameAs(Statistics.UNKNOWN);
+
+        // the row counts of indexed and cached tables are exact
+        Path jfrFile = tempDir.resolve("object-allocations.jfr");
+        Files.copy(objectAllocations, jfrFile);
+        JfrIndex.create(jfrFile);
+
+        assertThat(new JfrSchema(jfrFile, new JfrScanOptions(null, null, JfrIndex.open(jfrFile))).getTable("jdk.ObjectAllocationSample").getStatistic()
+                .getRowCount()).isEqualTo(20959D);
+
+        JfrScanOptions cached = new JfrScanOptions(null, new ColumnarTableCache(16 * 1024 * 1024), null);
+        JfrScannableTable cachedTable = (JfrScannableTable) new JfrSchema(objectAllocations, cached).getTable("jdk.ObjectAllocationSample");
+        assertThat(cachedTable.scan(StartTimeRange.UNBOUNDED, null).count()).isEqualTo(20959);
+        assertThat(cachedTable.getStatistic().getRowCount()).isEqualTo(20959D);
+
+        // empty tables are reported with one row
+        assertThat(new JfrSchema(getTestResource("class-loading.jfr")).getTable("jdk.ThreadStart").getStatistic().getRowCount()).isEqualTo(1D);
+
+        // the row counts of the individual recordings are added up
+        Path multiChunk = getTestResource("multi-chunk.jfr");
+        JfrSchema directorySchema = new JfrSchema(Map.of("a.jfr", multiChunk, "b.jfr", multiChunk),
+                Map.of("a.jfr", JfrScanOptions.DEFAULT, "b.jfr", JfrScanOptions.DEFAULT), null);
+
+        Double ticks = new JfrSchema(multiChunk).getTable("test.Tick").getStatistic().getRowCount();
+        assertThat(ticks).isCloseTo(100D, withinPercentage(50));
+        assertThat(directorySchema.getTable("test.Tick").getStatistic().getRowCount()).isEqualTo(2 * ticks);
+    }
+
+    @Test
+    public void canPrefetchRows() throws Exception {
+        Path jfrFile = getTestResource("object-allocations.jfr");
+
+        String query = """
+                SELECT CLASS_NAME(o."objectClass"), SUM(o."weight"), COUNT(*)
+                FROM jfr."jdk.ObjectAllocationSample" o
+                WHERE o."weight" > 1000
+                GROUP BY CLASS_NAME(o."objectClass")
+                """;
+
+        List<String> expected;
+        try (Connection connection = getConnection(jfrFile, Map.of())) {
+            expected = getRows(connection, query);
+        }
+
+        assertThat(expected).isNotEmpty();
+
+        for (String prefetch : List.of("1", "4")) {
+            try (Connection connection = getConnection(jfrFile, Map.of("prefetch", prefetch))) {
+                assertThat(getRows(connection, query)).containsExactlyInAnyOrderElementsOf(expected);
+            }
+        }
+
+        JfrScanOptions options = new JfrScanOptions(null, null, null, JfrScanOptions.Parser.JDK, 1);
+        JfrScannableTable table = (JfrScannableTable) new JfrSchema(jfrFile, options).getTable("jdk.ObjectAllocationSample");
+        Enumerable<Object[]> rows = table.scan(StartTimeRange.UNBOUNDED, null);
+        assertThat(rows).isInstanceOf(PrefetchEnumerable.class);
+
+        // limited scans don't decode ahead
+        assertThat(table.scan(StartTimeRange.UNBOUNDED, null, 5)).isNotInstanceOf(PrefetchEnumerable.class);
+
+        // the producer is stopped when resetting the enumerator before all the rows have been consumed
+        Enumerator<Object[]> enumerator = rows.enumerator();
+        assertThat(enumerator.moveNext()).isTrue();
+        enumerator.reset();
+
+        int count = 0;
+        while (enumerator.moveNext()) {
+            count++;
+        }
+        enumerator.close();
+
+        JfrScannableTable serial = (JfrScannableTable) new JfrSchema(jfrFile).getTable("jdk.ObjectAllocationSample");
+        assertThat(count).isEqualTo(serial.scan(StartTimeRange.UNBOUNDED, null).count());
+    }
+
+    @Test
+    public void canShareScansWithinStatement() throws Exception {
+        Map<String, String> queries = Map.of(
+                "thread-start-stop.jfr", """
+                        SELECT s."thread"."javaName", e."startTime"
+                        FROM jfr."jdk.ThreadStart" s JOIN jfr."jdk.ThreadEnd" e ON s."thread"."javaThreadId" = e."thread"."javaThreadId"
+                        """,
+                "object-allocations.jfr", """
+                        SELECT COUNT(*), SUM(o."weight")
+                        FROM jfr."jdk.ObjectAllocationSample" o
+                        WHERE o."startTime" > (SELECT MIN("startTime") + INTERVAL '1' SECOND FROM jfr."jdk.ObjectAllocationSample")
+                        """);
+
+        for (Map.Entry<String, String> query : queries.entrySet()) {
+            Path jfrFile = getTestResource(query.getKey());
+
+            // parallel scans don't share a pass
+            List<String> expected;
+            try (Connection connection = getConnection(jfrFile, Map.of("parallelism", "3"))) {
+                expected = getRows(connection, query.getValue());
+            }
+
+            assertThat(expected).isNotEmpty();
+
+            try (Connection connection = getConnection(jfrFile, Map.of())) {
+                assertThat(getRows(connection, query.getValue())).containsExactlyInAnyOrderElementsOf(expected);
+            }
+        }
+
+        Path jfrFile = getTestResource("object-allocations.jfr");
+        JfrSchema schema = new JfrSchema(jfrFile);
+        JfrScannableTable allocations = (JfrScannableTable) schema.getTable("jdk.ObjectAllocationSample");
+        JfrScannableTable gcConfigurations = (JfrScannableTable) schema.getTable("jdk.GCConfiguration");
+        JfrScanCoordinator coordinator = new JfrScanCoordinator(jfrFile, new JfrEventCounts(jfrFile));
+
+        DataContext root = DataContexts.of(Map.of());
+        Enumerable<Object[]> allocationRows = coordinator.scan(root, allocations.getEventType(), allocations.getConverters());
+        Enumerable<Object[]> gcConfigurationRows = coordinator.scan(root, gcConfigurations.getEventType(), gcConfigurations.getConverters());
+
+        // the rows of the second scan are buffered while enumerating the first one
+        assertThat(gcConfigurationRows.count()).isEqualTo(gcConfigurations.scan(StartTimeRange.UNBOUNDED, null).count());
+        assertThat(allocationRows.count()).isEqualTo(allocations.scan(StartTimeRange.UNBOUNDED, null).count());
+        assertThat(coordinator.getPassCount()).isEqualTo(1);
+
+        // scans registered after the pass has started and repeated scans decode the recording on their own
+        assertThat(coordinator.scan(root, allocations.getEventType(), allocations.getConverters()).count()).isEqualTo(allocationRows.count());
+        assertThat(coordinator.getPassCount()).isEqualTo(2);
+
+        // other statements have their own pass
+        assertThat(coordinator.scan(DataContexts.of(Map.of()), allocations.getEventType(), allocations.getConverters()).count())
+                .isEqualTo(allocationRows.count());
+        assertThat(coordinator.getPassCount()).isEqualTo(3);
+
+        // a started scan which isn't enumerated, e.g. one side of a self-join, buffers up to the limit and then continues
+        // on its own
+        JfrScanCoordinator limited = new JfrScanCoordinator(jfrFile, new JfrEventCounts(jfrFile), 1_000);
+        DataContext selfJoin = DataContexts.of(Map.of());
+        int startTime = allocations.getRowType().getFieldNames().indexOf("startTime");
+        int weight = allocations.getRowType().getFieldNames().indexOf("weight");
+
+        Enumerable<Object[]> leftScan = limited.scan(selfJoin, allocations.getEventType(), allocations.getConverters());
+        Enumerable<Object[]> rightScan = limited.scan(selfJoin, allocations.getEventType(), allocations.getConverters());
+
+        try (Enumerator<Object[]> left = leftScan.enumerator(); Enumerator<Object[]> right = rightScan.enumerator()) {
+            assertThat(left.moveNext()).isTrue();
+            assertThat(right.moveNext()).isTrue();
+
+            List<String> leftRows = new ArrayList<>();
+            do {
+                leftRows.add(left.current()[startTime] + " " + left.current()[weight]);
+                assertThat(limited.getBufferedRowCount(selfJoin)).isLessThanOrEqualTo(1_001);
+            } while (left.moveNext());
+
+            List<String> rightRows = new ArrayList<>();
+            do {
+                rightRows.add(right.current()[startTime] + " " + right.current()[weight]);
+            } while (right.moveNext());
+
+            assertThat(leftRows).hasSize((int) allocationRows.count());
+            assertThat(rightRows).isEqualTo(leftRows);
+            assertThat(limited.getPassCount()).isEqualTo(1);
+        }
+    }
+
+    @Test
+    public void canReuseCachedSchema(@TempDir Path tempDir) throws Exception {
+        Path jfrFile = tempDir.resolve("basic.jfr");
+        Files.copy(getTestResource("basic.jfr"), jfrFile);
+
+        JfrSchemaFactory factory = new JfrSchemaFactory();
+        Schema first = factory.create(null, "JFR", Map.of("file", jfrFile.toString()));
+        Schema second = factory.create(null, "JFR", Map.of("file", jfrFile.toString()));
+        Schema parallel = factory.create(null, "JFR", Map.of("file", jfrFile.toString(), "parallelism", 2));
+
+        assertThat(second).isSameAs(first);
+        assertThat(parallel).isNotSameAs(first);
+
+        Files.copy(getTestResource("gc-configuration.jfr"), jfrFile, StandardCopyOption.REPLACE_EXISTING);
+        Files.setLastModifiedTime(jfrFile, FileTime.fromMillis(System.currentTimeMillis() + 60_000));
+
+        Schema third = factory.create(null, "JFR", Map.of("file", jfrFile.toString()));
+        assertThat(third).isNotSameAs(first);
+        assertThat(third.getTableNames()).contains("jdk.GCConfiguration");
+    }
+
+    @Test
+    public void canServeScansFromColumnarCache(@TempDir Path tempDir) throws Exception {
+        Path jfrFile = tempDir.resolve("basic.jfr");
+        Files.copy(getTestResource("basic.jfr"), jfrFile);
+
+        String query = """
+                SELECT "startTime", "time", ("eventThread")."javaName", TRUNCATE_STACKTRACE("stackTrace", 2)
+                FROM jfr."jdk.ThreadSleep"
+                WHERE "time" = 1000000000
+                """;
+
+        try (Connection connection = getConnection(jfrFile, Map.of("cacheSize", "16"))) {
+            for (int i = 0; i < 2; i++) {
+                try (ResultSet rs = connection.prepareStatement(query).executeQuery()) {
+                    assertThat(rs.next()).isTrue();
+
+                    assertThat(rs.getTimestamp(1)).isEqualTo(Timestamp.from(ZonedDateTime.parse("2021-12-23T13:40:50.402000000Z").toInstant()));
+                    assertThat(rs.getLong(2)).isEqualTo(1_000_000_000L);
+                    assertThat(rs.getString(3)).isEqualTo("main");
+                    assertThat(rs.getString(4)).isEqualTo("""
+                            java.lang.Thread.sleep(long)
+                            org.moditect.jfrunit.demos.todo.HelloJfrUnitTest.basicTest():24
+                            """);
+                    assertThat(rs.next()).isFalse();
+                }
+
+                // subsequent scans don't need the recording any longer
+                Files.deleteIfExists(jfrFile);
+            }
+
+            try (ResultSet rs = connection.prepareStatement("""
+                    SELECT count(*), sum("time")
+                    FROM jfr."jdk.ThreadSleep"
+                    """).executeQuery()) {
+                assertThat(rs.next()).isTrue();
+                assertThat(rs.getLong(1)).isEqualTo(51);
+                assertThat(rs.getLong(2)).isEqualTo(5_850_000_000L);
+            }
+        }
+
+        Files.copy(getTestResource("data-types.jfr"), jfrFile);
+
+        try (Connection connection = getConnection(jfrFile, Map.of("cacheSize", "16"))) {
+            for (int i = 0; i < 2; i++) {
+                try (ResultSet rs = connection.prepareStatement("SELECT * FROM jfr.\"test.DataTypes\"").executeQuery()) {
+                    assertThat(rs.next()).isTrue();
+
+                    assertThat(rs.getBoolean(5)).isTrue();
+                    assertThat(rs.getString(6)).isEqualTo("X");
+                    assertThat(rs.getByte(7)).isEqualTo(Byte.MAX_VALUE);
+                    assertThat(rs.getShort(8)).isEqualTo(Short.MAX_VALUE);
+                    assertThat(rs.getInt(9)).isEqualTo(Integer.MAX_VALUE);
+                    assertThat(rs.getLong(10)).isEqualTo(Long.MAX_VALUE);
+                    assertThat(rs.getFloat(11)).isEqualTo(Float.MAX_VALUE);
+                    assertThat(rs.getDouble(12)).isEqualTo(Double.MAX_VALUE);
+                    assertThat(rs.getString(13)).isEqualTo("SQL rockz");
+
+                    assertThat(rs.next()).isFalse();
+                }
+
+                Files.deleteIfExists(jfrFile);
+            }
+        }
+    }
+
+    @Test
+    public void canDecodeAppendedChunksIncrementally(@TempDir Path tempDir) throws Exception {
+        Path source = getTestResource("multi-chunk.jfr");
+        List<JfrChunk> chunks = JfrChunk.readChunks(source);
+        byte[] bytes = Files.readAllBytes(source);
+        int split = (int) chunks.get(4).getOffset();
+
+        Path jfrFile = tempDir.resolve("growing.jfr");
+        Files.write(jfrFile, Arrays.copyOfRange(bytes, 0, split));
+
+        ColumnarTableCache cache = new ColumnarTableCache(16 * 1024 * 1024);
+        JfrScannableTable table = (JfrScannableTable) new JfrSchema(jfrFile, new JfrScanOptions(null, cache, null)).getTable("test.Tick");
+
+        long before = table.scan(StartTimeRange.UNBOUNDED, null).count();
+        assertThat(cache.get(jfrFile, "test.Tick").getChunks()).hasSize(4);
+        assertThat(cache.get(jfrFile, "test.Tick").getRowCount()).isEqualTo(before);
+
+        Files.write(jfrFile, Arrays.copyOfRange(bytes, split, bytes.length), StandardOpenOption.APPEND);
+
+        // only the appended chunks are decoded, the rows of the others are added from the cache
+        assertThat(table.scan(StartTimeRange.UNBOUNDED, null).count()).isEqualTo(100);
+        assertThat(cache.get(jfrFile, "test.Tick").getChunks()).isEqualTo(JfrChunk.readChunks(jfrFile));
+        assertThat(cache.get(jfrFile, "test.Tick").getRowCount()).isEqualTo(100);
+
+        // via JDBC, the cache of a schema is carried over when its recording has grown
+        Files.write(jfrFile, Arrays.copyOfRange(bytes, 0, split));
+
+        String query = """
+                SELECT count(*), min("sequence"), max("sequence")
+                FROM jfr."test.Tick"
+                """;
+
+        try (Connection connection = getConnection(jfrFile, Map.of("cacheSize", "16"));
+                ResultSet rs = connection.prepareStatement(query).executeQuery()) {
+            assertThat(rs.next()).isTrue();
+            assertThat(rs.getLong(1)).isEqualTo(before);
+        }
+
+        Files.write(jfrFile, Arrays.copyOfRange(bytes, split, bytes.length), StandardOpenOption.APPEND);
+
+        try (Connection connection = getConnection(jfrFile, Map.of("cacheSize", "16"));
+                ResultSet rs = connection.prepareStatement(query).executeQuery()) {
+            assertThat(rs.next()).isTrue();
+            assertThat(rs.getLong(1)).isEqualTo(100);
+            assertThat(rs.getLong(2)).isEqualTo(0);
+            assertThat(rs.getLong(3)).isEqualTo(99);
+        }
+    }
+
+    @Test
+    public void canScanChunkBeingWrittenWithCache(@TempDir Path tempDir) throws Exception {
+        Path source = getTestResource("multi-chunk.jfr");
+        List<JfrChunk> chunks = JfrChunk.readChunks(source);
+        byte[] bytes = Arrays.copyOfRange(Files.readAllBytes(source), 0, (int) chunks.get(9).getOffset());
+
+        // marks the last chunk as still being written
+        bytes[(int) chunks.get(8).getOffset() + 64] = 1;
+
+        Path jfrFile = tempDir.resolve("growing.jfr");
+        Files.write(jfrFile, bytes);
+        assertThat(JfrChunk.readChunks(jfrFile).get(8).isFinished()).isFalse();
+
+        JfrScannableTable uncached = (JfrScannableTable) new JfrSchema(jfrFile, new JfrScanOptions(null, null, null)).getTable("test.Tick");
+        List<Object[]> expected = uncached.scan(StartTimeRange.UNBOUNDED, null).toList();
+        assertThat(expected).hasSizeGreaterThan(0);
+
+        ColumnarTableCache cache = new ColumnarTableCache(16 * 1024 * 1024);
+        JfrScannableTable table = (JfrScannableTable) new JfrSchema(jfrFile, new JfrScanOptions(null, cache, null)).getTable("test.Tick");
+        int sequence = table.getRowType().getFieldNames().indexOf("sequence");
+
+        // the rows of the chunk being written are returned by each scan, but not cached
+        for (int i = 0; i < 2; i++) {
+            List<Object[]> rows = table.scan(StartTimeRange.UNBOUNDED, null).toList();
+            assertThat(rows).hasSameSizeAs(expected);
+            assertThat(rows.get(rows.size() - 1)[sequence]).isEqualTo(expected.get(expected.size() - 1)[sequence]);
+
+            assertThat(cache.get(jfrFile, "test.Tick").getChunks()).hasSize(8);
+            assertThat(cache.get(jfrFile, "test.Tick").getRowCount()).isLessThan(expected.size());
+        }
+
+        String query = """
+                SELECT count(*), max("sequence")
+                FROM jfr."test.Tick"
+                """;
+
+        for (int i = 0; i < 2; i++) {
+            try (Connection connection = getConnection(jfrFile, Map.of("cacheSize", "16"));
+                    ResultSet rs = connection.prepareStatement(query).executeQuery()) {
+                assertThat(rs.next()).isTrue();
+                assertThat(rs.getLong(1)).isEqualTo(expected.size());
+                assertThat(rs.getLong(2)).isEqualTo(((Number) expected.get(expected.size() - 1)[sequence]).longValue());
+            }
+        }
+    }
+
+    @Test
+    public void canServeScansFromIndex(@TempDir Path tempDir) throws Exception {
+        Path jfrFile = tempDir.resolve("data-types.jfr");
+        Files.copy(getTestResource("data-types.jfr"), jfrFile);
+
+        assertThat(JfrIndex.open(jfrFile)).isNull();
+        assertThat(JfrIndex.create(jfrFile)).isEqualTo(tempDir.resolve("data-types.jfr.idx"));
+
+        JfrIndex index = JfrIndex.open(jfrFile);
+        assertThat(index).isNotNull();
+
+        ColumnarTable table = index.getTable("test.DataTypes");
+        assertThat(table.getRowCount()).isEqualTo(1);
+        assertThat(table.hasColumns(null)).isTrue();
+
+        try (Connection connection = getConnection(jfrFile, Map.of())) {
+            try (ResultSet rs = connection.prepareStatement("""
+                    SELECT ("eventThread")."javaName", "someBoolean", "someChar", "someByte", "someShort", "someInt", "someLong", "someFloat", "someDouble", "someString"
+                    FROM jfr."test.DataTypes"
+                    """).executeQuery()) {
+                assertThat(rs.next()).isTrue();
+
+                assertThat(rs.getString(1)).isEqualTo("main");
+                assertThat(rs.getBoolean(2)).isTrue();
+                assertThat(rs.getString(3)).isEqualTo("X");
+                assertThat(rs.getByte(4)).isEqualTo(Byte.MAX_VALUE);
+                assertThat(rs.getShort(5)).isEqualTo(Short.MAX_VALUE);
+                assertThat(rs.getInt(6)).isEqualTo(Integer.MAX_VALUE);
+                assertThat(rs.getLong(7)).isEqualTo(Long.MAX_VALUE);
+                assertThat(rs.getFloat(8)).isEqualTo(Float.MAX_VALUE);
+                assertThat(rs.getDouble(9)).isEqualTo(Double.MAX_VALUE);
+                assertThat(rs.getString(10)).isEqualTo("SQL rockz");
+
+                assertThat(rs.next()).isFalse();
+            }
+
+            try (ResultSet rs = connection.prepareStatement("""
+                    SELECT TRUNCATE_STACKTRACE("stackTrace", 1)
+                    FROM jfr."test.DataTypes"
+                    """).executeQuery()) {
+                assertThat(rs.next()).isTrue();
+                assertThat(rs.getString(1)).isNotEmpty();
+                assertThat(rs.next()).isFalse();
+            }
+        }
+
+        // the index is ignored once the recording has been modified
+        Files.setLastModifiedTime(jfrFile, FileTime.fromMillis(Files.getLastModifiedTime(jfrFile).toMillis() + 60_000));
+        assertThat(JfrIndex.open(jfrFile)).isNull();
+    }
+
+    @Test
+    public void canServeStackTracesAndClassesFromIndex(@TempDir Path tempDir) throws Exception {
+        Path jfrFile = tempDir.resolve("object-allocations.jfr");
+        Files.copy(getTestResource("object-allocations.jfr"), jfrFile);
+
+        List<String> queries = List.of("""
+                SELECT "startTime", CLASS_NAME("objectClass"), TRUNCATE_STACKTRACE("stackTrace", 3), HAS_MATCHING_FRAME("stackTrace", '.*String.*'), "weight"
+                FROM jfr."jdk.ObjectAllocationSample"
+                ORDER BY "startTime", "weight", CLASS_NAME("objectClass")
+                """, """
+                SELECT TRUNCATE_STACKTRACE("stackTrace", 5), SUM("weight")
+                FROM jfr."jdk.ObjectAllocationSample"
+                GROUP BY TRUNCATE_STACKTRACE("stackTrace", 5)
+                ORDER BY SUM("weight") DESC
+                LIMIT 10
+                """, """
+                SELECT FLAMEGRAPH("stackTrace", "weight")
+                FROM jfr."jdk.ObjectAllocationSample"
+                """);
+
+        String valuesQuery = """
+                SELECT "stackTrace", "objectClass", CLASS_NAME("objectClass")
+                FROM jfr."jdk.ObjectAllocationSample"
+                LIMIT 1
+                """;
+
+        List<List<String>> expected = new ArrayList<>();
+        try (Connection connection = getConnection(jfrFile, Map.of())) {
+            for (String query : queries) {
+                expected.add(getRows(connection, query));
+            }
+
+            try (ResultSet rs = connection.prepareStatement(valuesQuery).executeQuery()) {
+                assertThat(rs.next()).isTrue();
+                assertThat(rs.getObject(1)).isInstanceOf(RecordedStackTrace.class);
+                assertThat(rs.getObject(2)).isInstanceOf(RecordedClass.class);
+            }
+        }
+
+        JfrIndex.create(jfrFile);
+        ColumnarTable table = JfrIndex.open(jfrFile).getTable("jdk.ObjectAllocationSample");
+
+        // written in several batches
+        assertThat(table.getRowCount()).isGreaterThan(ColumnarTable.BLOCK_SIZE * 2);
+        assertThat(table.hasColumns(null)).isTrue();
+
+        try (Connection connection = getConnection(jfrFile, Map.of())) {
+            for (int i = 0; i < queries.size(); i++) {
+                assertThat(getRows(connection, queries.get(i))).isEqualTo(expected.get(i));
+            }
+
+            // the values retrieved via JDBC are the stand-ins; classes are rendered as their name
+            try (ResultSet rs = connection.prepareStatement(valuesQuery).executeQuery()) {
+                assertThat(rs.next()).isTrue();
+                assertThat(rs.getObject(1)).isInstanceOf(IndexedStackTrace.class);
+                assertThat(((IndexedStackTrace) rs.getObject(1)).getFrames()).isNotEmpty();
+                assertThat(rs.getObject(2)).isInstanceOf(IndexedClass.class);
+                assertThat(rs.getObject(2)).hasToString(rs.getString(3));
+            }
+        }
+    }
+
+    @Test
+    public void canSkipBlocksOfIndexBeforeStartTimeLowerBound(@TempDir Path tempDir) throws Exception {
+        Path jfrFile = tempDir.resolve("multi-chunk.jfr");
+        Files.copy(getTestResource("multi-chunk.jfr"), jfrFile);
+        JfrIndex.create(jfrFile);
+
+        try (Connection connection = getConnection(jfrFile, Map.of())) {
+            Timestamp lowerBound;
+
+            try (ResultSet rs = connection.prepareStatement("""
+                    SELECT "startTime"
+                    FROM jfr."test.Tick"
+                    WHERE "sequence" = 60
+                    """).executeQuery()) {
+                assertThat(rs.next()).isTrue();
+                lowerBound = rs.getTimestamp(1);
+            }
+
+            PreparedStatement statement = connection.prepareStatement("""
+                    SELECT count(*), min("sequence"), max("sequence")
+                    FROM jfr."test.Tick"
+                    WHERE "startTime" >= ?
+                    """);
+            statement.setTimestamp(1, lowerBound);
+
+            try (ResultSet rs = statement.executeQuery()) {
+                assertThat(rs.next()).isTrue();
+                assertThat(rs.getLong(1)).isEqualTo(40);
+                assertThat(rs.getLong(2)).isEqualTo(60);
+                assertThat(rs.getLong(3)).isEqualTo(99);
+            }
+        }
+    }
+
+    @Test
+    public void canQueryDirectoryOfRecordings(@TempDir Path tempDir) throws Exception {
+        Files.createDirectories(tempDir.resolve("sub"));
+        Files.copy(getTestResource("multi-chunk.jfr"), tempDir.resolve("a.jfr"));
+        Files.copy(getTestResource("multi-chunk.jfr"), tempDir.resolve("sub").resolve("b.jfr"));
+        Files.copy(getTestResource("basic.jfr"), tempDir.resolve("basic.jfr"));
+        Files.writeString(tempDir.resolve("notes.txt"), "not a recording");
+
+        for (String parallelism : List.of("1", "2")) {
+            try (Connection connection = getConnection(Map.of("directory", tempDir.toString(), "parallelism", parallelism))) {
+                try (ResultSet rs = connection.prepareStatement("""
+                        SELECT "sourceFile", count(*), min("sequence"), max("sequence")
+                        FROM jfr."test.Tick"
+                        GROUP BY "sourceFile"
+                        ORDER BY "sourceFile"
+                        """).executeQuery()) {
+                    assertThat(rs.next()).isTrue();
+                    assertThat(rs.getString(1)).isEqualTo("a.jfr");
+                    assertThat(rs.getLong(2)).isEqualTo(100);
+                    assertThat(rs.next()).isTrue();
+                    assertThat(rs.getString(1)).isEqualTo(Path.of("sub", "b.jfr").toString());
+                    assertThat(rs.getLong(2)).isEqualTo(100);
+                    assertThat(rs.getLong(3)).isEqualTo(0);
+                    assertThat(rs.getLong(4)).isEqualTo(99);
+                    assertThat(rs.next()).isFalse();
+                }
+
+                PreparedStatement statement = connection.prepareStatement("""
+                        SELECT count(*), min("sequence")
+                        FROM jfr."test.Tick"
+                        WHERE "startTime" >= (SELECT "startTime" FROM jfr."test.Tick" WHERE "sequence" = 60 AND "sourceFile" = 'a.jfr')
+                        """);
+
+                try (ResultSet rs = statement.executeQuery()) {
+                    assertThat(rs.next()).isTrue();
+                    assertThat(rs.getLong(1)).isEqualTo(80);
+                    assertThat(rs.getLong(2)).isEqualTo(60);
+                }
+
+                try (ResultSet rs = connection.prepareStatement("""
+                        SELECT "sourceFile", count(*)
+                        FROM jfr."jdk.ThreadSleep"
+                        WHERE "sourceFile" = 'basic.jfr'
+                        GROUP BY "sourceFile"
+                        """).executeQuery()) {
+                    assertThat(rs.next()).isTrue();
+                    assertThat(rs.getString(1)).isEqualTo("basic.jfr");
+                    assertThat(rs.getLong(2)).isEqualTo(51);
+                    assertThat(rs.next()).isFalse();
+                }
+            }
+        }
+
+        try (Connection connection = getConnection(Map.of("directory", tempDir.toString(), "glob", "*.jfr"))) {
+            try (ResultSet rs = connection.prepareStatement("SELECT count(*) FROM jfr.\"test.Tick\"").executeQuery()) {
+                assertThat(rs.next()).isTrue();
+                assertThat(rs.getLong(1)).isEqualTo(100);
+            }
+        }
+    }
+
+    @Test
+    public void canMergeColumnTypesOfRecordings(@TempDir Path tempDir) throws Exception {
+        try (Recording recording = new Recording()) {
+            recording.enable(VersionOneEvent.class);
+            recording.start();
+
+            VersionOneEvent event = new VersionOneEvent();
+            event.value = 42;
+            event.label = "one";
+            event.commit();
+
+            recording.stop();
+            recording.dump(tempDir.resolve("a.jfr"));
+        }
+        finally {
+            FlightRecorder.unregister(VersionOneEvent.class);
+        }
+
+        try (Recording recording = new Recording()) {
+            recording.enable(VersionTwoEvent.class);
+            recording.start();
+
+            VersionTwoEvent event = new VersionTwoEvent();
+            event.value = Long.MAX_VALUE;
+            event.label = 2;
+            event.commit();
+
+            recording.stop();
+            recording.dump(tempDir.resolve("b.jfr"));
+        }
+        finally {
+            FlightRecorder.unregister(VersionTwoEvent.class);
+        }
+
+        // numeric columns are widened, other columns are null for the recordings of another type
+        for (String parallelism : List.of("1", "2")) {
+            try (Connection connection = getConnection(Map.of("directory", tempDir.toString(), "parallelism", parallelism));
+                    ResultSet rs = connection.prepareStatement("""
+                            SELECT "sourceFile", "value", "label"
+                            FROM jfr."test.Versioned"
+                            ORDER BY "sourceFile"
+                            """).executeQuery()) {
+                assertThat(rs.getMetaData().getColumnType(2)).isEqualTo(Types.BIGINT);
+                assertThat(rs.getMetaData().getColumnType(3)).isEqualTo(Types.VARCHAR);
+
+                assertThat(rs.next()).isTrue();
+                assertThat(rs.getString(1)).isEqualTo("a.jfr");
+                assertThat(rs.getObject(2)).isEqualTo(42L);
+                assertThat(rs.getString(3)).isEqualTo("one");
+
+                assertThat(rs.next()).isTrue();
+                assertThat(rs.getString(1)).isEqualTo("b.jfr");
+                assertThat(rs.getObject(2)).isEqualTo(Long.MAX_VALUE);
+                assertThat(rs.getObject(3)).isNull();
+
+                assertThat(rs.next()).isFalse();
+            }
+        }
+    }
+
+    @Test
+    public void canRunWindowedStreamingQueries() throws Exception {
+        FlightRecorder.register(PingEvent.class);
+
+        AtomicBoolean running = new AtomicBoolean(true);
+        Thread producer = new Thread(() -> {
+            for (long i = 0; running.get(); i++) {
+                PingEvent event = new PingEvent();
+                event.value = i;
+                event.commit();
+
+                try {
+                    Thread.sleep(5);
+                }
+                catch (InterruptedException e) {
+                    return;
+                }
+            }
+        });
+        producer.start();
+
+        try (Connection connection = getConnection(Map.of("stream", "local"))) {
+            try (PreparedStatement statement = connection.prepareStatement("""
+                    SELECT STREAM "value"
+                    FROM jfr."test.Ping"
+                    WHERE MOD("value", 2) = 1
+                    """); ResultSet rs = statement.executeQuery()) {
+
+                long previous = -1;
+
+                for (int i = 0; i < 3; i++) {
+                    assertThat(rs.next()).isTrue();
+                    assertThat(rs.getLong(1) % 2).isEqualTo(1);
+                    assertThat(rs.getLong(1)).isGreaterThan(previous);
+                    previous = rs.getLong(1);
+                }
+            }
+
+            try (PreparedStatement statement = connection.prepareStatement("""
+                    SELECT STREAM TUMBLE_END("startTime", INTERVAL '1' SECOND), count(*), min("value"), max("value"), avg("value")
+                    FROM jfr."test.Ping"
+                    GROUP BY TUMBLE("startTime", INTERVAL '1' SECOND)
+                    """); ResultSet rs = statement.executeQuery()) {
+
+                long previousEnd = -1;
+                long previousMax = -1;
+
+                // windows are emitted while the stream is running
+                for (int i = 0; i < 3; i++) {
+                    assertThat(rs.next()).isTrue();
+                    assertThat(rs.getLong(2)).isPositive();
+                    assertThat(rs.getLong(3)).isGreaterThan(previousMax);
+                    assertThat(rs.getLong(5)).isBetween(rs.getLong(3), rs.getLong(4));
+
+                    long end = rs.getTimestamp(1).getTime();
+                    assertThat(end % 1000).isEqualTo(0);
+                    if (previousEnd != -1) {
+                        assertThat(end).isGreaterThan(previousEnd);
+                    }
+
+                    previousEnd = end;
+                    previousMax = rs.getLong(4);
+                }
+            }
+
+            try (PreparedStatement statement = connection.prepareStatement("""
+                    SELECT STREAM HOP_START("startTime", INTERVAL '1' SECOND, INTERVAL '2' SECOND), MOD("value", 2) = 0, count(*)
+                    FROM jfr."test.Ping"
+                    GROUP BY HOP("startTime", INTERVAL '1' SECOND, INTERVAL '2' SECOND), MOD("value", 2) = 0
+                    """); ResultSet rs = statement.executeQuery()) {
+
+                Set<Long> windowStarts = new HashSet<>();
+
+                // two groups per window
+                for (int i = 0; i < 6; i++) {
+                    assertThat(rs.next()).isTrue();
+                    assertThat(rs.getLong(3)).isPositive();
+                    windowStarts.add(rs.getTimestamp(1).getTime());
+                }
+
+                assertThat(windowStarts).hasSizeBetween(3, 4);
+            }
+        }
+        finally {
+            running.set(false);
+            producer.join();
+        }
+    }
+
+    @Test
+    public void canReorderLateStreamingEvents() throws Exception {
+        FlightRecorder.register(PingEvent.class);
+
+        AtomicBoolean running = new AtomicBoolean(true);
+        Thread producer = new Thread(() -> {
+            for (long i = 0; running.get(); i++) {
+                PingEvent event = new PingEvent();
+                event.value = i;
+                event.commit();
+
+                try {
+                    Thread.sleep(5);
+                }
+                catch (InterruptedException e) {
+                    return;
+                }
+            }
+        });
+
+        // committed after the events started during its duration, i.e. it arrives late
+        Thread slowProducer = new Thread(() -> {
+            PingEvent event = new PingEvent();
+            event.begin();
+            event.value = -1;
+
+            try {
+                Thread.sleep(300);
+            }
+            catch (InterruptedException e) {
+                return;
+            }
+
+            event.commit();
+        });
+
+        producer.start();
+
+        try (Connection connection = getConnection(Map.of("stream", "local"))) {
+            try (PreparedStatement statement = connection.prepareStatement("""
+                    SELECT STREAM "startTime", "value"
+                    FROM jfr."test.Ping"
+                    """); ResultSet rs = statement.executeQuery()) {
+
+                // the stream is running once the query has been executed
+                slowProducer.start();
+
+                long previousStartTime = Long.MIN_VALUE;
+                int laterEvents = -1;
+
+                for (int i = 0; i < 2_000 && laterEvents < 10; i++) {
+                    assertThat(rs.next()).isTrue();
+
+                    long startTime = rs.getTimestamp(1).getTime();
+                    assertThat(startTime).isGreaterThanOrEqualTo(previousStartTime);
+                    previousStartTime = startTime;
+
+                    if (rs.getLong(2) == -1) {
+                        laterEvents = 0;
+                    }
+                    else if (laterEvents >= 0) {
+                        laterEvents++;
+                    }
+                }
+
+                assertThat(laterEvents).describedAs("late event emitted in start time order").isEqualTo(10);
+            }
+        }
+        finally {
+            running.set(false);
+            producer.join();
+            slowProducer.join();
+        }
+    }
+
+    @Name("test.Ping")
+    static class PingEvent extends Event {
+
+        long value;
+    }
+
+    @Name("test.Versioned")
+    static class VersionOneEvent extends Event {
+
+        int value;
+        String label;
+    }
+
+    @Name("test.Versioned")
+    static class VersionTwoEvent extends Event {
+
+        long value;
+        int label;
+    }
+
+    @Name("test.Timespans")
+    static class TimespansEvent extends Event {
+
+        @Timespan(Timespan.MICROSECONDS)
+        long micros;
+
+        @Timespan(Timespan.SECONDS)
+        long seconds;
+
+        @Timespan(Timespan.MILLISECONDS)
+        long overflowing;
+
+        @Timespan(Timespan.MILLISECONDS)
+        long absent;
+    }
+
+    private static List<String> getRows(Connection connection, String query) throws SQLException {
+        List<String> rows = new ArrayList<>();
+
+        try (ResultSet rs = connection.prepareStatement(query).executeQuery()) {
+            while (rs.next()) {
+                StringBuilder row = new StringBuilder();
+                for (int i = 1; i <= rs.getMetaData().getColumnCount(); i++) {
+                    row.append(i > 1 ? " " : "").append(rs.getObject(i));
+                }
+                rows.add(row.toString());
+            }
+        }
+
+        return rows;
+    }
+
+    private Connection getConnection(String jfrFileName) throws SQLException {
+        return getConnection(getTestResource(jfrFileName));
+    }
+
+    private Connection getConnection(Path jfrFile) throws SQLException {
+        Properties properties = new Properties();
+        properties.put("model", JfrSchemaFactory.getInlineModel(jfrFile));
+
+        return DriverManager.getConnection("jdbc:calcite:", properties);
+    }
+
+    private Connection getConnection(Path jfrFile, Map<String, String> operands) throws SQLException {
+        Map<String, String> allOperands = new HashMap<>(operands);
+        allOperands.put("file", jfrFile.toString());
+
+        return getConnection(allOperands);
+    }
+
+    private Connection getConnection(Map<String, String> operands) throws SQLException {
+        Properties properties = new Properties();
+        properties.put("schemaFactory", JfrSchemaFactory.class.getName());
+        properties.put("schema", "JFR");
+        operands.forEach((name, value) -> properties.put("schema." + name, value));
 
         return DriverManager.getConnection("jdbc:calcite:", properties);
     }